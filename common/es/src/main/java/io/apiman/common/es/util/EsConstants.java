@@ -41,6 +41,7 @@ public class EsConstants {
     public static final String INDEX_RATE_BUCKET = "ratebucket"; //$NON-NLS-1$
     public static final String INDEX_SHARED_STATE_PROPERTY = "sharedstateproperty"; //$NON-NLS-1$
     public static final String INDEX_DATA_VERSION = "dataversion"; //$NON-NLS-1$
+    public static final String INDEX_CHANGE_LOG = "changelog"; //$NON-NLS-1$
 
     // manager indices (indices have to be lowercase)
     public static final String INDEX_MANAGER_POSTFIX_GATEWAY = "gateway";
@@ -17,21 +17,20 @@
 package io.apiman.gateway.engine.beans.util;
 
 import java.io.Serializable;
-import java.nio.ByteOrder;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-
-import net.openhft.hashing.Access;
-import net.openhft.hashing.LongHashFunction;
+import java.util.TreeSet;
 
 /**
  * A simple multimap able to accept multiple values for a given key.
@@ -43,8 +42,13 @@ import net.openhft.hashing.LongHashFunction;
  * This map expects ASCII for key strings.
  * </p>
  * <p>
- * Case is ignored (avoiding {@link String#toLowerCase()} <code>String</code> allocation)
- * before being hashed (<code>xxHash</code>).
+ * Entries are stored in insertion order in parallel arrays, with each entry
+ * linking to the previous value of the same key. Keys are indexed by an
+ * open-addressing table holding each key's most recent entry, which is resized
+ * to keep its load factor below 0.75, so lookups stay short no
+ * matter how many headers a request carries. Case is ignored (avoiding
+ * {@link String#toLowerCase()} <code>String</code> allocation) when hashing, and
+ * the hashes of well-known header names are precomputed.
  * </p>
  * <p>
  *     Constraints:
@@ -57,130 +61,162 @@ import net.openhft.hashing.LongHashFunction;
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 public class CaseInsensitiveStringMultiMap implements IStringMultiMap, Serializable {
-    private static final long serialVersionUID = -2052530527825235543L;
-    private static final Access<String> LOWER_CASE_ACCESS_INSTANCE = new LowerCaseAccess();
-    //private static final float MAX_LOAD_FACTOR = 0.75f;
-    private Element[] hashArray;
+    private static final long serialVersionUID = 3861548420954307263L;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int NONE = -1;
+    private static final Map<String, Integer> WELL_KNOWN_HASHES = wellKnownHashes();
+
+    // Entries, in insertion order. A removed entry has a null key.
+    private String[] keys;
+    private String[] values;
+    private int[] hashes;
+    private int[] previous; // Index of the previous entry with the same key, or NONE
+    private int entryCount = 0;
+    private int removedCount = 0;
+
+    // Open-addressing (linear probing) index of each key's most recent entry, stored +1 so 0 is empty.
+    private int[] table;
     private int keyCount = 0;
 
     public CaseInsensitiveStringMultiMap() {
-        hashArray = new Element[32];
+        this(DEFAULT_CAPACITY);
     }
 
     public CaseInsensitiveStringMultiMap(int sizeHint) {
-        hashArray = new Element[(int) (sizeHint*1.25)];
+        int capacity = Math.max(sizeHint, 1);
+        keys = new String[capacity];
+        values = new String[capacity];
+        hashes = new int[capacity];
+        previous = new int[capacity];
+        table = new int[tableSizeFor(capacity)];
     }
 
     @Override
     public Iterator<Entry<String, String>> iterator() {
-        return new ElemIterator(hashArray);
+        return new EntryIterator();
     }
 
     @Override
     public IStringMultiMap put(String key, String value) {
-        long keyHash = getHash(key);
-        int idx = getIndex(keyHash);
-        if (hashArray[idx] == null) {
-            keyCount++;
-            hashArray[idx] = new Element(key, value, keyHash);
+        int hash = getHash(key);
+        int slot = findSlot(key, hash);
+        if (slot < 0) {
+            insert(-slot - 1, append(key, value, hash, NONE));
         } else {
-            remove(key);
-            add(key, value);
+            unlink(table[slot] - 1);
+            table[slot] = append(key, value, hash, NONE) + 1;
+            compactIfSparse();
         }
         return this;
     }
 
-    private int getIndex(long hash) {
-        return Math.abs((int) (hash % hashArray.length));
-    }
-
-    private long getHash(String text) {
-        return LongHashFunction.xx().hash(text, LOWER_CASE_ACCESS_INSTANCE, 0, text.length());
-    }
-
     @Override
     public IStringMultiMap putAll(Map<String, String> map) {
-        map.entrySet().stream()
-                .forEachOrdered(pair -> put(pair.getKey(), pair.getValue()));
+        for (Entry<String, String> pair : map.entrySet()) {
+            put(pair.getKey(), pair.getValue());
+        }
         return this;
     }
 
     @Override
     public IStringMultiMap add(String key, String value) {
-        long hash = getHash(key);
-        int idx = getIndex(hash);
-        Element existingHead = hashArray[idx];
-        if (existingHead == null) {
-            hashArray[idx] = new Element(key, value, hash);
-            keyCount++;
-        } else { // Last element appears first in list.
-            if (existingHead.getByHash(hash, key) == null) {
-                keyCount++; // If it's a unique key collision and we've not actually seen this key before.
-            }
-            Element newHead = new Element(key, value, hash);
-            newHead.previous = existingHead;
-            hashArray[idx] = newHead;
+        int hash = getHash(key);
+        int slot = findSlot(key, hash);
+        if (slot < 0) {
+            insert(-slot - 1, append(key, value, hash, NONE));
+        } else { // Most recent element is indexed, and links to the older ones.
+            table[slot] = append(key, value, hash, table[slot] - 1) + 1;
         }
         return this;
     }
 
     public IStringMultiMap add(String key, List<String> values) {
-        values.forEach((value) -> add(key, value));
+        for (String value : values) {
+            add(key, value);
+        }
         return this;
     }
 
-    private Element getElement(String key) {
-        long hash = getHash(key);
-        Element head = hashArray[getIndex(hash)];
-        return head == null ? null : head.getByHash(hash, key);
-    }
-
     @Override
     public IStringMultiMap addAll(Map<String, String> map) {
-        map.entrySet().stream()
-                .forEachOrdered(pair -> put(pair.getKey(), pair.getValue()));
+        for (Entry<String, String> pair : map.entrySet()) {
+            put(pair.getKey(), pair.getValue());
+        }
         return this;
     }
 
     @Override
     public IStringMultiMap addAll(IStringMultiMap map) {
-        map.getEntries().stream()
-                .forEachOrdered(pair -> add(pair.getKey(), pair.getValue()));
+        if (map instanceof CaseInsensitiveStringMultiMap) {
+            // Copy straight from the arrays, keeping the insertion order and precomputed hashes.
+            CaseInsensitiveStringMultiMap other = (CaseInsensitiveStringMultiMap) map;
+            for (int i = 0; i < other.entryCount; i++) {
+                if (other.keys[i] != null) {
+                    add(other.keys[i], other.values[i], other.hashes[i]);
+                }
+            }
+        } else {
+            for (Entry<String, String> pair : map) {
+                add(pair.getKey(), pair.getValue());
+            }
+        }
         return this;
     }
 
+    private void add(String key, String value, int hash) {
+        int slot = findSlot(key, hash);
+        if (slot < 0) {
+            insert(-slot - 1, append(key, value, hash, NONE));
+        } else {
+            table[slot] = append(key, value, hash, table[slot] - 1) + 1;
+        }
+    }
+
     @Override
     public IStringMultiMap remove(String key) {
-        long hash = getHash(key);
-        int idx = getIndex(hash);
-        Element headElem = hashArray[idx];
-        if (headElem != null)
-            hashArray[idx] = headElem.removeByHash(hash, key);
+        if (keyCount > 0) {
+            int slot = findSlot(key, getHash(key));
+            if (slot >= 0) {
+                unlink(table[slot] - 1);
+                deleteSlot(slot);
+                keyCount--;
+                compactIfSparse();
+            }
+        }
         return this;
     }
 
     @Override
     public String get(String key) {
-        Element elem = getElement(key); // Just return the first value, ignore all others (i.e. most recently added one)
-        return elem == null ? null : elem.getValue();
+        int idx = getEntryIndex(key); // Just return the first value, ignore all others (i.e. most recently added one)
+        return idx == NONE ? null : values[idx];
     }
 
     @Override
     public List<Entry<String, String>> getAllEntries(String key) {
-        if (keyCount > 0) {
-            Element elem = getElement(key);
-            return elem == null ? Collections.emptyList() : elem.getAllEntries(key, getHash(key));
+        int idx = getEntryIndex(key);
+        if (idx == NONE) {
+            return Collections.emptyList();
+        }
+        List<Entry<String, String>> allElems = new ArrayList<>(2);
+        for (; idx != NONE; idx = previous[idx]) {
+            allElems.add(entry(idx));
         }
-        return Collections.emptyList();
+        return allElems;
     }
 
     @Override
     public List<String> getAll(String key) {
-        if (keyCount > 0) {
-            Element elem = getElement(key);
-            return elem == null ? Collections.emptyList() : elem.getAllValues(key, getHash(key));
-         }
-        return Collections.emptyList();
+        int idx = getEntryIndex(key);
+        if (idx == NONE) {
+            return Collections.emptyList();
+        }
+        List<String> allElems = new ArrayList<>(2);
+        for (; idx != NONE; idx = previous[idx]) {
+            allElems.add(values[idx]);
+        }
+        return allElems;
     }
 
     @Override
@@ -190,14 +226,11 @@ public class CaseInsensitiveStringMultiMap implements IStringMultiMap, Serializa
 
     @Override
     public List<Entry<String, String>> getEntries() {
-        List<Entry<String, String>> entryList = new ArrayList<>(keyCount);
-        // Look at all top-level elements
-        for (Element oElem : hashArray) {
-            if (oElem != null) { // Add any non-null elements
-                // If there are multiple values, will also add those
-                for (Element iElem = oElem; iElem != null; iElem = iElem.getNext()) {
-                    entryList.add(iElem);
-                }
+        List<Entry<String, String>> entryList = new ArrayList<>(entryCount - removedCount);
+        // Most recent first, as the values of a single key are
+        for (int i = entryCount - 1; i >= 0; i--) {
+            if (keys[i] != null) {
+                entryList.add(entry(i));
             }
         }
         return entryList;
@@ -206,15 +239,10 @@ public class CaseInsensitiveStringMultiMap implements IStringMultiMap, Serializa
     @Override
     public Map<String, String> toMap() {
         Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-        // Look at all top-level elements
-        for (Element oElem : hashArray) {
-            if (oElem != null) {
-                // Must check all bucket entries as can be hash collision
-                for (Entry<String, String> iElem : oElem.getAllEntries()) {
-                    // Add any non-null ones that aren't already in (NB: LIFO)
-                    if (!map.containsKey(iElem.getKey()))
-                        map.put(iElem.getKey(), iElem.getValue());
-                }
+        // The table only refers to the most recent entry of each key (NB: LIFO)
+        for (int slot : table) {
+            if (slot != 0) {
+                map.put(keys[slot - 1], values[slot - 1]);
             }
         }
         return map;
@@ -222,20 +250,27 @@ public class CaseInsensitiveStringMultiMap implements IStringMultiMap, Serializa
 
     @Override
     public boolean containsKey(String key) {
-        long hash = getHash(key);
-        int idx = getIndex(hash);
-        // Check if there's an entry the idx, *and* check that the key is not just a collision
-        return hashArray[idx] != null && hashArray[idx].getByHash(hash, key) != null;
+        return getEntryIndex(key) != NONE;
     }
 
     @Override
-    public Set<String> keySet() { // TODO
-        return toMap().keySet();
+    public Set<String> keySet() {
+        Set<String> keySet = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (int slot : table) {
+            if (slot != 0) {
+                keySet.add(keys[slot - 1]);
+            }
+        }
+        return keySet;
     }
 
     @Override
     public IStringMultiMap clear() {
-        hashArray = new Element[hashArray.length];
+        Arrays.fill(keys, 0, entryCount, null);
+        Arrays.fill(values, 0, entryCount, null);
+        Arrays.fill(table, 0);
+        entryCount = 0;
+        removedCount = 0;
         keyCount = 0;
         return this;
     }
@@ -243,218 +278,251 @@ public class CaseInsensitiveStringMultiMap implements IStringMultiMap, Serializa
     @Override
     @SuppressWarnings("nls")
     public String toString() {
-        String elems = keySet().stream()
-                .map(this::getAllEntries)
-                .map(pairs -> pairs.get(0).getKey() + " => [" + joinValues(pairs) + "]")
-                .collect(Collectors.joining(", "));
-        return "{" + elems + "}";
+        StringBuilder sb = new StringBuilder("{");
+        for (String key : keySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(key).append(" => [");
+            // Values are held most recent first, but print in insertion order.
+            List<String> all = getAll(key);
+            for (int i = all.size() - 1; i >= 0; i--) {
+                sb.append(all.get(i));
+                if (i > 0) {
+                    sb.append(", ");
+                }
+            }
+            sb.append(']');
+        }
+        return sb.append('}').toString();
     }
 
-    @SuppressWarnings("nls")
-    private String joinValues(List<Entry<String, String>> pairs) {
-        return IntStream.rangeClosed(1, pairs.size())
-                .mapToObj(i -> pairs.get(pairs.size() - i))
-                .map(Entry::getValue)
-                .collect(Collectors.joining(", "));
+    private Entry<String, String> entry(int idx) {
+        return new AbstractMap.SimpleImmutableEntry<>(keys[idx], values[idx]);
     }
 
-    private static boolean insensitiveEquals(String a, String b) {
-        if (a.length() != b.length())
-            return false;
-
-        for (int i = 0; i < a.length(); i++) {
-            char charA = a.charAt(i);
-            char charB = b.charAt(i);
-            // If characters match, just continue
-            if (charA == charB)
-                continue;
-            // If charA is upper and we didn't already match above
-            // then charB may be lower (and possibly still not match).
-            if (charA >= 'A' && charA <= 'Z' && (charA + 32 != charB))
-                return false;
-            // If charB is upper and we didn't already match above
-            // then charA may be lower (and possibly still not match).
-            if (charB >= 'A' && charB <= 'Z' && (charB + 32 != charA))
-                return false;
-            // Otherwise matches
+    private int getEntryIndex(String key) {
+        if (keyCount == 0) {
+            return NONE;
         }
-        return true;
+        int slot = findSlot(key, getHash(key));
+        return slot < 0 ? NONE : table[slot] - 1;
     }
 
-    private final class Element extends AbstractMap.SimpleImmutableEntry<String, String> implements Iterable<Entry<String, String>> {
-        private static final long serialVersionUID = 4505963331324890429L;
-        private final long keyHash;
-        private Element previous = null;
-
-        /**
-         * The <tt>keyHash</tt> is stored because we may have duplicate entries for a
-         * given hash bucket for two reasons:
-         *
-         * <ol>
-         *   <li> Multiple value insertions for the same key (standard multimap behaviour)
-         *   <li> Hash collision. The key is different, but maps to the same bucket.
-         * </ol>
-         *
-         * We can use the stored hash to rapidly differentiate between these scenarios
-         * and in various operations such as delete.
-         *
-         * @param key the key
-         * @param value the value
-         * @param keyHash the hash <strong>(NB: full hash, not just bucket index!)</strong>
-         */
-        public Element(String key, String value, long keyHash) {
-            super(key, value);
-            this.keyHash = keyHash;
-        }
-
-        public Element removeByHash(long hash, String key) {
-            Element current = this;
-            Element newHead = null;
-            Element link = null;
-            boolean removedAny = false;
-
-            while (current != null) {
-                // If matches hash and key, should discard.
-                if (current.eq(hash, key)) {
-                    Element prev = current.previous;
-                    current.previous = null;
-                    current = prev;
-                    removedAny = true;
-                    if (link != null)
-                        link.previous = prev;
-                } else if (newHead == null) {
-                    newHead = link = current;
-                    current = newHead.previous;
-                } else {
-                    link.previous = link = current;
-                    current = current.previous;
-                }
+    /**
+     * Probes the table for the key.
+     *
+     * @return the slot holding the key, or <tt>-(insertion slot + 1)</tt> if it is absent
+     */
+    private int findSlot(String key, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int idx = table[slot] - 1;
+            if (idx == NONE) {
+                return -slot - 1;
+            }
+            // NB: Even if hashes match, tiny chance of collision - so also check key.
+            if (hashes[idx] == hash && insensitiveEquals(key, keys[idx])) {
+                return slot;
             }
-            if (removedAny)
-                keyCount--;
-            return newHead;
-        }
-
-        private boolean eq(long hashCode, String key) {
-            return getKeyHash() == hashCode && insensitiveEquals(key, getKey());
         }
+    }
 
-        // NB: Even if hashes match, tiny chance of collision - so also check key.
-        public Element getByHash(long hashCode, String key) {
-            return getKeyHash() == hashCode && insensitiveEquals(key, getKey()) ? this : getNext(hashCode, key);
+    private void insert(int slot, int idx) {
+        table[slot] = idx + 1;
+        if (++keyCount > table.length * MAX_LOAD_FACTOR) {
+            resize(table.length << 1);
         }
+    }
 
-        @Override
-        public Iterator<Entry<String, String>> iterator() {
-            return getAllEntries().iterator();
+    /**
+     * Empties a slot, shifting back any later entries of its probe sequence
+     * so lookups never stop early (no tombstones needed).
+     */
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int home = hashes[table[i] - 1] & mask;
+            // Move into the hole unless its home slot lies between the hole and it
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                hole = i;
+            }
         }
+        table[hole] = 0;
+    }
 
-        public List<Entry<String, String>> getAllEntries(String key, long hashCode) {
-            List<Entry<String, String>> allElems = new ArrayList<>();
-            for (Element elem = this; elem != null; elem = elem.getNext()) {
-                if (elem.getKeyHash() == hashCode && insensitiveEquals(key, elem.getKey())) {
-                    allElems.add(elem);
+    private void resize(int newSize) {
+        int[] oldTable = table;
+        table = new int[newSize];
+        int mask = newSize - 1;
+        for (int ref : oldTable) {
+            if (ref != 0) {
+                int slot = hashes[ref - 1] & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
                 }
+                table[slot] = ref;
             }
-            return allElems;
         }
+    }
 
-        public List<Entry<String, String>> getAllEntries() {
-            List<Entry<String, String>> allElems = new ArrayList<>();
-            for (Element elem = this; elem != null; elem = elem.getNext()) {
-                allElems.add(elem);
-            }
-            return allElems;
+    private int append(String key, String value, int hash, int previousIdx) {
+        if (entryCount == keys.length) {
+            int capacity = keys.length + Math.max(keys.length >> 1, 4);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            previous = Arrays.copyOf(previous, capacity);
         }
+        int idx = entryCount++;
+        keys[idx] = key;
+        values[idx] = value;
+        hashes[idx] = hash;
+        previous[idx] = previousIdx;
+        return idx;
+    }
 
-        public long getKeyHash() {
-            return keyHash;
+    private void unlink(int idx) {
+        while (idx != NONE) {
+            keys[idx] = null;
+            values[idx] = null;
+            removedCount++;
+            idx = previous[idx];
         }
+    }
 
-        public List<String> getAllValues(String key, long hashCode) {
-            List<String> allElems = new ArrayList<>();
-            for (Element elem = this; elem != null; elem = elem.getNext()) {
-                if (elem.getKeyHash() == hashCode && insensitiveEquals(key, elem.getKey())) {
-                    allElems.add(elem.getValue());
-                }
+    /**
+     * Once most entries have been removed, squeeze them out and reindex.
+     */
+    private void compactIfSparse() {
+        if (removedCount < 8 || removedCount * 2 < entryCount) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (keys[i] != null) {
+                keys[live] = keys[i];
+                values[live] = values[i];
+                hashes[live] = hashes[i];
+                live++;
+            }
+        }
+        Arrays.fill(keys, live, entryCount, null);
+        Arrays.fill(values, live, entryCount, null);
+        entryCount = live;
+        removedCount = 0;
+        Arrays.fill(table, 0);
+        for (int i = 0; i < live; i++) {
+            int slot = findSlot(keys[i], hashes[i]);
+            if (slot < 0) {
+                previous[i] = NONE;
+                table[-slot - 1] = i + 1;
+            } else {
+                previous[i] = table[slot] - 1;
+                table[slot] = i + 1;
             }
-            return allElems;
         }
+    }
 
-        public boolean hasNext() {
-            return previous != null;
+    private static int tableSizeFor(int expectedKeys) {
+        int size = 2;
+        while (size * MAX_LOAD_FACTOR < expectedKeys) {
+            size <<= 1;
         }
+        return size;
+    }
+
+    private static int getHash(String key) {
+        Integer wellKnown = WELL_KNOWN_HASHES.get(key);
+        return wellKnown != null ? wellKnown : computeHash(key);
+    }
 
-        public Element getNext() {
-            return previous;
+    private static int computeHash(String key) {
+        int hash = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 32; // toLower
+            }
+            hash = 31 * hash + c;
         }
+        hash *= 0x9E3779B9; // Spread the polynomial's clustered low bits
+        return hash ^ (hash >>> 16);
+    }
 
-        public Element getNext(long hash, String key) {
-          Element elem = this;
-          while (elem.previous != null) {
-              elem = elem.previous;
-              if (elem.getKeyHash() == hash && insensitiveEquals(elem.getKey(), key))
-                  return elem;
-          }
-          return null;
+    @SuppressWarnings("nls")
+    private static Map<String, Integer> wellKnownHashes() {
+        String[] names = { "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language",
+                "Access-Control-Allow-Credentials", "Access-Control-Allow-Headers",
+                "Access-Control-Allow-Methods", "Access-Control-Allow-Origin",
+                "Access-Control-Expose-Headers", "Access-Control-Max-Age",
+                "Access-Control-Request-Headers", "Access-Control-Request-Method", "Age",
+                "Authorization", "Cache-Control", "Connection", "Content-Encoding", "Content-Length",
+                "Content-Type", "Cookie", "Date", "ETag", "Expires", "Host", "If-Match",
+                "If-Modified-Since", "If-None-Match", "Keep-Alive", "Last-Modified", "Location",
+                "Origin", "Pragma", "Referer", "Server", "Set-Cookie", "Transfer-Encoding",
+                "User-Agent", "Vary", "Via", "WWW-Authenticate", "X-API-Key", "X-Forwarded-For",
+                "X-Forwarded-Host", "X-Forwarded-Proto", "X-Request-Id" };
+        Map<String, Integer> hashes = new HashMap<>();
+        for (String name : names) {
+            // HTTP/2 and many clients send header names in lower case
+            hashes.put(name, computeHash(name));
+            hashes.put(name.toLowerCase(Locale.ROOT), computeHash(name));
         }
+        return hashes;
     }
 
-    private static final class ElemIterator implements Iterator<Entry<String, String>> {
-        final Element[] hashTable;
-        Element next;
-        Element selected;
-        int idx = 0;
+    private static boolean insensitiveEquals(String a, String b) {
+        if (a.length() != b.length())
+            return false;
 
-        public ElemIterator(Element[] hashTable) {
-            this.hashTable = hashTable;
+        for (int i = 0; i < a.length(); i++) {
+            char charA = a.charAt(i);
+            char charB = b.charAt(i);
+            // If characters match, just continue
+            if (charA == charB)
+                continue;
+            // Otherwise they only match if they are the same letter in different cases,
+            // folded the same way as computeHash
+            if (charA >= 'A' && charA <= 'Z')
+                charA += 32;
+            if (charB >= 'A' && charB <= 'Z')
+                charB += 32;
+            if (charA != charB)
+                return false;
         }
+        return true;
+    }
+
+    /**
+     * Iterates over all entries in insertion order, so multiple values of a
+     * key are seen in the order they were added.
+     */
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+        private int idx = nextLive(0);
 
         @Override
         public boolean hasNext() {
-            if (next == null)
-                setNext();
-            return next != null;
+            return idx < entryCount;
         }
 
         @Override
         public Entry<String, String> next() {
-            selected = next;
-            setNext();
+            if (idx >= entryCount) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> selected = entry(idx);
+            idx = nextLive(idx + 1);
             return selected;
         }
 
-        private void setNext() {
-            // If already have a selected element, then select next value with same key
-            if (selected != null && selected.hasNext()) {
-                next = selected.getNext();
-            } else { // Otherwise, look through table until next non-null element found
-                while (idx < hashTable.length) {
-                    if (hashTable[idx] != null) { // Found non-null element
-                        next = hashTable[idx]; // Set it as next
-                        idx++; // Increment index so we'll look at the following element next
-                        return;
-                    }
-                    idx++;
-                }
-                next = null;
+        private int nextLive(int from) {
+            while (from < entryCount && keys[from] == null) {
+                from++;
             }
-        }
-    }
-
-    private static final class LowerCaseAccess extends Access<String> {
-        @Override
-        public int getByte(String input, long offset) {
-          char c = input.charAt((int)offset);
-          if (c >= 'A' && c <= 'Z') {
-              return c + 32; // toLower
-          }
-          return c;
-        }
-
-        @Override
-        public ByteOrder byteOrder(String input) {
-            return ByteOrder.nativeOrder();
+            return from;
         }
     }
 }
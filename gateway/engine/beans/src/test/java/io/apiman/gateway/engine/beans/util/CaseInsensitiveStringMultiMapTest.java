@@ -31,6 +31,7 @@ import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import org.junit.Assert;
+import org.junit.Test;
 import org.junit.experimental.theories.DataPoints;
 import org.junit.experimental.theories.Theories;
 import org.junit.experimental.theories.Theory;
@@ -324,6 +325,54 @@ public class CaseInsensitiveStringMultiMapTest {
         Assert.assertEquals(1, mmap.size());
     }
 
+    @Test
+    public void shouldResizeForManyKeys() {
+        CaseInsensitiveStringMultiMap mmap = new CaseInsensitiveStringMultiMap(1);
+        for (int i = 0; i < 500; i++) {
+            mmap.add("X-Header-" + i, "a" + i).add("x-header-" + i, "b" + i);
+        }
+        Assert.assertEquals(500, mmap.size());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(Arrays.asList("b" + i, "a" + i), mmap.getAll("X-HEADER-" + i));
+        }
+        for (int i = 0; i < 500; i += 2) {
+            mmap.remove("x-header-" + i);
+        }
+        Assert.assertEquals(250, mmap.size());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(i % 2 == 1, mmap.containsKey("X-Header-" + i));
+        }
+        Assert.assertEquals(500, mmap.getEntries().size());
+    }
+
+    @Test
+    public void shouldIterateInInsertionOrder() {
+        CaseInsensitiveStringMultiMap mmap = new CaseInsensitiveStringMultiMap();
+        mmap.add("X-Forwarded-For", "a").add("Host", "h").add("x-forwarded-for", "b").put("Host", "i");
+        List<Entry<String, String>> actual = StreamSupport.stream(mmap.spliterator(), false)
+                .collect(Collectors.toList());
+        Assert.assertEquals(Arrays.asList(ent("X-Forwarded-For", "a"), ent("x-forwarded-for", "b"), ent("Host", "i")),
+                actual);
+    }
+
+    @Test
+    public void shouldKeepKeysWithCollidingHashesApart() {
+        // Both fold to the same hash: 31 * 'a' + 'n' == 31 * 'c' + '0'
+        CaseInsensitiveStringMultiMap mmap = new CaseInsensitiveStringMultiMap();
+        mmap.put("X-an", "a").put("X-c0", "c");
+        Assert.assertEquals(2, mmap.size());
+        Assert.assertEquals("a", mmap.get("x-AN"));
+        Assert.assertEquals("c", mmap.get("x-C0"));
+
+        mmap.put("X-AN", "b");
+        Assert.assertEquals("b", mmap.get("X-an"));
+        Assert.assertEquals("c", mmap.get("X-c0"));
+
+        mmap.remove("x-c0");
+        Assert.assertNull(mmap.get("X-c0"));
+        Assert.assertEquals("b", mmap.get("X-an"));
+    }
+
     private Entry<String, String> ent(String k, String v) {
         return new AbstractMap.SimpleImmutableEntry<>(k, v);
     }
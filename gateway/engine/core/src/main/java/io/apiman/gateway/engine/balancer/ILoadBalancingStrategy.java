@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import java.util.List;
+
+/**
+ * Picks the target of an {@link UpstreamGroup} that a request is sent to. Each group
+ * has its own instance, created with the public no-arg constructor, so implementations
+ * may keep state (but must be thread safe).
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public interface ILoadBalancingStrategy {
+
+    /**
+     * @param targets the targets currently available, never empty
+     * @return the target to use
+     */
+    UpstreamTarget select(List<UpstreamTarget> targets);
+}
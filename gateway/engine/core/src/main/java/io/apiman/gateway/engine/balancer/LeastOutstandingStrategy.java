@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uses the target with the fewest requests in progress. Ties go to the targets in
+ * turn, so that an idle group is not served by its first target only.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class LeastOutstandingStrategy implements ILoadBalancingStrategy {
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @see io.apiman.gateway.engine.balancer.ILoadBalancingStrategy#select(java.util.List)
+     */
+    @Override
+    public UpstreamTarget select(List<UpstreamTarget> targets) {
+        int size = targets.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        UpstreamTarget best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            UpstreamTarget target = targets.get((start + i) % size);
+            int outstanding = target.getOutstanding();
+            if (outstanding < bestOutstanding) {
+                best = target;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import io.apiman.common.config.options.GenericOptionsParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
+/**
+ * Load balancing options of an API, read from its endpoint properties:
+ * <ul>
+ *   <li>lb.targets - comma separated endpoint URIs to balance over (used instead of the API's endpoint)</li>
+ *   <li>lb.strategy - round-robin (default), least-outstanding, ewma, or the class name of an
+ *   {@link ILoadBalancingStrategy}</li>
+ *   <li>lb.ewma.decayTime - how quickly (ms) old response times lose weight for ewma (default 10000)</li>
+ *   <li>lb.outlier.consecutiveFailures - failures (connection errors, timeouts and 5xx responses)
+ *   after which a target is ejected; 0 disables ejection (default 5)</li>
+ *   <li>lb.outlier.ejectionTime - how long (ms) an ejected target gets no requests (default 30000)</li>
+ *   <li>lb.health.path - if set, each target is actively checked with a GET of this path</li>
+ *   <li>lb.health.interval - time (ms) between health checks (default 10000)</li>
+ *   <li>lb.health.timeout - connect and read timeout (ms) of a health check (default 2000)</li>
+ *   <li>lb.health.unhealthyThreshold - failed checks after which a target is taken out of rotation
+ *   until a check succeeds again (default 2)</li>
+ * </ul>
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class LoadBalancerOptions {
+
+    public static final String TARGETS = "lb.targets";
+    public static final String STRATEGY_ROUND_ROBIN = "round-robin";
+    public static final String STRATEGY_LEAST_OUTSTANDING = "least-outstanding";
+    public static final String STRATEGY_EWMA = "ewma";
+
+    private final List<String> targets;
+    private final String strategy;
+    private final long ewmaDecayTime;
+    private final int consecutiveFailures;
+    private final long ejectionTime;
+    private final String healthPath;
+    private final long healthInterval;
+    private final int healthTimeout;
+    private final int unhealthyThreshold;
+
+    /**
+     * Constructor.
+     * @param endpointProperties the API's endpoint properties
+     */
+    public LoadBalancerOptions(Map<String, String> endpointProperties) {
+        GenericOptionsParser parser = new GenericOptionsParser(endpointProperties);
+        targets = parseTargets(parser.getString(keys(TARGETS), "", s -> true, ""));
+        strategy = parser.getString(keys("lb.strategy"), STRATEGY_ROUND_ROBIN, s -> !s.trim().isEmpty(),
+                "must be a strategy name or class");
+        ewmaDecayTime = parser.getLong(keys("lb.ewma.decayTime"), 10000, t -> t > 0, "must be positive");
+        consecutiveFailures = parser.getInt(keys("lb.outlier.consecutiveFailures"), 5, n -> n >= 0,
+                "must not be negative");
+        ejectionTime = parser.getLong(keys("lb.outlier.ejectionTime"), 30000, t -> t > 0, "must be positive");
+        healthPath = parser.getString(keys("lb.health.path"), null, s -> true, "");
+        healthInterval = parser.getLong(keys("lb.health.interval"), 10000, t -> t > 0, "must be positive");
+        healthTimeout = parser.getInt(keys("lb.health.timeout"), 2000, t -> t > 0, "must be positive");
+        unhealthyThreshold = parser.getInt(keys("lb.health.unhealthyThreshold"), 2, n -> n > 0,
+                "must be positive");
+    }
+
+    private static List<String> parseTargets(String value) {
+        List<String> list = new ArrayList<>();
+        for (String target : value.split(",")) {
+            if (!target.trim().isEmpty()) {
+                list.add(target.trim());
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return a new instance of the configured strategy
+     * @throws IllegalArgumentException if the strategy is unknown
+     */
+    public ILoadBalancingStrategy createStrategy() {
+        switch (strategy.trim().toLowerCase()) {
+            case STRATEGY_ROUND_ROBIN:
+                return new RoundRobinStrategy();
+            case STRATEGY_LEAST_OUTSTANDING:
+                return new LeastOutstandingStrategy();
+            case STRATEGY_EWMA:
+                return new EwmaLatencyStrategy();
+            default:
+                try {
+                    return Class.forName(strategy.trim()).asSubclass(ILoadBalancingStrategy.class)
+                            .getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("Unknown load balancing strategy: " + strategy, e);
+                }
+        }
+    }
+
+    /**
+     * @return the target endpoints, empty if load balancing is not configured
+     */
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return the strategy
+     */
+    public String getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the ewma decay time in ms
+     */
+    public long getEwmaDecayTime() {
+        return ewmaDecayTime;
+    }
+
+    /**
+     * @return the consecutive failures that eject a target, 0 if disabled
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * @return the ejection time in ms
+     */
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    /**
+     * @return the health check path, or null if there are no active health checks
+     */
+    public String getHealthPath() {
+        return healthPath;
+    }
+
+    /**
+     * @return the health check interval in ms
+     */
+    public long getHealthInterval() {
+        return healthInterval;
+    }
+
+    /**
+     * @return the health check timeout in ms
+     */
+    public int getHealthTimeout() {
+        return healthTimeout;
+    }
+
+    /**
+     * @return the failed health checks that take a target out of rotation
+     */
+    public int getUnhealthyThreshold() {
+        return unhealthyThreshold;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
+import io.apiman.common.util.ApimanPathUtils;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.components.IHttpClientComponent;
+import io.apiman.gateway.engine.components.IPeriodicComponent;
+import io.apiman.gateway.engine.components.http.HttpMethod;
+import io.apiman.gateway.engine.components.http.IHttpClientRequest;
+import io.apiman.gateway.engine.components.http.IHttpClientResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link UpstreamGroup}s of the APIs that have load balancing configured (see
+ * {@link LoadBalancerOptions}), for use by a connector factory.
+ * <p>
+ * Groups are created on first use and replaced when the API's endpoint properties
+ * change. Active health checks run on the {@link IPeriodicComponent} and are sent with the
+ * {@link IHttpClientComponent}, so they need the component registry; without it, only
+ * passive outlier ejection is done. The health checks of a group stop once it has not
+ * been used for a while.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class LoadBalancers {
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(LoadBalancers.class);
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final ConcurrentMap<String, UpstreamGroup> groups = new ConcurrentHashMap<>();
+    private volatile IComponentRegistry componentRegistry;
+
+    /**
+     * @param componentRegistry the component registry, needed for active health checks
+     */
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        this.componentRegistry = componentRegistry;
+    }
+
+    /**
+     * @param api the API
+     * @return the API's group, or null if the API is not load balanced
+     */
+    public UpstreamGroup get(Api api) {
+        Map<String, String> endpointProperties = api.getEndpointProperties();
+        if (endpointProperties == null || !endpointProperties.containsKey(LoadBalancerOptions.TARGETS)) {
+            return null;
+        }
+        String key = api.getOrganizationId() + ":" + api.getApiId() + ":" + api.getVersion(); //$NON-NLS-1$ //$NON-NLS-2$
+        UpstreamGroup group = groups.get(key);
+        if (group != null && group.isFor(endpointProperties)) {
+            return group;
+        }
+        UpstreamGroup newGroup = new UpstreamGroup(endpointProperties);
+        synchronized (groups) {
+            group = groups.get(key);
+            if (group != null && group.isFor(endpointProperties)) {
+                return group;
+            }
+            if (group != null) {
+                stopHealthChecks(group);
+            }
+            groups.put(key, newGroup);
+            startHealthChecks(key, newGroup);
+        }
+        return newGroup;
+    }
+
+    private void startHealthChecks(String key, UpstreamGroup group) {
+        LoadBalancerOptions options = group.getOptions();
+        if (options.getHealthPath() == null) {
+            return;
+        }
+        if (componentRegistry == null) {
+            LOGGER.warn("Active health checks of {0} are not available", key); //$NON-NLS-1$
+            return;
+        }
+        IPeriodicComponent periodic;
+        IHttpClientComponent httpClient;
+        try {
+            periodic = componentRegistry.getComponent(IPeriodicComponent.class);
+            httpClient = componentRegistry.getComponent(IHttpClientComponent.class);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Active health checks of {0} are not available: {1}", key, e.getMessage()); //$NON-NLS-1$
+            return;
+        }
+        long timerId = periodic.setPeriodicTimer(options.getHealthInterval(), options.getHealthInterval(), id -> {
+            if (System.nanoTime() - group.getLastUsed() > IDLE_NANOS) {
+                // e.g. the API was retired
+                periodic.cancelTimer(id);
+                groups.remove(key, group);
+                return;
+            }
+            for (UpstreamTarget target : group.getTargets()) {
+                probe(httpClient, key, target, options);
+            }
+        });
+        group.setHealthCheckTimerId(timerId);
+    }
+
+    private void probe(IHttpClientComponent httpClient, String key, UpstreamTarget target, LoadBalancerOptions options) {
+        try {
+            String url = ApimanPathUtils.join(target.getEndpoint(), options.getHealthPath());
+            IHttpClientRequest request = httpClient.request(url, HttpMethod.GET,
+                    (IAsyncResult<IHttpClientResponse> result) -> probed(key, target, options, result));
+            request.setConnectTimeout(options.getHealthTimeout());
+            request.setReadTimeout(options.getHealthTimeout());
+            request.end();
+        } catch (RuntimeException e) {
+            if (target.probed(false, options.getUnhealthyThreshold())) {
+                LOGGER.warn("Health check of {0} for {1} failed, taking it out of rotation: {2}", target, key, e.getMessage()); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private void probed(String key, UpstreamTarget target, LoadBalancerOptions options,
+            IAsyncResult<IHttpClientResponse> result) {
+        boolean healthy = false;
+        if (result.isSuccess()) {
+            IHttpClientResponse response = result.getResult();
+            healthy = response.getResponseCode() < 400;
+            response.close();
+        }
+        if (target.probed(healthy, options.getUnhealthyThreshold())) {
+            if (healthy) {
+                LOGGER.info("Health check of {0} for {1} passed, putting it back into rotation", target, key); //$NON-NLS-1$
+            } else {
+                LOGGER.warn("Health check of {0} for {1} failed, taking it out of rotation", target, key); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private void stopHealthChecks(UpstreamGroup group) {
+        if (group.getHealthCheckTimerId() != -1) {
+            try {
+                componentRegistry.getComponent(IPeriodicComponent.class).cancelTimer(group.getHealthCheckTimerId());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to stop health checks: {0}", e.getMessage()); //$NON-NLS-1$
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single request to a target chosen by an {@link UpstreamGroup}. The connector
+ * reports its outcome ({@link #responded(int)} or {@link #failed()}) and, once the
+ * exchange is over, {@link #finished()}. Repeated calls are ignored.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class UpstreamCall {
+
+    private final UpstreamGroup group;
+    private final UpstreamTarget target;
+    private final long startNanos;
+    private final AtomicBoolean outcomeRecorded = new AtomicBoolean();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    UpstreamCall(UpstreamGroup group, UpstreamTarget target, long startNanos) {
+        this.group = group;
+        this.target = target;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @return the endpoint URI to send the request to
+     */
+    public String getEndpoint() {
+        return target.getEndpoint();
+    }
+
+    /**
+     * @return the target
+     */
+    public UpstreamTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * The target responded; 5xx responses count as failures.
+     * @param statusCode the response status code
+     */
+    public void responded(int statusCode) {
+        if (outcomeRecorded.compareAndSet(false, true)) {
+            long now = System.nanoTime();
+            if (statusCode >= 500) {
+                group.failed(target, now);
+            } else {
+                group.succeeded(target, now - startNanos, now);
+            }
+        }
+    }
+
+    /**
+     * The request failed without a response, e.g. it could not connect or timed out.
+     */
+    public void failed() {
+        if (outcomeRecorded.compareAndSet(false, true)) {
+            group.failed(target, System.nanoTime());
+        }
+    }
+
+    /**
+     * The request (including the response body) is over, whether successful or not.
+     */
+    public void finished() {
+        if (finished.compareAndSet(false, true)) {
+            target.finished();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The targets of one API, and the strategy choosing between them.
+ * <p>
+ * A target is left out while it is ejected as an outlier (after a number of consecutive
+ * failed requests) or while its active health checks fail. If that leaves no target,
+ * all targets are used: a guess is better than failing every request.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class UpstreamGroup {
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(UpstreamGroup.class);
+
+    private final Map<String, String> endpointProperties;
+    private final LoadBalancerOptions options;
+    private final List<UpstreamTarget> targets;
+    private final ILoadBalancingStrategy strategy;
+    private final long ewmaDecayNanos;
+    private final long ejectionNanos;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile long healthCheckTimerId = -1;
+
+    /**
+     * Constructor.
+     * @param endpointProperties the endpoint properties of the API
+     */
+    public UpstreamGroup(Map<String, String> endpointProperties) {
+        this(endpointProperties, new LoadBalancerOptions(endpointProperties));
+    }
+
+    UpstreamGroup(Map<String, String> endpointProperties, LoadBalancerOptions options) {
+        if (options.getTargets().isEmpty()) {
+            throw new IllegalArgumentException("No load balancing targets"); //$NON-NLS-1$
+        }
+        this.endpointProperties = new HashMap<>(endpointProperties);
+        this.options = options;
+        List<UpstreamTarget> list = new ArrayList<>();
+        for (String endpoint : options.getTargets()) {
+            list.add(new UpstreamTarget(endpoint));
+        }
+        this.targets = Collections.unmodifiableList(list);
+        this.strategy = options.createStrategy();
+        this.ewmaDecayNanos = TimeUnit.MILLISECONDS.toNanos(options.getEwmaDecayTime());
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(options.getEjectionTime());
+    }
+
+    /**
+     * Chooses a target for a request.
+     * @return the call, to report the outcome of the request on
+     */
+    public UpstreamCall begin() {
+        long now = System.nanoTime();
+        lastUsed = now;
+        UpstreamTarget target = strategy.select(available(now));
+        target.started();
+        return new UpstreamCall(this, target, now);
+    }
+
+    private List<UpstreamTarget> available(long now) {
+        int available = 0;
+        for (UpstreamTarget target : targets) {
+            if (target.isAvailable(now)) {
+                available++;
+            }
+        }
+        if (available == targets.size() || available == 0) {
+            return targets;
+        }
+        List<UpstreamTarget> list = new ArrayList<>(available);
+        for (UpstreamTarget target : targets) {
+            if (target.isAvailable(now)) {
+                list.add(target);
+            }
+        }
+        return list;
+    }
+
+    void succeeded(UpstreamTarget target, long latencyNanos, long now) {
+        target.succeeded();
+        target.recordLatency(latencyNanos, now, ewmaDecayNanos);
+    }
+
+    void failed(UpstreamTarget target, long now) {
+        int threshold = options.getConsecutiveFailures();
+        if (target.failed() == threshold && threshold > 0) {
+            target.eject(now + ejectionNanos);
+            LOGGER.warn("Ejecting {0} for {1} ms after {2} consecutive failures", //$NON-NLS-1$
+                    target, options.getEjectionTime(), threshold);
+        }
+    }
+
+    /**
+     * @param other the current endpoint properties of the API
+     * @return true if the group was created for these endpoint properties
+     */
+    public boolean isFor(Map<String, String> other) {
+        return Objects.equals(endpointProperties, other);
+    }
+
+    /**
+     * @return the targets
+     */
+    public List<UpstreamTarget> getTargets() {
+        return targets;
+    }
+
+    /**
+     * @return the options
+     */
+    public LoadBalancerOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return when the group last chose a target, as {@link System#nanoTime()}
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    long getHealthCheckTimerId() {
+        return healthCheckTimerId;
+    }
+
+    void setHealthCheckTimerId(long healthCheckTimerId) {
+        this.healthCheckTimerId = healthCheckTimerId;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One back-end endpoint of an {@link UpstreamGroup}, with the statistics the
+ * load-balancing strategies and the outlier detection work from.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class UpstreamTarget {
+
+    private final String endpoint;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile boolean ejected = false;
+    private volatile long ejectedUntil;
+    private volatile boolean healthy = true;
+    private int failedProbes = 0;
+
+    private boolean sampled = false;
+    private double latencyEwmaNanos = 0;
+    private long lastSampleNanos;
+
+    /**
+     * Constructor.
+     * @param endpoint the endpoint URI
+     */
+    public UpstreamTarget(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the endpoint URI
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of requests in progress
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the moving average of the response time in nanoseconds, 0 if unknown
+     */
+    public synchronized double getLatencyEwmaNanos() {
+        return latencyEwmaNanos;
+    }
+
+    /**
+     * @return false if the last active health checks failed
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return true if the target is ejected as an outlier
+     */
+    public boolean isEjected(long now) {
+        return ejected && now - ejectedUntil < 0;
+    }
+
+    boolean isAvailable(long now) {
+        return healthy && !isEjected(now);
+    }
+
+    void started() {
+        outstanding.incrementAndGet();
+    }
+
+    void finished() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Adds a response time sample. Older samples lose half their weight every
+     * {@code decayNanos * ln 2}, however often requests arrive.
+     */
+    synchronized void recordLatency(long latencyNanos, long now, long decayNanos) {
+        if (!sampled) {
+            sampled = true;
+            latencyEwmaNanos = latencyNanos;
+        } else {
+            double weight = Math.exp(-Math.max(0, now - lastSampleNanos) / (double) decayNanos);
+            latencyEwmaNanos = latencyEwmaNanos * weight + latencyNanos * (1 - weight);
+        }
+        lastSampleNanos = now;
+    }
+
+    void succeeded() {
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * @return the number of consecutive failures, including this one
+     */
+    int failed() {
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    void eject(long until) {
+        ejectedUntil = until;
+        ejected = true;
+        consecutiveFailures.set(0);
+    }
+
+    /**
+     * Records the result of an active health check.
+     * @return true if this changed the health of the target
+     */
+    synchronized boolean probed(boolean success, int unhealthyThreshold) {
+        if (success) {
+            failedProbes = 0;
+            if (!healthy) {
+                healthy = true;
+                return true;
+            }
+        } else if (++failedProbes >= unhealthyThreshold && healthy) {
+            healthy = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return endpoint;
+    }
+}
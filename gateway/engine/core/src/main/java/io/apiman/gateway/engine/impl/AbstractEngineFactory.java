@@ -27,6 +27,7 @@ import io.apiman.gateway.engine.IGatewayInitializer;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.IPluginRegistry;
 import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
 import io.apiman.gateway.engine.policy.IPolicyFactory;
 
 import java.util.List;
@@ -55,7 +56,13 @@ public abstract class AbstractEngineFactory implements IEngineFactory {
         CurrentDataEncrypter.instance = encrypter;
         IRegistry registry = createRegistry(pluginRegistry, encrypter);
         IComponentRegistry componentRegistry = createComponentRegistry(pluginRegistry);
+        if (registry instanceof IRequiresComponentRegistry) {
+            ((IRequiresComponentRegistry) registry).setComponentRegistry(componentRegistry);
+        }
         IConnectorFactory cfactory = createConnectorFactory(pluginRegistry);
+        if (cfactory instanceof IRequiresComponentRegistry) {
+            ((IRequiresComponentRegistry) cfactory).setComponentRegistry(componentRegistry);
+        }
         IPolicyFactory pfactory = createPolicyFactory(pluginRegistry);
         IMetrics metrics = createMetrics(pluginRegistry);
         IApiRequestPathParser pathParser = createRequestPathParser(pluginRegistry);
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes resolved {@link ApiContract}s by API key + API (org, id, version), so
+ * a registry does not have to scan all of a client's contracts on every request.
+ * <p>
+ * An indexed contract is only returned if it was resolved from the exact
+ * {@link Client} and {@link Api} instances the registry currently holds, so a
+ * re-registered client or re-published API (including one synchronised from
+ * another node) is picked up without explicit invalidation. Registries should
+ * still {@link #remove(Client)} clients they unregister, to release memory.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class ApiContractIndex {
+
+    private final Map<String, ApiContract> contracts = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public ApiContractIndex() {
+    }
+
+    /**
+     * Resolves the client's contract with the API, using the index if possible.
+     *
+     * @param client the client, as currently held by the registry
+     * @param api the api, as currently held by the registry
+     * @return the contract, or null if the client has no contract with the API
+     */
+    public ApiContract resolve(Client client, Api api) {
+        String key = getIndexKey(client.getApiKey(), api.getOrganizationId(), api.getApiId(), api.getVersion());
+        ApiContract indexed = contracts.get(key);
+        if (indexed != null && indexed.getClient() == client && indexed.getApi() == api) {
+            return indexed;
+        }
+
+        for (Contract contract : client.getContracts()) {
+            if (contract.matches(api.getOrganizationId(), api.getApiId(), api.getVersion())) {
+                return index(client, api, contract);
+            }
+        }
+        if (indexed != null) {
+            contracts.remove(key, indexed);
+        }
+        return null;
+    }
+
+    /**
+     * Adds a contract the caller has already matched to the index.
+     *
+     * @param client the client
+     * @param api the api the contract is with
+     * @param contract the client's contract with the api
+     * @return the resolved contract
+     */
+    public ApiContract index(Client client, Api api, Contract contract) {
+        ApiContract resolved = new ApiContract(api, client, contract.getPlan(), contract.getPolicies());
+        contracts.put(getIndexKey(client.getApiKey(), api.getOrganizationId(), api.getApiId(), api.getVersion()),
+                resolved);
+        return resolved;
+    }
+
+    /**
+     * Removes all of the client's contracts from the index.
+     *
+     * @param client the client
+     */
+    public void remove(Client client) {
+        if (client.getContracts() == null) {
+            return;
+        }
+        for (Contract contract : client.getContracts()) {
+            contracts.remove(getIndexKey(client.getApiKey(), contract.getApiOrgId(), contract.getApiId(),
+                    contract.getApiVersion()));
+        }
+    }
+
+    /**
+     * Removes everything from the index.
+     */
+    public void clear() {
+        contracts.clear();
+    }
+
+    private static String getIndexKey(String apiKey, String apiOrgId, String apiId, String apiVersion) {
+        return apiKey + "|" + apiOrgId + "|" + apiId + "|" + apiVersion;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Policy;
+import io.apiman.gateway.engine.policy.PolicyWithConfiguration;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The compiled, request-independent part of executing an API (or a contract
+ * against an API): the property-resolved API, the instantiated policies with
+ * their parsed configuration, and whether any of them is a data policy.
+ * <p>
+ * A plan is valid for the registry objects it was compiled from, and for any
+ * objects with the same content, as captured by its stamp (see
+ * {@link ApiExecutionPlanCache#getApiStamp(Api, List)}). Registries that build
+ * new objects on every lookup therefore still reuse plans, while a re-publish
+ * that changes the API or its policies makes the plan stale.
+ * <p>
+ * Chains themselves hold per-request state (head, iterators, handlers), so they
+ * are still created per request, but they are wired from the plan's immutable
+ * policy list.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class ApiExecutionPlan {
+
+    private final Api api;
+    private final List<Policy> sourcePolicies;
+    private final List<PolicyWithConfiguration> policies;
+    private final boolean hasDataPolicy;
+    private final String clientIndex;
+    private final String stamp;
+
+    /**
+     * Constructor.
+     *
+     * @param api the (already property-resolved) api the plan was compiled from
+     * @param sourcePolicies the registry's policy list the plan was compiled from
+     * @param policies the loaded policies with their configuration
+     * @param hasDataPolicy whether any of the policies is a data policy
+     * @param clientIndex the client index (org|id|version) for contract plans, otherwise null
+     * @param stamp the content stamp of the registry objects, taken before property resolution
+     */
+    public ApiExecutionPlan(Api api, List<Policy> sourcePolicies, List<PolicyWithConfiguration> policies,
+            boolean hasDataPolicy, String clientIndex, String stamp) {
+        this.api = api;
+        this.sourcePolicies = sourcePolicies;
+        this.policies = Collections.unmodifiableList(policies);
+        this.hasDataPolicy = hasDataPolicy;
+        this.clientIndex = clientIndex;
+        this.stamp = stamp;
+    }
+
+    /**
+     * @param api the api returned by the registry for this request
+     * @param sourcePolicies the policies returned by the registry for this request
+     * @param stamp the content stamp of those registry objects
+     * @return true if this plan was compiled from the same registry objects, or from equal content
+     */
+    public boolean isCompiledFrom(Api api, List<Policy> sourcePolicies, String stamp) {
+        if (this.api == api && this.sourcePolicies == sourcePolicies) {
+            return true;
+        }
+        return this.stamp != null && this.stamp.equals(stamp);
+    }
+
+    /**
+     * @return the api
+     */
+    public Api getApi() {
+        return api;
+    }
+
+    /**
+     * @return the (already property-resolved) policy list the plan was compiled from
+     */
+    public List<Policy> getSourcePolicies() {
+        return sourcePolicies;
+    }
+
+    /**
+     * @return the loaded policies, in request order
+     */
+    public List<PolicyWithConfiguration> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * @return true if the plan contains at least one data policy
+     */
+    public boolean hasDataPolicy() {
+        return hasDataPolicy;
+    }
+
+    /**
+     * @return the client index, or null if this is a public API plan
+     */
+    public String getClientIndex() {
+        return clientIndex;
+    }
+
+}
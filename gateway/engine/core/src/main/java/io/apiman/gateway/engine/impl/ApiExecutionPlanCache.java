@@ -0,0 +1,234 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Policy;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caches {@link ApiExecutionPlan}s per API version (public requests) and per
+ * API key + API version (contract requests).
+ * <p>
+ * Entries are invalidated explicitly when an API is published/retired or a
+ * client is registered/unregistered (see {@link ExecutionPlanRegistryWrapper}),
+ * and implicitly when the registry returns objects whose content differs from
+ * the content the plan was compiled from (e.g. changes synchronised from
+ * another node). Content is compared by stamp, see {@link #getApiStamp(Api, List)}
+ * and {@link #getContractStamp(ApiContract)}.
+ * <p>
+ * The cache holds at most its maximum number of plans, evicting the least
+ * recently used one to make room.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class ApiExecutionPlanCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final Map<String, ApiExecutionPlan> plans;
+
+    /**
+     * Constructor.
+     */
+    public ApiExecutionPlanCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param maxSize the max number of plans to hold
+     */
+    public ApiExecutionPlanCache(int maxSize) {
+        this.plans = new LinkedHashMap<String, ApiExecutionPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ApiExecutionPlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets a plan, but only if it is still valid for the given registry objects.
+     *
+     * @param key the plan key
+     * @param api the api returned by the registry
+     * @param policies the policies returned by the registry
+     * @param stamp the content stamp of the api and policies
+     * @return the plan or null if absent or stale
+     */
+    public synchronized ApiExecutionPlan get(String key, Api api, List<Policy> policies, String stamp) {
+        ApiExecutionPlan plan = plans.get(key);
+        if (plan == null) {
+            return null;
+        }
+        if (!plan.isCompiledFrom(api, policies, stamp)) {
+            plans.remove(key);
+            return null;
+        }
+        return plan;
+    }
+
+    /**
+     * Stores a freshly compiled plan.
+     * @param key the plan key
+     * @param plan the plan
+     */
+    public synchronized void put(String key, ApiExecutionPlan plan) {
+        plans.put(key, plan);
+    }
+
+    /**
+     * Removes all plans (public and contract) for the given API version.
+     * @param api the api
+     */
+    public synchronized void invalidate(Api api) {
+        String org = api.getOrganizationId();
+        String id = api.getApiId();
+        String version = api.getVersion();
+        plans.values().removeIf(plan -> {
+            Api planApi = plan.getApi();
+            return planApi.getOrganizationId().equals(org) && planApi.getApiId().equals(id)
+                    && planApi.getVersion().equals(version);
+        });
+    }
+
+    /**
+     * Removes all contract plans for the given client version.
+     * @param client the client
+     */
+    public synchronized void invalidate(Client client) {
+        String clientIdx = getClientIndex(client.getOrganizationId(), client.getClientId(), client.getVersion());
+        plans.values().removeIf(plan -> clientIdx.equals(plan.getClientIndex()));
+    }
+
+    /**
+     * Removes every plan.
+     */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /**
+     * @return the number of cached plans
+     */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /**
+     * @return the key used for a public API plan
+     */
+    public static String getApiPlanKey(String orgId, String apiId, String version) {
+        return "API::" + orgId + "|" + apiId + "|" + version;
+    }
+
+    /**
+     * @return the key used for a contract plan
+     */
+    public static String getContractPlanKey(String apiKey, String orgId, String apiId, String version) {
+        return "CONTRACT::" + apiKey + "|" + orgId + "|" + apiId + "|" + version;
+    }
+
+    /**
+     * Captures everything a public API plan is compiled from. Must be taken before the
+     * registry objects are property-resolved.
+     *
+     * @param api the api returned by the registry
+     * @param policies the policies returned by the registry
+     * @return the content stamp
+     */
+    public static String getApiStamp(Api api, List<Policy> policies) {
+        StringBuilder stamp = new StringBuilder();
+        appendApi(stamp, api);
+        appendPolicies(stamp, policies);
+        return stamp.toString();
+    }
+
+    /**
+     * Captures everything a contract plan is compiled from. Must be taken before the
+     * registry objects are property-resolved.
+     *
+     * @param contract the contract returned by the registry
+     * @return the content stamp
+     */
+    public static String getContractStamp(ApiContract contract) {
+        StringBuilder stamp = new StringBuilder();
+        if (contract.getClient() != null) {
+            append(stamp, getClientIndex(contract.getClient().getOrganizationId(),
+                    contract.getClient().getClientId(), contract.getClient().getVersion()));
+        }
+        append(stamp, contract.getPlan());
+        appendApi(stamp, contract.getApi());
+        appendPolicies(stamp, contract.getPolicies());
+        return stamp.toString();
+    }
+
+    private static void appendApi(StringBuilder stamp, Api api) {
+        if (api == null) {
+            return;
+        }
+        append(stamp, api.getEndpoint());
+        append(stamp, api.getEndpointType());
+        append(stamp, api.getEndpointContentType());
+        append(stamp, String.valueOf(api.isPublicAPI()));
+        append(stamp, String.valueOf(api.isParsePayload()));
+        append(stamp, String.valueOf(api.isKeysStrippingDisabled()));
+        if (api.getEndpointProperties() != null) {
+            stamp.append(api.getEndpointProperties().size()).append('#');
+            for (Map.Entry<String, String> property : new TreeMap<>(api.getEndpointProperties()).entrySet()) {
+                append(stamp, property.getKey());
+                append(stamp, property.getValue());
+            }
+        }
+    }
+
+    private static void appendPolicies(StringBuilder stamp, List<Policy> policies) {
+        if (policies == null) {
+            return;
+        }
+        stamp.append(policies.size()).append('#');
+        for (Policy policy : policies) {
+            append(stamp, policy.getPolicyImpl());
+            append(stamp, policy.getPolicyJsonConfig());
+        }
+    }
+
+    // Length-prefixed, so that no two different inputs give the same stamp
+    private static void append(StringBuilder stamp, String value) {
+        if (value == null) {
+            stamp.append("-1:");
+        } else {
+            stamp.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * @return the index identifying a client version
+     */
+    public static String getClientIndex(String orgId, String clientId, String version) {
+        return orgId + "|" + clientId + "|" + version;
+    }
+}
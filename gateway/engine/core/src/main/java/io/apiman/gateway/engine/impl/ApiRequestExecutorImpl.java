@@ -43,12 +43,12 @@ import io.apiman.gateway.engine.beans.exceptions.InvalidContractException;
 import io.apiman.gateway.engine.beans.exceptions.RequestAbortedException;
 import io.apiman.gateway.engine.components.IBufferFactoryComponent;
 import io.apiman.gateway.engine.i18n.Messages;
-import io.apiman.gateway.engine.io.ByteBuffer;
 import io.apiman.gateway.engine.io.BytesPayloadIO;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.IPayloadIO;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.io.JsonPayloadIO;
+import io.apiman.gateway.engine.io.SegmentedByteBuffer;
 import io.apiman.gateway.engine.io.SoapPayloadIO;
 import io.apiman.gateway.engine.io.XmlPayloadIO;
 import io.apiman.gateway.engine.metrics.RequestMetric;
@@ -109,8 +109,14 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
     private final IPolicyFactory policyFactory;
     private final IConnectorFactory connectorFactory;
     private final IBufferFactoryComponent bufferFactory;
+    private final ApiExecutionPlanCache planCache;
     private boolean finished = false;
 
+    private ApiExecutionPlan executionPlan;
+    private String executionPlanKey;
+    private String executionPlanStamp;
+    private String clientIndex;
+
     private List<PolicyWithConfiguration> policyImpls;
 
     private IAsyncResultHandler<IEngineResult> resultHandler;
@@ -149,6 +155,25 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
             IAsyncResultHandler<IEngineResult> resultHandler, IRegistry registry, IPolicyContext context,
             IPolicyFactory policyFactory, IConnectorFactory connectorFactory, IMetrics metrics,
             IBufferFactoryComponent bufferFactory) {
+        this(apiRequest, resultHandler, registry, context, policyFactory, connectorFactory, metrics, bufferFactory, null);
+    }
+
+    /**
+     * Constructs a new {@link ApiRequestExecutorImpl}.
+     * @param apiRequest the api request
+     * @param resultHandler the result handler
+     * @param registry the registry
+     * @param context the context
+     * @param policyFactory the policy factory
+     * @param connectorFactory the connector factory
+     * @param metrics the metrics instance
+     * @param bufferFactory the buffer factory
+     * @param planCache the shared execution plan cache (may be null to disable plan caching)
+     */
+    public ApiRequestExecutorImpl(ApiRequest apiRequest,
+            IAsyncResultHandler<IEngineResult> resultHandler, IRegistry registry, IPolicyContext context,
+            IPolicyFactory policyFactory, IConnectorFactory connectorFactory, IMetrics metrics,
+            IBufferFactoryComponent bufferFactory, ApiExecutionPlanCache planCache) {
         this.request = apiRequest;
         this.registry = registry;
         this.resultHandler = wrapResultHandler(resultHandler);
@@ -159,6 +184,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         this.policyErrorHandler = createPolicyErrorHandler();
         this.metrics = metrics;
         this.bufferFactory = bufferFactory;
+        this.planCache = planCache;
 
         String mbs = System.getProperty(GatewayConfigProperties.MAX_PAYLOAD_BUFFER_SIZE);
         if (mbs != null) {
@@ -273,7 +299,11 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                             hasDataPolicy,
                             connectorConfig);
                 } else {
-                    connector = connectorInterceptor.createConnector();
+                    connector = connectorInterceptor.createConnector(() -> connectorFactory.createConnector(req,
+                            api,
+                            RequiredAuthType.parseType(api),
+                            hasDataPolicy,
+                            connectorConfig));
                 }
 
                 // TODO check for a null connector
@@ -354,7 +384,15 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                                 error.setStatusCode(403); // Forbidden
                                 resultHandler.handle(AsyncResultImpl.create(error, IEngineResult.class));
                             } else {
-                                resolvePropertyReplacements(api);
+                                lookupExecutionPlan(ApiExecutionPlanCache.getApiPlanKey(api.getOrganizationId(),
+                                        api.getApiId(), api.getVersion()), api, api.getApiPolicies(),
+                                        ApiExecutionPlanCache.getApiStamp(api, api.getApiPolicies()));
+                                if (executionPlan == null) {
+                                    resolvePropertyReplacements(api);
+                                } else {
+                                    // The registry's copy may not be property-resolved, the plan's is
+                                    api = executionPlan.getApi();
+                                }
 
                                 request.setApi(api);
                                 policies = api.getApiPolicies();
@@ -379,7 +417,18 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                 if (contractResult.isSuccess()) {
                     ApiContract apiContract = contractResult.getResult();
 
-                    resolvePropertyReplacements(apiContract);
+                    clientIndex = ApiExecutionPlanCache.getClientIndex(apiContract.getClient().getOrganizationId(),
+                            apiContract.getClient().getClientId(), apiContract.getClient().getVersion());
+                    lookupExecutionPlan(ApiExecutionPlanCache.getContractPlanKey(apiKey, apiOrgId, apiId, apiVersion),
+                            apiContract.getApi(), apiContract.getPolicies(),
+                            ApiExecutionPlanCache.getContractStamp(apiContract));
+                    if (executionPlan == null) {
+                        resolvePropertyReplacements(apiContract);
+                    } else {
+                        // The registry's copies may not be property-resolved, the plan's are
+                        apiContract.setApi(executionPlan.getApi());
+                        apiContract.setPolicies(executionPlan.getSourcePolicies());
+                    }
 
                     requestMetric.setClientOrgId(apiContract.getClient().getOrganizationId());
                     requestMetric.setClientId(apiContract.getClient().getClientId());
@@ -440,8 +489,9 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         }
 
         // Now "handle" the inbound request stream, which will cause bytes to be streamed
-        // to the writeStream we provide (which will store the bytes in a buffer for parsing)
-        final ByteBuffer buffer = new ByteBuffer(2048);
+        // to the writeStream we provide (which will store the bytes in a buffer for parsing).
+        // A segmented buffer avoids re-copying the payload every time the buffer fills up.
+        final SegmentedByteBuffer buffer = new SegmentedByteBuffer();
         inboundStreamHandler.handle(new ISignalWriteStream() {
             private boolean done = false;
 
@@ -537,6 +587,32 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
         request.getQueryParams().remove("apikey"); //$NON-NLS-1$
     }
 
+    /**
+     * Looks up a previously compiled execution plan for the given registry content. If none is
+     * found (or it is stale), the plan key is remembered so that the plan compiled by this
+     * request can be stored once the policies have been loaded.
+     */
+    private void lookupExecutionPlan(String planKey, Api planApi, List<Policy> planPolicies, String planStamp) {
+        if (planCache == null) {
+            return;
+        }
+        executionPlanKey = planKey;
+        executionPlanStamp = planStamp;
+        executionPlan = planCache.get(planKey, planApi, planPolicies, planStamp);
+    }
+
+    /**
+     * Stores the execution plan compiled by this request so that subsequent requests can skip
+     * property resolution and policy loading.
+     */
+    private void storeExecutionPlan(List<PolicyWithConfiguration> loadedPolicies) {
+        if (planCache == null || executionPlanKey == null) {
+            return;
+        }
+        planCache.put(executionPlanKey, new ApiExecutionPlan(api, policies, loadedPolicies, hasDataPolicy, clientIndex,
+                executionPlanStamp));
+    }
+
     /**
      * Response API property replacements
      */
@@ -629,6 +705,13 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
      * the policies will be reported back via the policyErrorHandler.
      */
     private void loadPolicies(final IAsyncHandler<List<PolicyWithConfiguration>> handler) {
+        // Compiled by an earlier request from the same registry content? Then skip loading.
+        if (executionPlan != null) {
+            hasDataPolicy = executionPlan.hasDataPolicy();
+            handler.handle(executionPlan.getPolicies());
+            return;
+        }
+
         final Set<Integer> totalCounter = new HashSet<>();
         final Set<Integer> errorCounter = new TreeSet<>();
         final List<PolicyWithConfiguration> rval = new ArrayList<>(policies.size());
@@ -638,6 +721,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
 
         // If there aren't any policies, then no need to asynchronously load them!
         if (policies.isEmpty()) {
+            storeExecutionPlan(policyImpls);
             handler.handle(policyImpls);
             return;
         }
@@ -678,6 +762,7 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                         //Policy errorPolicy = policies.get(errorIdx);
                         policyErrorHandler.handle(error);
                     } else {
+                        storeExecutionPlan(rval);
                         handler.handle(rval);
                     }
                 }
@@ -703,6 +788,8 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                     // Send the api response to the caller.
                     final EngineResultImpl engineResult = new EngineResultImpl(response);
                     engineResult.setConnectorResponseStream(apiConnectionResponse);
+                    // A slow client pauses the back-end response, via the response chain.
+                    engineResult.setFlowControlSource(responseChain);
 
                     resultHandler.handle(AsyncResultImpl.create(engineResult));
 
@@ -722,6 +809,8 @@ public class ApiRequestExecutorImpl implements IApiRequestExecutor {
                     apiConnectionResponse.transmit();
                 });
 
+                responseChain.flowControlSource(apiConnectionResponse);
+
                 // Write data from the back-end response into the response chain.
                 apiConnectionResponse.bodyHandler(buffer -> responseChain.write(buffer));
 
@@ -0,0 +1,694 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.config.options.GenericOptionsParser;
+import io.apiman.common.config.options.Predicates;
+import io.apiman.gateway.engine.DependsOnComponents;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+import io.apiman.gateway.engine.components.ICacheStoreComponent;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
+/**
+ * A bounded, in-memory implementation of the {@link ICacheStoreComponent} interface
+ * for a single gateway node.
+ * <p>
+ * The cache is split into segments by key hash, each with its own lock, so writers of
+ * different keys rarely contend. Reads take no lock: they look the entry up in a
+ * concurrent map and record the access only if the segment lock is free, so a busy
+ * segment drops some access records rather than queueing readers.
+ * <p>
+ * Each segment evicts using W-TinyLFU: new entries go into a small LRU window (1% of the
+ * segment), then into the main area, which is split into probation and protected LRU
+ * queues. When the segment is full, an entry leaving the window only displaces the
+ * oldest probation entry if it has been seen more often recently, as estimated by a
+ * {@link FrequencySketch}. One-off responses therefore don't flush popular ones.
+ * <p>
+ * Entries are weighed in bytes: body, key, status message and headers, plus a fixed
+ * per-entry overhead. A background thread removes expired entries every
+ * {@code expiryInterval} milliseconds; reads also ignore expired entries. With
+ * {@code offHeap=true}, bodies are kept in direct buffers, outside the garbage collected
+ * heap (they then count against {@code -XX:MaxDirectMemorySize}).
+ * <p>
+ * Options: {@code maxCacheSize} (bytes, default 10 MiB), {@code segments} (a power of two;
+ * by default one per MiB, up to 16), {@code offHeap} (default false) and
+ * {@code expiryInterval} (default 1000).
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@DependsOnComponents( { IBufferFactoryComponent.class } )
+public class BoundedCacheStoreComponent implements ICacheStoreComponent {
+
+    private static final long DEFAULT_MAX_CACHE_SIZE = 10 * 1024 * 1024L;
+    private static final long DEFAULT_EXPIRY_INTERVAL = 1000;
+    private static final long SEGMENT_SIZE_HINT = 1024 * 1024L;
+    private static final int MAX_DEFAULT_SEGMENTS = 16;
+    private static final int AVERAGE_ENTRY_SIZE = 4096;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    /** Node, map entry and queue bookkeeping of an entry */
+    private static final int ENTRY_OVERHEAD = 128;
+    /** Map entry and list slot of a header */
+    private static final int HEADER_OVERHEAD = 48;
+    /** Fields of an {@link ApiResponse} head, apart from its strings */
+    private static final int RESPONSE_OVERHEAD = 64;
+    /** Estimate for heads that are not {@link ApiResponse}s */
+    private static final int OBJECT_OVERHEAD = 256;
+
+    private static final ScheduledExecutorService expiryThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "apiman-cache-expiry"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Segment[] segments;
+    private final boolean offHeap;
+    private IBufferFactoryComponent bufferFactory;
+
+    /**
+     * Constructor.
+     */
+    public BoundedCacheStoreComponent() {
+        this(DEFAULT_MAX_CACHE_SIZE, defaultSegments(DEFAULT_MAX_CACHE_SIZE), false, DEFAULT_EXPIRY_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public BoundedCacheStoreComponent(Map<String, String> config) {
+        this(new GenericOptionsParser(config));
+    }
+
+    private BoundedCacheStoreComponent(GenericOptionsParser optParser) {
+        this(optParser.getLong(keys("maxCacheSize"), DEFAULT_MAX_CACHE_SIZE, //$NON-NLS-1$
+                    Predicates.greaterThanZeroLong(), Predicates.greaterThanZeroMsg()),
+            optParser.getInt(keys("segments"), 0, v -> v >= 0, "must be zero (automatic) or more"), //$NON-NLS-1$ //$NON-NLS-2$
+            optParser.getBool(keys("offHeap"), false), //$NON-NLS-1$
+            optParser.getLong(keys("expiryInterval"), DEFAULT_EXPIRY_INTERVAL, //$NON-NLS-1$
+                    Predicates.greaterThanZeroLong(), Predicates.greaterThanZeroMsg()));
+    }
+
+    /**
+     * Constructor.
+     * @param maxCacheSize the total weight of all entries, in bytes
+     * @param segments the number of segments, rounded up to a power of two; 0 to choose by size
+     * @param offHeap whether to keep bodies outside the heap
+     * @param expiryInterval how often expired entries are removed, in milliseconds
+     */
+    BoundedCacheStoreComponent(long maxCacheSize, int segments, boolean offHeap, long expiryInterval) {
+        int count = segments == 0 ? defaultSegments(maxCacheSize) : segments;
+        count = count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment(maxCacheSize / count);
+        }
+        this.offHeap = offHeap;
+        Expiry.schedule(this, expiryInterval);
+    }
+
+    private static int defaultSegments(long maxCacheSize) {
+        return (int) Math.max(1, Math.min(MAX_DEFAULT_SEGMENTS, maxCacheSize / SEGMENT_SIZE_HINT));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.ICacheStoreComponent#put(java.lang.String, java.lang.Object, long)
+     */
+    @Override
+    public <T> void put(String cacheKey, T jsonObject, long timeToLive) throws IOException {
+        segmentFor(cacheKey).put(new Node(cacheKey, jsonObject, null, System.currentTimeMillis() + timeToLive * 1000));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.ICacheStoreComponent#putBinary(java.lang.String, java.lang.Object, long)
+     */
+    @Override
+    public <T> ISignalWriteStream putBinary(final String cacheKey, final T jsonObject, final long timeToLive)
+            throws IOException {
+        final Segment segment = segmentFor(cacheKey);
+        final long createdOn = System.currentTimeMillis();
+        return new ISignalWriteStream() {
+            private IApimanBuffer data = new ByteBuffer(CHUNK_SIZE);
+            private boolean finished = false;
+
+            @Override
+            public void abort(Throwable t) {
+                finished = true;
+                data = null;
+            }
+
+            @Override
+            public boolean isFinished() {
+                return finished;
+            }
+
+            @Override
+            public void write(IApimanBuffer chunk) {
+                if (data == null) {
+                    return;
+                }
+                if ((long) data.length() + chunk.length() > segment.capacity) {
+                    // Could never be stored, so stop buffering it
+                    data = null;
+                    segment.remove(cacheKey);
+                    return;
+                }
+                data.append(chunk);
+            }
+
+            @Override
+            public void end() {
+                finished = true;
+                if (data == null) {
+                    return;
+                }
+                java.nio.ByteBuffer body = store(data.getBytes());
+                data = null;
+                long remainingTtl = timeToLive * 1000 - (System.currentTimeMillis() - createdOn);
+                if (remainingTtl > 0) {
+                    segment.put(new Node(cacheKey, jsonObject, body, System.currentTimeMillis() + remainingTtl));
+                }
+            }
+        };
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.ICacheStoreComponent#get(java.lang.String, java.lang.Class, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> void get(String cacheKey, Class<T> type, IAsyncResultHandler<T> handler) {
+        Value value = segmentFor(cacheKey).get(cacheKey);
+        handler.handle(AsyncResultImpl.create(value == null ? null : (T) value.head));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.ICacheStoreComponent#getBinary(java.lang.String, java.lang.Class, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> void getBinary(String cacheKey, Class<T> type,
+            IAsyncResultHandler<ISignalReadStream<T>> handler) {
+        Value value = segmentFor(cacheKey).get(cacheKey);
+        ISignalReadStream<T> rval = null;
+        if (value != null && value.body != null) {
+            rval = new EntryReadStream<>((T) value.head, value.body.duplicate());
+        }
+        handler.handle(AsyncResultImpl.create(rval));
+    }
+
+    /**
+     * @return the total weight of the entries, in bytes
+     */
+    long weightedSize() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                weight += segment.weight;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Removes the entries that expired by the given time.
+     * @param now the current time, in milliseconds
+     */
+    void expire(long now) {
+        for (Segment segment : segments) {
+            segment.expire(now);
+        }
+    }
+
+    private Segment segmentFor(String cacheKey) {
+        int hash = cacheKey.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash * 0x9e3779b9 >>> 16) & (segments.length - 1)];
+    }
+
+    private java.nio.ByteBuffer store(byte[] bytes) {
+        if (!offHeap) {
+            return java.nio.ByteBuffer.wrap(bytes);
+        }
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        return direct;
+    }
+
+    private IApimanBuffer createBuffer(byte[] bytes) {
+        return bufferFactory == null ? new ByteBuffer(bytes) : bufferFactory.createBuffer(bytes);
+    }
+
+    private static long weigh(String key, Object head, java.nio.ByteBuffer body) {
+        long weight = ENTRY_OVERHEAD + 2L * key.length();
+        if (body != null) {
+            weight += body.remaining();
+        }
+        if (head instanceof ApiResponse) {
+            ApiResponse response = (ApiResponse) head;
+            weight += RESPONSE_OVERHEAD + length(response.getMessage());
+            if (response.getHeaders() != null) {
+                for (Entry<String, String> header : response.getHeaders()) {
+                    weight += HEADER_OVERHEAD + length(header.getKey()) + length(header.getValue());
+                }
+            }
+        } else if (head != null) {
+            weight += OBJECT_OVERHEAD;
+        }
+        return weight;
+    }
+
+    private static long length(String value) {
+        return value == null ? 0 : 2L * value.length();
+    }
+
+    /**
+     * @param bufferFactory the bufferFactory to set
+     */
+    public void setBufferFactory(IBufferFactoryComponent bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
+    /**
+     * What an entry holds. Replaced by null once the entry is removed, so that queued
+     * references to removed nodes don't keep their bodies alive.
+     */
+    private static final class Value {
+        private final Object head;
+        private final java.nio.ByteBuffer body;
+
+        private Value(Object head, java.nio.ByteBuffer body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    private enum Queue {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Node {
+        private final String key;
+        private final int hash;
+        private final long weight;
+        private final long expiresOn;
+        private volatile Value value;
+
+        // Guarded by the segment lock
+        private Queue queue;
+        private Node prev;
+        private Node next;
+
+        private Node(String key, Object head, java.nio.ByteBuffer body, long expiresOn) {
+            this.key = key;
+            this.hash = key.hashCode();
+            this.weight = weigh(key, head, body);
+            this.expiresOn = expiresOn;
+            this.value = new Value(head, body);
+        }
+    }
+
+    /**
+     * A doubly linked LRU list of nodes, least recently used first.
+     */
+    private static final class AccessOrder {
+        private Node first;
+        private Node last;
+
+        private void addLast(Node node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        private void remove(Node node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void moveToLast(Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+        private final long capacity;
+        private final long windowCapacity;
+        private final long protectedCapacity;
+
+        // Guarded by lock
+        private final FrequencySketch sketch;
+        private final AccessOrder window = new AccessOrder();
+        private final AccessOrder probation = new AccessOrder();
+        private final AccessOrder protectedOrder = new AccessOrder();
+        private final PriorityQueue<Node> expiries = new PriorityQueue<>(Comparator.comparingLong(n -> n.expiresOn));
+        private long weight;
+        private long windowWeight;
+        private long protectedWeight;
+
+        private Segment(long capacity) {
+            this.capacity = capacity;
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / AVERAGE_ENTRY_SIZE));
+        }
+
+        private Value get(String key) {
+            Node node = nodes.get(key);
+            Value value = node == null ? null : node.value;
+            if (value != null && node.expiresOn <= System.currentTimeMillis()) {
+                lock.lock();
+                try {
+                    removeIfPresent(node);
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            }
+            // Access records are best effort: skip them rather than wait for a writer
+            if (lock.tryLock()) {
+                try {
+                    sketch.increment(key.hashCode());
+                    if (value != null) {
+                        onAccess(node);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return value;
+        }
+
+        private void put(Node node) {
+            lock.lock();
+            try {
+                sketch.increment(node.hash);
+                Node existing = nodes.put(node.key, node);
+                if (existing != null) {
+                    unlink(existing);
+                }
+                if (node.weight > capacity) {
+                    // Too big to ever fit; the old value is gone as well
+                    nodes.remove(node.key, node);
+                    node.value = null;
+                    return;
+                }
+                node.queue = Queue.WINDOW;
+                window.addLast(node);
+                windowWeight += node.weight;
+                weight += node.weight;
+                expiries.add(node);
+                evict();
+                // Drop nodes that left the cache before expiring, once they dominate
+                if (expiries.size() > 2 * nodes.size() + 64) {
+                    expiries.removeIf(n -> n.value == null);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(String key) {
+            lock.lock();
+            try {
+                Node node = nodes.get(key);
+                if (node != null) {
+                    removeIfPresent(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void expire(long now) {
+            lock.lock();
+            try {
+                Node node;
+                while ((node = expiries.peek()) != null && node.expiresOn <= now) {
+                    expiries.poll();
+                    removeIfPresent(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onAccess(Node node) {
+            if (node.queue == null) {
+                return; // Removed meanwhile
+            }
+            switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = Queue.PROTECTED;
+                protectedOrder.addLast(node);
+                protectedWeight += node.weight;
+                while (protectedWeight > protectedCapacity && protectedOrder.first != node) {
+                    Node demoted = protectedOrder.first;
+                    protectedOrder.remove(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = Queue.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedOrder.moveToLast(node);
+                break;
+            }
+        }
+
+        /**
+         * Moves entries that overflow the window to the end of probation, then evicts
+         * until the segment fits: the newest probation entry (the latest arrival from the
+         * window) competes with the oldest one, and the less frequently used loses.
+         */
+        private void evict() {
+            while (windowWeight > windowCapacity && window.first != null) {
+                Node candidate = window.first;
+                window.remove(candidate);
+                windowWeight -= candidate.weight;
+                candidate.queue = Queue.PROBATION;
+                probation.addLast(candidate);
+            }
+            while (weight > capacity) {
+                Node victim = probation.first;
+                Node candidate = probation.last;
+                if (victim == null) {
+                    victim = protectedOrder.first != null ? protectedOrder.first : window.first;
+                } else if (victim != candidate
+                        && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                    victim = candidate;
+                }
+                removeIfPresent(victim);
+            }
+        }
+
+        private void removeIfPresent(Node node) {
+            if (node.value != null) {
+                nodes.remove(node.key, node);
+                unlink(node);
+            }
+        }
+
+        private void unlink(Node node) {
+            if (node.queue == null) {
+                node.value = null;
+                return;
+            }
+            switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedOrder.remove(node);
+                protectedWeight -= node.weight;
+                break;
+            }
+            weight -= node.weight;
+            node.queue = null;
+            node.value = null;
+        }
+    }
+
+    /**
+     * Streams a cached body in chunks, honouring {@link #pause()} and {@link #resume()}.
+     * Only one thread sends at a time; a resume racing with the sender is picked up by
+     * the sender before it lets go.
+     */
+    private final class EntryReadStream<T> implements ISignalReadStream<T> {
+        private final T head;
+        private final java.nio.ByteBuffer body;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private IAsyncHandler<IApimanBuffer> bodyHandler;
+        private IAsyncHandler<Void> endHandler;
+        private volatile boolean transmitting = false;
+        private volatile boolean paused = false;
+        private volatile boolean finished = false;
+
+        private EntryReadStream(T head, java.nio.ByteBuffer body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+            this.endHandler = endHandler;
+        }
+
+        @Override
+        public T getHead() {
+            return head;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            finished = true;
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            if (transmitting) {
+                send();
+            }
+        }
+
+        @Override
+        public void transmit() {
+            transmitting = true;
+            send();
+        }
+
+        private void send() {
+            do {
+                if (!sending.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    while (!paused && !finished && body.hasRemaining()) {
+                        byte[] chunk = new byte[Math.min(CHUNK_SIZE, body.remaining())];
+                        body.get(chunk);
+                        bodyHandler.handle(createBuffer(chunk));
+                    }
+                    if (!paused && !finished) {
+                        finished = true;
+                        endHandler.handle(null);
+                    }
+                } finally {
+                    sending.set(false);
+                }
+            } while (!paused && !finished);
+        }
+    }
+
+    /**
+     * Periodically removes expired entries. Holds the cache weakly, and stops once the
+     * cache has been garbage collected.
+     */
+    private static final class Expiry implements Runnable {
+        private final WeakReference<BoundedCacheStoreComponent> cache;
+        private volatile ScheduledFuture<?> future;
+
+        private Expiry(BoundedCacheStoreComponent cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        private static void schedule(BoundedCacheStoreComponent cache, long interval) {
+            Expiry expiry = new Expiry(cache);
+            expiry.future = expiryThread.scheduleWithFixedDelay(expiry, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            BoundedCacheStoreComponent target = cache.get();
+            if (target == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            target.expire(System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.rates.RatePeriodBoundaries;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An in-memory, lock-free rate limiter for a single gateway node.
+ * <p>
+ * Each bucket holds the window for the current period: its (precomputed)
+ * end timestamp and an atomic counter. Accepting a request is a map lookup
+ * plus a CAS on that bucket's counter, so unrelated buckets never contend
+ * and nothing is allocated apart from the response. A new window is only
+ * allocated when a bucket first rolls over into a new period.
+ * <p>
+ * Accept/reject decisions are identical to {@link InMemoryRateLimiterComponent}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class ConcurrentRateLimiterComponent implements IRateLimiterComponent {
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentRateLimiterComponent() {
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config (unused)
+     */
+    public ConcurrentRateLimiterComponent(Map<String, String> config) {
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IRateLimiterComponent#accept(java.lang.String, io.apiman.gateway.engine.rates.RateBucketPeriod, long, long, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void accept(String bucketId, RateBucketPeriod period, long limit, long increment,
+            IAsyncResultHandler<RateLimitResponse> handler) {
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(bucketId, id -> new Bucket());
+        }
+        Window window = bucket.currentWindow(period, now);
+
+        RateLimitResponse response = new RateLimitResponse();
+        long count;
+        for (;;) {
+            count = window.count;
+            if (count > limit) {
+                response.setAccepted(false);
+                break;
+            }
+            if (Window.COUNT.compareAndSet(window, count, count + increment)) {
+                response.setAccepted(count < limit);
+                count += increment;
+                break;
+            }
+        }
+        response.setReset((int) ((window.end - now) / 1000L));
+        response.setRemaining(limit - count);
+        handler.handle(AsyncResultImpl.<RateLimitResponse>create(response));
+    }
+
+    private static final class Bucket {
+        private static final AtomicReferenceFieldUpdater<Bucket, Window> WINDOW =
+                AtomicReferenceFieldUpdater.newUpdater(Bucket.class, Window.class, "window");
+
+        private volatile Window window;
+
+        /**
+         * Returns the window containing "now", rolling over to a new one if the
+         * current window has ended. Only one thread installs the new window; the
+         * others adopt it.
+         */
+        private Window currentWindow(RateBucketPeriod period, long now) {
+            for (;;) {
+                Window current = window;
+                if (current != null && now < current.end && current.period == period) {
+                    return current;
+                }
+                Window next = new Window(period, RatePeriodBoundaries.getPeriodEnd(now, period));
+                if (WINDOW.compareAndSet(this, current, next)) {
+                    return next;
+                }
+            }
+        }
+    }
+
+    private static final class Window {
+        private static final AtomicLongFieldUpdater<Window> COUNT =
+                AtomicLongFieldUpdater.newUpdater(Window.class, "count");
+
+        private final RateBucketPeriod period;
+        private final long end;
+        private volatile long count;
+
+        private Window(RateBucketPeriod period, long end) {
+            this.period = period;
+            this.end = end;
+        }
+    }
+}
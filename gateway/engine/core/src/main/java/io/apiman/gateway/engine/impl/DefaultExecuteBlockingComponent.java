@@ -16,21 +16,78 @@
 
 package io.apiman.gateway.engine.impl;
 
+import io.apiman.common.config.options.GenericOptionsParser;
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
+import io.apiman.common.util.VirtualThreads;
 import io.apiman.gateway.engine.async.IAsyncFuture;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
 /**
  * Default implementation just passes through (i.e. assumes blocking execution pattern).
+ * <p>
+ * With <tt>virtualThreads=true</tt> each task instead runs on its own virtual thread
+ * (Java 21+), and the result handler is called on that thread. On older JVMs this
+ * option is ignored with a warning.
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 public class DefaultExecuteBlockingComponent implements IExecuteBlockingComponent {
 
+    public static final String CONFIG_VIRTUAL_THREADS = "virtualThreads"; //$NON-NLS-1$
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(DefaultExecuteBlockingComponent.class);
+
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     */
+    public DefaultExecuteBlockingComponent() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param componentConfig the component configuration
+     */
+    public DefaultExecuteBlockingComponent(Map<String, String> componentConfig) {
+        GenericOptionsParser optParser = new GenericOptionsParser(componentConfig);
+        if (optParser.getBool(keys(CONFIG_VIRTUAL_THREADS), false)) {
+            executor = VirtualThreads.newThreadPerTaskExecutor("apiman-blocking-"); //$NON-NLS-1$
+            if (executor == null) {
+                LOGGER.warn("Virtual threads are not supported by this JVM, executing blocking code in place"); //$NON-NLS-1$
+            }
+        } else {
+            executor = null;
+        }
+    }
+
     @Override
     public <T> void executeBlocking(IAsyncHandler<IAsyncFuture<T>> blockingCode, IAsyncResultHandler<T> resultHandler) {
         IAsyncFuture<T> wrapped = passthrough(resultHandler);
+        if (executor == null) {
+            execute(blockingCode, wrapped);
+            return;
+        }
+        try {
+            executor.execute(() -> execute(blockingCode, wrapped));
+        } catch (RejectedExecutionException e) {
+            wrapped.fail(e);
+        }
+    }
+
+    private <T> void execute(IAsyncHandler<IAsyncFuture<T>> blockingCode, IAsyncFuture<T> wrapped) {
         try {
             blockingCode.handle(wrapped);
         } catch (Exception e) {
@@ -28,6 +28,8 @@ import io.apiman.gateway.engine.components.jdbc.JdbcOptionsBean;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.sql.DataSource;
 
 import com.zaxxer.hikari.HikariConfig;
@@ -42,6 +44,7 @@ public class DefaultJdbcComponent implements IJdbcComponent {
 
     private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(DefaultJdbcComponent.class);
     private final Map<String, IJdbcClient> clients = new HashMap<>();
+    private final Lock clientsLock = new ReentrantLock();
 
     /**
      * Constructor.
@@ -53,14 +56,20 @@ public class DefaultJdbcComponent implements IJdbcComponent {
      * @see io.apiman.gateway.engine.components.IJdbcComponent#createShared(java.lang.String, io.apiman.gateway.engine.components.jdbc.JdbcOptionsBean)
      */
     @Override
-    public synchronized IJdbcClient createShared(String dsName, JdbcOptionsBean config) {
-        if (clients.containsKey(dsName)) {
-            return clients.get(dsName);
-        } else {
-            DataSource ds = datasourceFromConfig(config);
-            DefaultJdbcClient client = new DefaultJdbcClient(ds);
-            clients.put(dsName, client);
-            return client;
+    public IJdbcClient createShared(String dsName, JdbcOptionsBean config) {
+        // Creating the pool may connect, so don't hold a monitor (it would pin a virtual thread)
+        clientsLock.lock();
+        try {
+            if (clients.containsKey(dsName)) {
+                return clients.get(dsName);
+            } else {
+                DataSource ds = datasourceFromConfig(config);
+                DefaultJdbcClient client = new DefaultJdbcClient(ds);
+                clients.put(dsName, client);
+                return client;
+            }
+        } finally {
+            clientsLock.unlock();
         }
     }
 
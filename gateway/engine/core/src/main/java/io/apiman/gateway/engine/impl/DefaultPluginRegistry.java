@@ -164,6 +164,7 @@ public class DefaultPluginRegistry implements IPluginRegistry {
         // Wrap the user provided handler so we can hook into the response.  We want to cache
         // the result (regardless of whether it's a success or failure)
         final IAsyncResultHandler<Plugin> handler = (IAsyncResult<Plugin> result) -> {
+            Plugin duplicate = null;
             synchronized (pluginCache) {
                 if (result.isError()) {
                     errorCache.put(coordinates, result.getError());
@@ -173,16 +174,19 @@ public class DefaultPluginRegistry implements IPluginRegistry {
                     // same time, resulting in two or more threads downloading the plugin.
                     // This is OK as long as we make sure we only ever use one.
                     if (pluginCache.containsKey(coordinates)) {
-                        try {
-                            result.getResult().getLoader().close();
-                        } catch (IOException e) {
-                        }
+                        duplicate = result.getResult();
                         result = AsyncResultImpl.create(pluginCache.get(coordinates));
                     } else {
                         pluginCache.put(coordinates, result.getResult());
                     }
                 }
             }
+            if (duplicate != null) {
+                try {
+                    duplicate.getLoader().close();
+                } catch (IOException e) {
+                }
+            }
             if (userHandler != null) {
                 userHandler.handle(result);
             }
@@ -190,29 +194,23 @@ public class DefaultPluginRegistry implements IPluginRegistry {
         };
 
         boolean handled = false;
+        AsyncResultImpl<Plugin> cachedResult = null;
         synchronized (pluginCache) {
-
             // First check the cache.
             if (pluginCache.containsKey(coordinates)) {
-                // Invoke the user handler directly - we know we don't need to re-cache it.
-                AsyncResultImpl<Plugin> result = AsyncResultImpl.create(pluginCache.get(coordinates));
-                if (userHandler != null) {
-                    userHandler.handle(result);
-                }
-                future.setResult(result);
-                handled = true;
+                cachedResult = AsyncResultImpl.create(pluginCache.get(coordinates));
+            } else if (errorCache.containsKey(coordinates)) {
+                // Check the error cache - don't keep trying again and again for a failure.
+                cachedResult = AsyncResultImpl.create(errorCache.get(coordinates), Plugin.class);
             }
-
-            // Check the error cache - don't keep trying again and again for a failure.
-            if (!handled && errorCache.containsKey(coordinates)) {
-                // Invoke the user handle directly - we know we don't need to re-cache it.
-                AsyncResultImpl<Plugin> result = AsyncResultImpl.create(errorCache.get(coordinates), Plugin.class);
-                if (userHandler != null) {
-                    userHandler.handle(result);
-                }
-                future.setResult(result);
-                handled = true;
+        }
+        if (cachedResult != null) {
+            // Invoke the user handler directly (outside the lock) - we know we don't need to re-cache it.
+            if (userHandler != null) {
+                userHandler.handle(cachedResult);
             }
+            future.setResult(cachedResult);
+            handled = true;
         }
 
         String pluginRelativePath = PluginUtils.getPluginRelativePath(coordinates);
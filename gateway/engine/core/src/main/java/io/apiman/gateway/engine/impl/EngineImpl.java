@@ -53,6 +53,7 @@ public class EngineImpl implements IEngine {
     private IPolicyFactory policyFactory;
     private IMetrics metrics;
     private IApiRequestPathParser requestPathParser;
+    private final ApiExecutionPlanCache executionPlanCache = new ApiExecutionPlanCache();
 
     /**
      * Constructor.
@@ -68,7 +69,7 @@ public class EngineImpl implements IEngine {
         final IComponentRegistry componentRegistry, final IConnectorFactory connectorFactory,
         final IPolicyFactory policyFactory, final IMetrics metrics,
         final IApiRequestPathParser pathParser) {
-        setRegistry(registry);
+        setRegistry(new ExecutionPlanRegistryWrapper(registry, executionPlanCache));
         setPluginRegistry(pluginRegistry);
         setComponentRegistry(componentRegistry);
         setConnectorFactory(connectorFactory);
@@ -112,7 +113,8 @@ public class EngineImpl implements IEngine {
                 policyFactory,
                 getConnectorFactory(),
                 getMetrics(),
-                bufferFactory);
+                bufferFactory,
+                executionPlanCache);
     }
 
     /**
@@ -19,6 +19,7 @@ import io.apiman.gateway.engine.IEngineResult;
 import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.io.AbstractStream;
+import io.apiman.gateway.engine.io.IReadStream;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 
 /**
@@ -32,6 +33,7 @@ public class EngineResultImpl extends AbstractStream<ApiResponse> implements IEn
     private ApiResponse apiResponse = null;
     private PolicyFailure policyFailure = null;
     private transient ISignalReadStream<ApiResponse> connectorResponseStream;
+    private transient IReadStream<?> flowControlSource;
 
     /**
      * Constructor.
@@ -120,6 +122,33 @@ public class EngineResultImpl extends AbstractStream<ApiResponse> implements IEn
         connectorResponseStream.abort(t);
     }
 
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#pause()
+     */
+    @Override
+    public void pause() {
+        if (flowControlSource != null) {
+            flowControlSource.pause();
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#resume()
+     */
+    @Override
+    public void resume() {
+        if (flowControlSource != null) {
+            flowControlSource.resume();
+        }
+    }
+
+    /**
+     * @param flowControlSource the stream feeding this result, which pause/resume are passed on to
+     */
+    public void setFlowControlSource(IReadStream<?> flowControlSource) {
+        this.flowControlSource = flowControlSource;
+    }
+
     /**
      * @param connectorResponseStream the connectorResponseStream to set
      */
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+
+import java.util.List;
+
+/**
+ * Wraps any {@link IRegistry} implementation so that cached execution plans
+ * are dropped whenever the registry is modified through this node.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class ExecutionPlanRegistryWrapper implements IRegistry {
+
+    private final IRegistry delegate;
+    private final ApiExecutionPlanCache planCache;
+
+    /**
+     * Constructor.
+     * @param delegate the delegated registry
+     * @param planCache the execution plan cache to invalidate
+     */
+    public ExecutionPlanRegistryWrapper(IRegistry delegate, ApiExecutionPlanCache planCache) {
+        this.delegate = delegate;
+        this.planCache = planCache;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#publishApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void publishApi(Api api, IAsyncResultHandler<Void> handler) {
+        delegate.publishApi(api, result -> {
+            planCache.invalidate(api);
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#retireApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void retireApi(Api api, IAsyncResultHandler<Void> handler) {
+        delegate.retireApi(api, result -> {
+            planCache.invalidate(api);
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#registerClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerClient(Client client, IAsyncResultHandler<Void> handler) {
+        delegate.registerClient(client, result -> {
+            planCache.invalidate(client);
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#unregisterClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterClient(Client client, IAsyncResultHandler<Void> handler) {
+        delegate.unregisterClient(client, result -> {
+            planCache.invalidate(client);
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getApi(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getApi(String organizationId, String apiId, String apiVersion, IAsyncResultHandler<Api> handler) {
+        delegate.getApi(organizationId, apiId, apiVersion, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getClient(String apiKey, IAsyncResultHandler<Client> handler) {
+        delegate.getClient(apiKey, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getClient(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getClient(String organizationId, String clientId, String clientVersion, IAsyncResultHandler<Client> handler) {
+        delegate.getClient(organizationId, clientId, clientVersion, handler);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRegistry#getContract(java.lang.String, java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void getContract(String apiOrganizationId, String apiId, String apiVersion, String apiKey,
+            IAsyncResultHandler<ApiContract> handler) {
+        delegate.getContract(apiOrganizationId, apiId, apiVersion, apiKey, handler);
+    }
+
+    @Override
+    public void listApis(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        delegate.listApis(organizationId, page, pageSize, handler);
+    }
+
+    @Override
+    public void listApiVersions(String organizationId, String apiId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        delegate.listApiVersions(organizationId, apiId, page, pageSize, handler);
+    }
+
+    @Override
+    public void listClients(String organizationId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        delegate.listClients(organizationId, page, pageSize, handler);
+    }
+
+    @Override
+    public void listClientVersions(String organizationId, String clientId, int page, int pageSize, IAsyncResultHandler<List<String>> handler) {
+        delegate.listClientVersions(organizationId, clientId, page, pageSize, handler);
+    }
+
+    @Override
+    public void listOrgs(IAsyncResultHandler<List<String>> handler) {
+        delegate.listOrgs(handler);
+    }
+
+    /**
+     * @return the wrapped registry
+     */
+    public IRegistry getDelegate() {
+        return delegate;
+    }
+}
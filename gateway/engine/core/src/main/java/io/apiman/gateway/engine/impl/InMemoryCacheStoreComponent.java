@@ -241,7 +241,8 @@ public class InMemoryCacheStoreComponent implements ICacheStoreComponent {
 
                 @Override
                 public void transmit() {
-                    bodyHandler.handle(data);
+                    // Hand out a copy: whoever writes the body may release (empty) it
+                    bodyHandler.handle(bufferFactory.cloneBuffer(data));
                     endHandler.handle(null);
                 }
             };
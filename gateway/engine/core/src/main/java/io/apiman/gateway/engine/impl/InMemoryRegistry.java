@@ -43,6 +43,7 @@ public class InMemoryRegistry implements IRegistry {
 
     private final Map<String, Object> map = new ConcurrentHashMap<>();
     private final Object mutex = new Object();
+    private final ApiContractIndex contractIndex = new ApiContractIndex();
 
     /**
      * Constructor.
@@ -107,6 +108,7 @@ public class InMemoryRegistry implements IRegistry {
                 String clientIdx = getClientIndex(client);
                 getMap().put(clientIdx, client);
                 getMap().put(client.getApiKey(), client);
+                indexContracts(client);
 
                 handler.handle(AsyncResultImpl.create((Void) null));
             } else {
@@ -142,6 +144,20 @@ public class InMemoryRegistry implements IRegistry {
                 }
             } else {
                 getMap().remove(oldClient.getApiKey());
+                contractIndex.remove(oldClient);
+            }
+        }
+    }
+
+    /**
+     * Resolves all of the (newly registered) client's contracts up front.
+     * @param client the client
+     */
+    private void indexContracts(Client client) {
+        for (Contract contract : client.getContracts()) {
+            Api api = (Api) getMap().get(getApiIndex(contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion()));
+            if (api != null) {
+                contractIndex.index(client, api, contract);
             }
         }
     }
@@ -200,22 +216,13 @@ public class InMemoryRegistry implements IRegistry {
             return;
         }
 
-        Contract matchedContract = null;
-        for (Contract contract : client.getContracts()) {
-            if (contract.matches(apiOrganizationId, apiId, apiVersion)) {
-                matchedContract = contract;
-                break;
-            }
-        }
-
-        if (matchedContract == null) {
+        ApiContract contract = contractIndex.resolve(client, api);
+        if (contract == null) {
             Exception error = new NoContractFoundException(Messages.i18n.format("InMemoryRegistry.NoContractFound", //$NON-NLS-1$
                     client.getClientId(), api.getApiId()));
             handler.handle(AsyncResultImpl.create(error, ApiContract.class));
             return;
         }
-
-        ApiContract contract = new ApiContract(api, client, matchedContract.getPlan(), matchedContract.getPolicies());
         handler.handle(AsyncResultImpl.create(contract));
     }
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fills a cache map on a miss, loading each key at most once at a time.
+ * <p>
+ * Threads missing on the same key wait for the first one's load; threads
+ * missing on other keys load concurrently. Cache hits take no lock at all.
+ * Loads that return null are not cached.
+ * <p>
+ * Changes to the cache must go through {@link #invalidate(String)},
+ * {@link #invalidateAll()}, {@link #update(String, Object)} or {@link #cancelLoads()}.
+ * Each one bumps a generation, and a load that was in progress at the time does not
+ * cache its value, which may have been read before the change.
+ *
+ * @param <V> the cached value type
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class KeyedCacheLoader<V> {
+
+    /**
+     * Loads a value from the backing store.
+     *
+     * @param <V> the value type
+     * @param <E> the exception type the store can throw
+     */
+    @FunctionalInterface
+    public interface Loader<V, E extends Exception> {
+        V load() throws E;
+    }
+
+    private final Map<String, V> cache;
+    private final Map<String, ReentrantLock> loading = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param cache the (concurrent) cache map to fill
+     */
+    public KeyedCacheLoader(Map<String, V> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the cached value, or loads and caches it.
+     *
+     * @param key the cache key
+     * @param loader loads the value on a miss
+     * @return the value, or null if the loader found none
+     * @throws E if the load failed
+     */
+    public <E extends Exception> V get(String key, Loader<V, E> loader) throws E {
+        V value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        ReentrantLock lock = loading.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            // Another thread may have loaded it while we waited
+            long stamp = stamp();
+            value = cache.get(key);
+            if (value == null) {
+                value = loader.load();
+                if (value != null) {
+                    value = cacheIfCurrent(key, value, stamp);
+                }
+            }
+            return value;
+        } finally {
+            if (!lock.hasQueuedThreads()) {
+                loading.remove(key, lock);
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a stamp to take before loading a value outside of {@link #get(String, Loader)}
+     */
+    public long stamp() {
+        return generation.get();
+    }
+
+    /**
+     * Caches a value loaded outside of {@link #get(String, Loader)}, unless the cache was
+     * changed since the stamp was taken.  The value is put before the generation is
+     * checked, so a change racing with the check still removes it.
+     *
+     * @param key the cache key
+     * @param value the loaded value
+     * @param stamp the {@link #stamp()} taken before the value was loaded
+     * @return the value already cached under the key, if any, otherwise the given value
+     */
+    public V cacheIfCurrent(String key, V value, long stamp) {
+        V existing = cache.putIfAbsent(key, value);
+        if (existing != null) {
+            return existing;
+        }
+        if (generation.get() != stamp) {
+            cache.remove(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Removes the key from the cache.
+     *
+     * @param key the cache key
+     * @return the value that was cached, or null
+     */
+    public V invalidate(String key) {
+        generation.incrementAndGet();
+        return cache.remove(key);
+    }
+
+    /**
+     * Stops the loads in progress from caching their values, e.g. because an entry that
+     * is not cached (or whose key is not known) has changed.
+     */
+    public void cancelLoads() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Replaces the cached value with a freshly loaded one.
+     *
+     * @param key the cache key
+     * @param value the new value
+     * @return the value that was cached, or null
+     */
+    public V update(String key, V value) {
+        generation.incrementAndGet();
+        return cache.put(key, value);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.impl.KeyedCacheLoader.Loader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The single-node cache of apis and clients behind the caching registries.
+ * <p>
+ * Misses are loaded through a {@link KeyedCacheLoader} per entity type, and resolved
+ * contracts are kept in an {@link ApiContractIndex}.  Entries changed elsewhere (e.g.
+ * by another node) can be reloaded in place with {@link #refreshApi} and
+ * {@link #refreshClient}.  The registry supplies the loads from its backing store.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class RegistryCache {
+
+    /**
+     * Reads all entities of a type from the backing store.
+     *
+     * @param <V> the entity type
+     * @param <E> the exception type the store can throw
+     */
+    @FunctionalInterface
+    public interface Source<V, E extends Exception> {
+        void forEach(Consumer<V> action) throws E;
+    }
+
+    private final Map<String, Api> apiCache = new ConcurrentHashMap<>();
+    private final Map<String, Client> clientCache = new ConcurrentHashMap<>();
+    private final KeyedCacheLoader<Api> apiLoader = new KeyedCacheLoader<>(apiCache);
+    private final KeyedCacheLoader<Client> clientLoader = new KeyedCacheLoader<>(clientCache);
+    private final ApiContractIndex contractIndex = new ApiContractIndex();
+
+    /**
+     * Constructor.
+     */
+    public RegistryCache() {
+    }
+
+    /**
+     * @return the cached api, or null if it is not cached
+     */
+    public Api getCachedApi(String orgId, String apiId, String version) {
+        return apiCache.get(getApiKey(orgId, apiId, version));
+    }
+
+    /**
+     * @return the cached client, or null if it is not cached
+     */
+    public Client getCachedClient(String apiKey) {
+        return clientCache.get(apiKey);
+    }
+
+    /**
+     * Gets the api from the cache, or loads and caches it.  Concurrent misses on the
+     * same api share a single load; misses on other apis are not held up by it.
+     *
+     * @param loader loads the api on a miss
+     * @return the api, or null if there is none
+     * @throws E if the load failed
+     */
+    public <E extends Exception> Api getApi(String orgId, String apiId, String version, Loader<Api, E> loader) throws E {
+        return apiLoader.get(getApiKey(orgId, apiId, version), loader);
+    }
+
+    /**
+     * Gets the client from the cache, or loads and caches it.  Concurrent misses on the
+     * same API key share a single load.
+     *
+     * @param loader loads the client on a miss
+     * @return the client, or null if there is none
+     * @throws E if the load failed
+     */
+    public <E extends Exception> Client getClient(String apiKey, Loader<Client, E> loader) throws E {
+        return clientLoader.get(apiKey, loader);
+    }
+
+    /**
+     * @return a stamp to take before loading an api outside of the cache
+     * @see KeyedCacheLoader#stamp()
+     */
+    public long apiStamp() {
+        return apiLoader.stamp();
+    }
+
+    /**
+     * @return a stamp to take before loading a client outside of the cache
+     * @see KeyedCacheLoader#stamp()
+     */
+    public long clientStamp() {
+        return clientLoader.stamp();
+    }
+
+    /**
+     * Caches an api loaded outside of the cache, unless the cache changed since the
+     * stamp was taken.
+     *
+     * @return the api already cached, if any, otherwise the given one
+     * @see KeyedCacheLoader#cacheIfCurrent(String, Object, long)
+     */
+    public Api cacheApi(Api api, long stamp) {
+        return apiLoader.cacheIfCurrent(getApiKey(api.getOrganizationId(), api.getApiId(), api.getVersion()), api, stamp);
+    }
+
+    /**
+     * Caches a client loaded outside of the cache, unless the cache changed since the
+     * stamp was taken.
+     *
+     * @return the client already cached, if any, otherwise the given one
+     * @see KeyedCacheLoader#cacheIfCurrent(String, Object, long)
+     */
+    public Client cacheClient(Client client, long stamp) {
+        return clientLoader.cacheIfCurrent(client.getApiKey(), client, stamp);
+    }
+
+    /**
+     * Resolves the client's contract with the api through the contract index.
+     *
+     * @return the contract, or null if the client has no contract with the api
+     * @see ApiContractIndex#resolve(Client, Api)
+     */
+    public ApiContract resolveContract(Client client, Api api) {
+        return contractIndex.resolve(client, api);
+    }
+
+    /**
+     * Empties the cache, so that all apis and clients are loaded again on next use.
+     */
+    public void invalidate() {
+        clientLoader.invalidateAll();
+        apiLoader.invalidateAll();
+        contractIndex.clear();
+    }
+
+    /**
+     * Removes a client, and its indexed contracts, from the cache.
+     *
+     * @param apiKey the client's API key
+     */
+    public void evictClient(String apiKey) {
+        if (apiKey == null) {
+            return;
+        }
+        Client cached = clientLoader.invalidate(apiKey);
+        if (cached != null) {
+            contractIndex.remove(cached);
+        }
+    }
+
+    /**
+     * Reloads a cached api that was changed (possibly by another node), replacing the
+     * cached copy in place rather than leaving a hole for the next request to fill.  Apis
+     * that are not cached are left to be loaded on first use.
+     *
+     * @param loader loads the api's current state
+     */
+    public void refreshApi(String orgId, String apiId, String version, Loader<Api, ?> loader) {
+        String key = getApiKey(orgId, apiId, version);
+        if (!apiCache.containsKey(key)) {
+            // Stop a load in progress from caching what it read before the change
+            apiLoader.cancelLoads();
+            return;
+        }
+        try {
+            Api api = loader.load();
+            if (api == null) {
+                apiLoader.invalidate(key);
+            } else {
+                apiLoader.update(key, api);
+            }
+        } catch (Exception e) {
+            // Leave it to be loaded on next use
+            apiLoader.invalidate(key);
+        }
+    }
+
+    /**
+     * Reloads a cached client that was changed (possibly by another node), replacing the
+     * cached copy in place.  A re-registered client may come with a new API key, so any
+     * copy cached under a different key is dropped.
+     *
+     * @param apiKey the client's current API key, or null if it was unregistered
+     * @param loader loads the client's current state by its API key
+     */
+    public void refreshClient(String orgId, String clientId, String version, String apiKey, Loader<Client, ?> loader) {
+        boolean cached = apiKey != null && clientCache.containsKey(apiKey);
+        for (Client client : clientCache.values()) {
+            if (!client.getApiKey().equals(apiKey) && client.getOrganizationId().equals(orgId)
+                    && client.getClientId().equals(clientId) && client.getVersion().equals(version)) {
+                evictClient(client.getApiKey());
+                cached = true;
+            }
+        }
+        if (!cached || apiKey == null) {
+            // Stop a load in progress from caching what it read before the change
+            clientLoader.cancelLoads();
+            return;
+        }
+        try {
+            Client client = loader.load();
+            if (client == null) {
+                evictClient(apiKey);
+            } else {
+                Client previous = clientLoader.update(apiKey, client);
+                if (previous != null) {
+                    contractIndex.remove(previous);
+                }
+            }
+        } catch (Exception e) {
+            // Leave it to be loaded on next use
+            evictClient(apiKey);
+        }
+    }
+
+    /**
+     * Loads all apis and clients into the cache, so that the first requests after startup
+     * do not all miss at once.  Entries already loaded by a request are kept, and entries
+     * changed while loading are left to be loaded on first use.
+     *
+     * @param apis reads all apis
+     * @param clients reads all clients
+     * @throws E if either read failed
+     */
+    public <E extends Exception> void prewarm(Source<Api, E> apis, Source<Client, E> clients) throws E {
+        long apiStamp = apiLoader.stamp();
+        long clientStamp = clientLoader.stamp();
+        apis.forEach(api -> cacheApi(api, apiStamp));
+        clients.forEach(client -> cacheClient(client, clientStamp));
+    }
+
+    /**
+     * Generates the in-memory key of an api.
+     */
+    private static String getApiKey(String orgId, String apiId, String version) {
+        return "API::" + orgId + "|" + apiId + "|" + version;
+    }
+}
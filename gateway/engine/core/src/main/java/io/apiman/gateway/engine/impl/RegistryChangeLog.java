@@ -0,0 +1,328 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Keeps a polling registry's cache in step with changes made by other nodes.
+ * <p>
+ * With <code>cache-polling-mode=incremental</code> every change is recorded in a change
+ * log, and each {@link #sync()} reloads only the apis and clients changed since the last
+ * one.  The whole cache is only invalidated if the log cannot be trusted to be complete:
+ * the last successful sync is older than <code>cache-changelog-retention</code> (in
+ * seconds), or more than {@link #MAX_BATCH} changes are pending.  Entries are read back
+ * with an overlap of <code>cache-changelog-overlap</code> seconds to allow for clock skew
+ * between nodes and for late commits.  A change that cannot be written to the log bumps
+ * the registry's data version instead, and every node invalidates its whole cache when it
+ * sees the data version move.  In the default (full) mode a change only bumps the
+ * registry's data version.
+ * <p>
+ * Subclasses read and write the log in the registry's backing store, and apply the
+ * changes to its cache.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public abstract class RegistryChangeLog {
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(RegistryChangeLog.class);
+
+    public static final String CHANGE_API = "api";
+    public static final String CHANGE_CLIENT = "client";
+
+    /**
+     * The most changes a sync applies one by one, rather than invalidating the cache.
+     */
+    public static final int MAX_BATCH = 1000;
+
+    private static final int DEFAULT_RETENTION = 3600;
+    private static final int DEFAULT_OVERLAP = 10;
+
+    private final boolean incremental;
+    private final long retentionMillis;
+    private final long overlapMillis;
+
+    private volatile long lastSyncedOn;
+    private volatile Long knownDataVersion;
+
+    /**
+     * Constructor.
+     * @param config the registry configuration
+     */
+    public RegistryChangeLog(Map<String, String> config) {
+        incremental = "incremental".equalsIgnoreCase(config.get("cache-polling-mode"));
+
+        String retentionVal = config.get("cache-changelog-retention");
+        String overlapVal = config.get("cache-changelog-overlap");
+        retentionMillis = (retentionVal != null ? Integer.parseInt(retentionVal) : DEFAULT_RETENTION) * 1000L;
+        overlapMillis = (overlapVal != null ? Integer.parseInt(overlapVal) : DEFAULT_OVERLAP) * 1000L;
+
+        // Changes made from here on are picked up by the first sync
+        lastSyncedOn = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if changes are synced one by one, false if any change invalidates the cache
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Takes note of the current data version, so that a change recorded as a new data
+     * version from here on invalidates the cache.  Call before the cache is first filled.
+     * Otherwise the first sync takes note of it.
+     */
+    public void start() {
+        if (!incremental) {
+            return;
+        }
+        try {
+            knownDataVersion = readDataVersion();
+        } catch (Exception e) {
+            LOGGER.error("Problem encountered while reading the registry data version: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records that an api was published or retired.
+     * @param api the api
+     */
+    public void apiChanged(Api api) {
+        dataChanged(new Change(CHANGE_API, api.getOrganizationId(), api.getApiId(), api.getVersion(), null));
+    }
+
+    /**
+     * Records that a client was registered or unregistered.
+     * @param client the client
+     * @param registered true if it was registered, so its API key is current
+     */
+    public void clientChanged(Client client, boolean registered) {
+        dataChanged(new Change(CHANGE_CLIENT, client.getOrganizationId(), client.getClientId(), client.getVersion(),
+                registered ? client.getApiKey() : null));
+    }
+
+    /**
+     * Records a successful change to the registry, in the change log or as a new data
+     * version depending on the polling mode.
+     */
+    private void dataChanged(Change change) {
+        if (!incremental) {
+            updateDataVersion();
+            return;
+        }
+        long changedOn = System.currentTimeMillis();
+        try {
+            append(change, changedOn, changedOn - retentionMillis);
+        } catch (Exception e) {
+            appendFailed(e);
+        }
+    }
+
+    /**
+     * Called when a change could not be written to the change log.  Bumps the data version
+     * so that every node invalidates its whole cache, as the change would otherwise be lost
+     * and nodes would keep serving e.g. a retired api or an unregistered client.
+     * @param error why the change could not be written
+     */
+    protected void appendFailed(Exception error) {
+        LOGGER.error("Problem encountered while recording a registry change, invalidating all caches: "
+                + error.getMessage(), error);
+        updateDataVersion();
+        invalidateCache();
+    }
+
+    /**
+     * Reads the changes made since the last successful sync from the change log and
+     * applies them to the cache.  Falls back to invalidating the whole cache when the
+     * log may be missing changes, or has too many of them, or when the data version has
+     * moved because a change could not be logged.  If the log cannot be read the sync is
+     * retried from the same point on the next poll.
+     */
+    public void sync() {
+        long syncStart = System.currentTimeMillis();
+        long since = lastSyncedOn - overlapMillis;
+        if (syncStart - since > retentionMillis) {
+            // Changes we have not seen may already have been pruned from the log
+            invalidateCache();
+            lastSyncedOn = syncStart;
+            return;
+        }
+
+        long dataVersion;
+        try {
+            dataVersion = readDataVersion();
+        } catch (Exception e) {
+            LOGGER.error("Problem encountered while reading the registry data version: " + e.getMessage(), e);
+            return;
+        }
+        Long known = knownDataVersion;
+        knownDataVersion = dataVersion;
+        if (known != null && known != dataVersion) {
+            // A change could not be logged
+            invalidateCache();
+            lastSyncedOn = syncStart;
+            return;
+        }
+
+        List<Change> changes;
+        try {
+            changes = readSince(since, MAX_BATCH + 1);
+        } catch (Exception e) {
+            LOGGER.error("Problem encountered while reading the registry change log: " + e.getMessage(), e);
+            return;
+        }
+
+        if (changes.size() > MAX_BATCH) {
+            invalidateCache();
+        } else {
+            // Reload an entity changed several times since the last sync only once
+            Set<Change> distinct = new LinkedHashSet<>(changes);
+            for (Change change : distinct) {
+                if (CHANGE_API.equals(change.getType())) {
+                    refreshApi(change.getOrgId(), change.getId(), change.getVersion());
+                } else if (CHANGE_CLIENT.equals(change.getType())) {
+                    refreshClient(change.getOrgId(), change.getId(), change.getVersion(), change.getApiKey());
+                }
+            }
+        }
+        lastSyncedOn = syncStart;
+    }
+
+    /**
+     * Appends an entry to the change log, pruning entries that have aged out of the
+     * retention period.
+     * @param change the change
+     * @param changedOn when it was made
+     * @param pruneBefore entries changed before this time may be removed
+     * @throws Exception if the entry could not be written
+     */
+    protected abstract void append(Change change, long changedOn, long pruneBefore) throws Exception;
+
+    /**
+     * Reads the entries changed at or after the given time, oldest first.
+     * @param since the earliest change time to read
+     * @param limit the most entries to read
+     * @return the entries
+     * @throws Exception if the log could not be read
+     */
+    protected abstract List<Change> readSince(long since, int limit) throws Exception;
+
+    /**
+     * Reads the current data version.
+     * @return the data version, or -1 if there is none yet
+     * @throws Exception if the data version could not be read
+     */
+    protected abstract long readDataVersion() throws Exception;
+
+    /**
+     * Records a change in full polling mode, or one that could not be logged.
+     */
+    protected abstract void updateDataVersion();
+
+    /**
+     * Empties the registry's cache.
+     */
+    protected abstract void invalidateCache();
+
+    /**
+     * Reloads an api that was changed.
+     */
+    protected abstract void refreshApi(String orgId, String apiId, String version);
+
+    /**
+     * Reloads a client that was changed.
+     * @param apiKey the client's current API key, or null if it was unregistered
+     */
+    protected abstract void refreshClient(String orgId, String clientId, String version, String apiKey);
+
+    /**
+     * A change log entry.  Entries for the same entity are equal, so that an entity changed
+     * several times since the last sync is only reloaded once.
+     */
+    public static final class Change {
+        private final String type;
+        private final String orgId;
+        private final String id;
+        private final String version;
+        private final String apiKey;
+
+        /**
+         * Constructor.
+         * @param type {@link RegistryChangeLog#CHANGE_API} or {@link RegistryChangeLog#CHANGE_CLIENT}
+         * @param orgId the entity's organization
+         * @param id the entity's id
+         * @param version the entity's version
+         * @param apiKey a client's (new) API key, if known
+         */
+        public Change(String type, String orgId, String id, String version, String apiKey) {
+            this.type = type;
+            this.orgId = orgId;
+            this.id = id;
+            this.version = version;
+            this.apiKey = apiKey;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getOrgId() {
+            return orgId;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getApiKey() {
+            return apiKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Change)) {
+                return false;
+            }
+            Change other = (Change) o;
+            return Objects.equals(type, other.type) && Objects.equals(orgId, other.orgId)
+                    && Objects.equals(id, other.id) && Objects.equals(version, other.version)
+                    && Objects.equals(apiKey, other.apiKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, orgId, id, version, apiKey);
+        }
+    }
+}
@@ -18,7 +18,9 @@ package io.apiman.gateway.engine.impl;
 import io.apiman.common.util.crypt.DataEncryptionContext;
 import io.apiman.common.util.crypt.DataEncryptionContext.EntityType;
 import io.apiman.common.util.crypt.IDataEncrypter;
+import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
@@ -38,7 +40,7 @@ import java.util.Set;
  *
  * @author eric.wittmann@redhat.com
  */
-public class SecureRegistryWrapper implements IRegistry {
+public class SecureRegistryWrapper implements IRegistry, IRequiresComponentRegistry {
 
     private final IRegistry delegate;
     private final IDataEncrypter encrypter;
@@ -53,6 +55,17 @@ public class SecureRegistryWrapper implements IRegistry {
         this.encrypter = encrypter;
     }
 
+    /**
+     * Passes the component registry on to the delegate, if it uses components.
+     * @see io.apiman.gateway.engine.IRequiresComponentRegistry#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
+     */
+    @Override
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        if (delegate instanceof IRequiresComponentRegistry) {
+            ((IRequiresComponentRegistry) delegate).setComponentRegistry(componentRegistry);
+        }
+    }
+
     /**
      * @see io.apiman.gateway.engine.IRegistry#publishApi(io.apiman.gateway.engine.beans.Api, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.common.config.options.GenericOptionsParser;
+import io.apiman.common.config.options.Predicates;
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+import io.apiman.gateway.engine.io.ByteBufferPool;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.SegmentedByteBuffer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Map;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
+/**
+ * Implementation of {@link IBufferFactoryComponent} that creates
+ * {@link SegmentedByteBuffer}s, optionally backed by a pool of direct
+ * (off-heap) segments. Suited to servlet deployments that buffer large
+ * payloads, e.g. when caching responses.
+ * <p>
+ * Options:
+ * <ul>
+ *   <li><tt>minSegmentSize</tt>: size of a buffer's first segment (default 256)</li>
+ *   <li><tt>maxSegmentSize</tt>: size segments grow to (default 65536)</li>
+ *   <li><tt>direct</tt>: whether max-size segments are allocated off-heap (default false)</li>
+ *   <li><tt>poolSize</tt>: max number of idle max-size segments to keep (default 0, or 1024 when direct)</li>
+ * </ul>
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class SegmentedByteBufferFactoryComponent implements IBufferFactoryComponent {
+
+    private final int minSegmentSize;
+    private final int maxSegmentSize;
+    private final ByteBufferPool pool;
+
+    /**
+     * Constructor.
+     */
+    public SegmentedByteBufferFactoryComponent() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Constructor.
+     * @param config the component config
+     */
+    public SegmentedByteBufferFactoryComponent(Map<String, String> config) {
+        GenericOptionsParser optParser = new GenericOptionsParser(config);
+        this.minSegmentSize = optParser.getInt(
+            keys("minSegmentSize"),
+            SegmentedByteBuffer.DEFAULT_MIN_SEGMENT_SIZE,
+            Predicates.greaterThanZeroInt(),
+            Predicates.greaterThanZeroMsg()
+        );
+        int maxSize = optParser.getInt(
+            keys("maxSegmentSize"),
+            SegmentedByteBuffer.DEFAULT_MAX_SEGMENT_SIZE,
+            Predicates.greaterThanZeroInt(),
+            Predicates.greaterThanZeroMsg()
+        );
+        // Segment sizes are powers of two, so the pool must hand out the rounded size
+        this.maxSegmentSize = 1 << (32 - Integer.numberOfLeadingZeros(Math.max(maxSize, minSegmentSize) - 1));
+        boolean direct = optParser.getBool(keys("direct"), false);
+        int poolSize = optParser.getInt(
+            keys("poolSize"),
+            direct ? 1024 : 0,
+            size -> size >= 0,
+            "must be zero or greater"
+        );
+        this.pool = poolSize > 0 || direct ? new ByteBufferPool(maxSegmentSize, poolSize, direct) : null;
+    }
+
+    private SegmentedByteBuffer newBuffer() {
+        return new SegmentedByteBuffer(minSegmentSize, maxSegmentSize, pool);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#createBuffer()
+     */
+    @Override
+    public IApimanBuffer createBuffer() {
+        return newBuffer();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#createBuffer(java.lang.String)
+     */
+    @Override
+    public IApimanBuffer createBuffer(String stringData) {
+        SegmentedByteBuffer buffer = newBuffer();
+        buffer.append(stringData);
+        return buffer;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#createBuffer(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public IApimanBuffer createBuffer(String stringData, String enc) {
+        SegmentedByteBuffer buffer = newBuffer();
+        try {
+            buffer.append(stringData, enc);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return buffer;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#createBuffer(byte[])
+     */
+    @Override
+    public IApimanBuffer createBuffer(byte[] byteData) {
+        SegmentedByteBuffer buffer = newBuffer();
+        buffer.append(byteData);
+        return buffer;
+    }
+
+    /**
+     * Segments are allocated on demand, so the size hint is not needed.
+     *
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#createBuffer(int)
+     */
+    @Override
+    public IApimanBuffer createBuffer(int sizeHint) {
+        return newBuffer();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.components.IBufferFactoryComponent#cloneBuffer(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public IApimanBuffer cloneBuffer(IApimanBuffer buffer) {
+        SegmentedByteBuffer clone = newBuffer();
+        clone.append(buffer);
+        return clone;
+    }
+}
@@ -29,9 +29,12 @@ import java.util.Arrays;
  *
  * @author eric.wittmann@redhat.com
  */
-@SuppressWarnings("nls") // TODO finish the implementation of this class!
+@SuppressWarnings("nls")
 public class ByteBuffer implements IApimanBuffer {
 
+    // Some VMs reserve header words in an array, so don't go all the way to Integer.MAX_VALUE
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     private byte [] buffer;
     private int bytesInBuffer = 0;
 
@@ -108,7 +111,7 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, IApimanBuffer buffer) {
-        throw new RuntimeException("Not yet implemented");
+        insert(index, buffer, 0, buffer.length());
     }
 
     /**
@@ -116,7 +119,11 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, IApimanBuffer buffer, int offset, int length) {
-        throw new RuntimeException("Not yet implemented");
+        if (buffer instanceof ByteBuffer) {
+            insert(index, ((ByteBuffer) buffer).buffer, offset, length);
+        } else {
+            insert(index, buffer.getBytes(offset, offset + length));
+        }
     }
 
     /**
@@ -132,17 +139,12 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void append(IApimanBuffer buffer, int offset, int length) {
-        int sizeToAppend = length;
-        int newBufferSize = this.bytesInBuffer + sizeToAppend;
-        if (this.buffer.length >= newBufferSize) {
-            System.arraycopy(buffer.getBytes(), offset, this.buffer, bytesInBuffer, sizeToAppend);
+        if (buffer instanceof ByteBuffer) {
+            // Copy straight out of the other backing array rather than via a defensive copy
+            append(((ByteBuffer) buffer).buffer, offset, length);
         } else {
-            byte [] newBuffer = new byte[newBufferSize];
-            System.arraycopy(this.buffer, 0, newBuffer, 0, bytesInBuffer);
-            System.arraycopy(buffer.getBytes(), offset, newBuffer, bytesInBuffer, sizeToAppend);
-            this.buffer = newBuffer;
+            append(buffer.getBytes(offset, offset + length));
         }
-        this.bytesInBuffer = newBufferSize;
     }
 
     /**
@@ -166,9 +168,8 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void append(byte b) {
-        byte [] bytes = new byte[1];
-        bytes[0] = b;
-        append(bytes);
+        ensureCapacity(bytesInBuffer + 1);
+        buffer[bytesInBuffer++] = b;
     }
 
     /**
@@ -197,7 +198,7 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, byte[] b) {
-        throw new RuntimeException("Not yet implemented");
+        insert(index, b, 0, b.length);
     }
 
     /**
@@ -205,7 +206,13 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, byte[] b, int offset, int length) {
-        throw new RuntimeException("Not yet implemented");
+        if (index < 0 || index > bytesInBuffer) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + bytesInBuffer);
+        }
+        ensureCapacity(bytesInBuffer + length);
+        System.arraycopy(buffer, index, buffer, index + length, bytesInBuffer - index);
+        System.arraycopy(b, offset, buffer, index, length);
+        bytesInBuffer += length;
     }
 
     /**
@@ -213,14 +220,7 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void append(byte[] bytes) {
-        int requiredBytes = bytesInBuffer + bytes.length;
-        if (requiredBytes > buffer.length) {
-            byte [] oldbuffer = buffer;
-            buffer = new byte[requiredBytes];
-            System.arraycopy(oldbuffer, 0, buffer, 0, bytesInBuffer);
-        }
-        System.arraycopy(bytes, 0, buffer, bytesInBuffer, bytes.length);
-        bytesInBuffer = requiredBytes;
+        append(bytes, 0, bytes.length);
     }
 
     /**
@@ -229,15 +229,33 @@ public class ByteBuffer implements IApimanBuffer {
     @Override
     public void append(byte[] bytes, int offset, int length) {
         int requiredBytes = bytesInBuffer + length;
-        if (requiredBytes > buffer.length) {
-            byte [] oldbuffer = buffer;
-            buffer = new byte[requiredBytes];
-            System.arraycopy(oldbuffer, 0, buffer, 0, bytesInBuffer);
-        }
+        ensureCapacity(requiredBytes);
         System.arraycopy(bytes, offset, buffer, bytesInBuffer, length);
         bytesInBuffer = requiredBytes;
     }
 
+    /**
+     * Grows the backing array geometrically so that appending chunk by chunk is
+     * amortized O(n) rather than O(n^2) in copying.
+     * @param requiredBytes the minimum capacity needed
+     */
+    private void ensureCapacity(int requiredBytes) {
+        if (requiredBytes < 0) {
+            throw new OutOfMemoryError("Required buffer size overflows an int");
+        }
+        if (requiredBytes <= buffer.length) {
+            return;
+        }
+        int newSize = buffer.length << 1;
+        if (newSize < 0 || newSize > MAX_ARRAY_SIZE) {
+            newSize = MAX_ARRAY_SIZE;
+        }
+        if (newSize < requiredBytes) {
+            newSize = requiredBytes;
+        }
+        buffer = Arrays.copyOf(buffer, newSize);
+    }
+
     /**
      * @see io.apiman.gateway.engine.io.IApimanBuffer#getString(int, int)
      */
@@ -263,7 +281,7 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, String string) {
-        throw new RuntimeException("Not yet implemented");
+        insert(index, string.getBytes());
     }
 
     /**
@@ -271,7 +289,11 @@ public class ByteBuffer implements IApimanBuffer {
      */
     @Override
     public void insert(int index, String string, String encoding) {
-        throw new RuntimeException("Not yet implemented");
+        try {
+            insert(index, string.getBytes(encoding));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
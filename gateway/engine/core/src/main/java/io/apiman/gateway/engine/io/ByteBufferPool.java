@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simple, thread-safe pool of fixed-size NIO buffers, either on the heap or
+ * in direct (off-heap) memory.
+ * <p>
+ * The pool never blocks: if it is empty a new buffer is allocated, and if it is
+ * full a released buffer is simply dropped and left to the GC. Buffers that are
+ * never released are therefore not a leak, just a missed reuse.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class ByteBufferPool {
+
+    private final Queue<java.nio.ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize the size of every buffer handed out
+     * @param maxPooled the max number of idle buffers to retain
+     * @param direct whether to allocate direct (off-heap) buffers
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} capacity
+     */
+    public java.nio.ByteBuffer acquire() {
+        java.nio.ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        return direct ? java.nio.ByteBuffer.allocateDirect(bufferSize) : java.nio.ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     * @param buffer the buffer
+     */
+    public void release(java.nio.ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    /**
+     * @return the size of the buffers in this pool
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return whether this pool hands out direct buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return the number of idle buffers currently pooled
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+}
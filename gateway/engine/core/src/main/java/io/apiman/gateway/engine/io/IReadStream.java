@@ -48,4 +48,18 @@ public interface IReadStream<H> extends IStream {
      * @return the head object
      */
     public H getHead();
+
+    /**
+     * Asks the stream to stop delivering body chunks until {@link #resume()} is
+     * called, e.g. because the consumer cannot keep up. Chunks already in flight
+     * may still arrive. Streams that cannot be paused ignore this.
+     */
+    default void pause() {
+    }
+
+    /**
+     * Resumes delivery of body chunks after {@link #pause()}.
+     */
+    default void resume() {
+    }
 }
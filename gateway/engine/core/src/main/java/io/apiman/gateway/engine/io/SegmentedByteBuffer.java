@@ -0,0 +1,507 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.io;
+
+import io.apiman.gateway.engine.components.IBufferFactoryComponent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * An {@link IApimanBuffer} made of a list of segments, so that appending never
+ * re-copies data that is already in the buffer. This makes it well suited to
+ * accumulating large payloads chunk by chunk.
+ * <p>
+ * Segments double in size from a minimum up to a maximum segment size, after
+ * which all segments have the maximum size. Small buffers therefore stay small,
+ * and the segment holding any index can still be computed in constant time.
+ * <p>
+ * Maximum-size segments can optionally be taken from a {@link ByteBufferPool},
+ * which may hand out direct (off-heap) memory. Call {@link #release()} once the
+ * buffer is no longer needed to return them to the pool; if that never happens
+ * the segments are simply garbage collected.
+ * <p>
+ * The native buffer is an array of read-only {@link java.nio.ByteBuffer} views
+ * of the content, one per segment, suitable for gathering writes.
+ * <p>
+ * Like {@link ByteBuffer}, this class is not thread-safe. Don't use it directly,
+ * create buffers via the {@link IBufferFactoryComponent} instead.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class SegmentedByteBuffer implements IApimanBuffer {
+
+    public static final int DEFAULT_MIN_SEGMENT_SIZE = 256;
+    public static final int DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024;
+
+    private static final java.nio.ByteBuffer[] NO_SEGMENTS = new java.nio.ByteBuffer[0];
+
+    private final int minShift;
+    private final int maxShift;
+    // Index of the first max-size segment, and the offset at which the fixed-size segments begin
+    private final int lastGrowingSegment;
+    private final int fixedRegionStart;
+    private final ByteBufferPool pool;
+
+    private java.nio.ByteBuffer[] segments = NO_SEGMENTS;
+    private int segmentCount;
+    private int capacity;
+    private int length;
+
+    /**
+     * Constructor using default segment sizes and heap memory.
+     */
+    public SegmentedByteBuffer() {
+        this(DEFAULT_MIN_SEGMENT_SIZE, DEFAULT_MAX_SEGMENT_SIZE, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minSegmentSize the size of the first segment (rounded up to a power of two)
+     * @param maxSegmentSize the size segments grow to (rounded up to a power of two)
+     * @param pool the pool to take max-size segments from, or null to allocate on the heap
+     */
+    public SegmentedByteBuffer(int minSegmentSize, int maxSegmentSize, ByteBufferPool pool) {
+        if (minSegmentSize <= 0 || maxSegmentSize < minSegmentSize) {
+            throw new IllegalArgumentException("Invalid segment sizes: " + minSegmentSize + ", " + maxSegmentSize);
+        }
+        this.minShift = log2Ceil(minSegmentSize);
+        this.maxShift = log2Ceil(maxSegmentSize);
+        if (pool != null && pool.getBufferSize() != (1 << maxShift)) {
+            throw new IllegalArgumentException("Pool buffer size must equal the max segment size: " + (1 << maxShift));
+        }
+        this.lastGrowingSegment = maxShift - minShift + 1;
+        this.fixedRegionStart = 1 << (maxShift + 1);
+        this.pool = pool;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bytes initial content (copied)
+     * @param pool the pool to take max-size segments from, or null to allocate on the heap
+     */
+    public SegmentedByteBuffer(byte[] bytes, ByteBufferPool pool) {
+        this(DEFAULT_MIN_SEGMENT_SIZE, pool == null ? DEFAULT_MAX_SEGMENT_SIZE : pool.getBufferSize(), pool);
+        append(bytes);
+    }
+
+    private static int log2Ceil(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+
+    private int segmentIndex(int index) {
+        if (index < fixedRegionStart) {
+            return 32 - Integer.numberOfLeadingZeros(index >>> minShift);
+        }
+        return lastGrowingSegment + 1 + ((index - fixedRegionStart) >>> maxShift);
+    }
+
+    private int segmentStart(int segment) {
+        if (segment == 0) {
+            return 0;
+        }
+        if (segment <= lastGrowingSegment) {
+            return 1 << (minShift + segment - 1);
+        }
+        return fixedRegionStart + ((segment - lastGrowingSegment - 1) << maxShift);
+    }
+
+    private int segmentSize(int segment) {
+        if (segment == 0) {
+            return 1 << minShift;
+        }
+        if (segment <= lastGrowingSegment) {
+            return 1 << (minShift + segment - 1);
+        }
+        return 1 << maxShift;
+    }
+
+    private java.nio.ByteBuffer addSegment() {
+        int size = segmentSize(segmentCount);
+        java.nio.ByteBuffer segment;
+        if (pool != null && size == pool.getBufferSize()) {
+            segment = pool.acquire();
+        } else {
+            segment = java.nio.ByteBuffer.allocate(size);
+        }
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(4, segmentCount << 1));
+        }
+        segments[segmentCount++] = segment;
+        capacity += size;
+        return segment;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+        }
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range: [" + start + ", " + end + "), Length: " + length);
+        }
+    }
+
+    /**
+     * Shrinks the buffer to the given length, releasing any segments no longer needed.
+     * @param newLength the new length
+     */
+    public void truncate(int newLength) {
+        if (newLength < 0 || newLength > length) {
+            throw new IndexOutOfBoundsException("Length: " + newLength);
+        }
+        int newCount = newLength == 0 ? 0 : segmentIndex(newLength - 1) + 1;
+        for (int i = newCount; i < segmentCount; i++) {
+            releaseSegment(segments[i]);
+            segments[i] = null;
+        }
+        segmentCount = newCount;
+        if (newCount == 0) {
+            capacity = 0;
+        } else {
+            int lastStart = segmentStart(newCount - 1);
+            capacity = lastStart + segmentSize(newCount - 1);
+            segments[newCount - 1].position(newLength - lastStart);
+        }
+        length = newLength;
+    }
+
+    /**
+     * Releases all segments (returning pooled ones to the pool) and empties the buffer.
+     */
+    public void release() {
+        truncate(0);
+    }
+
+    private void releaseSegment(java.nio.ByteBuffer segment) {
+        if (pool != null) {
+            pool.release(segment);
+        }
+    }
+
+    /**
+     * Writes the content to the output stream without flattening it first.
+     *
+     * @param outputStream the output stream
+     * @throws IOException if the write fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        byte[] scratch = null;
+        for (int i = 0; i < segmentCount; i++) {
+            java.nio.ByteBuffer segment = segments[i];
+            int filled = segment.position();
+            if (segment.hasArray()) {
+                outputStream.write(segment.array(), segment.arrayOffset(), filled);
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[Math.min(filled, 8192)];
+                }
+                java.nio.ByteBuffer view = segment.duplicate();
+                view.flip();
+                while (view.hasRemaining()) {
+                    int n = Math.min(scratch.length, view.remaining());
+                    view.get(scratch, 0, n);
+                    outputStream.write(scratch, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#getNativeBuffer()
+     */
+    @Override
+    public Object getNativeBuffer() {
+        java.nio.ByteBuffer[] views = new java.nio.ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            java.nio.ByteBuffer view = segments[i].asReadOnlyBuffer();
+            view.flip();
+            views[i] = view;
+        }
+        return views;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#length()
+     */
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void insert(int index, IApimanBuffer buffer) {
+        insert(index, buffer.getBytes());
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, io.apiman.gateway.engine.io.IApimanBuffer, int, int)
+     */
+    @Override
+    public void insert(int index, IApimanBuffer buffer, int offset, int length) {
+        insert(index, buffer.getBytes(offset, offset + length));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void append(IApimanBuffer buffer) {
+        append(buffer, 0, buffer.length());
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(io.apiman.gateway.engine.io.IApimanBuffer, int, int)
+     */
+    @Override
+    public void append(IApimanBuffer buffer, int offset, int length) {
+        if (buffer instanceof ByteBuffer) {
+            append((byte[]) buffer.getNativeBuffer(), offset, length);
+        } else if (buffer instanceof SegmentedByteBuffer && buffer != this) {
+            ((SegmentedByteBuffer) buffer).appendTo(this, offset, length);
+        } else {
+            append(buffer.getBytes(offset, offset + length));
+        }
+    }
+
+    /**
+     * Appends a range of this buffer's content to another one, segment by segment.
+     */
+    private void appendTo(SegmentedByteBuffer target, int offset, int len) {
+        checkRange(offset, offset + len);
+        int index = offset;
+        int end = offset + len;
+        while (index < end) {
+            int segment = segmentIndex(index);
+            int from = index - segmentStart(segment);
+            int n = Math.min(end - index, segments[segment].position() - from);
+            java.nio.ByteBuffer view = segments[segment].duplicate();
+            view.limit(from + n);
+            view.position(from);
+            target.append(view);
+            index += n;
+        }
+    }
+
+    /**
+     * Appends the remaining content of the given NIO buffer.
+     */
+    private void append(java.nio.ByteBuffer source) {
+        while (source.hasRemaining()) {
+            java.nio.ByteBuffer tail = length == capacity ? addSegment() : segments[segmentCount - 1];
+            int n = Math.min(source.remaining(), tail.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + n);
+            tail.put(source);
+            source.limit(limit);
+            length += n;
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#get(int)
+     */
+    @Override
+    public byte get(int index) {
+        checkIndex(index);
+        int segment = segmentIndex(index);
+        return segments[segment].get(index - segmentStart(segment));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#set(int, byte)
+     */
+    @Override
+    public void set(int index, byte b) {
+        checkIndex(index);
+        int segment = segmentIndex(index);
+        segments[segment].put(index - segmentStart(segment), b);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(byte)
+     */
+    @Override
+    public void append(byte b) {
+        java.nio.ByteBuffer tail = length == capacity ? addSegment() : segments[segmentCount - 1];
+        tail.put(b);
+        length++;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#getBytes()
+     */
+    @Override
+    public byte[] getBytes() {
+        return getBytes(0, length);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#getBytes(int, int)
+     */
+    @Override
+    public byte[] getBytes(int start, int end) {
+        checkRange(start, end);
+        byte[] rval = new byte[end - start];
+        int index = start;
+        while (index < end) {
+            int segment = segmentIndex(index);
+            java.nio.ByteBuffer buffer = segments[segment];
+            int from = index - segmentStart(segment);
+            int n = Math.min(end - index, buffer.position() - from);
+            if (buffer.hasArray()) {
+                System.arraycopy(buffer.array(), buffer.arrayOffset() + from, rval, index - start, n);
+            } else {
+                java.nio.ByteBuffer view = buffer.duplicate();
+                view.position(from);
+                view.get(rval, index - start, n);
+            }
+            index += n;
+        }
+        return rval;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, byte[])
+     */
+    @Override
+    public void insert(int index, byte[] b) {
+        insert(index, b, 0, b.length);
+    }
+
+    /**
+     * Inserting is O(length - index), as the tail after the index has to be moved.
+     *
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, byte[], int, int)
+     */
+    @Override
+    public void insert(int index, byte[] b, int offset, int length) {
+        if (index < 0 || index > this.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + this.length);
+        }
+        byte[] tail = getBytes(index, this.length);
+        truncate(index);
+        append(b, offset, length);
+        append(tail);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(byte[])
+     */
+    @Override
+    public void append(byte[] bytes) {
+        append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(byte[], int, int)
+     */
+    @Override
+    public void append(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("Offset: " + offset + ", Length: " + length);
+        }
+        while (length > 0) {
+            java.nio.ByteBuffer tail = this.length == capacity ? addSegment() : segments[segmentCount - 1];
+            int n = Math.min(length, tail.remaining());
+            tail.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            this.length += n;
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#getString(int, int)
+     */
+    @Override
+    public String getString(int start, int end) {
+        return new String(getBytes(start, end));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#getString(int, int, java.lang.String)
+     */
+    @Override
+    public String getString(int start, int end, String encoding) throws UnsupportedEncodingException {
+        return new String(getBytes(start, end), encoding);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, java.lang.String)
+     */
+    @Override
+    public void insert(int index, String string) {
+        insert(index, string.getBytes());
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#insert(int, java.lang.String, java.lang.String)
+     */
+    @Override
+    public void insert(int index, String string, String encoding) throws UnsupportedEncodingException {
+        insert(index, string.getBytes(encoding));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(java.lang.String)
+     */
+    @Override
+    public void append(String string) {
+        append(string.getBytes());
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#append(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void append(String string, String encoding) throws UnsupportedEncodingException {
+        append(string.getBytes(encoding));
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IApimanBuffer#toString(java.lang.String)
+     */
+    @Override
+    public String toString(String encoding) throws UnsupportedEncodingException {
+        return new String(getBytes(), encoding);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return new String(getBytes());
+    }
+
+    /**
+     * @return the number of segments currently backing the buffer
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+}
@@ -21,6 +21,7 @@ import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.io.AbstractStream;
 import io.apiman.gateway.engine.io.IAbortable;
 import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.IReadStream;
 import io.apiman.gateway.engine.io.IReadWriteStream;
 
 import java.util.Iterator;
@@ -53,6 +54,7 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
     private IReadWriteStream<H> headPolicyHandler;
     private IAsyncHandler<Throwable> policyErrorHandler;
     private IAsyncHandler<PolicyFailure> policyFailureHandler;
+    private IReadStream<?> flowControlSource;
 
     private Iterator<PolicyWithConfiguration> policyIterator;
 
@@ -238,6 +240,37 @@ public abstract class Chain<H> extends AbstractStream<H> implements IAbortable,
             headHandler.handle(api);
     }
 
+    /**
+     * Sets the stream feeding this chain, which {@link #pause()} and {@link #resume()}
+     * are passed on to.
+     * @param flowControlSource the source stream
+     */
+    public void flowControlSource(IReadStream<?> flowControlSource) {
+        this.flowControlSource = flowControlSource;
+    }
+
+    /**
+     * Pauses the source stream, so that a slow consumer holds back the producer
+     * rather than having data pile up in between.
+     * @see io.apiman.gateway.engine.io.IReadStream#pause()
+     */
+    @Override
+    public void pause() {
+        if (flowControlSource != null) {
+            flowControlSource.pause();
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#resume()
+     */
+    @Override
+    public void resume() {
+        if (flowControlSource != null) {
+            flowControlSource.resume();
+        }
+    }
+
     /**
      * Get policy failure handler
      *
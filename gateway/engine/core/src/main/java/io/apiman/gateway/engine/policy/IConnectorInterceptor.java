@@ -17,6 +17,8 @@ package io.apiman.gateway.engine.policy;
 
 import io.apiman.gateway.engine.IApiConnector;
 
+import java.util.function.Supplier;
+
 /**
  * Connector interceptor to be used for create the {@link IApiConnector} which will be used
  * instead of the real connector configured in the gateway
@@ -28,4 +30,16 @@ public interface IConnectorInterceptor {
 
     IApiConnector createConnector();
 
+    /**
+     * Creates the connector given access to the one the gateway would otherwise use,
+     * allowing an interceptor to decorate the real connector rather than replace it.
+     * Defaults to {@link #createConnector()}.
+     *
+     * @param gatewayConnector supplies a new gateway connector on each call
+     * @return the connector to use
+     */
+    default IApiConnector createConnector(Supplier<IApiConnector> gatewayConnector) {
+        return createConnector();
+    }
+
 }
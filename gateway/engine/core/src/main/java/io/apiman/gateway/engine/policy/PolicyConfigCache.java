@@ -0,0 +1,207 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, concurrent cache of parsed policy configuration objects.
+ * <p>
+ * Lookups never lock. The key combines the policy spec and the raw config
+ * string without concatenating them, so its hash comes from the two strings'
+ * own (memoised) hash codes rather than re-hashing the whole JSON document.
+ * <p>
+ * When the cache grows past its maximum size, entries are evicted using a
+ * CLOCK (second chance) sweep: entries read since the last sweep get their
+ * reference bit cleared and survive, the others are removed.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class PolicyConfigCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final Map<ConfigKey, Entry> cache = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructor.
+     * @param maxSize the max number of config objects to hold
+     */
+    public PolicyConfigCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize); //$NON-NLS-1$
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the config object for the given policy spec and config data, using
+     * the parser to create it on a miss. Two threads missing concurrently on the
+     * same key may both parse; the first one stored wins.
+     *
+     * @param policySpec the policy spec
+     * @param configData the raw config data
+     * @param parser parses the config data
+     * @return the config object
+     */
+    public Object get(String policySpec, String configData, Supplier<Object> parser) {
+        ConfigKey key = new ConfigKey(policySpec, configData);
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            hits.increment();
+            entry.touch();
+            return entry.config;
+        }
+        misses.increment();
+        Entry created = new Entry(parser.get());
+        Entry existing = cache.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing.config;
+        }
+        if (cache.size() > maxSize) {
+            evict();
+        }
+        return created.config;
+    }
+
+    /**
+     * Sweeps the cache until it is back within bounds. Only one thread sweeps
+     * at a time; other threads simply carry on.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Two passes at most: the first may only clear reference bits.
+            for (int pass = 0; pass < 2 && cache.size() > maxSize; pass++) {
+                Iterator<Entry> iterator = cache.values().iterator();
+                while (iterator.hasNext() && cache.size() > maxSize) {
+                    Entry entry = iterator.next();
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else {
+                        iterator.remove();
+                        evictions.increment();
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of cached config objects
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to parse the config
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to stay within bounds
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private static final class Entry {
+        private final Object config;
+        private volatile boolean referenced;
+
+        private Entry(Object config) {
+            this.config = config;
+        }
+
+        private void touch() {
+            // Avoid a volatile write (and cache line ping-pong) on every hit
+            if (!referenced) {
+                referenced = true;
+            }
+        }
+    }
+
+    private static final class ConfigKey {
+        private final String policySpec;
+        private final String configData;
+        private final int hash;
+
+        private ConfigKey(String policySpec, String configData) {
+            this.policySpec = policySpec;
+            this.configData = configData;
+            this.hash = 31 * hashOf(policySpec) + hashOf(configData);
+        }
+
+        private static int hashOf(String s) {
+            return s == null ? 0 : s.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ConfigKey)) {
+                return false;
+            }
+            ConfigKey other = (ConfigKey) obj;
+            return hash == other.hash
+                    && equal(policySpec, other.policySpec)
+                    && equal(configData, other.configData);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == b || (a != null && a.equals(b));
+        }
+    }
+}
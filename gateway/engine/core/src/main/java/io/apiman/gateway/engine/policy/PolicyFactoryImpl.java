@@ -15,6 +15,8 @@
  */
 package io.apiman.gateway.engine.policy;
 
+import io.apiman.common.config.options.GenericOptionsParser;
+import io.apiman.common.config.options.Predicates;
 import io.apiman.common.plugin.Plugin;
 import io.apiman.common.plugin.PluginClassLoader;
 import io.apiman.common.plugin.PluginCoordinates;
@@ -24,8 +26,10 @@ import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.exceptions.PolicyNotFoundException;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
 
 /**
  * An implementation of the {@link IPolicyFactory} interface.
@@ -34,15 +38,25 @@ import java.util.Map;
  */
 public class PolicyFactoryImpl implements IPolicyFactory {
 
+    public static final String CONFIG_CACHE_MAX_SIZE = "config-cache.max-size"; //$NON-NLS-1$
+
     private IPluginRegistry pluginRegistry;
-    private Map<String, IPolicy> policyCache = new HashMap<>();
-    private Map<String, Object> policyConfigCache = new HashMap<>();
+    private final Map<String, IPolicy> policyCache = new ConcurrentHashMap<>();
+    private final PolicyConfigCache policyConfigCache;
 
     /**
      * Constructor.
      * @param config the configuration
      */
     public PolicyFactoryImpl(Map<String, String> config) {
+        GenericOptionsParser optParser = new GenericOptionsParser(config);
+        int maxSize = optParser.getInt(
+            keys(CONFIG_CACHE_MAX_SIZE),
+            PolicyConfigCache.DEFAULT_MAX_SIZE,
+            Predicates.greaterThanZeroInt(),
+            Predicates.greaterThanZeroMsg()
+        );
+        this.policyConfigCache = new PolicyConfigCache(maxSize);
     }
 
     /**
@@ -58,25 +72,22 @@ public class PolicyFactoryImpl implements IPolicyFactory {
      */
     @Override
     public Object loadConfig(IPolicy policy, String policySpec, String configData) {
-        synchronized (policyConfigCache) {
-            String cacheKey = policySpec + "||" + configData; //$NON-NLS-1$
-            if (policyConfigCache.containsKey(cacheKey)) {
-                return policyConfigCache.get(cacheKey);
-            }
-            Object config;
-
+        return policyConfigCache.get(policySpec, configData, () -> {
             ClassLoader oldCtxLoader = Thread.currentThread().getContextClassLoader();
             try {
                 Thread.currentThread().setContextClassLoader(policy.getClass().getClassLoader());
-                config = policy.parseConfiguration(configData);
+                return policy.parseConfiguration(configData);
             } finally {
                 Thread.currentThread().setContextClassLoader(oldCtxLoader);
             }
+        });
+    }
 
-            policyConfigCache.put(cacheKey, config);
-
-            return config;
-        }
+    /**
+     * @return the policy config cache (e.g. to read its hit/miss counters)
+     */
+    public PolicyConfigCache getPolicyConfigCache() {
+        return policyConfigCache;
     }
 
     /**
@@ -89,10 +100,11 @@ public class PolicyFactoryImpl implements IPolicyFactory {
             return;
         }
 
-        // Not synchronized - don't care if we create 2 or 3 of these, it's not worth
-        // the synchronization overhead to protect against that.
-        if (policyCache.containsKey(policyImpl)) {
-            handler.handle(AsyncResultImpl.create(policyCache.get(policyImpl)));
+        // Don't care if we create 2 or 3 of these, it's not worth the synchronization
+        // overhead to protect against that.
+        IPolicy cached = policyCache.get(policyImpl);
+        if (cached != null) {
+            handler.handle(AsyncResultImpl.create(cached));
             return;
         }
 
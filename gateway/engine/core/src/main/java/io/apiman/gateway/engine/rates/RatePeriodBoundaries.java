@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.rates;
+
+import java.util.Calendar;
+
+/**
+ * Computes the (local time) boundaries of rate bucket periods.
+ * <p>
+ * The boundaries of the current period are computed once per period and
+ * shared, so asking for the end of the period containing "now" is just a
+ * volatile read and two comparisons. Only timestamps outside the current
+ * period fall back to calendar arithmetic.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class RatePeriodBoundaries {
+
+    private static final RateBucketPeriod[] PERIODS = RateBucketPeriod.values();
+
+    // Copy-on-write; a racing update to another period may be lost, it is simply recomputed
+    private static volatile Window[] current = new Window[PERIODS.length];
+
+    private RatePeriodBoundaries() {
+    }
+
+    /**
+     * Returns the timestamp at which the period containing the given timestamp
+     * ends (i.e. when the rate resets).
+     *
+     * @param timestamp the timestamp
+     * @param period the period
+     * @return the end of the period, exclusive
+     */
+    public static long getPeriodEnd(long timestamp, RateBucketPeriod period) {
+        Window window = current[period.ordinal()];
+        if (window != null && window.contains(timestamp)) {
+            return window.end;
+        }
+        long start = getPeriodStart(timestamp, period);
+        long end = computePeriodEnd(start, period);
+        // Only cache the window containing "now", not arbitrary historic timestamps
+        long now = System.currentTimeMillis();
+        if (now >= start && now < end) {
+            Window[] windows = current.clone();
+            windows[period.ordinal()] = new Window(start, end);
+            current = windows;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the timestamp at which the period containing the given timestamp
+     * started.
+     *
+     * @param timestamp the timestamp
+     * @param period the period
+     * @return the start of the period, inclusive
+     */
+    public static long getPeriodStart(long timestamp, RateBucketPeriod period) {
+        Window window = current[period.ordinal()];
+        if (window != null && window.contains(timestamp)) {
+            return window.start;
+        }
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timestamp);
+        if (period == RateBucketPeriod.Year) {
+            cal.set(Calendar.DAY_OF_YEAR, 1);
+        } else if (period == RateBucketPeriod.Month) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        switch (period) {
+        case Year:
+        case Month:
+        case Day:
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            // fall through
+        case Hour:
+            cal.set(Calendar.MINUTE, 0);
+            // fall through
+        case Minute:
+            cal.set(Calendar.SECOND, 0);
+            // fall through
+        case Second:
+            cal.set(Calendar.MILLISECOND, 0);
+            break;
+        }
+        return cal.getTimeInMillis();
+    }
+
+    private static long computePeriodEnd(long periodStart, RateBucketPeriod period) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(periodStart);
+        switch (period) {
+        case Second:
+            cal.add(Calendar.SECOND, 1);
+            break;
+        case Minute:
+            cal.add(Calendar.MINUTE, 1);
+            break;
+        case Hour:
+            cal.add(Calendar.HOUR_OF_DAY, 1);
+            break;
+        case Day:
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+            break;
+        case Month:
+            cal.add(Calendar.MONTH, 1);
+            break;
+        case Year:
+            cal.add(Calendar.YEAR, 1);
+            break;
+        default:
+            return Long.MAX_VALUE;
+        }
+        return cal.getTimeInMillis();
+    }
+
+    private static final class Window {
+        private final long start;
+        private final long end;
+
+        private Window(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private boolean contains(long timestamp) {
+            return timestamp >= start && timestamp < end;
+        }
+    }
+}
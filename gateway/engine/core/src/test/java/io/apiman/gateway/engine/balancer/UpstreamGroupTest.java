@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.balancer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+@SuppressWarnings("nls")
+public class UpstreamGroupTest {
+
+    private static Map<String, String> props(String... keyValues) {
+        Map<String, String> props = new HashMap<>();
+        props.put(LoadBalancerOptions.TARGETS, "http://a:8080, http://b:8080,http://c:8080");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            props.put(keyValues[i], keyValues[i + 1]);
+        }
+        return props;
+    }
+
+    @Test
+    public void roundRobinUsesEveryTarget() {
+        UpstreamGroup group = new UpstreamGroup(props());
+        Set<String> endpoints = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            UpstreamCall call = group.begin();
+            endpoints.add(call.getEndpoint());
+            call.responded(200);
+            call.finished();
+        }
+        Assert.assertEquals(3, endpoints.size());
+        Assert.assertTrue(endpoints.contains("http://b:8080"));
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyTargets() {
+        UpstreamGroup group = new UpstreamGroup(props("lb.strategy", "least-outstanding"));
+        UpstreamCall first = group.begin();
+        UpstreamCall second = group.begin();
+        UpstreamCall third = group.begin();
+        Assert.assertEquals(3, new HashSet<>(Arrays.asList(
+                first.getEndpoint(), second.getEndpoint(), third.getEndpoint())).size());
+
+        // Only the first target is free again
+        first.finished();
+        Assert.assertEquals(first.getEndpoint(), group.begin().getEndpoint());
+    }
+
+    @Test
+    public void ewmaPrefersFasterTarget() {
+        UpstreamGroup group = new UpstreamGroup(props("lb.strategy", "ewma"));
+        long now = System.nanoTime();
+        UpstreamTarget slow = group.getTargets().get(0);
+        for (UpstreamTarget target : group.getTargets()) {
+            group.succeeded(target, target == slow ? 50_000_000 : 1_000_000, now);
+        }
+        for (int i = 0; i < 10; i++) {
+            UpstreamCall call = group.begin();
+            Assert.assertNotSame(slow, call.getTarget());
+            call.responded(200);
+            call.finished();
+        }
+    }
+
+    @Test
+    public void failingTargetIsEjectedAndReturns() throws InterruptedException {
+        UpstreamGroup group = new UpstreamGroup(props("lb.outlier.consecutiveFailures", "2",
+                "lb.outlier.ejectionTime", "50"));
+        UpstreamTarget failing = group.getTargets().get(1);
+        group.failed(failing, System.nanoTime());
+        Assert.assertFalse(failing.isEjected(System.nanoTime()));
+        group.failed(failing, System.nanoTime());
+        Assert.assertTrue(failing.isEjected(System.nanoTime()));
+
+        for (int i = 0; i < 6; i++) {
+            UpstreamCall call = group.begin();
+            Assert.assertNotSame(failing, call.getTarget());
+            call.finished();
+        }
+
+        Thread.sleep(60);
+        Assert.assertFalse(failing.isEjected(System.nanoTime()));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        UpstreamGroup group = new UpstreamGroup(props("lb.outlier.consecutiveFailures", "2"));
+        UpstreamTarget target = group.getTargets().get(0);
+        group.failed(target, System.nanoTime());
+        group.succeeded(target, 1000, System.nanoTime());
+        group.failed(target, System.nanoTime());
+        Assert.assertFalse(target.isEjected(System.nanoTime()));
+    }
+
+    @Test
+    public void serverErrorsCountAsFailures() {
+        UpstreamGroup group = new UpstreamGroup(props("lb.outlier.consecutiveFailures", "1"));
+        UpstreamCall call = group.begin();
+        call.responded(503);
+        call.failed(); // Ignored, the outcome is already known
+        call.finished();
+        Assert.assertTrue(call.getTarget().isEjected(System.nanoTime()));
+        Assert.assertEquals(0, call.getTarget().getOutstanding());
+    }
+
+    @Test
+    public void allTargetsUnavailableUsesAll() {
+        UpstreamGroup group = new UpstreamGroup(props());
+        for (UpstreamTarget target : group.getTargets()) {
+            target.probed(false, 1);
+        }
+        Assert.assertNotNull(group.begin().getEndpoint());
+    }
+
+    @Test
+    public void unhealthyTargetIsSkipped() {
+        UpstreamGroup group = new UpstreamGroup(props());
+        UpstreamTarget unhealthy = group.getTargets().get(2);
+        Assert.assertFalse(unhealthy.probed(false, 2));
+        Assert.assertTrue(unhealthy.probed(false, 2));
+        for (int i = 0; i < 6; i++) {
+            Assert.assertNotSame(unhealthy, group.begin().getTarget());
+        }
+        Assert.assertTrue(unhealthy.probed(true, 2));
+        Assert.assertTrue(unhealthy.isHealthy());
+    }
+
+    @Test
+    public void strategyByClassName() {
+        UpstreamGroup group = new UpstreamGroup(props("lb.strategy", FirstTargetStrategy.class.getName()));
+        Assert.assertEquals("http://a:8080", group.begin().getEndpoint());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStrategy() {
+        new UpstreamGroup(props("lb.strategy", "fastest"));
+    }
+
+    public static class FirstTargetStrategy implements ILoadBalancingStrategy {
+        @Override
+        public UpstreamTarget select(List<UpstreamTarget> targets) {
+            return targets.get(0);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiContract;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class ApiContractIndexTest {
+
+    @Test
+    public void resolvesAndReusesContract() {
+        ApiContractIndex index = new ApiContractIndex();
+        Api api = api("1.0");
+        Client client = client("key", "1.0", "2.0");
+
+        ApiContract contract = index.resolve(client, api);
+        Assert.assertNotNull(contract);
+        Assert.assertEquals("plan-1.0", contract.getPlan());
+        Assert.assertSame(contract, index.resolve(client, api));
+    }
+
+    @Test
+    public void noContractWithApi() {
+        ApiContractIndex index = new ApiContractIndex();
+        Assert.assertNull(index.resolve(client("key", "2.0"), api("1.0")));
+    }
+
+    @Test
+    public void reregisteredClientIsPickedUp() {
+        ApiContractIndex index = new ApiContractIndex();
+        Api api = api("1.0");
+        Assert.assertNotNull(index.resolve(client("key", "1.0"), api));
+
+        // Same API key, but the new client no longer has a contract with the API
+        Assert.assertNull(index.resolve(client("key", "2.0"), api));
+    }
+
+    @Test
+    public void republishedApiIsPickedUp() {
+        ApiContractIndex index = new ApiContractIndex();
+        Client client = client("key", "1.0");
+        ApiContract before = index.resolve(client, api("1.0"));
+        Api republished = api("1.0");
+        ApiContract after = index.resolve(client, republished);
+        Assert.assertNotSame(before, after);
+        Assert.assertSame(republished, after.getApi());
+    }
+
+    private static Api api(String version) {
+        Api api = new Api();
+        api.setOrganizationId("org");
+        api.setApiId("api");
+        api.setVersion(version);
+        return api;
+    }
+
+    private static Client client(String apiKey, String... apiVersions) {
+        Client client = new Client();
+        client.setApiKey(apiKey);
+        client.setOrganizationId("org");
+        client.setClientId("client");
+        client.setVersion("1.0");
+        Set<Contract> contracts = new HashSet<>();
+        for (String apiVersion : apiVersions) {
+            Contract contract = new Contract();
+            contract.setApiOrgId("org");
+            contract.setApiId("api");
+            contract.setApiVersion(apiVersion);
+            contract.setPlan("plan-" + apiVersion);
+            contracts.add(contract);
+        }
+        client.setContracts(contracts);
+        return client;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Policy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class ApiExecutionPlanCacheTest {
+
+    @Test
+    public void planIsReusedForSameRegistryObjects() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache();
+        Api api = api("1.0");
+        String key = ApiExecutionPlanCache.getApiPlanKey("org", "api", "1.0");
+        cache.put(key, plan(api, null));
+
+        Assert.assertNotNull(cache.get(key, api, api.getApiPolicies(), stamp(api)));
+    }
+
+    @Test
+    public void planIsReusedForRegistryObjectsWithSameContent() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache();
+        Api api = api("1.0");
+        String key = ApiExecutionPlanCache.getApiPlanKey("org", "api", "1.0");
+        cache.put(key, plan(api, null));
+
+        Api copy = api("1.0");
+        Assert.assertNotNull(cache.get(key, copy, copy.getApiPolicies(), stamp(copy)));
+    }
+
+    @Test
+    public void planIsStaleForChangedContent() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache();
+        Api api = api("1.0");
+        String key = ApiExecutionPlanCache.getApiPlanKey("org", "api", "1.0");
+        cache.put(key, plan(api, null));
+
+        Api republished = api("1.0");
+        republished.setEndpoint("http://localhost:8080/other");
+        Assert.assertNull(cache.get(key, republished, republished.getApiPolicies(), stamp(republished)));
+        Assert.assertEquals(0, cache.size());
+
+        cache.put(key, plan(api, null));
+        Api repoliced = api("1.0");
+        Policy policy = new Policy();
+        policy.setPolicyImpl("class:io.apiman.gateway.engine.policies.RateLimitingPolicy");
+        policy.setPolicyJsonConfig("{}");
+        repoliced.getApiPolicies().add(policy);
+        Assert.assertNull(cache.get(key, repoliced, repoliced.getApiPolicies(), stamp(repoliced)));
+    }
+
+    @Test
+    public void invalidateApiRemovesApiAndContractPlans() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache();
+        Api api = api("1.0");
+        Api other = api("2.0");
+        cache.put(ApiExecutionPlanCache.getApiPlanKey("org", "api", "1.0"),
+                plan(api, null));
+        cache.put(ApiExecutionPlanCache.getContractPlanKey("key", "org", "api", "1.0"),
+                plan(api, "corg|client|1"));
+        cache.put(ApiExecutionPlanCache.getApiPlanKey("org", "api", "2.0"),
+                plan(other, null));
+
+        cache.invalidate(api("1.0"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidateClientRemovesOnlyItsContractPlans() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache();
+        Api api = api("1.0");
+        cache.put(ApiExecutionPlanCache.getApiPlanKey("org", "api", "1.0"),
+                plan(api, null));
+        cache.put(ApiExecutionPlanCache.getContractPlanKey("key", "org", "api", "1.0"),
+                plan(api, ApiExecutionPlanCache.getClientIndex("corg", "client", "1")));
+
+        Client client = new Client();
+        client.setOrganizationId("corg");
+        client.setClientId("client");
+        client.setVersion("1");
+        cache.invalidate(client);
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsedPlan() {
+        ApiExecutionPlanCache cache = new ApiExecutionPlanCache(2);
+        Api first = api("1");
+        Api second = api("2");
+        String firstKey = ApiExecutionPlanCache.getApiPlanKey("org", "api", "1");
+        String secondKey = ApiExecutionPlanCache.getApiPlanKey("org", "api", "2");
+        cache.put(firstKey, plan(first, null));
+        cache.put(secondKey, plan(second, null));
+        Assert.assertNotNull(cache.get(firstKey, first, first.getApiPolicies(), stamp(first)));
+
+        Api third = api("3");
+        cache.put(ApiExecutionPlanCache.getApiPlanKey("org", "api", "3"), plan(third, null));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get(firstKey, first, first.getApiPolicies(), stamp(first)));
+        Assert.assertNull(cache.get(secondKey, second, second.getApiPolicies(), stamp(second)));
+    }
+
+    private static ApiExecutionPlan plan(Api api, String clientIndex) {
+        return new ApiExecutionPlan(api, api.getApiPolicies(), Collections.emptyList(), false, clientIndex, stamp(api));
+    }
+
+    private static String stamp(Api api) {
+        return ApiExecutionPlanCache.getApiStamp(api, api.getApiPolicies());
+    }
+
+    private static Api api(String version) {
+        Api api = new Api();
+        api.setOrganizationId("org");
+        api.setApiId("api");
+        api.setVersion(version);
+        api.setEndpoint("http://localhost:8080/echo");
+        List<Policy> policies = new ArrayList<>();
+        api.setApiPolicies(policies);
+        return api;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class BoundedCacheStoreComponentTest {
+
+    private static final long HOUR = 3600;
+
+    @Test
+    public void storesObjects() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent();
+        cache.put("key", "value", HOUR);
+        Assert.assertEquals("value", get(cache, "key"));
+        Assert.assertNull(get(cache, "other"));
+        Assert.assertNull("no body was stored", getBinary(cache, "key"));
+    }
+
+    @Test
+    public void storesBodiesOnHeap() throws IOException {
+        roundTrip(new BoundedCacheStoreComponent(1024 * 1024, 0, false, 1000));
+    }
+
+    @Test
+    public void storesBodiesOffHeap() throws IOException {
+        roundTrip(new BoundedCacheStoreComponent(1024 * 1024, 0, true, 1000));
+    }
+
+    private void roundTrip(BoundedCacheStoreComponent cache) throws IOException {
+        byte[] body = bytes(40 * 1024);
+        ISignalWriteStream stream = cache.putBinary("key", response(), HOUR);
+        stream.write(new ByteBuffer(Arrays.copyOfRange(body, 0, 1000)));
+        Assert.assertNull("entries are visible once complete", getBinary(cache, "key"));
+        stream.write(new ByteBuffer(Arrays.copyOfRange(body, 1000, body.length)));
+        stream.end();
+
+        ISignalReadStream<ApiResponse> entry = getBinary(cache, "key");
+        Assert.assertEquals(200, entry.getHead().getCode());
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicInteger ends = new AtomicInteger();
+        entry.bodyHandler(chunk -> received.write(chunk.getBytes(), 0, chunk.length()));
+        entry.endHandler(v -> ends.incrementAndGet());
+        entry.transmit();
+        Assert.assertArrayEquals(body, received.toByteArray());
+        Assert.assertEquals(1, ends.get());
+    }
+
+    @Test
+    public void abortedWritesAreNotStored() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent();
+        ISignalWriteStream stream = cache.putBinary("key", response(), HOUR);
+        stream.write(new ByteBuffer(bytes(10)));
+        stream.abort(null);
+        Assert.assertNull(getBinary(cache, "key"));
+    }
+
+    @Test
+    public void honoursPauseAndResume() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent();
+        putBinary(cache, "key", 40 * 1024);
+        ISignalReadStream<ApiResponse> entry = getBinary(cache, "key");
+        List<IApimanBuffer> chunks = new ArrayList<>();
+        AtomicInteger ends = new AtomicInteger();
+        entry.bodyHandler(chunk -> {
+            chunks.add(chunk);
+            entry.pause();
+        });
+        entry.endHandler(v -> ends.incrementAndGet());
+        entry.transmit();
+        Assert.assertEquals(1, chunks.size());
+        entry.resume();
+        Assert.assertEquals(2, chunks.size());
+        entry.resume();
+        entry.resume();
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals(1, ends.get());
+        Assert.assertEquals(40 * 1024, chunks.stream().mapToInt(IApimanBuffer::length).sum());
+    }
+
+    @Test
+    public void removesExpiredEntries() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent();
+        cache.put("short", "value", 1);
+        putBinary(cache, "long", 100);
+        long weight = cache.weightedSize();
+        cache.expire(System.currentTimeMillis() + 2000);
+        Assert.assertNull(get(cache, "short"));
+        Assert.assertNotNull(getBinary(cache, "long"));
+        Assert.assertTrue(cache.weightedSize() < weight);
+
+        cache.put("zero", "value", 0);
+        Assert.assertNull("expired entries are never returned", get(cache, "zero"));
+    }
+
+    @Test
+    public void weighsHeadersAndBody() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent();
+        putBinary(cache, "key", 1000);
+        long withoutHeader = cache.weightedSize();
+
+        ApiResponse response = response();
+        response.getHeaders().put("X-Header", "value");
+        ISignalWriteStream stream = cache.putBinary("key", response, HOUR);
+        stream.write(new ByteBuffer(bytes(1000)));
+        stream.end();
+        Assert.assertTrue(withoutHeader > 1000);
+        Assert.assertTrue(cache.weightedSize() >= withoutHeader + 2 * "X-Headervalue".length());
+    }
+
+    @Test
+    public void staysWithinMaxCacheSize() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent(64 * 1024, 4, false, 1000);
+        for (int i = 0; i < 1000; i++) {
+            putBinary(cache, "key-" + i, 1000);
+            Assert.assertTrue(cache.weightedSize() <= 64 * 1024);
+        }
+        putBinary(cache, "key-0", 32 * 1024);
+        Assert.assertNull("larger than a segment", getBinary(cache, "key-0"));
+    }
+
+    @Test
+    public void keepsFrequentEntriesDuringScans() throws IOException {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent(64 * 1024, 1, false, 1000);
+        for (int i = 0; i < 20; i++) {
+            putBinary(cache, "hot-" + i, 1000);
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertNotNull(getBinary(cache, "hot-" + i));
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            getBinary(cache, "scan-" + i);
+            putBinary(cache, "scan-" + i, 1000);
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertNotNull("hot-" + i, getBinary(cache, "hot-" + i));
+        }
+    }
+
+    @Test
+    public void concurrentAccessStaysConsistent() throws Exception {
+        BoundedCacheStoreComponent cache = new BoundedCacheStoreComponent(256 * 1024, 4, false, 1000);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        String key = "key-" + ((i * 31 + seed) % 300);
+                        ISignalReadStream<ApiResponse> entry = getBinary(cache, key);
+                        if (entry == null) {
+                            putBinary(cache, key, 500);
+                        } else {
+                            entry.bodyHandler(chunk -> { });
+                            entry.endHandler(v -> { });
+                            entry.transmit();
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(cache.weightedSize() <= 256 * 1024);
+    }
+
+    private static ApiResponse response() {
+        ApiResponse response = new ApiResponse();
+        response.setCode(200);
+        response.setMessage("OK");
+        return response;
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static void putBinary(BoundedCacheStoreComponent cache, String key, int size) throws IOException {
+        ISignalWriteStream stream = cache.putBinary(key, response(), HOUR);
+        stream.write(new ByteBuffer(bytes(size)));
+        stream.end();
+    }
+
+    private static Object get(BoundedCacheStoreComponent cache, String key) {
+        AtomicReference<Object> value = new AtomicReference<>();
+        cache.get(key, Object.class, result -> value.set(result.getResult()));
+        return value.get();
+    }
+
+    private static ISignalReadStream<ApiResponse> getBinary(BoundedCacheStoreComponent cache, String key) {
+        AtomicReference<ISignalReadStream<ApiResponse>> value = new AtomicReference<>();
+        cache.getBinary(key, ApiResponse.class, result -> value.set(result.getResult()));
+        return value.get();
+    }
+}
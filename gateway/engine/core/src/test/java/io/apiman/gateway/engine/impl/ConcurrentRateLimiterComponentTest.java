@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.components.IRateLimiterComponent;
+import io.apiman.gateway.engine.components.rate.RateLimitResponse;
+import io.apiman.gateway.engine.rates.RateBucketPeriod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class ConcurrentRateLimiterComponentTest {
+
+    @Test
+    public void matchesInMemoryRateLimiter() {
+        ConcurrentRateLimiterComponent concurrent = new ConcurrentRateLimiterComponent();
+        InMemoryRateLimiterComponent inMemory = new InMemoryRateLimiterComponent();
+        for (int i = 0; i < 8; i++) {
+            RateLimitResponse expected = accept(inMemory, "matches", 5, 1);
+            RateLimitResponse actual = accept(concurrent, "matches", 5, 1);
+            Assert.assertEquals(expected.isAccepted(), actual.isAccepted());
+            Assert.assertEquals(expected.getRemaining(), actual.getRemaining());
+        }
+    }
+
+    @Test
+    public void bucketsAreIndependent() {
+        ConcurrentRateLimiterComponent limiter = new ConcurrentRateLimiterComponent();
+        Assert.assertTrue(accept(limiter, "a", 1, 1).isAccepted());
+        Assert.assertFalse(accept(limiter, "a", 1, 1).isAccepted());
+        Assert.assertTrue(accept(limiter, "b", 1, 1).isAccepted());
+    }
+
+    @Test
+    public void concurrentAcceptsNeverExceedLimit() throws InterruptedException {
+        ConcurrentRateLimiterComponent limiter = new ConcurrentRateLimiterComponent();
+        AtomicInteger accepted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (accept(limiter, "shared", 500, 1).isAccepted()) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(500, accepted.get());
+    }
+
+    private static RateLimitResponse accept(IRateLimiterComponent limiter, String bucketId, long limit, long increment) {
+        AtomicReference<RateLimitResponse> response = new AtomicReference<>();
+        limiter.accept(bucketId, RateBucketPeriod.Day, limit, increment, result -> response.set(result.getResult()));
+        return response.get();
+    }
+}
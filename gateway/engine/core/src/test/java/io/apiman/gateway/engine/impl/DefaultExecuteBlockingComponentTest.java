@@ -16,6 +16,14 @@
 
 package io.apiman.gateway.engine.impl;
 
+import io.apiman.common.util.VirtualThreads;
+import io.apiman.gateway.engine.async.IAsyncResult;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -67,6 +75,31 @@ public class DefaultExecuteBlockingComponentTest {
         });
     }
 
+    @Test
+    public void testVirtualThreadExecution() throws InterruptedException {
+        DefaultExecuteBlockingComponent component = new DefaultExecuteBlockingComponent(
+                Collections.singletonMap(DefaultExecuteBlockingComponent.CONFIG_VIRTUAL_THREADS, "true"));
+        Thread caller = Thread.currentThread();
+        AtomicReference<Thread> executedOn = new AtomicReference<>();
+        AtomicReference<IAsyncResult<String>> completed = new AtomicReference<>();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        component.<String>executeBlocking(future -> {
+            executedOn.set(Thread.currentThread());
+            future.completed("Astove");
+        },
+        result -> {
+            completed.set(result);
+            latch.countDown();
+        });
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(completed.get().isSuccess());
+        Assert.assertEquals("Astove", completed.get().getResult());
+        // Falls back to executing in place where virtual threads are unavailable
+        Assert.assertEquals(VirtualThreads.isSupported(), executedOn.get() != caller);
+    }
+
     private static final class ExampleException extends RuntimeException {
         private static final long serialVersionUID = 517125905991693943L;
 
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.engine.io.SegmentedByteBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class InMemoryCacheStoreComponentTest {
+
+    @Test
+    public void releasingTransmittedBodyKeepsCachedBody() throws IOException {
+        SegmentedByteBufferFactoryComponent bufferFactory = new SegmentedByteBufferFactoryComponent();
+        InMemoryCacheStoreComponent cache = new InMemoryCacheStoreComponent();
+        cache.setBufferFactory(bufferFactory);
+
+        ISignalWriteStream stream = cache.putBinary("key", new ApiResponse(), 3600);
+        stream.write(bufferFactory.createBuffer("cached body"));
+        stream.end();
+
+        for (int hit = 0; hit < 2; hit++) {
+            AtomicReference<String> received = new AtomicReference<>();
+            ISignalReadStream<ApiResponse> entry = getBinary(cache, "key");
+            entry.bodyHandler(chunk -> {
+                received.set(chunk.toString());
+                // As the servlet response writer does once the chunk is written
+                ((SegmentedByteBuffer) chunk).release();
+            });
+            entry.endHandler(v -> {});
+            entry.transmit();
+            Assert.assertEquals("cached body", received.get());
+        }
+    }
+
+    private ISignalReadStream<ApiResponse> getBinary(InMemoryCacheStoreComponent cache, String key) {
+        AtomicReference<ISignalReadStream<ApiResponse>> result = new AtomicReference<>();
+        cache.getBinary(key, ApiResponse.class, r -> result.set(r.getResult()));
+        return result.get();
+    }
+
+}
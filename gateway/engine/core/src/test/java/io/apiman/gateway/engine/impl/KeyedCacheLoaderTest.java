@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class KeyedCacheLoaderTest {
+
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+    private final KeyedCacheLoader<String> loader = new KeyedCacheLoader<>(cache);
+
+    @Test
+    public void cachesLoadedValue() {
+        Assert.assertEquals("v1", loader.get("key", () -> "v1"));
+        Assert.assertEquals("v1", loader.get("key", () -> "v2"));
+        Assert.assertNull(loader.get("missing", () -> null));
+        Assert.assertFalse(cache.containsKey("missing"));
+    }
+
+    @Test
+    public void loadRacingInvalidateAllIsNotCached() {
+        Assert.assertEquals("stale", loader.get("key", () -> {
+            loader.invalidateAll();
+            return "stale";
+        }));
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertEquals("fresh", loader.get("key", () -> "fresh"));
+    }
+
+    @Test
+    public void loadRacingInvalidateIsNotCached() {
+        loader.get("key", () -> {
+            loader.invalidate("key");
+            return "stale";
+        });
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void loadRacingUpdateKeepsUpdate() {
+        Assert.assertEquals("fresh", loader.get("key", () -> {
+            loader.update("key", "fresh");
+            return "stale";
+        }));
+        Assert.assertEquals("fresh", cache.get("key"));
+    }
+
+    @Test
+    public void loadRacingCancelLoadsIsNotCached() {
+        loader.get("key", () -> {
+            loader.cancelLoads();
+            return "stale";
+        });
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void cachesExternalLoadOnlyIfCurrent() {
+        long stamp = loader.stamp();
+        Assert.assertEquals("v1", loader.cacheIfCurrent("key", "v1", stamp));
+        Assert.assertEquals("v1", loader.cacheIfCurrent("key", "v2", stamp));
+
+        stamp = loader.stamp();
+        Assert.assertEquals("v1", loader.invalidate("key"));
+        Assert.assertEquals("stale", loader.cacheIfCurrent("key", "stale", stamp));
+        Assert.assertTrue(cache.isEmpty());
+    }
+}
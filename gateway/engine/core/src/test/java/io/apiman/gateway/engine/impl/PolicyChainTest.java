@@ -36,6 +36,7 @@ import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.IReadStream;
 import io.apiman.gateway.engine.policy.IPolicy;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
@@ -218,6 +219,29 @@ public class PolicyChainTest {
         verify(mThrowableFailureHandler).handle(mThrowable);
     }
 
+    @Test
+    public void shouldPassPauseAndResumeToSource() {
+        policies.add(pwcOne);
+        policies.add(pwcTwo);
+
+        responseChain = new ResponseChain(policies, mockContext);
+        IReadStream<ApiResponse> mockSource = mock(IReadStream.class);
+        responseChain.flowControlSource(mockSource);
+        EngineResultImpl engineResult = new EngineResultImpl(mockResponse);
+        engineResult.setFlowControlSource(responseChain);
+
+        responseChain.bodyHandler(mockBodyHandler);
+        responseChain.endHandler(mockEndHandler);
+        responseChain.doApply(mockResponse);
+
+        engineResult.pause();
+        engineResult.resume();
+
+        InOrder order = inOrder(mockSource);
+        order.verify(mockSource).pause();
+        order.verify(mockSource).resume();
+    }
+
     @Test
     public void shouldEndChainImmediatelyWhenSkipCalled() {
         IPolicy skipPolicy = spy(new IPolicy() {
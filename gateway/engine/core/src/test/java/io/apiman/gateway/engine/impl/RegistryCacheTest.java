@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class RegistryCacheTest {
+
+    private final RegistryCache cache = new RegistryCache();
+
+    @Test
+    public void refreshReplacesCachedApi() {
+        cache.getApi("TestOrg", "TestApi", "1.0", () -> api("http://a"));
+        cache.refreshApi("TestOrg", "TestApi", "1.0", () -> api("http://b"));
+        Assert.assertEquals("http://b", cache.getCachedApi("TestOrg", "TestApi", "1.0").getEndpoint());
+
+        cache.refreshApi("TestOrg", "TestApi", "1.0", () -> null);
+        Assert.assertNull(cache.getCachedApi("TestOrg", "TestApi", "1.0"));
+    }
+
+    @Test
+    public void failedRefreshEvictsApi() {
+        cache.getApi("TestOrg", "TestApi", "1.0", () -> api("http://a"));
+        cache.refreshApi("TestOrg", "TestApi", "1.0", () -> {
+            throw new IOException("unavailable");
+        });
+        Assert.assertNull(cache.getCachedApi("TestOrg", "TestApi", "1.0"));
+    }
+
+    @Test
+    public void refreshOfUncachedApiStopsLoadInProgress() {
+        Api loaded = cache.getApi("TestOrg", "TestApi", "1.0", () -> {
+            cache.refreshApi("TestOrg", "TestApi", "1.0", () -> api("http://b"));
+            return api("http://a");
+        });
+        Assert.assertEquals("http://a", loaded.getEndpoint());
+        Assert.assertNull(cache.getCachedApi("TestOrg", "TestApi", "1.0"));
+    }
+
+    @Test
+    public void refreshDropsClientCachedUnderOldKey() {
+        cache.getClient("12345", () -> client("12345"));
+        cache.refreshClient("TestOrg", "TestClient", "1.0", "67890", () -> client("67890"));
+        Assert.assertNull(cache.getCachedClient("12345"));
+        // Only reloaded under the new key because a copy was cached
+        Assert.assertEquals("67890", cache.getCachedClient("67890").getApiKey());
+
+        cache.refreshClient("TestOrg", "TestClient", "1.0", null, () -> null);
+        Assert.assertNull(cache.getCachedClient("67890"));
+    }
+
+    @Test
+    public void prewarmKeepsLoadedEntries() {
+        Api loaded = cache.getApi("TestOrg", "TestApi", "1.0", () -> api("http://a"));
+        cache.prewarm(
+                action -> Arrays.asList(api("http://b"), api("OtherApi", "http://other")).forEach(action),
+                action -> Collections.singletonList(client("12345")).forEach(action));
+        Assert.assertSame(loaded, cache.getCachedApi("TestOrg", "TestApi", "1.0"));
+        Assert.assertNotNull(cache.getCachedApi("TestOrg", "OtherApi", "1.0"));
+        Assert.assertNotNull(cache.getCachedClient("12345"));
+    }
+
+    @Test
+    public void prewarmRacingInvalidationIsNotCached() {
+        cache.prewarm(
+                action -> {
+                    cache.invalidate();
+                    action.accept(api("http://a"));
+                },
+                action -> action.accept(client("12345")));
+        Assert.assertNull(cache.getCachedApi("TestOrg", "TestApi", "1.0"));
+        Assert.assertNull(cache.getCachedClient("12345"));
+    }
+
+    private static Api api(String endpoint) {
+        return api("TestApi", endpoint);
+    }
+
+    private static Api api(String apiId, String endpoint) {
+        Api api = new Api();
+        api.setOrganizationId("TestOrg");
+        api.setApiId(apiId);
+        api.setVersion("1.0");
+        api.setEndpoint(endpoint);
+        return api;
+    }
+
+    private static Client client(String apiKey) {
+        Client client = new Client();
+        client.setOrganizationId("TestOrg");
+        client.setClientId("TestClient");
+        client.setVersion("1.0");
+        client.setApiKey(apiKey);
+        return client;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.impl;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class RegistryChangeLogTest {
+
+    @Test
+    public void fullModeUpdatesDataVersion() {
+        TestChangeLog log = new TestChangeLog(Collections.emptyMap());
+        log.apiChanged(api("TestApi"));
+        Assert.assertEquals(1, log.dataVersionUpdates);
+        Assert.assertTrue(log.entries.isEmpty());
+    }
+
+    @Test
+    public void syncRefreshesEachChangedEntityOnce() {
+        TestChangeLog log = new TestChangeLog(incremental());
+        log.apiChanged(api("TestApi"));
+        log.apiChanged(api("TestApi"));
+        log.clientChanged(client("12345"), true);
+        log.clientChanged(client("12345"), false);
+
+        log.sync();
+        Assert.assertEquals(Collections.singletonList("TestOrg:TestApi:1.0"), log.refreshedApis);
+        Assert.assertEquals(Arrays.asList("TestOrg:TestClient:1.0:12345", "TestOrg:TestClient:1.0:null"),
+                log.refreshedClients);
+        Assert.assertEquals(0, log.invalidations);
+        Assert.assertEquals(0, log.dataVersionUpdates);
+    }
+
+    @Test
+    public void syncOnlyReadsChangesSinceLastSync() throws Exception {
+        TestChangeLog log = new TestChangeLog(incremental());
+        log.apiChanged(api("TestApi"));
+        Thread.sleep(5);
+        log.sync();
+
+        log.apiChanged(api("OtherApi"));
+        log.sync();
+        Assert.assertEquals(Arrays.asList("TestOrg:TestApi:1.0", "TestOrg:OtherApi:1.0"), log.refreshedApis);
+    }
+
+    @Test
+    public void syncInvalidatesWhenLogMayBePruned() throws Exception {
+        Map<String, String> config = incremental();
+        config.put("cache-changelog-retention", "0");
+        TestChangeLog log = new TestChangeLog(config);
+        log.apiChanged(api("TestApi"));
+
+        Thread.sleep(5);
+        log.sync();
+        Assert.assertEquals(1, log.invalidations);
+        Assert.assertTrue(log.refreshedApis.isEmpty());
+    }
+
+    @Test
+    public void syncInvalidatesTooManyChanges() throws Exception {
+        TestChangeLog log = new TestChangeLog(incremental());
+        for (int i = 0; i < RegistryChangeLog.MAX_BATCH; i++) {
+            log.apiChanged(api("Api" + i));
+        }
+        Thread.sleep(5);
+        log.sync();
+        Assert.assertEquals(0, log.invalidations);
+        Assert.assertEquals(RegistryChangeLog.MAX_BATCH, log.refreshedApis.size());
+
+        log.refreshedApis.clear();
+        for (int i = 0; i <= RegistryChangeLog.MAX_BATCH; i++) {
+            log.apiChanged(api("Api" + i));
+        }
+        log.sync();
+        Assert.assertEquals(1, log.invalidations);
+        Assert.assertTrue(log.refreshedApis.isEmpty());
+    }
+
+    @Test
+    public void failedReadIsRetriedFromSamePoint() throws Exception {
+        TestChangeLog log = new TestChangeLog(incremental());
+        log.apiChanged(api("TestApi"));
+        log.failReads = true;
+        log.sync();
+        Assert.assertTrue(log.refreshedApis.isEmpty());
+
+        Thread.sleep(5);
+        log.failReads = false;
+        log.sync();
+        Assert.assertEquals(Collections.singletonList("TestOrg:TestApi:1.0"), log.refreshedApis);
+    }
+
+    @Test
+    public void failedAppendInvalidatesAllCaches() throws Exception {
+        TestChangeLog log = new TestChangeLog(incremental());
+        log.start();
+        log.failAppends = true;
+        log.apiChanged(api("TestApi"));
+        Assert.assertEquals(1, log.dataVersionUpdates);
+        Assert.assertEquals(1, log.invalidations);
+
+        // Other nodes see the data version move on their next sync
+        Thread.sleep(5);
+        log.sync();
+        Assert.assertEquals(2, log.invalidations);
+        log.sync();
+        Assert.assertEquals(2, log.invalidations);
+    }
+
+    private static Map<String, String> incremental() {
+        Map<String, String> config = new HashMap<>();
+        config.put("cache-polling-mode", "incremental");
+        config.put("cache-changelog-overlap", "0");
+        return config;
+    }
+
+    private static Api api(String apiId) {
+        Api api = new Api();
+        api.setOrganizationId("TestOrg");
+        api.setApiId(apiId);
+        api.setVersion("1.0");
+        return api;
+    }
+
+    private static Client client(String apiKey) {
+        Client client = new Client();
+        client.setOrganizationId("TestOrg");
+        client.setClientId("TestClient");
+        client.setVersion("1.0");
+        client.setApiKey(apiKey);
+        return client;
+    }
+
+    /**
+     * Keeps the log in memory, and records what a sync applied.
+     */
+    private static class TestChangeLog extends RegistryChangeLog {
+        private final List<Change> entries = new ArrayList<>();
+        private final List<Long> changedOn = new ArrayList<>();
+        private final List<String> refreshedApis = new ArrayList<>();
+        private final List<String> refreshedClients = new ArrayList<>();
+        private int invalidations;
+        private int dataVersionUpdates;
+        private boolean failReads;
+        private boolean failAppends;
+
+        private TestChangeLog(Map<String, String> config) {
+            super(config);
+        }
+
+        @Override
+        protected synchronized void append(Change change, long changedOn, long pruneBefore) throws IOException {
+            if (failAppends) {
+                throw new IOException("unavailable");
+            }
+            entries.add(change);
+            this.changedOn.add(changedOn);
+        }
+
+        @Override
+        protected synchronized List<Change> readSince(long since, int limit) throws IOException {
+            if (failReads) {
+                throw new IOException("unavailable");
+            }
+            List<Change> changes = new ArrayList<>();
+            for (int i = 0; i < entries.size() && changes.size() < limit; i++) {
+                if (changedOn.get(i) >= since) {
+                    changes.add(entries.get(i));
+                }
+            }
+            return changes;
+        }
+
+        @Override
+        protected long readDataVersion() {
+            return dataVersionUpdates;
+        }
+
+        @Override
+        protected void updateDataVersion() {
+            dataVersionUpdates++;
+        }
+
+        @Override
+        protected void invalidateCache() {
+            invalidations++;
+        }
+
+        @Override
+        protected void refreshApi(String orgId, String apiId, String version) {
+            refreshedApis.add(orgId + ":" + apiId + ":" + version);
+        }
+
+        @Override
+        protected void refreshClient(String orgId, String clientId, String version, String apiKey) {
+            refreshedClients.add(orgId + ":" + clientId + ":" + version + ":" + apiKey);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class SegmentedByteBufferTest {
+
+    @Test
+    public void appendsAcrossSegmentBoundaries() throws IOException {
+        byte[] expected = randomBytes(100_000);
+        SegmentedByteBuffer buffer = new SegmentedByteBuffer(16, 1024, null);
+        // Odd chunk sizes so that appends straddle segment boundaries
+        for (int offset = 0; offset < expected.length; offset += 777) {
+            buffer.append(expected, offset, Math.min(777, expected.length - offset));
+        }
+
+        Assert.assertEquals(expected.length, buffer.length());
+        Assert.assertArrayEquals(expected, buffer.getBytes());
+        for (int i = 0; i < expected.length; i += 997) {
+            Assert.assertEquals(expected[i], buffer.get(i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        Assert.assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void insertAndTruncate() {
+        SegmentedByteBuffer buffer = new SegmentedByteBuffer(4, 16, null);
+        buffer.append("Hello World!");
+        buffer.insert(5, ",");
+        Assert.assertEquals("Hello, World!", buffer.toString());
+        buffer.insert(0, "Well... ");
+        Assert.assertEquals("Well... Hello, World!", buffer.toString());
+
+        buffer.truncate(5);
+        Assert.assertEquals("Well.", buffer.toString());
+        buffer.append(" done");
+        Assert.assertEquals("Well. done", buffer.toString());
+    }
+
+    @Test
+    public void copiesBetweenBufferTypes() {
+        SegmentedByteBuffer segmented = new SegmentedByteBuffer(4, 8, null);
+        segmented.append("0123456789abcdef");
+
+        ByteBuffer plain = new ByteBuffer(2);
+        plain.append(segmented, 2, 10);
+        Assert.assertEquals("23456789ab", plain.toString());
+
+        SegmentedByteBuffer other = new SegmentedByteBuffer(4, 8, null);
+        other.append(segmented, 3, 9);
+        other.append(plain);
+        Assert.assertEquals("3456789ab23456789ab", other.toString());
+    }
+
+    @Test
+    public void pooledSegmentsAreReturnedOnRelease() {
+        ByteBufferPool pool = new ByteBufferPool(64, 10, true);
+        SegmentedByteBuffer buffer = new SegmentedByteBuffer(16, 64, pool);
+        byte[] data = randomBytes(1000);
+        buffer.append(data);
+        Assert.assertArrayEquals(data, buffer.getBytes());
+
+        buffer.release();
+        Assert.assertEquals(0, buffer.length());
+        Assert.assertTrue(pool.getPooledCount() > 0);
+
+        // Reused segments must not leak old content
+        buffer.append("abc");
+        Assert.assertEquals("abc", buffer.toString());
+    }
+
+    @Test
+    public void byteBufferGrowsAndInserts() {
+        ByteBuffer buffer = new ByteBuffer(1);
+        for (int i = 0; i < 1000; i++) {
+            buffer.append((byte) 'a');
+        }
+        Assert.assertEquals(1000, buffer.length());
+        buffer.insert(0, "xyz");
+        Assert.assertEquals("xyzaa", buffer.getString(0, 5));
+        Assert.assertEquals(1003, buffer.length());
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
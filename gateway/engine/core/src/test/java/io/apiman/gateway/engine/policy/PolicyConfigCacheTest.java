@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class PolicyConfigCacheTest {
+
+    @Test
+    public void parsesOncePerDistinctConfig() {
+        PolicyConfigCache cache = new PolicyConfigCache(10);
+        AtomicInteger parses = new AtomicInteger();
+
+        Object first = cache.get("class:a", "{\"x\":1}", () -> "parsed-" + parses.incrementAndGet());
+        Object second = cache.get("class:a", new String("{\"x\":1}"), () -> "parsed-" + parses.incrementAndGet());
+        Object other = cache.get("class:b", "{\"x\":1}", () -> "parsed-" + parses.incrementAndGet());
+
+        Assert.assertSame(first, second);
+        Assert.assertNotEquals(first, other);
+        Assert.assertEquals(2, parses.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void nullConfigIsCached() {
+        PolicyConfigCache cache = new PolicyConfigCache(10);
+        AtomicInteger parses = new AtomicInteger();
+
+        cache.get("class:a", null, () -> { parses.incrementAndGet(); return null; });
+        Assert.assertNull(cache.get("class:a", null, () -> { parses.incrementAndGet(); return null; }));
+        Assert.assertEquals(1, parses.get());
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        PolicyConfigCache cache = new PolicyConfigCache(8);
+        for (int i = 0; i < 100; i++) {
+            String config = "{\"i\":" + i + "}";
+            cache.get("class:a", config, () -> config);
+            Assert.assertTrue(cache.size() <= 8);
+        }
+        Assert.assertEquals(92, cache.getEvictionCount());
+    }
+
+    @Test
+    public void recentlyUsedEntriesSurviveEviction() {
+        PolicyConfigCache cache = new PolicyConfigCache(2);
+        cache.get("class:a", "hot", () -> "hot");
+        cache.get("class:a", "cold", () -> "cold");
+        // Reference the hot entry, then force an eviction
+        cache.get("class:a", "hot", () -> "hot");
+        cache.get("class:a", "new", () -> "new");
+
+        AtomicInteger parses = new AtomicInteger();
+        cache.get("class:a", "hot", () -> { parses.incrementAndGet(); return "hot"; });
+        Assert.assertEquals(0, parses.get());
+    }
+}
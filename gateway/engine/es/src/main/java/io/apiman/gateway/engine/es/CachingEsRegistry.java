@@ -15,20 +15,29 @@
  */
 package io.apiman.gateway.engine.es;
 
+import io.apiman.common.es.util.EsConstants;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiContract;
 import io.apiman.gateway.engine.beans.Client;
-import io.apiman.gateway.engine.beans.Contract;
-import io.apiman.gateway.engine.beans.exceptions.ApiRetiredException;
-import io.apiman.gateway.engine.beans.exceptions.ClientNotFoundException;
-import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
-import io.apiman.gateway.engine.es.i18n.Messages;
+import io.apiman.gateway.engine.impl.RegistryCache;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import static io.apiman.gateway.engine.storage.util.BackingStoreUtil.JSON_MAPPER;
 
 /**
  * Extends the {@link EsRegistry} to provide single-node caching.  This caching solution
@@ -40,9 +49,9 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public abstract class CachingEsRegistry extends EsRegistry {
 
-    private static Map<String, Api> apiCache = new ConcurrentHashMap<>();
-    private static Map<String, Client> clientCache = new ConcurrentHashMap<>();
-    private static Object mutex = new Object();
+    private static final int PREWARM_PAGE_SIZE = 500;
+
+    private static final RegistryCache cache = new RegistryCache();
 
     /**
      * Constructor.
@@ -56,145 +65,182 @@ public abstract class CachingEsRegistry extends EsRegistry {
      * or getContract() will trigger a new fetch from the ES store.
      */
     protected void invalidateCache() {
-        synchronized (mutex) {
-            clientCache.clear();
-            apiCache.clear();
-        }
+        cache.invalidate();
     }
 
     /**
-     * @see io.apiman.gateway.engine.jdbc.EsRegistry#getContract(java.lang.String, java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     * Reloads a cached api that was changed (possibly by another node).
+     * @param orgId
+     * @param apiId
+     * @param version
+     * @see RegistryCache#refreshApi(String, String, String, io.apiman.gateway.engine.impl.KeyedCacheLoader.Loader)
      */
-    @Override
-    public void getContract(String apiOrganizationId, String apiId, String apiVersion, String apiKey,
-            IAsyncResultHandler<ApiContract> handler) {
-        Client client = null;
-        Api api = null;
+    protected void refreshApi(String orgId, String apiId, String version) {
+        cache.refreshApi(orgId, apiId, version, () -> super.getApi(getApiId(orgId, apiId, version)));
+    }
 
+    /**
+     * Reloads a cached client that was changed (possibly by another node).
+     * @param orgId
+     * @param clientId
+     * @param version
+     * @param apiKey the client's current API key, or null if it was unregistered
+     * @see RegistryCache#refreshClient(String, String, String, String, io.apiman.gateway.engine.impl.KeyedCacheLoader.Loader)
+     */
+    protected void refreshClient(String orgId, String clientId, String version, String apiKey) {
+        cache.refreshClient(orgId, clientId, version, apiKey, () -> super.getClient(apiKey));
+    }
+
+    /**
+     * Loads all apis and clients into the cache.
+     * @throws IOException
+     * @see RegistryCache#prewarm(RegistryCache.Source, RegistryCache.Source)
+     */
+    protected void prewarmCache() throws IOException {
+        cache.prewarm(
+                action -> scrollAll(EsConstants.INDEX_APIS, Api.class, action),
+                action -> scrollAll(EsConstants.INDEX_CLIENTS, Client.class, action));
+    }
+
+    /**
+     * Reads every document of an index, a page at a time.
+     */
+    private <T> void scrollAll(String index, Class<T> type, Consumer<T> action) throws IOException {
+        SearchResponse response = getClient().search(prewarmRequest(index), RequestOptions.DEFAULT);
         try {
-            synchronized (mutex) {
-                client = getClient(apiKey);
-                api = getApi(apiOrganizationId, apiId, apiVersion);
-            }
-            if (client == null) {
-                Exception error = new ClientNotFoundException(Messages.i18n.format("EsRegistry.NoClientForAPIKey", apiKey)); //$NON-NLS-1$
-                handler.handle(AsyncResultImpl.create(error, ApiContract.class));
-                return;
-            }
-            if (api == null) {
-                throw new ApiRetiredException(Messages.i18n.format("EsRegistry.ApiWasRetired", //$NON-NLS-1$
-                        apiId, apiOrganizationId));
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    action.accept(JSON_MAPPER.readValue(hit.getSourceAsString(), type));
+                }
+                response = nextPage(response);
             }
+        } finally {
+            clearScroll(response);
+        }
+    }
 
-            Contract matchedContract = null;
-            for (Contract contract : client.getContracts()) {
-                if (contract.matches(apiOrganizationId, apiId, apiVersion)) {
-                    matchedContract = contract;
-                    break;
-                }
+    private SearchRequest prewarmRequest(String index) {
+        return new SearchRequest(getIndexPrefix() + index)
+                .source(new SearchSourceBuilder().query(QueryBuilders.matchAllQuery()).size(PREWARM_PAGE_SIZE))
+                .scroll(TimeValue.timeValueMinutes(1L));
+    }
+
+    private SearchResponse nextPage(SearchResponse response) throws IOException {
+        SearchScrollRequest request = new SearchScrollRequest(response.getScrollId())
+                .scroll(TimeValue.timeValueMinutes(1L));
+        return getClient().scroll(request, RequestOptions.DEFAULT);
+    }
+
+    private void clearScroll(SearchResponse response) throws IOException {
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(response.getScrollId());
+        getClient().clearScroll(request, RequestOptions.DEFAULT);
+    }
+
+    /**
+     * @see EsRegistry#registerClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerClient(Client client, IAsyncResultHandler<Void> handler) {
+        super.registerClient(client, result -> {
+            if (result.isSuccess()) {
+                cache.evictClient(client.getApiKey());
             }
+            handler.handle(result);
+        });
+    }
 
-            if (matchedContract == null) {
-                throw new NoContractFoundException(Messages.i18n.format("EsRegistry.NoContractFound", //$NON-NLS-1$
-                        client.getClientId(), api.getApiId()));
+    /**
+     * @see EsRegistry#unregisterClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterClient(Client client, IAsyncResultHandler<Void> handler) {
+        super.unregisterClient(client, result -> {
+            if (result.isSuccess()) {
+                cache.evictClient(client.getApiKey());
             }
+            handler.handle(result);
+        });
+    }
 
-            ApiContract contract = new ApiContract(api, client, matchedContract.getPlan(), matchedContract.getPolicies());
-            handler.handle(AsyncResultImpl.create(contract));
-        } catch (Exception e) {
-            handler.handle(AsyncResultImpl.create(e, ApiContract.class));
-        }
+    /**
+     * Resolves the contract through the contract index, so that repeated lookups of a
+     * cached client and api reuse the same contract.
+     * @see EsRegistry#resolveContract(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.beans.Api)
+     */
+    @Override
+    protected ApiContract resolveContract(Client client, Api api) {
+        return cache.resolveContract(client, api);
     }
 
     /**
+     * Answers from the cache if possible, without leaving the calling thread.  Misses are
+     * fetched without blocking, and concurrent misses on the same api share the fetch.
      * @see EsRegistry#getApi(java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
     public void getApi(final String organizationId, final String apiId, final String apiVersion,
             final IAsyncResultHandler<Api> handler) {
-        try {
-            Api api = getApi(organizationId, apiId, apiVersion);
-            handler.handle(AsyncResultImpl.create(api));
-        } catch (IOException e) {
-            handler.handle(AsyncResultImpl.create(e, Api.class));
+        Api cached = cache.getCachedApi(organizationId, apiId, apiVersion);
+        if (cached != null) {
+            handler.handle(AsyncResultImpl.create(cached));
+            return;
         }
+        // Only share a fetch issued since the cache last changed, so all sharers can cache it
+        long stamp = cache.apiStamp();
+        String id = getApiId(organizationId, apiId, apiVersion);
+        fetchApi(id, id + "@" + stamp, result -> { //$NON-NLS-1$
+            if (result.isSuccess() && result.getResult() != null) {
+                // Everyone sharing the fetch must end up with the same (cached) instance
+                handler.handle(AsyncResultImpl.create(cache.cacheApi(result.getResult(), stamp)));
+            } else {
+                handler.handle(result);
+            }
+        });
     }
 
     /**
-     * Gets the api either from the cache or from ES.
+     * Gets the api either from the cache or from ES.  Concurrent misses on the same api
+     * share a single fetch; misses on other apis are not held up by it.
      * @param orgId
      * @param apiId
      * @param version
      */
     protected Api getApi(String orgId, String apiId, String version) throws IOException {
-        String apiIdx = getApiIdx(orgId, apiId, version);
-        Api api;
-        synchronized (mutex) {
-            api = apiCache.get(apiIdx);
-        }
-
-        if (api == null) {
-            api = super.getApi(getApiId(orgId, apiId, version));
-            synchronized (mutex) {
-                if (api != null) {
-                    apiCache.put(apiIdx, api);
-                }
-            }
-        }
-
-        return api;
+        return cache.getApi(orgId, apiId, version, () -> super.getApi(getApiId(orgId, apiId, version)));
     }
 
     /**
-     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     * Answers from the cache if possible, without leaving the calling thread.  Misses are
+     * fetched without blocking, and concurrent misses on the same API key share the fetch.
+     * @see EsRegistry#getClient(java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
     public void getClient(String apiKey, IAsyncResultHandler<Client> handler) {
-        try {
-            Client client = getClient(apiKey);
-            handler.handle(AsyncResultImpl.create(client));
-        } catch (IOException e) {
-            handler.handle(AsyncResultImpl.create(e, Client.class));
+        Client cached = cache.getCachedClient(apiKey);
+        if (cached != null) {
+            handler.handle(AsyncResultImpl.create(cached));
+            return;
         }
+        long stamp = cache.clientStamp();
+        fetchClient(apiKey, apiKey + "@" + stamp, result -> { //$NON-NLS-1$
+            if (result.isSuccess() && result.getResult() != null) {
+                handler.handle(AsyncResultImpl.create(cache.cacheClient(result.getResult(), stamp)));
+            } else {
+                handler.handle(result);
+            }
+        });
     }
 
     /**
-     * Gets the client either from the cache or from ES.
-     * @param orgId
-     * @param clientId
-     * @param version
+     * Gets the client either from the cache or from ES.  Concurrent misses on the same
+     * API key share a single fetch.
+     * @param apiKey
      * @throws IOException
      */
     @Override
     protected Client getClient(String apiKey) throws IOException {
-        Client client;
-        synchronized (mutex) {
-            client = clientCache.get(apiKey);
-        }
-
-        if (client == null) {
-            client = super.getClient(apiKey);
-            synchronized (mutex) {
-                if (client != null) {
-                    clientCache.put(apiKey, client);
-                }
-            }
-        }
-
-        return client;
-    }
-
-
-    /**
-     * Generates an in-memory key for an API, used to index the app for later quick
-     * retrieval.
-     * @param orgId
-     * @param apiId
-     * @param version
-     * @return a API key
-     */
-    private String getApiIdx(String orgId, String apiId, String version) {
-        return "API::" + orgId + "|" + apiId + "|" + version; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        return cache.getClient(apiKey, () -> super.getClient(apiKey));
     }
 
 }
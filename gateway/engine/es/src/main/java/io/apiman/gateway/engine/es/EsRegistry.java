@@ -21,8 +21,11 @@ import io.apiman.common.es.util.EsUtils;
 import io.apiman.common.es.util.builder.index.EsIndexProperties;
 import io.apiman.common.logging.ApimanLoggerFactory;
 import io.apiman.common.logging.IApimanLogger;
+import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IRegistry;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiContract;
@@ -31,7 +34,9 @@ import io.apiman.gateway.engine.beans.Contract;
 import io.apiman.gateway.engine.beans.exceptions.ApiNotFoundException;
 import io.apiman.gateway.engine.beans.exceptions.ApiRetiredException;
 import io.apiman.gateway.engine.beans.exceptions.ClientNotFoundException;
+import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
 import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
 import io.apiman.gateway.engine.beans.exceptions.PublishingException;
 import io.apiman.gateway.engine.beans.exceptions.RegistrationException;
 import io.apiman.gateway.engine.es.i18n.Messages;
@@ -39,6 +44,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetRequest;
@@ -70,19 +82,72 @@ import static io.apiman.gateway.engine.storage.util.BackingStoreUtil.JSON_MAPPER
 /**
  * An implementation of the Registry that uses elasticsearch as a storage
  * mechanism.
+ * <p>
+ * Lookups of apis, clients and contracts use the client's async API, so they never block
+ * the calling thread.  Concurrent lookups of the same api or client share a single query,
+ * and results are delivered on a small pool of completion threads (sized by
+ * <code>completion-threads</code>) rather than on the client's I/O threads.  Where the
+ * engine has an {@link IExecuteBlockingComponent}, handlers are then called back through
+ * it, on the context of the thread that asked (e.g. a Vert.x event loop).
  *
  * @author eric.wittmann@redhat.com
  */
-public class EsRegistry extends AbstractEsComponent implements IRegistry {
+public class EsRegistry extends AbstractEsComponent implements IRegistry, IRequiresComponentRegistry {
 
     private final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(EsRegistry.class);
 
+    private final InFlightRequests<Api> apiLookups;
+    private final InFlightRequests<Client> clientLookups;
+    private final InFlightRequests<Client> clientVersionLookups;
+
     /**
      * Constructor.
      * @param config map of configuration options
      */
     public EsRegistry(Map<String, String> config) {
         super(config);
+
+        String threadsVal = config.get("completion-threads"); //$NON-NLS-1$
+        int threads = threadsVal != null ? Integer.parseInt(threadsVal) : Runtime.getRuntime().availableProcessors();
+        ExecutorService completionExecutor = createCompletionExecutor(threads);
+        apiLookups = new InFlightRequests<>(completionExecutor);
+        clientLookups = new InFlightRequests<>(completionExecutor);
+        clientVersionLookups = new InFlightRequests<>(completionExecutor);
+    }
+
+    /**
+     * Creates the pool that delivers lookup results.  Idle threads time out, so an
+     * unused registry does not hold on to any.
+     * @param threads the maximum number of threads
+     */
+    private static ExecutorService createCompletionExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "apiman-es-registry-" + threadCount.incrementAndGet()); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Calls lookup handlers back through the engine's execute-blocking component, if it has one.
+     * @see io.apiman.gateway.engine.IRequiresComponentRegistry#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
+     */
+    @Override
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        IExecuteBlockingComponent callerContext;
+        try {
+            callerContext = componentRegistry.getComponent(IExecuteBlockingComponent.class);
+        } catch (ComponentNotFoundException e) {
+            LOGGER.debug("No execute-blocking component, lookup results are delivered on the completion threads"); //$NON-NLS-1$
+            return;
+        }
+        apiLookups.setCallerContext(callerContext);
+        clientLookups.setCallerContext(callerContext);
+        clientVersionLookups.setCallerContext(callerContext);
     }
 
     /**
@@ -235,8 +300,23 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
      * @param clientId the client id
      * @param version the version
      */
-    @SuppressWarnings("nls") // Do beans need escaping or will that be done 'automatically'. Test it. Strings do, but probably only quotes?
     private Client lookupClient(String orgId, String clientId, String version) {
+        try {
+            SearchTemplateResponse response = getClient().searchTemplate(lookupClientRequest(orgId, clientId, version), RequestOptions.DEFAULT);
+            return readLookedUpClient(response);
+        } catch (IOException e) {
+            throw new ClientNotFoundException(Messages.i18n.format("EsRegistry.ClientNotFound"), e);  //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Builds the search for a client by its orgid:clientId:version.
+     * @param orgId the organization id
+     * @param clientId the client id
+     * @param version the version
+     */
+    @SuppressWarnings("nls") // Do beans need escaping or will that be done 'automatically'. Test it. Strings do, but probably only quotes?
+    private SearchTemplateRequest lookupClientRequest(String orgId, String clientId, String version) {
         String query = "{" +
                 "  \"query\": {" +
                 "        \"bool\": {" +
@@ -271,24 +351,23 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
         scriptParams.put("version", version);
 
         searchTemplateRequest.setScriptParams(scriptParams);
+        return searchTemplateRequest;
+    }
 
-        Client client;
-        try {
-            SearchTemplateResponse response = getClient().searchTemplate(searchTemplateRequest, RequestOptions.DEFAULT);
-            SearchResponse searchResponse = response.getResponse();
-            SearchHits hits = searchResponse.getHits();
-
-            if (hits.getTotalHits().value == 0) {
-                throw new IOException();
-            }
-            String sourceAsString = response.getResponse().getHits().getAt(0).getSourceAsString();
-            client = JSON_MAPPER.readValue(sourceAsString, Client.class);
+    /**
+     * Reads the client found by a {@link #lookupClientRequest(String, String, String)}.
+     * @param response the search response
+     * @throws IOException if no client was found, or it could not be read
+     */
+    private Client readLookedUpClient(SearchTemplateResponse response) throws IOException {
+        SearchResponse searchResponse = response.getResponse();
+        SearchHits hits = searchResponse.getHits();
 
-        } catch (IOException e) {
-            throw new ClientNotFoundException(Messages.i18n.format("EsRegistry.ClientNotFound"), e);  //$NON-NLS-1$
+        if (hits.getTotalHits().value == 0) {
+            throw new IOException();
         }
-
-        return client;
+        String sourceAsString = response.getResponse().getHits().getAt(0).getSourceAsString();
+        return JSON_MAPPER.readValue(sourceAsString, Client.class);
     }
 
     /**
@@ -297,23 +376,95 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
     @Override
     public void getApi(String organizationId, String apiId, String apiVersion,
             IAsyncResultHandler<Api> handler) {
-        String id = getApiId(organizationId, apiId, apiVersion);
-        try {
-            Api api = getApi(id);
-            handler.handle(AsyncResultImpl.create(api));
-        } catch (IOException e) {
-            handler.handle(AsyncResultImpl.create(e, Api.class));
-        }
+        fetchApi(getApiId(organizationId, apiId, apiVersion), handler);
     }
 
     @Override
     public void getClient(String organizationId, String clientId, String clientVersion,
             IAsyncResultHandler<Client> handler) {
+        String key = organizationId + ":" + clientId + ":" + clientVersion; //$NON-NLS-1$ //$NON-NLS-2$
+        if (!clientVersionLookups.join(key, handler)) {
+            return;
+        }
+        try {
+            getClient().searchTemplateAsync(lookupClientRequest(organizationId, clientId, clientVersion), RequestOptions.DEFAULT,
+                    new ActionListener<SearchTemplateResponse>() {
+                        @Override
+                        public void onResponse(SearchTemplateResponse response) {
+                            clientVersionLookups.complete(key, () -> {
+                                try {
+                                    return readLookedUpClient(response);
+                                } catch (IOException e) {
+                                    throw new ClientNotFoundException(Messages.i18n.format("EsRegistry.ClientNotFound"), e);  //$NON-NLS-1$
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            clientVersionLookups.fail(key, new ClientNotFoundException(Messages.i18n.format("EsRegistry.ClientNotFound"), e));  //$NON-NLS-1$
+                        }
+                    });
+        } catch (RuntimeException e) {
+            clientVersionLookups.fail(key, e);
+        }
+    }
+
+    /**
+     * Gets the api without blocking.  Concurrent calls for the same api share a single
+     * query.
+     * @param id the api id
+     * @param handler the handler for the api, or null if there is none
+     */
+    protected void fetchApi(String id, IAsyncResultHandler<Api> handler) {
+        fetchApi(id, id, handler);
+    }
+
+    /**
+     * Gets the api without blocking.  Concurrent calls with the same share key share a
+     * single query.
+     * @param id the api id
+     * @param shareKey the key of the query to share
+     * @param handler the handler for the api, or null if there is none
+     */
+    protected void fetchApi(String id, String shareKey, IAsyncResultHandler<Api> handler) {
+        if (!apiLookups.join(shareKey, handler)) {
+            return;
+        }
         try {
-            Client client = lookupClient(organizationId, clientId, clientVersion);
-            handler.handle(AsyncResultImpl.create(client));
-        } catch (ClientNotFoundException e) {
-            handler.handle(AsyncResultImpl.create(e, Client.class));
+            GetRequest getRequest = new GetRequest(getIndexPrefix() + EsConstants.INDEX_APIS, id);
+            getClient().getAsync(getRequest, RequestOptions.DEFAULT, new GetListener<>(shareKey, apiLookups, Api.class));
+        } catch (RuntimeException e) {
+            apiLookups.fail(shareKey, e);
+        }
+    }
+
+    /**
+     * Gets the client without blocking.  Concurrent calls for the same API key share a
+     * single query.
+     * @param apiKey the client's API key
+     * @param handler the handler for the client, or null if there is none
+     */
+    protected void fetchClient(String apiKey, IAsyncResultHandler<Client> handler) {
+        fetchClient(apiKey, apiKey, handler);
+    }
+
+    /**
+     * Gets the client without blocking.  Concurrent calls with the same share key share a
+     * single query.
+     * @param apiKey the client's API key
+     * @param shareKey the key of the query to share
+     * @param handler the handler for the client, or null if there is none
+     */
+    protected void fetchClient(String apiKey, String shareKey, IAsyncResultHandler<Client> handler) {
+        if (!clientLookups.join(shareKey, handler)) {
+            return;
+        }
+        try {
+            GetRequest getRequest = new GetRequest(getIndexPrefix() + EsConstants.INDEX_CLIENTS, apiKey);
+            getClient().getAsync(getRequest, RequestOptions.DEFAULT, new GetListener<>(shareKey, clientLookups, Client.class));
+        } catch (RuntimeException e) {
+            clientLookups.fail(shareKey, e);
         }
     }
 
@@ -338,13 +489,7 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
      */
     @Override
     public void getClient(String apiKey, IAsyncResultHandler<Client> handler) {
-        String id = apiKey;
-        try {
-            Client client = getClient(id);
-            handler.handle(AsyncResultImpl.create(client));
-        } catch (IOException e) {
-            handler.handle(AsyncResultImpl.create(e, Client.class));
-        }
+        fetchClient(apiKey, handler);
     }
 
     /**
@@ -365,15 +510,28 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
     }
 
     /**
+     * Looks up the client and the api in parallel, through {@link #getClient(String, IAsyncResultHandler)}
+     * and {@link #getApi(String, String, String, IAsyncResultHandler)}.
      * @see io.apiman.gateway.engine.IRegistry#getContract(java.lang.String, java.lang.String, java.lang.String, java.lang.String, io.apiman.gateway.engine.async.IAsyncResultHandler)
      */
     @Override
     public void getContract(String apiOrganizationId, String apiId, String apiVersion, String apiKey,
             IAsyncResultHandler<ApiContract> handler) {
+        AtomicReference<IAsyncResult<Client>> clientResult = new AtomicReference<>();
+        AtomicReference<IAsyncResult<Api>> apiResult = new AtomicReference<>();
+        AtomicInteger pending = new AtomicInteger(2);
 
-        try {
-            Client client = getClient(apiKey);
-            Api api = getApi(getApiId(apiOrganizationId, apiId, apiVersion));
+        Runnable resolve = () -> {
+            if (clientResult.get().isError()) {
+                handler.handle(AsyncResultImpl.create(clientResult.get().getError(), ApiContract.class));
+                return;
+            }
+            if (apiResult.get().isError()) {
+                handler.handle(AsyncResultImpl.create(apiResult.get().getError(), ApiContract.class));
+                return;
+            }
+            Client client = clientResult.get().getResult();
+            Api api = apiResult.get().getResult();
 
             if (client == null) {
                 Exception error = new ClientNotFoundException(Messages.i18n.format("EsRegistry.NoClientForAPIKey", apiKey)); //$NON-NLS-1$
@@ -387,27 +545,49 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
                 return;
             }
 
-            Contract matchedContract = null;
-            for (Contract contract : client.getContracts()) {
-                if (contract.matches(apiOrganizationId, apiId, apiVersion)) {
-                    matchedContract = contract;
-                    break;
-                }
+            ApiContract contract;
+            try {
+                contract = resolveContract(client, api);
+            } catch (RuntimeException e) {
+                handler.handle(AsyncResultImpl.create(e, ApiContract.class));
+                return;
             }
-
-            if (matchedContract == null) {
+            if (contract == null) {
                 Exception error = new NoContractFoundException(Messages.i18n.format("EsRegistry.NoContractFound", //$NON-NLS-1$
                         client.getClientId(), api.getApiId()));
                 handler.handle(AsyncResultImpl.create(error, ApiContract.class));
                 return;
             }
-
-            ApiContract contract = new ApiContract(api, client, matchedContract.getPlan(), matchedContract.getPolicies());
             handler.handle(AsyncResultImpl.create(contract));
-        } catch (Exception e) {
-            handler.handle(AsyncResultImpl.create(e, ApiContract.class));
-        }
+        };
 
+        getClient(apiKey, result -> {
+            clientResult.set(result);
+            if (pending.decrementAndGet() == 0) {
+                resolve.run();
+            }
+        });
+        getApi(apiOrganizationId, apiId, apiVersion, result -> {
+            apiResult.set(result);
+            if (pending.decrementAndGet() == 0) {
+                resolve.run();
+            }
+        });
+    }
+
+    /**
+     * Finds the client's contract with the api.
+     * @param client the client
+     * @param api the api
+     * @return the contract, or null if the client has no contract with the api
+     */
+    protected ApiContract resolveContract(Client client, Api api) {
+        for (Contract contract : client.getContracts()) {
+            if (contract.matches(api.getOrganizationId(), api.getApiId(), api.getVersion())) {
+                return new ApiContract(api, client, contract.getPlan(), contract.getPolicies());
+            }
+        }
+        return null;
     }
 
     @Override
@@ -659,4 +839,30 @@ public class EsRegistry extends AbstractEsComponent implements IRegistry {
         return indexMap;
     }
 
+    /**
+     * Completes an in-flight lookup with the document read by a get request.
+     */
+    private static final class GetListener<T> implements ActionListener<GetResponse> {
+        private final String key;
+        private final InFlightRequests<T> lookups;
+        private final Class<T> type;
+
+        private GetListener(String key, InFlightRequests<T> lookups, Class<T> type) {
+            this.key = key;
+            this.lookups = lookups;
+            this.type = type;
+        }
+
+        @Override
+        public void onResponse(GetResponse response) {
+            // Parsed on the completion thread, not the client's I/O thread
+            lookups.complete(key, () -> response.isExists() ? JSON_MAPPER.readValue(response.getSourceAsString(), type) : null);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            lookups.fail(key, e);
+        }
+    }
+
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncFuture;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Tracks the lookups that are in flight, so that concurrent misses on the same key
+ * share a single query: the first caller issues it, later callers just wait for its
+ * result.
+ * <p>
+ * Results are always delivered on the completion executor, never on the thread that
+ * completed the query. That thread is the client's I/O thread, which must not run the
+ * rest of the request (which may block on the same client).
+ * <p>
+ * Given an execute-blocking component, each handler is instead called back on the
+ * context of the thread that joined the lookup (e.g. its Vert.x event loop), as the
+ * component's result handlers are.
+ *
+ * @param <T> the looked up type
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+final class InFlightRequests<T> {
+
+    private final Map<String, List<IAsyncResultHandler<T>>> inFlight = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private volatile IExecuteBlockingComponent callerContext;
+
+    /**
+     * Constructor.
+     * @param executor the executor that delivers results
+     */
+    InFlightRequests(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param callerContext the component that calls handlers back on their caller's context,
+     *        or null to call them on the completion executor
+     */
+    void setCallerContext(IExecuteBlockingComponent callerContext) {
+        this.callerContext = callerContext;
+    }
+
+    /**
+     * Waits for the result of the lookup of the key.
+     *
+     * @param key the key
+     * @param handler the handler for the result
+     * @return true if no lookup of the key was in flight, so the caller must issue it
+     */
+    boolean join(String key, IAsyncResultHandler<T> handler) {
+        IExecuteBlockingComponent context = callerContext;
+        IAsyncResultHandler<T> waiter = context == null ? handler : CallerContextHandler.capture(context, handler);
+        boolean[] first = { false };
+        inFlight.compute(key, (k, waiting) -> {
+            if (waiting == null) {
+                waiting = new ArrayList<>(1);
+                first[0] = true;
+            }
+            waiting.add(waiter);
+            return waiting;
+        });
+        return first[0];
+    }
+
+    /**
+     * Completes the lookup of the key.  The result is produced, and handed to everyone
+     * waiting for it, on the completion executor.
+     *
+     * @param key the key
+     * @param result produces the result, e.g. by parsing the response
+     */
+    void complete(String key, Callable<T> result) {
+        executor.execute(() -> {
+            IAsyncResult<T> asyncResult;
+            try {
+                asyncResult = AsyncResultImpl.<T>create(result.call());
+            } catch (Exception e) {
+                asyncResult = AsyncResultImpl.<T>create(e);
+            }
+            deliver(key, asyncResult);
+        });
+    }
+
+    /**
+     * Fails the lookup of the key.
+     *
+     * @param key the key
+     * @param error the error
+     */
+    void fail(String key, Throwable error) {
+        executor.execute(() -> deliver(key, AsyncResultImpl.<T>create(error)));
+    }
+
+    private void deliver(String key, IAsyncResult<T> result) {
+        List<IAsyncResultHandler<T>> waiting = inFlight.remove(key);
+        // Later waiters get their own task so one slow handler does not hold up the rest
+        for (int i = 1; i < waiting.size(); i++) {
+            IAsyncResultHandler<T> handler = waiting.get(i);
+            executor.execute(() -> handler.handle(result));
+        }
+        waiting.get(0).handle(result);
+    }
+
+    /**
+     * Hands the result over to a handler on the context it joined from.  The execute-blocking
+     * component calls its result handler on the caller's context, so the "blocking" code only
+     * hands over the future, which the result completes.  Either may come first.
+     */
+    private static final class CallerContextHandler<T> implements IAsyncResultHandler<T> {
+        private IAsyncFuture<T> future;
+        private IAsyncResult<T> result;
+
+        static <T> IAsyncResultHandler<T> capture(IExecuteBlockingComponent context, IAsyncResultHandler<T> handler) {
+            CallerContextHandler<T> captured = new CallerContextHandler<>();
+            context.executeBlocking(captured::handOver, handler);
+            return captured;
+        }
+
+        private void handOver(IAsyncFuture<T> future) {
+            IAsyncResult<T> ready;
+            synchronized (this) {
+                this.future = future;
+                ready = result;
+            }
+            if (ready != null) {
+                complete(future, ready);
+            }
+        }
+
+        @Override
+        public void handle(IAsyncResult<T> result) {
+            IAsyncFuture<T> ready;
+            synchronized (this) {
+                this.result = result;
+                ready = future;
+            }
+            if (ready != null) {
+                complete(ready, result);
+            }
+        }
+
+        private static <T> void complete(IAsyncFuture<T> future, IAsyncResult<T> result) {
+            if (result.isSuccess()) {
+                future.completed(result.getResult());
+            } else {
+                future.fail(result.getError());
+            }
+        }
+    }
+}
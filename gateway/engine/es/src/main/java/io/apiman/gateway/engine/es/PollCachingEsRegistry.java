@@ -24,15 +24,28 @@ import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.impl.RegistryChangeLog;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
 /**
  * Extends the {@link EsRegistry} to provide multi-node caching.  This caching solution
@@ -41,6 +54,20 @@ import org.elasticsearch.client.RequestOptions;
  * elasticsearch.  The registry utilizes a thread to periodically poll the ES store to
  * check if the data has been changed.  If the data *has* been changed, then the cache
  * is invalidated.
+ * <p>
+ * With <code>cache-polling-mode=incremental</code> every change is instead recorded in a
+ * change log index, and the poller reloads only the apis and clients changed since its
+ * last poll, replacing them in the cache in place.  The whole cache is only invalidated
+ * if the log cannot be trusted to be complete: the last successful poll is older than
+ * <code>cache-changelog-retention</code>, or more changes than can sensibly be applied
+ * one by one are pending.  Entries are read back with an overlap of
+ * <code>cache-changelog-overlap</code> to allow for clock skew between nodes and for the
+ * index refresh interval.  A change that cannot be logged bumps the data version record
+ * instead, which invalidates every node's cache.  All nodes of a cluster must use the
+ * same mode.
+ * <p>
+ * With <code>cache-prewarm=true</code> all apis and clients are loaded into the cache
+ * when the registry starts.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -51,6 +78,8 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
 
     private final int pollIntervalMillis;
     private final int startupDelayMillis;
+    private final boolean prewarm;
+    private final RegistryChangeLog changeLog;
 
     private boolean polling = false;
     private String dataVersion = null;
@@ -79,6 +108,9 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
             startupDelayMillis = DEFAULT_STARTUP_DELAY * 1000;
         }
 
+        prewarm = "true".equalsIgnoreCase(config.get("cache-prewarm")); //$NON-NLS-1$ //$NON-NLS-2$
+        changeLog = new EsChangeLog(config);
+
         startCacheInvalidator();
     }
 
@@ -91,7 +123,7 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.apiChanged(api);
                 }
                 handler.handle(result);
             }
@@ -107,7 +139,7 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.apiChanged(api);
                 }
                 handler.handle(result);
             }
@@ -126,7 +158,7 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.clientChanged(client, true);
                 }
                 handler.handle(result);
             }
@@ -142,7 +174,7 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.clientChanged(client, false);
                 }
                 handler.handle(result);
             }
@@ -181,13 +213,22 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
+                changeLog.start();
+                if (prewarm) {
+                    prewarm();
+                }
+
                 // Wait for 30s on startup before starting to poll.
                 try { Thread.sleep(startupDelayMillis); } catch (InterruptedException e1) { e1.printStackTrace(); }
 
                 while (polling) {
                     try {
                         Thread.sleep(pollIntervalMillis);
-                        checkCacheVersion();
+                        if (changeLog.isIncremental()) {
+                            syncChanges();
+                        } else {
+                            checkCacheVersion();
+                        }
                     } catch (Exception e) {
                         LOGGER.error(e.getMessage(), e);
                     }
@@ -227,6 +268,32 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
         }
     }
 
+    /**
+     * Loads the whole registry into the cache.  In full polling mode the current data
+     * version is read first, so that the first poll does not throw the loaded cache away.
+     */
+    protected void prewarm() {
+        try {
+            if (!changeLog.isIncremental()) {
+                GetResponse result = getClient().get(new GetRequest(getIndexPrefix() + EsConstants.INDEX_DATA_VERSION, "instance"), RequestOptions.DEFAULT); //$NON-NLS-1$
+                if (result.isExists()) {
+                    dataVersion = Long.toString(result.getVersion());
+                }
+            }
+            prewarmCache();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Problem encountered while prewarming the registry cache: " + e.getMessage(), e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Syncs the cache with the changes made since the last sync.
+     * @see RegistryChangeLog#sync()
+     */
+    protected void syncChanges() {
+        changeLog.sync();
+    }
+
     @Override
     public Map<String, EsIndexProperties> getEsIndices() {
         Map<String, EsIndexProperties> indexes = super.getEsIndices();
@@ -237,6 +304,110 @@ public class PollCachingEsRegistry extends CachingEsRegistry {
                 .addProperty(EsConstants.ES_FIELD_VERSION, EsIndexUtils.LONG_PROP)
             .build()
         );
+        indexes.put(EsConstants.INDEX_CHANGE_LOG,
+            EsIndexProperties.builder()
+                .addProperty(EsConstants.ES_FIELD_TYPE, EsIndexUtils.KEYWORD_PROP)
+                .addProperty(EsConstants.ES_FIELD_ORGANIZATION_ID, EsIndexUtils.KEYWORD_PROP)
+                .addProperty(EsConstants.ES_FIELD_ID, EsIndexUtils.KEYWORD_PROP)
+                .addProperty(EsConstants.ES_FIELD_VERSION, EsIndexUtils.KEYWORD_PROP)
+                .addProperty(EsConstants.ES_FIELD_API_KEY, EsIndexUtils.KEYWORD_PROP)
+                .addProperty(EsConstants.ES_FIELD_UPDATED_ON, EsIndexUtils.DATE_PROP)
+            .build()
+        );
         return indexes;
     }
+
+    /**
+     * The change log, kept in its own index.
+     */
+    private class EsChangeLog extends RegistryChangeLog {
+
+        private EsChangeLog(Map<String, String> config) {
+            super(config);
+        }
+
+        @Override
+        protected void append(Change change, long changedOn, long pruneBefore) {
+            String index = getIndexPrefix() + EsConstants.INDEX_CHANGE_LOG;
+
+            Map<String, Object> source = new HashMap<>();
+            source.put(EsConstants.ES_FIELD_TYPE, change.getType());
+            source.put(EsConstants.ES_FIELD_ORGANIZATION_ID, change.getOrgId());
+            source.put(EsConstants.ES_FIELD_ID, change.getId());
+            source.put(EsConstants.ES_FIELD_VERSION, change.getVersion());
+            source.put(EsConstants.ES_FIELD_API_KEY, change.getApiKey());
+            source.put(EsConstants.ES_FIELD_UPDATED_ON, changedOn);
+
+            getClient().indexAsync(new IndexRequest(index).source(source), RequestOptions.DEFAULT, new ActionListener<IndexResponse>() {
+                @Override
+                public void onResponse(IndexResponse response) {
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    appendFailed(e);
+                }
+            });
+
+            DeleteByQueryRequest prune = new DeleteByQueryRequest(index)
+                    .setQuery(QueryBuilders.rangeQuery(EsConstants.ES_FIELD_UPDATED_ON).lt(pruneBefore));
+            getClient().deleteByQueryAsync(prune, RequestOptions.DEFAULT, new ActionListener<BulkByScrollResponse>() {
+                @Override
+                public void onResponse(BulkByScrollResponse response) {
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    LOGGER.warn("Problem encountered while pruning the registry change log: " + e.getMessage()); //$NON-NLS-1$
+                }
+            });
+        }
+
+        @Override
+        protected List<Change> readSince(long since, int limit) throws IOException {
+            SearchSourceBuilder query = new SearchSourceBuilder()
+                    .query(QueryBuilders.rangeQuery(EsConstants.ES_FIELD_UPDATED_ON).gte(since))
+                    .sort(EsConstants.ES_FIELD_UPDATED_ON, SortOrder.ASC)
+                    .size(limit);
+            SearchResponse response = getClient().search(new SearchRequest(getIndexPrefix() + EsConstants.INDEX_CHANGE_LOG)
+                    .source(query), RequestOptions.DEFAULT);
+
+            List<Change> changes = new ArrayList<>();
+            for (SearchHit hit : response.getHits().getHits()) {
+                Map<String, Object> source = hit.getSourceAsMap();
+                changes.add(new Change((String) source.get(EsConstants.ES_FIELD_TYPE),
+                        (String) source.get(EsConstants.ES_FIELD_ORGANIZATION_ID),
+                        (String) source.get(EsConstants.ES_FIELD_ID),
+                        (String) source.get(EsConstants.ES_FIELD_VERSION),
+                        (String) source.get(EsConstants.ES_FIELD_API_KEY)));
+            }
+            return changes;
+        }
+
+        @Override
+        protected long readDataVersion() throws IOException {
+            GetResponse result = getClient().get(new GetRequest(getIndexPrefix() + EsConstants.INDEX_DATA_VERSION, "instance"), RequestOptions.DEFAULT); //$NON-NLS-1$
+            return result.isExists() ? result.getVersion() : -1;
+        }
+
+        @Override
+        protected void updateDataVersion() {
+            PollCachingEsRegistry.this.updateDataVersion();
+        }
+
+        @Override
+        protected void invalidateCache() {
+            PollCachingEsRegistry.this.invalidateCache();
+        }
+
+        @Override
+        protected void refreshApi(String orgId, String apiId, String version) {
+            PollCachingEsRegistry.this.refreshApi(orgId, apiId, version);
+        }
+
+        @Override
+        protected void refreshClient(String orgId, String clientId, String version, String apiKey) {
+            PollCachingEsRegistry.this.refreshClient(orgId, clientId, version, apiKey);
+        }
+    }
 }
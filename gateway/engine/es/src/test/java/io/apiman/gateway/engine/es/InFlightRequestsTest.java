@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.es;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.apiman.gateway.engine.async.IAsyncFuture;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.components.IExecuteBlockingComponent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link InFlightRequests}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class InFlightRequestsTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final InFlightRequests<String> lookups = new InFlightRequests<>(tasks::add);
+
+    @Test
+    public void concurrentLookupsShareOneResult() {
+        List<IAsyncResult<String>> results = new ArrayList<>();
+        assertTrue(lookups.join("key", results::add));
+        assertFalse(lookups.join("key", results::add));
+        assertTrue(lookups.join("other", results::add));
+
+        int[] calls = { 0 };
+        lookups.complete("key", () -> "value" + ++calls[0]);
+        runTasks();
+        assertEquals(1, calls[0]);
+        assertEquals(2, results.size());
+        assertEquals("value1", results.get(0).getResult());
+        assertSame(results.get(0).getResult(), results.get(1).getResult());
+
+        // The key is free again once delivered
+        assertTrue(lookups.join("key", results::add));
+    }
+
+    @Test
+    public void failureIsDeliveredToEveryWaiter() {
+        List<IAsyncResult<String>> results = new ArrayList<>();
+        lookups.join("key", results::add);
+        lookups.join("key", results::add);
+
+        Exception error = new Exception("refused");
+        lookups.fail("key", error);
+        assertTrue(results.isEmpty());
+        runTasks();
+        assertEquals(2, results.size());
+        for (IAsyncResult<String> result : results) {
+            assertTrue(result.isError());
+            assertSame(error, result.getError());
+        }
+    }
+
+    @Test
+    public void resultThatCannotBeProducedIsAnError() {
+        List<IAsyncResult<String>> results = new ArrayList<>();
+        lookups.join("key", results::add);
+
+        IllegalStateException error = new IllegalStateException("unreadable");
+        lookups.complete("key", () -> {
+            throw error;
+        });
+        runTasks();
+        assertSame(error, results.get(0).getError());
+    }
+
+    @Test
+    public void handlersAreCalledBackOnTheirCallerContext() {
+        CallerContext context = new CallerContext();
+        lookups.setCallerContext(context);
+        List<String> handled = new ArrayList<>();
+        lookups.join("key", result -> handled.add("first:" + result.getResult()));
+        lookups.join("key", result -> handled.add("second:" + result.getResult()));
+
+        // The result may arrive before the component has run the "blocking" code...
+        lookups.complete("key", () -> "value");
+        runTasks();
+        assertTrue(handled.isEmpty());
+        context.runBlockingCode();
+        assertTrue(handled.isEmpty());
+        context.runCallbacks();
+        assertEquals(2, handled.size());
+        assertTrue(handled.contains("first:value"));
+        assertTrue(handled.contains("second:value"));
+
+        // ...or after it
+        lookups.join("key", result -> handled.add("third:" + result.getError().getMessage()));
+        context.runBlockingCode();
+        lookups.fail("key", new Exception("refused"));
+        runTasks();
+        assertEquals(2, handled.size());
+        context.runCallbacks();
+        assertEquals("third:refused", handled.get(2));
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    /**
+     * Like the Vert.x component: runs blocking code elsewhere, and queues the result handler
+     * to run on the caller's context.
+     */
+    private static final class CallerContext implements IExecuteBlockingComponent {
+        private final List<Runnable> blockingCode = new ArrayList<>();
+        private final List<Runnable> callbacks = new ArrayList<>();
+
+        @Override
+        public <T> void executeBlocking(IAsyncHandler<IAsyncFuture<T>> code, IAsyncResultHandler<T> resultHandler) {
+            IAsyncFuture<T> future = IAsyncFuture.<T>create()
+                    .setActionHandler(result -> callbacks.add(() -> resultHandler.handle(result)));
+            blockingCode.add(() -> code.handle(future));
+        }
+
+        private void runBlockingCode() {
+            blockingCode.forEach(Runnable::run);
+            blockingCode.clear();
+        }
+
+        private void runCallbacks() {
+            callbacks.forEach(Runnable::run);
+            callbacks.clear();
+        }
+    }
+}
@@ -34,7 +34,7 @@ public class HazelcastRateLimiterComponent extends AbstractRateLimiterComponent
      * Constructor.
      */
     public HazelcastRateLimiterComponent(Map<String, String> componentConfig) {
-        super(new HazelcastBackingStoreProvider());
+        super(new HazelcastBackingStoreProvider(), componentConfig);
         this.componentConfig = componentConfig;
     }
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.hazelcast.common;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.map.IMap;
+import io.apiman.gateway.engine.storage.store.IAtomicCounterStore;
+import io.apiman.gateway.engine.storage.store.IBinaryStore;
+import io.apiman.gateway.engine.storage.store.MapBackingStore;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A backing store that uses a Hazelcast {@link IMap}. Counters are updated by
+ * an entry processor, which runs on the member that owns the key, so each
+ * update is atomic and takes a single round trip. Byte values are stored as
+ * they are, which Hazelcast serializes without further encoding.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class HazelcastBackingStore extends MapBackingStore implements IAtomicCounterStore, IBinaryStore {
+    private final IMap<String, Object> map;
+
+    public HazelcastBackingStore(IMap<String, Object> map) {
+        super(map);
+        this.map = map;
+    }
+
+    @Override
+    public void putBytes(String key, byte[] value, long ttl) {
+        map.set(key, value, ttl, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        final Object value = map.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public long addUnlessAbove(String key, long increment, long ceiling, long expiresAt) {
+        return map.executeOnKey(key, new AddUnlessAboveProcessor(increment, ceiling, expiresAt));
+    }
+
+    /**
+     * Must be on the classpath of every member, like the rest of this module.
+     */
+    private static final class AddUnlessAboveProcessor implements EntryProcessor<String, Object, Long> {
+        private static final long serialVersionUID = -2925362214632436853L;
+
+        private final long increment;
+        private final long ceiling;
+        private final long expiresAt;
+
+        private AddUnlessAboveProcessor(long increment, long ceiling, long expiresAt) {
+            this.increment = increment;
+            this.ceiling = ceiling;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public Long process(Map.Entry<String, Object> entry) {
+            final Object value = entry.getValue();
+            final long current = value instanceof Long ? (Long) value : 0L;
+            if (current > ceiling || increment == 0) {
+                return current;
+            }
+            final long ttl = Math.max(1L, expiresAt - System.currentTimeMillis());
+            ((ExtendedMapEntry<String, Object>) entry).setValue(current + increment, ttl, TimeUnit.MILLISECONDS);
+            return current;
+        }
+    }
+}
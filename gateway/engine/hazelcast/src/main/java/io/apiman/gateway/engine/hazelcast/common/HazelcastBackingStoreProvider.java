@@ -15,15 +15,15 @@
  */
 package io.apiman.gateway.engine.hazelcast.common;
 
+import com.hazelcast.map.IMap;
 import io.apiman.gateway.engine.storage.store.IBackingStoreProvider;
-import io.apiman.gateway.engine.storage.store.MapBackingStore;
 
 /**
  * Store provider for components backed by a Hazelcast Map.
  *
  * @author Pete Cornish
  */
-public class HazelcastBackingStoreProvider implements IBackingStoreProvider<MapBackingStore> {
+public class HazelcastBackingStoreProvider implements IBackingStoreProvider<HazelcastBackingStore> {
     public static final String CONFIG_EAGER_INIT = "eager-init";
 
     private final HazelcastInstanceManager instanceManager;
@@ -47,8 +47,9 @@ public class HazelcastBackingStoreProvider implements IBackingStoreProvider<MapB
      *
      * @return the store
      */
+    @SuppressWarnings("unchecked")
     @Override
-    public MapBackingStore get(String storeName) {
-        return new MapBackingStore(instanceManager.getHazelcastMap(storeName));
+    public HazelcastBackingStore get(String storeName) {
+        return new HazelcastBackingStore((IMap<String, Object>) instanceManager.<Object>getHazelcastMap(storeName));
     }
 }
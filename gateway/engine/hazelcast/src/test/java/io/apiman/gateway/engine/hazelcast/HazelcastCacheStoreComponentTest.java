@@ -26,7 +26,11 @@ import io.apiman.gateway.engine.io.ISignalWriteStream;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
@@ -80,4 +84,34 @@ public class HazelcastCacheStoreComponentTest {
             assertEquals(cacheHead, readStream.getHead());
         });
     }
+
+    @Test
+    public void putAndGetChunkedBinaryFromCluster() throws Exception {
+        final String cacheKey = "cacheKeyChunked";
+        final byte[] cacheBody = new byte[600 * 1024];
+        for (int i = 0; i < cacheBody.length; i++) {
+            cacheBody[i] = (byte) i;
+        }
+
+        final ISignalWriteStream writeStream = component.putBinary(cacheKey, "cacheHead", 120);
+        for (int offset = 0; offset < cacheBody.length; offset += 64 * 1024) {
+            final byte[] chunk = new byte[64 * 1024];
+            System.arraycopy(cacheBody, offset, chunk, 0, chunk.length);
+            writeStream.write(new ByteBuffer(chunk));
+        }
+        writeStream.end();
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicInteger ends = new AtomicInteger();
+        component.getBinary(cacheKey, String.class, result -> {
+            assertFalse("Result should be retrieved successfully from initial member", result.isError());
+
+            final ISignalReadStream<String> readStream = result.getResult();
+            readStream.bodyHandler(bodyResult -> received.write(bodyResult.getBytes(), 0, bodyResult.length()));
+            readStream.endHandler(endResult -> ends.incrementAndGet());
+            readStream.transmit();
+        });
+        assertArrayEquals(cacheBody, received.toByteArray());
+        assertEquals(1, ends.get());
+    }
 }
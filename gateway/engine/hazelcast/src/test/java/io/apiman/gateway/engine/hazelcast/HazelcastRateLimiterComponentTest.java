@@ -19,10 +19,16 @@ import com.hazelcast.config.Config;
 import io.apiman.gateway.engine.hazelcast.common.HazelcastInstanceManager;
 import io.apiman.gateway.engine.hazelcast.support.HazelcastConfigUtil;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
+import io.apiman.gateway.engine.storage.component.AbstractRateLimiterComponent;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -65,4 +71,28 @@ public class HazelcastRateLimiterComponentTest {
             assertFalse(result.getResult().isAccepted());
         });
     }
+
+    @Test
+    public void updateBucket_ConcurrentCallersNeverExceedLimit() throws Exception {
+        component = new HazelcastRateLimiterComponent(singletonMap(AbstractRateLimiterComponent.CONFIG_ATOMIC, "true"));
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    component.accept("concurrentBucketId", RateBucketPeriod.Hour, 100, 1, result -> {
+                        if (result.getResult().isAccepted()) {
+                            accepted.incrementAndGet();
+                        }
+                    });
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Exactly the limit should be accepted", 100, accepted.get());
+    }
 }
@@ -88,12 +88,35 @@ public class InfluxDb09Driver {
      */
     public void write(String lineDocument,
             final IAsyncHandler<InfluxException> failureHandler) {
+        write(lineDocument, failureHandler, null);
+    }
+
+    /**
+     * Simple write to "/write". Must be valid Influx line format; multiple points
+     * can be written at once by separating them with newlines.
+     *
+     * @param lineDocument document to write, as string
+     * @param failureHandler handler in case of failure
+     * @param completionHandler handler called once the write has finished, whether or not
+     *        it succeeded (may be null)
+     */
+    public void write(String lineDocument,
+            final IAsyncHandler<InfluxException> failureHandler,
+            final IAsyncHandler<Void> completionHandler) {
         // Make request to influx
         IHttpClientRequest request = httpClient.request(writeUrl.toString(), HttpMethod.POST,
                 result -> {
-                    if (result.isError() || result.getResult().getResponseCode() < 200
-                            || result.getResult().getResponseCode() > 299) {
-                        failureHandler.handle(new InfluxException(result.getResult()));
+                    try {
+                        if (result.isError()) {
+                            failureHandler.handle(new InfluxException(result.getError()));
+                        } else if (result.getResult().getResponseCode() < 200
+                                || result.getResult().getResponseCode() > 299) {
+                            failureHandler.handle(new InfluxException(result.getResult()));
+                        }
+                    } finally {
+                        if (completionHandler != null) {
+                            completionHandler.handle(null);
+                        }
                     }
                 });
         // For some reason Java's URLEncoding doesn't seem to be parseable by influx?
@@ -21,8 +21,10 @@ import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.IRequiresInitialization;
 import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
 import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IHttpClientComponent;
+import io.apiman.gateway.engine.components.IPeriodicComponent;
 import io.apiman.gateway.engine.components.http.IHttpClientResponse;
 import io.apiman.gateway.engine.i18n.Messages;
 import io.apiman.gateway.engine.metrics.RequestMetric;
@@ -34,9 +36,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * InfluxDB 0.9.x metrics implementation
+ * <p>
+ * By default every metric is sent to Influx in its own write. Setting
+ * {@code batch.size} above 1 instead collects points into a shared buffer and
+ * writes them as a single multi-line document once the batch is full, or once
+ * {@code batch.interval} milliseconds have passed since the last write. At most
+ * {@code batch.max-pending} points are held in memory and at most
+ * {@code batch.max-in-flight} writes are outstanding at once; points arriving
+ * while the buffer is full are dropped and counted.
  *
  * @author Marc Savy <msavy@redhat.com>
  */
@@ -50,7 +62,10 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private static final String RETENTION_POLICY = "retentionPolicy";
     private static final String SERIES_NAME = "measurement";
     private static final String TIMEPRECISION = "ms";
-
+    private static final String BATCH_SIZE = "batch.size";
+    private static final String BATCH_INTERVAL = "batch.interval";
+    private static final String BATCH_MAX_PENDING = "batch.max-pending";
+    private static final String BATCH_MAX_IN_FLIGHT = "batch.max-in-flight";
 
     private static final Map<String, String> DEFAULT_TAGS = new LinkedHashMap<>();
     static {
@@ -67,6 +82,20 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     private final String username;
     private final String password;
 
+    private final int batchSize;
+    private final long batchInterval;
+    private final int maxPending;
+    private final int maxInFlight;
+    private IPeriodicComponent periodic;
+
+    // Guarded by itself; only appends happen under the lock, never I/O
+    private final StringBuilder batch;
+    private int batchedPoints;
+    private long lastFlush = System.currentTimeMillis();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong droppedPoints = new AtomicLong();
+    private final AtomicLong failedPoints = new AtomicLong();
+
     /**
      * Constructor.
      * @param config plugin configuration options
@@ -78,6 +107,11 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         this.seriesName = getMandatoryString(config, SERIES_NAME);
         this.username = getOptionalString(config, USER, null);
         this.password = getOptionalString(config, PWORD, null);
+        this.batchSize = getOptionalInt(config, BATCH_SIZE, 1);
+        this.batchInterval = getOptionalInt(config, BATCH_INTERVAL, 1000);
+        this.maxPending = Math.max(batchSize, getOptionalInt(config, BATCH_MAX_PENDING, batchSize * 10));
+        this.maxInFlight = getOptionalInt(config, BATCH_MAX_IN_FLIGHT, 4);
+        this.batch = isBatching() ? new StringBuilder(batchSize * 500) : null;
     }
 
     /**
@@ -92,6 +126,10 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
             throw new ConfigurationParseException(Messages.i18n.format(
                     "InfluxDb09Metrics.databaseDoesNotExist", dbName));
         }
+
+        if (isBatching() && periodic != null) {
+            periodic.setPeriodicTimer(batchInterval, batchInterval, id -> flush(false));
+        }
     }
 
 
@@ -101,6 +139,14 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
     @Override
     public void setComponentRegistry(IComponentRegistry registry) {
         this.httpClient = registry.getComponent(IHttpClientComponent.class);
+        if (isBatching()) {
+            try {
+                this.periodic = registry.getComponent(IPeriodicComponent.class);
+            } catch (ComponentNotFoundException e) {
+                // Partial batches are then only flushed when the next metric arrives
+                LOGGER.debug("No periodic component available, Influx batches will be flushed on write");
+            }
+        }
     }
 
     /**
@@ -108,24 +154,124 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
      */
     @Override
     public void record(RequestMetric metric) {
-        driver.write(buildRequest(metric),
-                (InfluxException result) -> {
-                    if (result.isBadResponse()) {
-                        IHttpClientResponse response = result.getResponse();
-                        LOGGER.error(result,
-                            "Influx stats error. Code: {0} with message: {1}",
-                            response.getResponseCode(),
-                            response.getResponseMessage());
-                    } else {
-                        LOGGER.error(result.getMessage(), result);
-                    }
+        if (!isBatching()) {
+            driver.write(buildRequest(metric), this::logFailure);
+            return;
+        }
+
+        synchronized (batch) {
+            if (batchedPoints >= maxPending) {
+                droppedPoints.incrementAndGet();
+                return;
+            }
+            int mark = batch.length();
+            try {
+                if (batchedPoints > 0) {
+                    batch.append('\n');
+                }
+                appendPoint(metric, batch);
+            } catch (RuntimeException e) {
+                batch.setLength(mark);
+                throw e;
+            }
+            batchedPoints++;
+        }
+        flush(true);
+    }
+
+    /**
+     * Writes the buffered points, if there are any and a write slot is free.
+     *
+     * @param onlyIfDue only write if a full batch is buffered or the interval has elapsed
+     */
+    private void flush(boolean onlyIfDue) {
+        String document;
+        int points;
+        synchronized (batch) {
+            if (batchedPoints == 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (onlyIfDue && batchedPoints < batchSize && now - lastFlush < batchInterval) {
+                return;
+            }
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                // Keep buffering; the write that completes next picks these points up
+                inFlight.decrementAndGet();
+                return;
+            }
+            document = batch.toString();
+            points = batchedPoints;
+            batch.setLength(0);
+            batchedPoints = 0;
+            lastFlush = now;
+        }
+
+        driver.write(document,
+                result -> {
+                    failedPoints.addAndGet(points);
+                    logFailure(result);
+                },
+                done -> {
+                    inFlight.decrementAndGet();
+                    flush(true);
                 });
     }
 
+    private void logFailure(InfluxException result) {
+        if (result.isBadResponse()) {
+            IHttpClientResponse response = result.getResponse();
+            LOGGER.error(result,
+                "Influx stats error. Code: {0} with message: {1}",
+                response.getResponseCode(),
+                response.getResponseMessage());
+        } else {
+            LOGGER.error(result.getMessage(), result);
+        }
+    }
+
+    private boolean isBatching() {
+        return batchSize > 1;
+    }
+
+    /**
+     * @return the number of points dropped because the batch buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedPoints.get();
+    }
+
+    /**
+     * @return the number of batched points lost to failed writes
+     */
+    public long getFailedCount() {
+        return failedPoints.get();
+    }
+
+    /**
+     * @return the number of points currently buffered
+     */
+    public int getPendingCount() {
+        if (!isBatching()) {
+            return 0;
+        }
+        synchronized (batch) {
+            return batchedPoints;
+        }
+    }
+
     protected String buildRequest(RequestMetric metric) {
         // TODO: calculate capacity more accurately
         StringBuilder sb = new StringBuilder(500);
+        appendPoint(metric, sb);
+        return sb.toString();
+    }
 
+    /**
+     * Appends the metric to the builder as a single line-protocol point, without
+     * a trailing newline.
+     */
+    protected void appendPoint(RequestMetric metric, StringBuilder sb) {
         // Series name, followed by comma
         sb.append(seriesName).append(",");
 
@@ -168,8 +314,6 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
 
         // Timestamp in milliseconds. Newline would be needed after this point for batching.
         sb.append(System.currentTimeMillis());
-
-        return sb.toString();
     }
 
     private void write(String tagname, String tagValue, StringBuilder sb) {
@@ -202,6 +346,22 @@ public class InfluxDb09Metrics implements IMetrics, IRequiresInitialization {
         return config.getOrDefault(key, dValue);
     }
 
+    private int getOptionalInt(Map<String, String> config, String key, int dValue) {
+        String value = config.get(key);
+        if (value == null) {
+            return dValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 1) {
+                throw new ConfigurationParseException(key + " must be greater than zero, but was " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new ConfigurationParseException(key + " must be a number, but was " + value, e);
+        }
+    }
+
     private List<String> listDatabases() {
         final CountDownLatch endSignal = new CountDownLatch(1);
         final List<String> results = new ArrayList<>();
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.influxdb;
+
+import io.apiman.gateway.engine.IComponent;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
+import io.apiman.gateway.engine.components.IHttpClientComponent;
+import io.apiman.gateway.engine.components.IPeriodicComponent;
+import io.apiman.gateway.engine.components.http.HttpMethod;
+import io.apiman.gateway.engine.components.http.IHttpClientRequest;
+import io.apiman.gateway.engine.components.http.IHttpClientResponse;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.metrics.RequestMetric;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the batched writes of {@link InfluxDb09Metrics}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class InfluxDb09MetricsTest {
+
+    private final FakeInfluxClient influx = new FakeInfluxClient();
+    private final FakePeriodic periodic = new FakePeriodic();
+
+    @Test
+    public void flushesWhenBatchIsFull() {
+        InfluxDb09Metrics metrics = createMetrics("3", "60000", true);
+
+        metrics.record(metric());
+        metrics.record(metric());
+        Assert.assertEquals(0, influx.writes.size());
+        Assert.assertEquals(2, metrics.getPendingCount());
+
+        metrics.record(metric());
+        Assert.assertEquals(1, influx.writes.size());
+        Assert.assertEquals(3, influx.writes.get(0).split("\n").length);
+        Assert.assertEquals(0, metrics.getPendingCount());
+        Assert.assertEquals(0, metrics.getFailedCount());
+    }
+
+    @Test
+    public void flushesPartialBatchOnTimer() throws Exception {
+        InfluxDb09Metrics metrics = createMetrics("10", "50", true);
+        Assert.assertEquals(50L, periodic.period);
+
+        metrics.record(metric());
+        Assert.assertEquals(0, influx.writes.size());
+
+        Thread.sleep(60);
+        periodic.fire();
+        Assert.assertEquals(1, influx.writes.size());
+        Assert.assertEquals(1, influx.writes.get(0).split("\n").length);
+        Assert.assertEquals(0, metrics.getPendingCount());
+
+        // Nothing left to write
+        periodic.fire();
+        Assert.assertEquals(1, influx.writes.size());
+    }
+
+    @Test
+    public void flushesPartialBatchOnNextRecordWithoutTimer() throws Exception {
+        InfluxDb09Metrics metrics = createMetrics("10", "50", false);
+
+        metrics.record(metric());
+        Assert.assertEquals(0, influx.writes.size());
+
+        Thread.sleep(60);
+        metrics.record(metric());
+        Assert.assertEquals(1, influx.writes.size());
+        Assert.assertEquals(2, influx.writes.get(0).split("\n").length);
+        Assert.assertEquals(0, metrics.getPendingCount());
+    }
+
+    private InfluxDb09Metrics createMetrics(String batchSize, String batchInterval, boolean withPeriodic) {
+        Map<String, String> config = new HashMap<>();
+        config.put("endpoint", "localhost:8086");
+        config.put("database", "apiman");
+        config.put("measurement", "requests");
+        config.put("batch.size", batchSize);
+        config.put("batch.interval", batchInterval);
+
+        InfluxDb09Metrics metrics = new InfluxDb09Metrics(config);
+        metrics.setComponentRegistry(new TestComponentRegistry(withPeriodic));
+        metrics.initialize();
+        return metrics;
+    }
+
+    private static RequestMetric metric() {
+        Date now = new Date();
+        RequestMetric metric = new RequestMetric();
+        metric.setRequestStart(now);
+        metric.setRequestEnd(now);
+        metric.setApiStart(now);
+        metric.setApiEnd(now);
+        metric.setApiOrgId("Org");
+        metric.setApiId("Api");
+        metric.setApiVersion("1.0");
+        metric.setMethod("GET");
+        metric.setResponseCode(200);
+        return metric;
+    }
+
+    private class TestComponentRegistry implements IComponentRegistry {
+        private final Map<Class<?>, IComponent> components = new HashMap<>();
+
+        TestComponentRegistry(boolean withPeriodic) {
+            components.put(IHttpClientComponent.class, influx);
+            if (withPeriodic) {
+                components.put(IPeriodicComponent.class, periodic);
+            }
+        }
+
+        @Override
+        public Collection<IComponent> getComponents() {
+            return components.values();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends IComponent> T getComponent(Class<T> componentType) throws ComponentNotFoundException {
+            if (!components.containsKey(componentType)) {
+                throw new ComponentNotFoundException(componentType.getName());
+            }
+            return (T) components.get(componentType);
+        }
+    }
+
+    /**
+     * Answers the database query and records the body of every write.
+     */
+    private static class FakeInfluxClient implements IHttpClientComponent {
+        private final List<String> writes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public IHttpClientRequest request(String endpoint, HttpMethod method,
+                IAsyncResultHandler<IHttpClientResponse> responseHandler) {
+            return new IHttpClientRequest() {
+                private final StringBuilder body = new StringBuilder();
+
+                @Override
+                public void setConnectTimeout(int timeout) {
+                }
+
+                @Override
+                public void setReadTimeout(int timeout) {
+                }
+
+                @Override
+                public void addHeader(String headerName, String headerValue) {
+                }
+
+                @Override
+                public void removeHeader(String headerName) {
+                }
+
+                @Override
+                public void write(IApimanBuffer buffer) {
+                    body.append(buffer.toString());
+                }
+
+                @Override
+                public void write(byte[] data) {
+                    body.append(new String(data));
+                }
+
+                @Override
+                public void write(String data, String charsetName) {
+                    body.append(data);
+                }
+
+                @Override
+                public void end() {
+                    if (method == HttpMethod.GET) {
+                        responseHandler.handle(AsyncResultImpl.create(
+                                response(200, "{\"results\":[{\"series\":[{\"values\":[[\"apiman\"]]}]}]}")));
+                    } else {
+                        writes.add(body.toString());
+                        responseHandler.handle(AsyncResultImpl.create(response(204, "")));
+                    }
+                }
+            };
+        }
+
+        private static IHttpClientResponse response(int code, String body) {
+            return new IHttpClientResponse() {
+                @Override
+                public int getResponseCode() {
+                    return code;
+                }
+
+                @Override
+                public String getResponseMessage() {
+                    return "OK";
+                }
+
+                @Override
+                public String getHeader(String headerName) {
+                    return null;
+                }
+
+                @Override
+                public String getBody() {
+                    return body;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Holds on to the periodic handler so the test can fire it.
+     */
+    private static class FakePeriodic implements IPeriodicComponent {
+        private long period;
+        private IAsyncHandler<Long> handler;
+
+        @Override
+        public long setPeriodicTimer(long periodMillis, long initialDelayMillis, IAsyncHandler<Long> periodicHandler) {
+            this.period = periodMillis;
+            this.handler = periodicHandler;
+            return 1;
+        }
+
+        @Override
+        public long setOneshotTimer(long deltaMillis, IAsyncHandler<Long> timerHandler) {
+            return 2;
+        }
+
+        @Override
+        public void cancelTimer(long timerId) {
+        }
+
+        @Override
+        public void cancelAll() {
+        }
+
+        void fire() {
+            handler.handle(1L);
+        }
+    }
+
+}
@@ -15,15 +15,21 @@
  */
 package io.apiman.gateway.engine.ispn;
 
+import io.apiman.gateway.engine.storage.store.IAtomicCounterStore;
 import io.apiman.gateway.engine.storage.store.IBackingStore;
+import io.apiman.gateway.engine.storage.store.IBinaryStore;
 import org.infinispan.Cache;
 
 import java.util.concurrent.TimeUnit;
 
 /**
  * Store provider for components backed by an Infinispan cache.
+ * <p>
+ * Counters are updated with conditional (compare-and-swap) writes, which
+ * Infinispan applies atomically on the key's owner. Byte values are stored as
+ * they are.
  */
-public class InfinispanBackingStore implements IBackingStore {
+public class InfinispanBackingStore implements IBackingStore, IAtomicCounterStore, IBinaryStore {
     private final Cache<Object, Object> cache;
 
     public InfinispanBackingStore(Cache<Object, Object> cache) {
@@ -55,4 +61,33 @@ public class InfinispanBackingStore implements IBackingStore {
     public boolean containsKey(String key) {
         return cache.containsKey(key);
     }
+
+    @Override
+    public void putBytes(String key, byte[] value, long ttl) {
+        cache.put(key, value, ttl, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        final Object value = cache.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public long addUnlessAbove(String key, long increment, long ceiling, long expiresAt) {
+        for (;;) {
+            final Object value = cache.get(key);
+            final long current = value instanceof Long ? (Long) value : 0L;
+            if (current > ceiling || increment == 0) {
+                return current;
+            }
+            final long lifespan = Math.max(1L, expiresAt - System.currentTimeMillis());
+            final boolean updated = value == null
+                    ? cache.putIfAbsent(key, current + increment, lifespan, TimeUnit.MILLISECONDS) == null
+                    : cache.replace(key, value, current + increment, lifespan, TimeUnit.MILLISECONDS);
+            if (updated) {
+                return current;
+            }
+        }
+    }
 }
@@ -43,6 +43,6 @@ public class InfinispanRateLimiterComponent extends AbstractRateLimiterComponent
      * @param config the config
      */
     public InfinispanRateLimiterComponent(Map<String, String> config) {
-        super(new InfinispanBackingStoreProvider(config, DEFAULT_CACHE_CONTAINER, STORE_NAME));
+        super(new InfinispanBackingStoreProvider(config, DEFAULT_CACHE_CONTAINER, STORE_NAME), config);
     }
 }
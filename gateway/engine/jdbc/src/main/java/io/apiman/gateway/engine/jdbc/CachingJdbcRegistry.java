@@ -20,14 +20,19 @@ import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiContract;
 import io.apiman.gateway.engine.beans.Client;
-import io.apiman.gateway.engine.beans.Contract;
 import io.apiman.gateway.engine.beans.exceptions.ApiRetiredException;
 import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
+import io.apiman.gateway.engine.impl.RegistryCache;
 import io.apiman.gateway.engine.jdbc.i18n.Messages;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.AbstractListHandler;
 
 /**
  * Extends the {@link JdbcRegistry} to provide single-node caching.  This caching solution
@@ -38,9 +43,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public abstract class CachingJdbcRegistry extends JdbcRegistry {
 
-    private Map<String, Api> apiCache = new ConcurrentHashMap<>();
-    private Map<String, Client> clientCache = new ConcurrentHashMap<>();
-    private Object mutex = new Object();
+    private final RegistryCache cache = new RegistryCache();
 
     /**
      * Constructor.
@@ -55,10 +58,68 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
      * or getContract() will trigger a new fetch from the ES store.
      */
     protected void invalidateCache() {
-        synchronized (mutex) {
-            clientCache.clear();
-            apiCache.clear();
-        }
+        cache.invalidate();
+    }
+
+    /**
+     * Reloads a cached api that was changed (possibly by another node).
+     * @param orgId
+     * @param apiId
+     * @param version
+     * @see RegistryCache#refreshApi(String, String, String, io.apiman.gateway.engine.impl.KeyedCacheLoader.Loader)
+     */
+    protected void refreshApi(String orgId, String apiId, String version) {
+        cache.refreshApi(orgId, apiId, version, () -> super.getApiInternal(orgId, apiId, version));
+    }
+
+    /**
+     * Reloads a cached client that was changed (possibly by another node).
+     * @param orgId
+     * @param clientId
+     * @param version
+     * @param apiKey the client's current API key, or null if it was unregistered
+     * @see RegistryCache#refreshClient(String, String, String, String, io.apiman.gateway.engine.impl.KeyedCacheLoader.Loader)
+     */
+    protected void refreshClient(String orgId, String clientId, String version, String apiKey) {
+        cache.refreshClient(orgId, clientId, version, apiKey, () -> super.getClientInternal(apiKey));
+    }
+
+    /**
+     * Loads all apis and clients into the cache.
+     * @throws SQLException
+     * @see RegistryCache#prewarm(RegistryCache.Source, RegistryCache.Source)
+     */
+    protected void prewarmCache() throws SQLException {
+        QueryRunner run = new QueryRunner(ds);
+        cache.prewarm(
+                action -> run.query("SELECT bean FROM gw_apis", Handlers.API_LIST_HANDLER).forEach(action), //$NON-NLS-1$
+                action -> run.query("SELECT bean FROM gw_clients", Handlers.CLIENT_LIST_HANDLER).forEach(action)); //$NON-NLS-1$
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#registerClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void registerClient(Client client, IAsyncResultHandler<Void> handler) {
+        super.registerClient(client, result -> {
+            if (result.isSuccess()) {
+                cache.evictClient(client.getApiKey());
+            }
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.jdbc.JdbcRegistry#unregisterClient(io.apiman.gateway.engine.beans.Client, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public void unregisterClient(Client client, IAsyncResultHandler<Void> handler) {
+        super.unregisterClient(client, result -> {
+            if (result.isSuccess()) {
+                cache.evictClient(client.getApiKey());
+            }
+            handler.handle(result);
+        });
     }
 
     /**
@@ -71,10 +132,8 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
         Api api = null;
 
         try {
-            synchronized (mutex) {
-                client = getClient(apiKey);
-                api = getApi(apiOrganizationId, apiId, apiVersion);
-            }
+            client = getClient(apiKey);
+            api = getApi(apiOrganizationId, apiId, apiVersion);
             if (client == null) {
                 Exception error = new NoContractFoundException(Messages.i18n.format("JdbcRegistry.NoClientForAPIKey", apiKey)); //$NON-NLS-1$
                 handler.handle(AsyncResultImpl.create(error, ApiContract.class));
@@ -85,20 +144,12 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
                         apiId, apiOrganizationId));
             }
 
-            Contract matchedContract = null;
-            for (Contract contract : client.getContracts()) {
-                if (contract.matches(apiOrganizationId, apiId, apiVersion)) {
-                    matchedContract = contract;
-                    break;
-                }
-            }
-
-            if (matchedContract == null) {
+            ApiContract contract = cache.resolveContract(client, api);
+            if (contract == null) {
                 throw new NoContractFoundException(Messages.i18n.format("JdbcRegistry.NoContractFound", //$NON-NLS-1$
                         client.getClientId(), api.getApiId()));
             }
 
-            ApiContract contract = new ApiContract(api, client, matchedContract.getPlan(), matchedContract.getPolicies());
             handler.handle(AsyncResultImpl.create(contract));
         } catch (Exception e) {
             handler.handle(AsyncResultImpl.create(e, ApiContract.class));
@@ -120,28 +171,14 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
     }
 
     /**
-     * Gets the api either from the cache or from ES.
+     * Gets the api either from the cache or from the database.  Concurrent misses on the
+     * same api share a single load; misses on other apis are not held up by it.
      * @param orgId
      * @param apiId
      * @param version
      */
     protected Api getApi(String orgId, String apiId, String version) throws SQLException {
-        String apiIdx = getApiId(orgId, apiId, version);
-        Api api;
-        synchronized (mutex) {
-            api = apiCache.get(apiIdx);
-        }
-
-        if (api == null) {
-            api = super.getApiInternal(orgId, apiId, version);
-            synchronized (mutex) {
-                if (api != null) {
-                    apiCache.put(apiIdx, api);
-                }
-            }
-        }
-
-        return api;
+        return cache.getApi(orgId, apiId, version, () -> super.getApiInternal(orgId, apiId, version));
     }
 
     /**
@@ -158,27 +195,36 @@ public abstract class CachingJdbcRegistry extends JdbcRegistry {
     }
 
     /**
-     * Gets the client either from the cache or from ES.
-     * @param orgId
-     * @param clientId
-     * @param version
+     * Gets the client either from the cache or from the database.  Concurrent misses on the
+     * same API key share a single load.
+     * @param apiKey
      */
     protected Client getClient(String apiKey) throws SQLException {
-        Client client;
-        synchronized (mutex) {
-            client = clientCache.get(apiKey);
-        }
+        return cache.getClient(apiKey, () -> super.getClientInternal(apiKey));
+    }
 
-        if (client == null) {
-            client = super.getClientInternal(apiKey);
-            synchronized (mutex) {
-                if (client != null) {
-                    clientCache.put(apiKey, client);
+    private static final class Handlers {
+        public static final AbstractListHandler<Api> API_LIST_HANDLER = new AbstractListHandler<Api>() {
+            @Override
+            protected Api handleRow(ResultSet rs) throws SQLException {
+                try (InputStream is = rs.getAsciiStream(1)) {
+                    return mapper.reader(Api.class).readValue(is);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
             }
-        }
-
-        return client;
+        };
+
+        public static final AbstractListHandler<Client> CLIENT_LIST_HANDLER = new AbstractListHandler<Client>() {
+            @Override
+            protected Client handleRow(ResultSet rs) throws SQLException {
+                try (InputStream is = rs.getAsciiStream(1)) {
+                    return mapper.reader(Client.class).readValue(is);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
     }
 
 }
@@ -84,21 +84,44 @@ public class JdbcInitializer extends AbstractJdbcComponent implements IGatewayIn
             System.out.println("============================================");
             System.out.println("Apiman Gateway database already initialized.");
             System.out.println("============================================");
+            upgrade(run);
             return;
         }
         
+        System.out.println("=======================================");
+        System.out.println("Initializing apiman Gateway database.");
+        runDdl(run, "ddls/apiman-gateway_" + dbType + ".ddl");
+        System.out.println("=======================================");
+    }
+
+    /**
+     * Adds the tables that were introduced after the database was initialized.
+     */
+    @SuppressWarnings("nls")
+    private void upgrade(QueryRunner run) {
+        try {
+            run.query("SELECT * FROM gw_changelog", rs -> true);
+        } catch (SQLException e) {
+            System.out.println("=======================================");
+            System.out.println("Adding the gw_changelog table to the apiman Gateway database.");
+            runDdl(run, "ddls/upgrade/apiman-gateway-changelog_" + dbType + ".ddl");
+            System.out.println("=======================================");
+        }
+    }
+
+    /**
+     * Runs the statements of a DDL found on the classpath.
+     */
+    private void runDdl(QueryRunner run, String ddl) {
         ClassLoader cl = JdbcInitializer.class.getClassLoader();
-        URL resource = cl.getResource("ddls/apiman-gateway_" + dbType + ".ddl");
+        URL resource = cl.getResource(ddl);
         try (InputStream is = resource.openStream()) {
-            System.out.println("=======================================");
-            System.out.println("Initializing apiman Gateway database.");
             DdlParser ddlParser = new DdlParser();
             List<String> statements = ddlParser.parse(is);
             for (String sql : statements){
                 System.out.println(sql);
                 run.update(sql);
             }
-            System.out.println("=======================================");
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
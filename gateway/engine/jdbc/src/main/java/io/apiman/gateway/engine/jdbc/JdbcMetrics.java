@@ -22,13 +22,20 @@ import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
-
-import org.apache.commons.dbutils.QueryRunner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A JDBC implementation of the gateway registry.  Only suitable for a 
@@ -41,16 +48,63 @@ import org.apache.commons.dbutils.QueryRunner;
  *     apiman-gateway.metrics=io.apiman.gateway.engine.jdbc.JdbcRegistry
  *     apiman-gateway.metrics.datasource.jndi-location=java:jboss/datasources/apiman-gateway
  * 
+ * Metrics are queued and written by a single consumer thread, in batches of up
+ * to <tt>batch.size</tt> rows per transaction.  By default the consumer writes
+ * whatever is queued immediately; set <tt>batch.linger</tt> (millis) to wait
+ * for a batch to fill up.  When the queue (<tt>queue.size</tt>) is full,
+ * <tt>queue.full-policy</tt> decides what happens to new metrics:
+ * 
+ *     block  - the recording thread waits for space (default)
+ *     drop   - the metric is discarded
+ *     sample - once the queue is half full only one in <tt>queue.sample-rate</tt>
+ *              metrics is kept, and none once it is full
+ * 
  * @author ewittman
  */
 public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
 
     private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(JdbcMetrics.class);
     private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_SAMPLE_RATE = 10;
+
+    @SuppressWarnings("nls")
+    private static final String INSERT_SQL = "INSERT INTO gw_requests ("
+            + "rstart, rend, duration, month, week, day, hour, minute, "
+            + "api_org_id, api_id, api_version, "
+            + "client_org_id, client_id, client_version, plan, "
+            + "user_id, resp_type, bytes_up, bytes_down) VALUES ("
+            + "?, ?, ?, ?, ?, ?, ?, ?,"
+            + "?, ?, ?,"
+            + "?, ?, ?, ?,"
+            + "?, ?, ?, ?)";
+
+    /**
+     * What to do with a metric when the queue is full.
+     */
+    public enum QueueFullPolicy {
+        block, drop, sample
+    }
 
     protected IComponentRegistry componentRegistry;
     protected final BlockingQueue<RequestMetric> queue;
-    
+
+    private final int queueSize;
+    private final int batchSize;
+    private final long batchLinger;
+    private final QueueFullPolicy queueFullPolicy;
+    private final int sampleRate;
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder writtenCount = new LongAdder();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+    private volatile long lastFlushMillis;
+
+    // Only used by the consumer thread
+    private final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC")); //$NON-NLS-1$
+
     private boolean stopped;
     private Thread thread;
 
@@ -61,15 +115,21 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
     public JdbcMetrics(Map<String, String> config) {
         super(config);
 
-        int queueSize = DEFAULT_QUEUE_SIZE;
-        String queueSizeConfig = config.get("queue.size"); //$NON-NLS-1$
-        if (queueSizeConfig != null) {
-            queueSize = Integer.parseInt(queueSizeConfig);
-        }
+        queueSize = getInt(config, "queue.size", DEFAULT_QUEUE_SIZE); //$NON-NLS-1$
         queue = new LinkedBlockingDeque<>(queueSize);
+        batchSize = getInt(config, "batch.size", DEFAULT_BATCH_SIZE); //$NON-NLS-1$
+        batchLinger = getInt(config, "batch.linger", 0); //$NON-NLS-1$
+        sampleRate = getInt(config, "queue.sample-rate", DEFAULT_SAMPLE_RATE); //$NON-NLS-1$
+        String policyConfig = config.get("queue.full-policy"); //$NON-NLS-1$
+        queueFullPolicy = policyConfig == null ? QueueFullPolicy.block : QueueFullPolicy.valueOf(policyConfig.trim());
         startConsumerThread();
     }
 
+    private static int getInt(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
     /**
      * Starts a thread which will serially pull information off the blocking
      * queue and submit that information to JDBC metrics.
@@ -86,70 +146,125 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
     }
 
     /**
-     * Process the next item in the queue.
+     * Process the next batch of items in the queue.
      */
-    @SuppressWarnings("nls")
     protected void processQueue() {
+        List<RequestMetric> batch = new ArrayList<>(batchSize);
         try {
-            RequestMetric metric = queue.take();
-            QueryRunner run = new QueryRunner(ds);
-
-            Calendar cal = Calendar.getInstance();
-            cal.setTimeZone(TimeZone.getTimeZone("UTC"));
-            cal.setTime(metric.getRequestStart());
-            
-            long rstart = cal.getTimeInMillis();
-            long rend = metric.getRequestEnd().getTime();
-            long duration = metric.getRequestDuration();
-            cal.set(Calendar.MILLISECOND, 0);
-            cal.set(Calendar.SECOND, 0);
-            long minute = cal.getTimeInMillis();
-            cal.set(Calendar.MINUTE, 0);
-            long hour = cal.getTimeInMillis();
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            long day = cal.getTimeInMillis();
-            cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
-            long week = cal.getTimeInMillis();
-            cal.set(Calendar.DAY_OF_MONTH, 1);
-            long month = cal.getTimeInMillis();
-            String api_org_id = metric.getApiOrgId();
-            String api_id = metric.getApiId();
-            String api_version = metric.getApiVersion();
-            String client_org_id = metric.getClientOrgId();
-            String client_id = metric.getClientId();
-            String client_version = metric.getClientVersion();
-            String plan = metric.getPlanId();
-            String user_id = metric.getUser();
-            String rtype = null;
-            if (metric.isFailure()) {
-                rtype = "failure";
-            } else if (metric.isError()) {
-                rtype = "error";
+            batch.add(queue.take());
+            queue.drainTo(batch, batchSize - batch.size());
+            if (batchLinger > 0) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+                while (batch.size() < batchSize) {
+                    RequestMetric next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
             }
-            long bytes_up = metric.getBytesUploaded();
-            long bytes_down = metric.getBytesDownloaded();
-
-            // Now insert a row for the metric.
-            run.update("INSERT INTO gw_requests ("
-                    + "rstart, rend, duration, month, week, day, hour, minute, "
-                    + "api_org_id, api_id, api_version, "
-                    + "client_org_id, client_id, client_version, plan, "
-                    + "user_id, resp_type, bytes_up, bytes_down) VALUES ("
-                    + "?, ?, ?, ?, ?, ?, ?, ?,"
-                    + "?, ?, ?,"
-                    + "?, ?, ?, ?,"
-                    + "?, ?, ?, ?)",
-                    rstart, rend, duration, month, week, day, hour, minute,
-                    api_org_id, api_id, api_version,
-                    client_org_id, client_id, client_version, plan,
-                    user_id, rtype, bytes_up, bytes_down
-                    );
         } catch (InterruptedException ie) {
             // This means that the thread was stopped.
-            LOGGER.trace("Metrics was stopped {0}", ie.getMessage());
+            LOGGER.trace("Metrics was stopped {0}", ie.getMessage()); //$NON-NLS-1$
+            if (batch.isEmpty()) {
+                return;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            writeBatch(batch);
+            writtenCount.add(batch.size());
         } catch (Exception e) {
-            LOGGER.error(e, "An unexpected error occurred when attempting to add a metric "
-                + "to the database. {0}", e.getMessage());
+            LOGGER.error(e, "An unexpected error occurred when attempting to add {0} metric(s) " //$NON-NLS-1$
+                + "to the database. {1}", batch.size(), e.getMessage()); //$NON-NLS-1$
+        }
+        lastFlushMillis = System.currentTimeMillis() - start;
+        totalFlushMillis.addAndGet(lastFlushMillis);
+        flushCount.incrementAndGet();
+    }
+
+    /**
+     * Inserts the metrics using a single batched statement in one transaction.
+     * @param batch the metrics
+     * @throws SQLException if the insert fails (nothing is written)
+     */
+    protected void writeBatch(List<RequestMetric> batch) throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                for (RequestMetric metric : batch) {
+                    bind(statement, metric);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Binds the metric's values to the insert statement's parameters.
+     */
+    @SuppressWarnings("nls")
+    private void bind(PreparedStatement statement, RequestMetric metric) throws SQLException {
+        cal.setTime(metric.getRequestStart());
+
+        long rstart = cal.getTimeInMillis();
+        long rend = metric.getRequestEnd().getTime();
+        long duration = metric.getRequestDuration();
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.set(Calendar.SECOND, 0);
+        long minute = cal.getTimeInMillis();
+        cal.set(Calendar.MINUTE, 0);
+        long hour = cal.getTimeInMillis();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        long day = cal.getTimeInMillis();
+        cal.set(Calendar.DAY_OF_WEEK, cal.getFirstDayOfWeek());
+        long week = cal.getTimeInMillis();
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        long month = cal.getTimeInMillis();
+        String rtype = null;
+        if (metric.isFailure()) {
+            rtype = "failure";
+        } else if (metric.isError()) {
+            rtype = "error";
+        }
+
+        int i = 1;
+        statement.setLong(i++, rstart);
+        statement.setLong(i++, rend);
+        statement.setLong(i++, duration);
+        statement.setLong(i++, month);
+        statement.setLong(i++, week);
+        statement.setLong(i++, day);
+        statement.setLong(i++, hour);
+        statement.setLong(i++, minute);
+        setString(statement, i++, metric.getApiOrgId());
+        setString(statement, i++, metric.getApiId());
+        setString(statement, i++, metric.getApiVersion());
+        setString(statement, i++, metric.getClientOrgId());
+        setString(statement, i++, metric.getClientId());
+        setString(statement, i++, metric.getClientVersion());
+        setString(statement, i++, metric.getPlanId());
+        setString(statement, i++, metric.getUser());
+        setString(statement, i++, rtype);
+        statement.setLong(i++, metric.getBytesUploaded());
+        statement.setLong(i, metric.getBytesDownloaded());
+    }
+
+    private static void setString(PreparedStatement statement, int index, String value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.VARCHAR);
+        } else {
+            statement.setString(index, value);
         }
     }
 
@@ -159,13 +274,70 @@ public class JdbcMetrics extends AbstractJdbcComponent implements IMetrics {
     @Override
     public void record(RequestMetric metric) {
         try {
-            queue.put(metric);
+            switch (queueFullPolicy) {
+            case drop:
+                if (!queue.offer(metric)) {
+                    droppedCount.increment();
+                }
+                break;
+            case sample:
+                if (queue.size() >= queueSize / 2) {
+                    if (sampleCounter.incrementAndGet() % sampleRate != 0) {
+                        droppedCount.increment();
+                        break;
+                    }
+                }
+                if (!queue.offer(metric)) {
+                    droppedCount.increment();
+                }
+                break;
+            case block:
+            default:
+                queue.put(metric);
+                break;
+            }
         } catch (Exception e) {
             LOGGER.error(e, "An unexpected error occurred when attempting to enqueue a metric that "
                 + "was awaiting storage. The record may be lost {0}", e.getMessage());
         }
     }
 
+    /**
+     * @return the number of metrics waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of metrics discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return the number of metrics written to the database
+     */
+    public long getWrittenCount() {
+        return writtenCount.sum();
+    }
+
+    /**
+     * @return how long the most recent batch write took, in millis
+     */
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    /**
+     * @return the mean batch write time, in millis
+     */
+    public double getAverageFlushMillis() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : (double) totalFlushMillis.get() / flushes;
+    }
+
     /**
      * @see io.apiman.gateway.engine.IMetrics#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
      */
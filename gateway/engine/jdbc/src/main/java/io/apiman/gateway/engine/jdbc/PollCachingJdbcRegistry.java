@@ -21,10 +21,13 @@ import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.impl.RegistryChangeLog;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.dbutils.DbUtils;
@@ -38,6 +41,21 @@ import org.apache.commons.dbutils.ResultSetHandler;
  * inserted/updated.  The registry utilizes a thread to periodically poll the DB to
  * check if this data has been changed.  If the data *has* been changed, then the cache
  * is invalidated.
+ * <p>
+ * With <code>cache-polling-mode=incremental</code> every change is instead recorded in a
+ * change log (the <code>gw_changelog</code> table), and the poller reloads only the apis
+ * and clients changed since its last poll, replacing them in the cache in place.  The
+ * whole cache is only invalidated if the log cannot be trusted to be complete: the last
+ * successful poll is older than <code>cache-changelog-retention</code>, or more changes
+ * than can sensibly be applied one by one are pending.  Entries are read back with an
+ * overlap of <code>cache-changelog-overlap</code> to allow for clock skew between nodes
+ * and for late commits.  A change that cannot be logged bumps the "last modified" record
+ * instead, which invalidates every node's cache.  All nodes of a cluster must use the same
+ * mode.  Databases created before the change log existed get the table from the
+ * {@link JdbcInitializer}, or from the <code>ddls/upgrade</code> DDLs.
+ * <p>
+ * With <code>cache-prewarm=true</code> all apis and clients are loaded into the cache
+ * when the registry starts.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -50,6 +68,8 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
 
     private int pollIntervalMillis;
     private int startupDelayMillis;
+    private boolean prewarm;
+    private final RegistryChangeLog changeLog;
 
     private boolean polling = false;
     private long dataVersion = -1;
@@ -76,6 +96,9 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
             startupDelayMillis = DEFAULT_STARTUP_DELAY * 1000;
         }
 
+        prewarm = "true".equalsIgnoreCase(config.get("cache-prewarm")); //$NON-NLS-1$ //$NON-NLS-2$
+        changeLog = new JdbcChangeLog(config);
+
         startCacheInvalidator();
     }
 
@@ -85,7 +108,7 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.apiChanged(api);
                 }
                 handler.handle(result);
             }
@@ -98,7 +121,7 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.apiChanged(api);
                 }
                 handler.handle(result);
             }
@@ -114,7 +137,7 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.clientChanged(client, true);
                 }
                 handler.handle(result);
             }
@@ -127,7 +150,7 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
             @Override
             public void handle(IAsyncResult<Void> result) {
                 if (result.isSuccess()) {
-                    updateDataVersion();
+                    changeLog.clientChanged(client, false);
                 }
                 handler.handle(result);
             }
@@ -167,12 +190,21 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
+                changeLog.start();
+                if (prewarm) {
+                    prewarm();
+                }
+
                 // Wait on startup before starting to poll.
                 try { Thread.sleep(startupDelayMillis); } catch (InterruptedException e1) { e1.printStackTrace(); }
 
                 while (polling) {
                     try { Thread.sleep(pollIntervalMillis); } catch (Exception e) { e.printStackTrace(); }
-                    checkCacheVersion();
+                    if (changeLog.isIncremental()) {
+                        syncChanges();
+                    } else {
+                        checkCacheVersion();
+                    }
                 }
             }
         }, "JdbcRegistryCacheInvalidator"); //$NON-NLS-1$
@@ -210,6 +242,95 @@ public class PollCachingJdbcRegistry extends CachingJdbcRegistry {
         }
     }
 
+    /**
+     * Loads the whole registry into the cache.  In full polling mode the current data
+     * version is read first, so that the first poll does not throw the loaded cache away.
+     */
+    protected void prewarm() {
+        try {
+            if (!changeLog.isIncremental()) {
+                dataVersion = new QueryRunner(ds).query("SELECT version FROM gw_dataversion", Handlers.LONG_HANDLER); //$NON-NLS-1$
+            }
+            prewarmCache();
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Problem encountered while prewarming the registry cache: " + e.getMessage(), e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Syncs the cache with the changes made since the last sync.
+     * @see RegistryChangeLog#sync()
+     */
+    protected void syncChanges() {
+        changeLog.sync();
+    }
+
+    /**
+     * The change log, kept in the <code>gw_changelog</code> table.
+     */
+    private class JdbcChangeLog extends RegistryChangeLog {
+
+        private JdbcChangeLog(Map<String, String> config) {
+            super(config);
+        }
+
+        @Override
+        protected void append(Change change, long changedOn, long pruneBefore) throws SQLException {
+            Connection conn = null;
+            try {
+                conn = ds.getConnection();
+                conn.setAutoCommit(false);
+                QueryRunner run = new QueryRunner();
+
+                run.update(conn, "DELETE FROM gw_changelog WHERE changed_on < ?", pruneBefore); //$NON-NLS-1$
+                run.update(conn, "INSERT INTO gw_changelog (change_type, org_id, id, version, api_key, changed_on) VALUES (?, ?, ?, ?, ?, ?)",  //$NON-NLS-1$
+                        change.getType(), change.getOrgId(), change.getId(), change.getVersion(), change.getApiKey(), changedOn);
+
+                DbUtils.commitAndClose(conn);
+            } catch (SQLException e) {
+                DbUtils.rollbackAndCloseQuietly(conn);
+                throw e;
+            }
+        }
+
+        @Override
+        protected List<Change> readSince(long since, int limit) throws SQLException {
+            return new QueryRunner(ds).query("SELECT change_type, org_id, id, version, api_key FROM gw_changelog WHERE changed_on >= ? ORDER BY changed_on", //$NON-NLS-1$
+                    rs -> {
+                        List<Change> changes = new ArrayList<>();
+                        while (changes.size() < limit && rs.next()) {
+                            changes.add(new Change(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+                        }
+                        return changes;
+                    }, since);
+        }
+
+        @Override
+        protected long readDataVersion() throws SQLException {
+            return new QueryRunner(ds).query("SELECT version FROM gw_dataversion", Handlers.LONG_HANDLER); //$NON-NLS-1$
+        }
+
+        @Override
+        protected void updateDataVersion() {
+            PollCachingJdbcRegistry.this.updateDataVersion();
+        }
+
+        @Override
+        protected void invalidateCache() {
+            PollCachingJdbcRegistry.this.invalidateCache();
+        }
+
+        @Override
+        protected void refreshApi(String orgId, String apiId, String version) {
+            PollCachingJdbcRegistry.this.refreshApi(orgId, apiId, version);
+        }
+
+        @Override
+        protected void refreshClient(String orgId, String clientId, String version, String apiKey) {
+            PollCachingJdbcRegistry.this.refreshClient(orgId, clientId, version, apiKey);
+        }
+    }
+
     private static final class Handlers {
         public static final ResultSetHandler<Long> LONG_HANDLER = (ResultSet rs) -> {
             if (!rs.next()) {
@@ -124,6 +124,32 @@ public class JdbcMetricsTest {
         metrics.stop();
     }
 
+    /**
+     * Test method for {@link io.apiman.gateway.engine.jdbc.JdbcMetrics#record(io.apiman.gateway.engine.metrics.RequestMetric)}.
+     */
+    @Test
+    public void testRecordsInBatches() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("datasource.jndi-location", DB_JNDI_LOC);
+        config.put("batch.size", "2");
+        config.put("batch.linger", "50");
+        JdbcMetrics metrics = new JdbcMetrics(config);
+        for (int i = 0; i < 5; i++) {
+            metrics.record(request(
+                    "2016-02-10T09:3" + i + ":00Z", 300, "http://localhost:8080/test/1", "/test/1",
+                    "GET", "TestOrg", "TestApi", "1.0", "Gold",
+                    "TestOrg", "TestClient", "1.0", "12345", "user1",
+                    200, "OK", false, 0, null, false, null, 0, 1024));
+        }
+
+        Thread.sleep(300);
+        assertRowCount(5, "SELECT * FROM gw_requests WHERE api_org_id = ?", "TestOrg");
+        Assert.assertEquals(5, metrics.getWrittenCount());
+        Assert.assertEquals(0, metrics.getQueueDepth());
+        Assert.assertEquals(0, metrics.getDroppedCount());
+        metrics.stop();
+    }
+
     /**
      * Test method for {@link io.apiman.gateway.engine.jdbc.JdbcMetrics#record(io.apiman.gateway.engine.metrics.RequestMetric)}.
      */
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.jdbc;
+
+import io.apiman.common.util.ddl.DdlParser;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.impl.RegistryChangeLog;
+import io.apiman.test.common.util.TestUtil;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.InitialContext;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbutils.QueryRunner;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the incremental polling mode and cache prewarming of the {@link PollCachingJdbcRegistry},
+ * with one registry standing in for each of two gateway nodes sharing the database.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class PollCachingJdbcRegistryTest {
+
+    private static final String DB_JNDI_LOC = "java:/comp/env/jdbc/ApiGatewayRegistryDS";
+    private static BasicDataSource ds = null;
+
+    private final List<PollCachingJdbcRegistry> registries = new ArrayList<>();
+    private PollCachingJdbcRegistry nodeA;
+
+    @BeforeClass
+    public static void setup() {
+        try {
+            InitialContext ctx = TestUtil.initialContext();
+            TestUtil.ensureCtx(ctx, "java:/comp/env");
+            TestUtil.ensureCtx(ctx, "java:/comp/env/jdbc");
+            ds = createInMemoryDatasource();
+            ctx.bind(DB_JNDI_LOC, ds);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Before
+    public void reset() throws Exception {
+        QueryRunner run = new QueryRunner(ds);
+        run.update("DELETE FROM gw_apis");
+        run.update("DELETE FROM gw_clients");
+        run.update("DELETE FROM gw_changelog");
+
+        nodeA = registry(Collections.emptyMap());
+        publish(nodeA, api("TestApi", "http://localhost:8080/a"));
+        publish(nodeA, api("OtherApi", "http://localhost:8080/other"));
+        register(nodeA, client("12345"));
+        // Start from a clean log, so that a sync only sees the changes made by the test
+        run.update("DELETE FROM gw_changelog");
+    }
+
+    @After
+    public void stop() {
+        for (PollCachingJdbcRegistry registry : registries) {
+            registry.stop();
+        }
+    }
+
+    @Test
+    public void testSyncReloadsChangedApi() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Assert.assertEquals("http://localhost:8080/a", nodeB.getApi("TestOrg", "TestApi", "1.0").getEndpoint());
+        Api other = nodeB.getApi("TestOrg", "OtherApi", "1.0");
+
+        publish(nodeA, api("TestApi", "http://localhost:8080/b"));
+        Assert.assertEquals("http://localhost:8080/a", nodeB.getApi("TestOrg", "TestApi", "1.0").getEndpoint());
+
+        nodeB.syncChanges();
+        Assert.assertEquals("http://localhost:8080/b", nodeB.getApi("TestOrg", "TestApi", "1.0").getEndpoint());
+        // Unchanged entries stay cached
+        Assert.assertSame(other, nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+    }
+
+    @Test
+    public void testSyncDropsUnregisteredClient() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Assert.assertNotNull(nodeB.getClient("12345"));
+
+        nodeA.unregisterClient(client("12345"), PollCachingJdbcRegistryTest::assertSuccess);
+        Assert.assertNotNull(nodeB.getClient("12345"));
+
+        nodeB.syncChanges();
+        Assert.assertNull(nodeB.getClient("12345"));
+    }
+
+    @Test
+    public void testSyncPicksUpNewClientKey() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Assert.assertNotNull(nodeB.getClient("12345"));
+
+        register(nodeA, client("67890"));
+        nodeB.syncChanges();
+        Assert.assertNull(nodeB.getClient("12345"));
+        Assert.assertNotNull(nodeB.getClient("67890"));
+    }
+
+    @Test
+    public void testSyncInvalidatesWhenLogMayBePruned() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.singletonMap("cache-changelog-retention", "0"));
+        Api other = nodeB.getApi("TestOrg", "OtherApi", "1.0");
+
+        Thread.sleep(10);
+        nodeB.syncChanges();
+        Assert.assertNotSame(other, nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+    }
+
+    @Test
+    public void testSyncInvalidatesTooManyChanges() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Api other = nodeB.getApi("TestOrg", "OtherApi", "1.0");
+
+        logApiChanges(RegistryChangeLog.MAX_BATCH);
+        nodeB.syncChanges();
+        Assert.assertSame(other, nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+
+        logApiChanges(RegistryChangeLog.MAX_BATCH + 1);
+        nodeB.syncChanges();
+        Assert.assertNotSame(other, nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+    }
+
+    @Test
+    public void testUnloggedChangeInvalidatesOtherNodes() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Api other = nodeB.getApi("TestOrg", "OtherApi", "1.0");
+        nodeB.syncChanges();
+
+        // A database created before the change log existed
+        QueryRunner run = new QueryRunner(ds);
+        run.update("DROP TABLE gw_changelog");
+        try {
+            publish(nodeA, api("TestApi", "http://localhost:8080/b"));
+            nodeB.syncChanges();
+            Assert.assertNotSame(other, nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+            Assert.assertEquals("http://localhost:8080/b", nodeB.getApi("TestOrg", "TestApi", "1.0").getEndpoint());
+        } finally {
+            Map<String, String> config = new HashMap<>();
+            config.put("datasource.jndi-location", DB_JNDI_LOC);
+            config.put("datasource.type", "h2");
+            new JdbcInitializer(config).initialize();
+        }
+        Assert.assertEquals(0, (int) run.query("SELECT COUNT(*) FROM gw_changelog", rs -> {
+            rs.next();
+            return rs.getInt(1);
+        }));
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        nodeB.prewarm();
+
+        QueryRunner run = new QueryRunner(ds);
+        run.update("DELETE FROM gw_apis");
+        run.update("DELETE FROM gw_clients");
+        Assert.assertNotNull(nodeB.getApi("TestOrg", "TestApi", "1.0"));
+        Assert.assertNotNull(nodeB.getApi("TestOrg", "OtherApi", "1.0"));
+        Assert.assertNotNull(nodeB.getClient("12345"));
+    }
+
+    @Test
+    public void testPrewarmKeepsLoadedEntries() throws Exception {
+        PollCachingJdbcRegistry nodeB = registry(Collections.emptyMap());
+        Api api = nodeB.getApi("TestOrg", "TestApi", "1.0");
+
+        nodeB.prewarm();
+        Assert.assertSame(api, nodeB.getApi("TestOrg", "TestApi", "1.0"));
+    }
+
+    /**
+     * Creates a registry in incremental mode that only syncs when the test says so.
+     */
+    private PollCachingJdbcRegistry registry(Map<String, String> overrides) {
+        Map<String, String> config = new HashMap<>();
+        config.put("datasource.jndi-location", DB_JNDI_LOC);
+        config.put("cache-polling-mode", "incremental");
+        config.put("cache-polling-startup-delay", "3600");
+        config.put("cache-changelog-overlap", "0");
+        config.putAll(overrides);
+        PollCachingJdbcRegistry registry = new PollCachingJdbcRegistry(config);
+        registries.add(registry);
+        return registry;
+    }
+
+    /**
+     * Logs changes to apis that are not cached, as another node would.
+     */
+    private static void logApiChanges(int count) throws SQLException {
+        QueryRunner run = new QueryRunner(ds);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            run.update("INSERT INTO gw_changelog (change_type, org_id, id, version, api_key, changed_on) VALUES (?, ?, ?, ?, ?, ?)",
+                    RegistryChangeLog.CHANGE_API, "TestOrg", "UncachedApi" + i, "1.0", null, now);
+        }
+    }
+
+    private static Api api(String apiId, String endpoint) {
+        Api api = new Api();
+        api.setOrganizationId("TestOrg");
+        api.setApiId(apiId);
+        api.setVersion("1.0");
+        api.setEndpoint(endpoint);
+        return api;
+    }
+
+    private static Client client(String apiKey) {
+        Contract contract = new Contract();
+        contract.setApiOrgId("TestOrg");
+        contract.setApiId("TestApi");
+        contract.setApiVersion("1.0");
+        contract.setPlan("Gold");
+
+        Client client = new Client();
+        client.setOrganizationId("TestOrg");
+        client.setClientId("TestClient");
+        client.setVersion("1.0");
+        client.setApiKey(apiKey);
+        client.getContracts().add(contract);
+        return client;
+    }
+
+    private static void publish(PollCachingJdbcRegistry registry, Api api) {
+        registry.publishApi(api, PollCachingJdbcRegistryTest::assertSuccess);
+    }
+
+    private static void register(PollCachingJdbcRegistry registry, Client client) {
+        registry.registerClient(client, PollCachingJdbcRegistryTest::assertSuccess);
+    }
+
+    private static void assertSuccess(IAsyncResult<Void> result) {
+        if (result.isError()) {
+            throw new AssertionError(result.getError());
+        }
+    }
+
+    /**
+     * Creates an in-memory datasource.
+     * @throws SQLException
+     */
+    private static BasicDataSource createInMemoryDatasource() throws Exception {
+        BasicDataSource ds = new BasicDataSource();
+        ds.setDriverClassName(Driver.class.getName());
+        ds.setUsername("sa");
+        ds.setPassword("");
+        ds.setUrl("jdbc:h2:mem:registry;DB_CLOSE_DELAY=-1");
+        Connection connection = ds.getConnection();
+        connection.setAutoCommit(true);
+        initDB(connection);
+        connection.close();
+        return ds;
+    }
+
+    /**
+     * Initialize the DB with the apiman gateway DDL.
+     * @param connection
+     */
+    private static void initDB(Connection connection) throws Exception {
+        ClassLoader cl = PollCachingJdbcRegistryTest.class.getClassLoader();
+        URL resource = cl.getResource("ddls/apiman-gateway_h2.ddl");
+        try (InputStream is = resource.openStream()) {
+            DdlParser ddlParser = new DdlParser();
+            for (String sql : ddlParser.parse(is)) {
+                PreparedStatement statement = connection.prepareStatement(sql);
+                statement.execute();
+            }
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ package io.apiman.gateway.engine.policies;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.beans.PolicyFailureType;
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
 import io.apiman.gateway.engine.policies.config.AuthorizationConfig;
 import io.apiman.gateway.engine.policies.config.AuthorizationRule;
@@ -28,6 +29,7 @@ import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -62,6 +64,18 @@ public class AuthorizationPolicy extends AbstractMappedPolicy<AuthorizationConfi
         return AuthorizationConfig.class;
     }
 
+    /**
+     * Compiles the rules' path patterns once, up front.
+     *
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#parseConfiguration(java.lang.String)
+     */
+    @Override
+    public AuthorizationConfig parseConfiguration(String jsonConfiguration) throws ConfigurationParseException {
+        AuthorizationConfig config = super.parseConfiguration(jsonConfiguration);
+        config.getRuleMatcher();
+        return config;
+    }
+
     /**
      * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object, io.apiman.gateway.engine.policy.IPolicyChain)
      */
@@ -116,21 +130,19 @@ public class AuthorizationPolicy extends AbstractMappedPolicy<AuthorizationConfi
             authorized = false;
         }
         boolean matchFound = false;
-        for (AuthorizationRule authorizationRule : config.getRules()) {
-            boolean verbMatches = "*".equals(authorizationRule.getVerb()) || verb.equalsIgnoreCase(authorizationRule.getVerb()); //$NON-NLS-1$
-            boolean ruleMatches = resource.matches(authorizationRule.getPathPattern());
-            if (verbMatches && ruleMatches) {
-                // the verb and resource matched the rule - so enforce the role here!
-                boolean userHasRole = userRoles.contains(authorizationRule.getRole());
-                matchFound = true;
+        List<AuthorizationRule> matchingRules = config.getRuleMatcher().getMatches(resource,
+                authorizationRule -> "*".equals(authorizationRule.getVerb()) || verb.equalsIgnoreCase(authorizationRule.getVerb())); //$NON-NLS-1$
+        for (AuthorizationRule authorizationRule : matchingRules) {
+            // the verb and resource matched the rule - so enforce the role here!
+            boolean userHasRole = userRoles.contains(authorizationRule.getRole());
+            matchFound = true;
 
-                // If the multiMatch setting is "at least one matching rule" then do a logical
-                // OR operation.  If it's set to "all matching rules" then do a logical AND.
-                if (config.getMultiMatch() == MultipleMatchType.any) {
-                    authorized = authorized || userHasRole;
-                } else {
-                    authorized = authorized && userHasRole;
-                }
+            // If the multiMatch setting is "at least one matching rule" then do a logical
+            // OR operation.  If it's set to "all matching rules" then do a logical AND.
+            if (config.getMultiMatch() == MultipleMatchType.any) {
+                authorized = authorized || userHasRole;
+            } else {
+                authorized = authorized && userHasRole;
             }
         }
 
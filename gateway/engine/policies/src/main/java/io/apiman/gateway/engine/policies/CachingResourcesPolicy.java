@@ -3,14 +3,21 @@ package io.apiman.gateway.engine.policies;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import io.apiman.gateway.engine.async.IAsyncResult;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.exceptions.ComponentNotFoundException;
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.beans.util.HeaderMap;
 import io.apiman.gateway.engine.components.ICacheStoreComponent;
+import io.apiman.gateway.engine.components.IPeriodicComponent;
 import io.apiman.gateway.engine.impl.CachedResponse;
 import io.apiman.gateway.engine.io.AbstractStream;
 import io.apiman.gateway.engine.io.IApimanBuffer;
@@ -18,6 +25,10 @@ import io.apiman.gateway.engine.io.IReadWriteStream;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
 import io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor;
+import io.apiman.gateway.engine.policies.caching.CachedResponses;
+import io.apiman.gateway.engine.policies.caching.InFlightResponse;
+import io.apiman.gateway.engine.policies.caching.RevalidatingCacheConnectorInterceptor;
+import io.apiman.gateway.engine.policies.caching.SingleFlightConnectorInterceptor;
 import io.apiman.gateway.engine.policies.config.CachingResourcesConfig;
 import io.apiman.gateway.engine.policies.config.CachingResourcesSettingsEntry;
 import io.apiman.gateway.engine.io.IPayloadIO;
@@ -26,6 +37,11 @@ import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * Policy that enables caching for back-end APIs responses.
+ * <p>
+ * Optionally, concurrent misses for the same entry are coalesced into one back-end
+ * request (single-flight), and entries are served for a while past their ttl while
+ * being refreshed in the background (stale-while-revalidate). Both are coordinated
+ * within this gateway node only.
  *
  * @author benjaminkihm@scheer-group.com
  */
@@ -37,6 +53,10 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
     private static final String CACHED_RESPONSE = CachingResourcesPolicy.class.getName() + ".cached-response"; //$NON-NLS-1$
 
     private static final String CACHE_POSSIBLE_MATCHING_ENTRIES = CachingResourcesPolicy.class.getName() + ".possible-matching-entries";
+    private static final String SINGLE_FLIGHT_ATTR = CachingResourcesPolicy.class.getName() + ".single-flight"; //$NON-NLS-1$
+
+    private static final ConcurrentMap<String, InFlightResponse> inFlight = new ConcurrentHashMap<>();
+    private static final Set<String> revalidating = ConcurrentHashMap.newKeySet();
 
     /**
      * Constructor.
@@ -52,6 +72,19 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
         return CachingResourcesConfig.class;
     }
 
+    /**
+     * Compiles the entries' path and status code patterns once, up front.
+     *
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#parseConfiguration(java.lang.String)
+     */
+    @Override
+    public CachingResourcesConfig parseConfiguration(String jsonConfiguration) throws ConfigurationParseException {
+        CachingResourcesConfig config = super.parseConfiguration(jsonConfiguration);
+        config.getPathMatcher();
+        config.getStatusCodeMatcher();
+        return config;
+    }
+
     /**
      * If the request is cached an {@link IConnectorInterceptor} is set in order to prevent the back-end connection to be established.
      * Otherwise an empty {@link CachedResponse} will be added to the context, this will be used to cache the response once it has been
@@ -65,12 +98,9 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
 
         List<CachingResourcesSettingsEntry> possibleMatchingEntries = new ArrayList<CachingResourcesSettingsEntry>();
         if(config.getTtl() > 0) {
-            for(CachingResourcesSettingsEntry entry : config.getCachingResourcesSettingsEntries()) {
-                //check if caching policy allows wildcards for http method or path pattern or check if the corresponding policy entry matches the request http method or path pattern.
-                if (matchesHttpMethod(entry.getHttpMethod(), request.getType()) && matchesPolicyEntryVsActualValue(entry.getPathPattern(), request.getDestination())) {
-                    possibleMatchingEntries.add(entry);
-                }
-            }
+            //check if caching policy allows wildcards for http method or path pattern or check if the corresponding policy entry matches the request http method or path pattern.
+            possibleMatchingEntries = config.getPathMatcher().getMatches(request.getDestination(),
+                    entry -> matchesHttpMethod(entry.getHttpMethod(), request.getType()));
             context.setAttribute(CACHE_POSSIBLE_MATCHING_ENTRIES, possibleMatchingEntries);
         }
 
@@ -80,6 +110,7 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
             String cacheId = buildCacheID(request, context);
             context.setAttribute(CACHE_ID_ATTR, cacheId);
             ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
+            Predicate<ApiResponse> cacheable = cacheable(config, possibleMatchingEntries);
             cache.getBinary(cacheId, ApiResponse.class,
                     new IAsyncResultHandler<ISignalReadStream<ApiResponse>>() {
                         @Override
@@ -88,13 +119,35 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
                                 chain.throwError(result.getError());
                             } else {
                                 ISignalReadStream<ApiResponse> cacheEntry = result.getResult();
-                                if (cacheEntry != null) {
-                                    markCacheEntryAsCached(cacheEntry, config);
-                                    context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry));
+                                long storedAt = cacheEntry == null ? -1 : CachedResponses.storedAt(cacheEntry.getHead());
+                                long age = storedAt < 0 ? 0 : System.currentTimeMillis() - storedAt;
+                                if (cacheEntry != null && age <= TimeUnit.SECONDS.toMillis(storedTtl(config))) {
+                                    ApiResponse head = CachedResponses.unstamped(cacheEntry.getHead());
+                                    markCacheEntryAsCached(head, config);
+                                    if (storedAt >= 0) {
+                                        head.getHeaders().put("Age", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(age))); //$NON-NLS-1$
+                                    }
+                                    if (age > TimeUnit.SECONDS.toMillis(config.getTtl())) {
+                                        context.setConnectorInterceptor(new RevalidatingCacheConnectorInterceptor(cacheEntry,
+                                                head, revalidating, cacheId, cacheable, cache, storedTtl(config)));
+                                    } else {
+                                        context.setConnectorInterceptor(new CacheConnectorInterceptor(cacheEntry, head));
+                                    }
                                     context.setAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE);
-                                    context.setAttribute(CACHED_RESPONSE, cacheEntry.getHead());
+                                    context.setAttribute(CACHED_RESPONSE, head);
                                 } else {
+                                    if (cacheEntry != null) {
+                                        // Past even the stale period (the store has yet to expire it)
+                                        cacheEntry.abort(null);
+                                    }
                                     context.setAttribute(SHOULD_CACHE_ATTR, Boolean.TRUE);
+                                    if (config.isSingleFlight()) {
+                                        SingleFlightConnectorInterceptor singleFlight = new SingleFlightConnectorInterceptor(
+                                                context.getConnectorInterceptor(), inFlight, cacheId, cacheable,
+                                                getTimers(context), TimeUnit.SECONDS.toMillis(config.getSingleFlightTimeout()));
+                                        context.setConnectorInterceptor(singleFlight);
+                                        context.setAttribute(SINGLE_FLIGHT_ATTR, singleFlight);
+                                    }
                                 }
                                 chain.doApply(request);
                             }
@@ -108,16 +161,43 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
 
     /**
      * Set or overwrite Cache-Control header with ttl as max-age to mark the response as cached
-     * @param cacheEntry
+     * @param head
      * @param config
      */
-    private void markCacheEntryAsCached(ISignalReadStream<ApiResponse> cacheEntry, final CachingResourcesConfig config) {
-        if(cacheEntry.getHead() != null && cacheEntry.getHead() instanceof ApiResponse && cacheEntry.getHead().getHeaders() != null) {
-            HeaderMap responseHeaders = cacheEntry.getHead().getHeaders();
+    private void markCacheEntryAsCached(ApiResponse head, final CachingResourcesConfig config) {
+        if(head.getHeaders() != null) {
+            HeaderMap responseHeaders = head.getHeaders();
             responseHeaders.put("Cache-Control", "max-age=" + String.valueOf(config.getTtl()));
         }
     }
 
+    /**
+     * @return whether a response head would be cached, given the entries matching the request
+     */
+    private static Predicate<ApiResponse> cacheable(CachingResourcesConfig config,
+            List<CachingResourcesSettingsEntry> possibleMatchingEntries) {
+        return head -> config.getStatusCodeMatcher().matchesAny(String.valueOf(head.getCode()),
+                possibleMatchingEntries::contains);
+    }
+
+    /**
+     * @return how long entries are kept in the store, in seconds
+     */
+    private static long storedTtl(CachingResourcesConfig config) {
+        return config.getTtl() + Math.max(0, config.getStaleWhileRevalidate());
+    }
+
+    /**
+     * @return the timer component, or null if the platform has none
+     */
+    private static IPeriodicComponent getTimers(IPolicyContext context) {
+        try {
+            return context.getComponent(IPeriodicComponent.class);
+        } catch (ComponentNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Verify policy entry against request value and ensure that only cachable http methods are cached.
      * @param policyEntry
@@ -132,16 +212,6 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
         return requestValue.equalsIgnoreCase(policyEntry);
     }
 
-    /**
-     * Verify policy entry against request value with wildcard check
-     * @param policyEntry
-     * @param requestvalue
-     * @return
-     */
-    private boolean matchesPolicyEntryVsActualValue(String policyEntry, String requestvalue) {
-        return policyEntry.equals(CachingResourcesSettingsEntry.MATCH_ALL) || requestvalue.matches(policyEntry);
-    }
-
     /**
      * @see AbstractMappedPolicy#doApply(ApiResponse, IPolicyContext, Object, IPolicyChain)
      */
@@ -173,18 +243,22 @@ public class CachingResourcesPolicy extends AbstractMappedDataPolicy<CachingReso
         }
 
         List<CachingResourcesSettingsEntry> possibleMatchingCachingEntries = context.getAttribute(CACHE_POSSIBLE_MATCHING_ENTRIES, new ArrayList<CachingResourcesSettingsEntry>());
-        boolean isAMatch = false;
-        for (CachingResourcesSettingsEntry entry : possibleMatchingCachingEntries) {
-            isAMatch = isAMatch || matchesPolicyEntryVsActualValue(entry.getStatusCode(), String.valueOf(response.getCode()));
-        }
-        // Possibly cache the response for future posterity.
-        final boolean shouldCache = context.getAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE) && isAMatch;
+        boolean isAMatch = !possibleMatchingCachingEntries.isEmpty()
+                && policyConfiguration.getStatusCodeMatcher().matchesAny(String.valueOf(response.getCode()),
+                        possibleMatchingCachingEntries::contains);
+        // Possibly cache the response for future posterity (unless another request fetched it, and caches it).
+        SingleFlightConnectorInterceptor singleFlight = context.getAttribute(SINGLE_FLIGHT_ATTR, null);
+        final boolean shouldCache = context.getAttribute(SHOULD_CACHE_ATTR, Boolean.FALSE) && isAMatch
+                && (singleFlight == null || !singleFlight.isShared());
 
         if (shouldCache) {
             try {
                 String cacheId = context.getAttribute(CACHE_ID_ATTR, null);
                 ICacheStoreComponent cache = context.getComponent(ICacheStoreComponent.class);
-                final ISignalWriteStream writeStream = cache.putBinary(cacheId, response, policyConfiguration.getTtl());
+                // Stamp the entry so its age can be told when stale entries may be served
+                ApiResponse entryHead = policyConfiguration.getStaleWhileRevalidate() > 0
+                        ? CachedResponses.stamped(response, System.currentTimeMillis()) : response;
+                final ISignalWriteStream writeStream = cache.putBinary(cacheId, entryHead, storedTtl(policyConfiguration));
                 return new AbstractStream<ApiResponse>() {
                     @Override
                     public ApiResponse getHead() {
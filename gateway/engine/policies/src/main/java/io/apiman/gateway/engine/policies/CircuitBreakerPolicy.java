@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.PolicyFailure;
+import io.apiman.gateway.engine.beans.PolicyFailureType;
+import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
+import io.apiman.gateway.engine.policies.circuitbreaker.CircuitBreaker;
+import io.apiman.gateway.engine.policies.circuitbreaker.CircuitBreakerConnectorInterceptor;
+import io.apiman.gateway.engine.policies.config.CircuitBreakerConfig;
+import io.apiman.gateway.engine.policies.i18n.Messages;
+import io.apiman.gateway.engine.policy.IPolicyChain;
+import io.apiman.gateway.engine.policy.IPolicyContext;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Policy that stops sending requests to a back-end endpoint that keeps failing or
+ * responding slowly, so that its failures do not tie up the gateway's connections and
+ * cascade to other APIs. Requests hitting an open circuit fail straight away with a 503.
+ * Idempotent requests can be retried, within a budget.
+ * <p>
+ * Circuits are kept per endpoint (and configuration), so APIs sharing a back-end also
+ * share its circuit.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class CircuitBreakerPolicy extends AbstractMappedPolicy<CircuitBreakerConfig> {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(
+            Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+    private static final String KEY_SEPARATOR = ":"; //$NON-NLS-1$
+
+    private static final ConcurrentMap<BreakerKey, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     */
+    public CircuitBreakerPolicy() {
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#getConfigurationClass()
+     */
+    @Override
+    protected Class<CircuitBreakerConfig> getConfigurationClass() {
+        return CircuitBreakerConfig.class;
+    }
+
+    /**
+     * Rejects the request if the circuit is open, otherwise sets a connector interceptor
+     * that reports the outcome of the back-end call to the circuit.
+     *
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object, io.apiman.gateway.engine.policy.IPolicyChain)
+     */
+    @Override
+    protected void doApply(ApiRequest request, IPolicyContext context, CircuitBreakerConfig config,
+            IPolicyChain<ApiRequest> chain) {
+        CircuitBreaker breaker = getBreaker(request, config);
+        if (breaker.tryAcquire()) {
+            int maxRetries = IDEMPOTENT_METHODS.contains(request.getType()) ? config.getMaxRetries() : 0;
+            context.setConnectorInterceptor(new CircuitBreakerConnectorInterceptor(
+                    context.getConnectorInterceptor(), breaker, maxRetries));
+            chain.doApply(request);
+        } else {
+            IPolicyFailureFactoryComponent ffactory = context.getComponent(IPolicyFailureFactoryComponent.class);
+            PolicyFailure failure = ffactory.createFailure(PolicyFailureType.Other,
+                    PolicyFailureCodes.CIRCUIT_OPEN, Messages.i18n.format("CircuitBreakerPolicy.CircuitOpen")); //$NON-NLS-1$
+            failure.setResponseCode(503);
+            failure.getHeaders().put("Retry-After", String.valueOf(breaker.getRetryAfterSeconds())); //$NON-NLS-1$
+            chain.doFailure(failure);
+        }
+    }
+
+    private static CircuitBreaker getBreaker(ApiRequest request, CircuitBreakerConfig config) {
+        Api api = request.getApi();
+        String endpoint = api != null && api.getEndpoint() != null ? api.getEndpoint()
+                : request.getApiOrgId() + KEY_SEPARATOR + request.getApiId() + KEY_SEPARATOR + request.getApiVersion();
+        BreakerKey key = new BreakerKey(endpoint, config);
+        CircuitBreaker breaker = breakers.get(key);
+        return breaker != null ? breaker : breakers.computeIfAbsent(key, k -> new CircuitBreaker(config));
+    }
+
+    private static final class BreakerKey {
+        private final String endpoint;
+        private final CircuitBreakerConfig config;
+
+        private BreakerKey(String endpoint, CircuitBreakerConfig config) {
+            this.endpoint = endpoint;
+            this.config = config;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, config);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BreakerKey)) {
+                return false;
+            }
+            BreakerKey other = (BreakerKey) obj;
+            return endpoint.equals(other.endpoint) && config.equals(other.config);
+        }
+    }
+}
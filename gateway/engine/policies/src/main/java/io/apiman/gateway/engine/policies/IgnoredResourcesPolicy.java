@@ -19,6 +19,7 @@ import io.apiman.gateway.engine.policies.config.IgnoredResource;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.beans.PolicyFailureType;
 import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
 import io.apiman.gateway.engine.policies.PolicyFailureCodes;
 import io.apiman.gateway.engine.policies.config.IgnoredResourcesConfig;
@@ -48,6 +49,18 @@ public class IgnoredResourcesPolicy extends AbstractMappedPolicy<IgnoredResource
         return IgnoredResourcesConfig.class;
     }
 
+    /**
+     * Compiles the rules' path patterns once, up front.
+     *
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#parseConfiguration(java.lang.String)
+     */
+    @Override
+    public IgnoredResourcesConfig parseConfiguration(String jsonConfiguration) throws ConfigurationParseException {
+        IgnoredResourcesConfig config = super.parseConfiguration(jsonConfiguration);
+        config.getRuleMatcher();
+        return config;
+    }
+
     /**
      * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ApiRequest,
      *      io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object,
@@ -86,16 +99,11 @@ public class IgnoredResourcesPolicy extends AbstractMappedPolicy<IgnoredResource
         if (destination == null || destination.trim().length() == 0) {
             destination = "/"; //$NON-NLS-1$
         }
-        for (IgnoredResource resource : config.getRules()) {
+        return config.getRuleMatcher().matchesAny(destination, resource -> {
             String resourceVerb = resource.getVerb();
-            boolean verbMatches = verb == null || IgnoredResource.VERB_MATCH_ALL.equals(resourceVerb)
-                    || verb.equalsIgnoreCase(resourceVerb); // $NON-NLS-1$
-            boolean destinationMatches = destination.matches(resource.getPathPattern());
-            if (verbMatches && destinationMatches) {
-                return true;
-            }
-        }
-        return false;
+            return verb == null || IgnoredResource.VERB_MATCH_ALL.equals(resourceVerb)
+                    || verb.equalsIgnoreCase(resourceVerb);
+        });
     }
 
 }
@@ -36,5 +36,6 @@ public final class PolicyFailureCodes {
     public static final int REQUEST_QUOTA_EXCEEDED      = 10012;
     public static final int BYTE_QUOTA_EXCEEDED         = 10013;
     public static final int ACCESS_TIME_RESTRICTED      = 10014;
+    public static final int CIRCUIT_OPEN                = 10015;
 
 }
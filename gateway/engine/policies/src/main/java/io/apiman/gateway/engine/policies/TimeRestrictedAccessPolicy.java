@@ -18,6 +18,7 @@ package io.apiman.gateway.engine.policies;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.PolicyFailure;
 import io.apiman.gateway.engine.beans.PolicyFailureType;
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
 import io.apiman.gateway.engine.components.IPolicyFailureFactoryComponent;
 import io.apiman.gateway.engine.policies.config.IgnoredResourcesConfig;
 import io.apiman.gateway.engine.policies.config.TimeRestrictedAccess;
@@ -26,7 +27,6 @@ import io.apiman.gateway.engine.policies.i18n.Messages;
 import io.apiman.gateway.engine.policy.IPolicyChain;
 import io.apiman.gateway.engine.policy.IPolicyContext;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -53,6 +53,18 @@ public class TimeRestrictedAccessPolicy extends AbstractMappedPolicy<TimeRestric
         return TimeRestrictedAccessConfig.class;
     }
 
+    /**
+     * Compiles the rules' path patterns once, up front.
+     *
+     * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#parseConfiguration(java.lang.String)
+     */
+    @Override
+    public TimeRestrictedAccessConfig parseConfiguration(String jsonConfiguration) throws ConfigurationParseException {
+        TimeRestrictedAccessConfig config = super.parseConfiguration(jsonConfiguration);
+        config.getRuleMatcher();
+        return config;
+    }
+
     /**
      * @see io.apiman.gateway.engine.policies.AbstractMappedPolicy#doApply(io.apiman.gateway.engine.beans.ApiRequest,
      *      io.apiman.gateway.engine.policy.IPolicyContext, java.lang.Object,
@@ -116,13 +128,7 @@ public class TimeRestrictedAccessPolicy extends AbstractMappedPolicy<TimeRestric
      */
     private List<TimeRestrictedAccess> getRulesMatchingPath(TimeRestrictedAccessConfig config,
             String destination) {
-        List<TimeRestrictedAccess> rulesForPath = new ArrayList<>();
-        for (TimeRestrictedAccess rule : config.getRules()) {
-            if (destination.matches(rule.getPathPattern())){
-                rulesForPath.add(rule);
-            }
-        }
-        return rulesForPath;
+        return config.getRuleMatcher().getMatches(destination);
     }
 
     /**
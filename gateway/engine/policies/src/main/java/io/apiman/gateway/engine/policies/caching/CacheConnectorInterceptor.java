@@ -39,6 +39,7 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IApiCon
         IApiConnection, IApiConnectionResponse {
 
     private ISignalReadStream<ApiResponse> cacheEntry;
+    private ApiResponse head;
     private IAsyncResultHandler<IApiConnectionResponse> handler;
     private boolean finished = false;
     private boolean connected = false;
@@ -48,7 +49,17 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IApiCon
      * @param cacheEntry
      */
     public CacheConnectorInterceptor(ISignalReadStream<ApiResponse> cacheEntry) {
+        this(cacheEntry, cacheEntry.getHead());
+    }
+
+    /**
+     * Constructor.
+     * @param cacheEntry
+     * @param head the head to serve in place of the cache entry's own
+     */
+    public CacheConnectorInterceptor(ISignalReadStream<ApiResponse> cacheEntry, ApiResponse head) {
         this.cacheEntry = cacheEntry;
+        this.head = head;
     }
 
     /**
@@ -152,7 +163,7 @@ public class CacheConnectorInterceptor implements IConnectorInterceptor, IApiCon
      */
     @Override
     public ApiResponse getHead() {
-        return cacheEntry.getHead();
+        return head;
     }
 
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.ApiResponse;
+
+/**
+ * Helpers for the response heads kept in the cache store.
+ * <p>
+ * A head is stamped with the time it was stored so that its age can be told when it is
+ * read back. Heads may be shared with the store (e.g. by the in-memory store), so they
+ * are copied rather than changed.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class CachedResponses {
+
+    static final String STORED_AT_HEADER = "X-Apiman-Cache-Stored-At"; //$NON-NLS-1$
+
+    private CachedResponses() {
+    }
+
+    /**
+     * @param head the head to copy
+     * @return a copy of the head, with its own headers
+     */
+    public static ApiResponse copyOf(ApiResponse head) {
+        ApiResponse copy = new ApiResponse();
+        copy.setCode(head.getCode());
+        copy.setMessage(head.getMessage());
+        copy.getHeaders().addAll(head.getHeaders());
+        return copy;
+    }
+
+    /**
+     * @param head the head about to be stored
+     * @param now the current time in milliseconds
+     * @return a copy of the head, stamped with the given time
+     */
+    public static ApiResponse stamped(ApiResponse head, long now) {
+        ApiResponse copy = copyOf(head);
+        copy.getHeaders().put(STORED_AT_HEADER, String.valueOf(now));
+        return copy;
+    }
+
+    /**
+     * @param head a head read from the store
+     * @return a copy of the head to serve, without the stamp
+     */
+    public static ApiResponse unstamped(ApiResponse head) {
+        ApiResponse copy = copyOf(head);
+        copy.getHeaders().remove(STORED_AT_HEADER);
+        return copy;
+    }
+
+    /**
+     * @param head a head read from the store
+     * @return the time the head was stored in milliseconds, or -1 if it was not stamped
+     */
+    public static long storedAt(ApiResponse head) {
+        String storedAt = head.getHeaders().get(STORED_AT_HEADER);
+        if (storedAt != null) {
+            try {
+                return Long.parseLong(storedAt);
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * A back-end response being fetched for a cache miss, which the requests missing the
+ * same cache entry while it is in flight can join instead of going to the back-end
+ * themselves.
+ * <p>
+ * The head and body chunks are passed on to every joined {@link Listener} as they
+ * arrive, each chunk as a copy of its own. Chunks are kept for requests joining late,
+ * up to {@link #MAX_SHARED_SIZE} bytes; past that the response is closed to new
+ * requests. It is also closed once it completes or fails, at which point the close
+ * handler is called so the response can be removed from wherever it is looked up.
+ * <p>
+ * Each listener is called from a queue of its own, drained on a shared pool of delivery
+ * threads and never while holding this response's lock, so a slow listener holds up
+ * neither the request fetching the response nor the other listeners.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class InFlightResponse {
+
+    static final int MAX_SHARED_SIZE = 1024 * 1024;
+
+    private static final Executor deliveryThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "apiman-single-flight"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the in-flight response.
+     */
+    interface Listener {
+
+        /**
+         * @param head a copy of the response head, for this listener alone
+         */
+        void responseHead(ApiResponse head);
+
+        /**
+         * @param chunk a copy of a chunk of the response body, for this listener alone
+         */
+        void responseChunk(IApimanBuffer chunk);
+
+        /**
+         * The response is complete.
+         */
+        void responseEnd();
+
+        /**
+         * The response failed, or turned out not to be shareable.
+         * @param error the error, or null if the response is not shareable
+         */
+        void responseFailed(Throwable error);
+    }
+
+    private final Consumer<InFlightResponse> closeHandler;
+    private final Executor executor;
+    private final List<Delivery> deliveries = new ArrayList<>();
+    private List<byte[]> chunks = new ArrayList<>();
+    private long size;
+    private ApiResponse head;
+    private boolean closed;
+    private boolean done;
+
+    /**
+     * Constructor.
+     * @param closeHandler called once when the response stops taking new listeners
+     */
+    public InFlightResponse(Consumer<InFlightResponse> closeHandler) {
+        this(closeHandler, deliveryThreads);
+    }
+
+    /**
+     * Constructor.
+     * @param closeHandler called once when the response stops taking new listeners
+     * @param executor drains the listeners' queues
+     */
+    InFlightResponse(Consumer<InFlightResponse> closeHandler, Executor executor) {
+        this.closeHandler = closeHandler;
+        this.executor = executor;
+    }
+
+    /**
+     * Joins the response, passing on what has arrived so far.
+     * @param listener the listener
+     * @return false if the response no longer takes new listeners
+     */
+    boolean join(Listener listener) {
+        Delivery delivery = new Delivery(listener);
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            deliveries.add(delivery);
+            if (head != null) {
+                ApiResponse headCopy = CachedResponses.copyOf(head);
+                delivery.add(l -> l.responseHead(headCopy));
+                for (byte[] chunk : chunks) {
+                    delivery.add(l -> l.responseChunk(new ByteBuffer(chunk)));
+                }
+            }
+        }
+        delivery.schedule();
+        return true;
+    }
+
+    /**
+     * Leaves the response; the listener will not be called again.
+     * @param listener the listener
+     */
+    synchronized void leave(Listener listener) {
+        deliveries.removeIf(delivery -> {
+            if (delivery.listener == listener) {
+                delivery.leave();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * The head of the response arrived.
+     * @param responseHead the head, which is copied
+     */
+    void head(ApiResponse responseHead) {
+        List<Delivery> targets;
+        synchronized (this) {
+            head = CachedResponses.copyOf(responseHead);
+            for (Delivery delivery : deliveries) {
+                ApiResponse headCopy = CachedResponses.copyOf(head);
+                delivery.add(l -> l.responseHead(headCopy));
+            }
+            targets = new ArrayList<>(deliveries);
+        }
+        schedule(targets);
+    }
+
+    /**
+     * A chunk of the response body arrived.
+     * @param chunk the chunk
+     */
+    void write(IApimanBuffer chunk) {
+        List<Delivery> targets;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            // The leader's connector may reuse the chunk's buffer, and its writer may release it
+            byte[] bytes = chunk.getBytes();
+            if (chunks != null) {
+                size += bytes.length;
+                if (size > MAX_SHARED_SIZE) {
+                    chunks = null;
+                    close();
+                } else {
+                    chunks.add(bytes);
+                }
+            }
+            for (Delivery delivery : deliveries) {
+                delivery.add(l -> l.responseChunk(new ByteBuffer(bytes)));
+            }
+            targets = new ArrayList<>(deliveries);
+        }
+        schedule(targets);
+    }
+
+    /**
+     * The response is complete.
+     */
+    void end() {
+        finish(Listener::responseEnd);
+    }
+
+    /**
+     * The response failed or is not to be shared.
+     * @param error the error, or null if the response is not shareable
+     */
+    void fail(Throwable error) {
+        finish(l -> l.responseFailed(error));
+    }
+
+    private void finish(Consumer<Listener> event) {
+        List<Delivery> targets;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            chunks = null;
+            close();
+            for (Delivery delivery : deliveries) {
+                delivery.add(event);
+            }
+            targets = new ArrayList<>(deliveries);
+            deliveries.clear();
+        }
+        schedule(targets);
+    }
+
+    private void schedule(List<Delivery> targets) {
+        for (Delivery delivery : targets) {
+            delivery.schedule();
+        }
+    }
+
+    private void close() {
+        if (!closed) {
+            closed = true;
+            closeHandler.accept(this);
+        }
+    }
+
+    /**
+     * The events queued for a listener, which are delivered in order by one thread at a time.
+     */
+    private final class Delivery implements Runnable {
+        private final Listener listener;
+        private final Queue<Consumer<Listener>> events = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean left;
+
+        private Delivery(Listener listener) {
+            this.listener = listener;
+        }
+
+        private synchronized void add(Consumer<Listener> event) {
+            if (!left) {
+                events.add(event);
+            }
+        }
+
+        private synchronized void leave() {
+            left = true;
+            events.clear();
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (scheduled || events.isEmpty()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            boolean delivered = false;
+            try {
+                while (true) {
+                    Consumer<Listener> event;
+                    synchronized (this) {
+                        event = events.poll();
+                        if (event == null) {
+                            scheduled = false;
+                            delivered = true;
+                            return;
+                        }
+                    }
+                    event.accept(listener);
+                }
+            } finally {
+                if (!delivered) {
+                    // The listener failed; it is not called again
+                    leave();
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                }
+            }
+        }
+    }
+}
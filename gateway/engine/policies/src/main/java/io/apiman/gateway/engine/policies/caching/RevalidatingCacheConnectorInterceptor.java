@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.components.ICacheStoreComponent;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalReadStream;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Serves a stale cache entry like {@link CacheConnectorInterceptor}, while sending the
+ * same request to the back-end in the background to refresh the entry
+ * (stale-while-revalidate). The back-end response is stored as it comes from the
+ * connector, if cacheable, and is otherwise discarded.
+ * <p>
+ * Only one refresh per cache entry runs at a time; requests arriving while one is
+ * running are just served the stale entry.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class RevalidatingCacheConnectorInterceptor extends CacheConnectorInterceptor {
+
+    private final Set<String> revalidating;
+    private final String cacheId;
+    private final Predicate<ApiResponse> cacheable;
+    private final ICacheStoreComponent cache;
+    private final long timeToLive;
+
+    private Supplier<IApiConnector> gatewayConnector;
+    private IApiConnection revalidation;
+    private ISignalWriteStream store;
+    private boolean requestEnded = false;
+    private boolean done = false;
+
+    /**
+     * Constructor.
+     * @param cacheEntry the stale cache entry
+     * @param head the head to serve
+     * @param revalidating the cache ids being refreshed
+     * @param cacheId the cache id of the entry
+     * @param cacheable whether a response head may be cached
+     * @param cache the cache store
+     * @param timeToLive the time to live of the refreshed entry, in seconds
+     */
+    public RevalidatingCacheConnectorInterceptor(ISignalReadStream<ApiResponse> cacheEntry, ApiResponse head,
+            Set<String> revalidating, String cacheId, Predicate<ApiResponse> cacheable, ICacheStoreComponent cache,
+            long timeToLive) {
+        super(cacheEntry, head);
+        this.revalidating = revalidating;
+        this.cacheId = cacheId;
+        this.cacheable = cacheable;
+        this.cache = cache;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector(java.util.function.Supplier)
+     */
+    @Override
+    public IApiConnector createConnector(Supplier<IApiConnector> gatewayConnector) {
+        if (revalidating.add(cacheId)) {
+            this.gatewayConnector = gatewayConnector;
+        }
+        return createConnector();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor#connect(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+     */
+    @Override
+    public IApiConnection connect(ApiRequest request, IAsyncResultHandler<IApiConnectionResponse> handler)
+            throws ConnectorException {
+        IApiConnection connection = super.connect(request, handler);
+        if (gatewayConnector != null) {
+            try {
+                revalidation = gatewayConnector.get().connect(request, this::revalidated);
+            } catch (RuntimeException e) {
+                // The stale entry is still served; a later request will try again
+                done();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor#write(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void write(IApimanBuffer chunk) {
+        super.write(chunk);
+        if (revalidation != null) {
+            revalidation.write(chunk);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor#end()
+     */
+    @Override
+    public void end() {
+        if (revalidation != null) {
+            requestEnded = true;
+            revalidation.end();
+        }
+        super.end();
+    }
+
+    /**
+     * The refresh carries on if the stale response is aborted, unless the request had
+     * not been sent in full yet.
+     *
+     * @see io.apiman.gateway.engine.policies.caching.CacheConnectorInterceptor#abort(java.lang.Throwable)
+     */
+    @Override
+    public void abort(Throwable t) {
+        if (revalidation != null && !requestEnded) {
+            revalidation.abort(t);
+            done();
+        }
+        super.abort(t);
+    }
+
+    private void revalidated(IAsyncResult<IApiConnectionResponse> result) {
+        if (result.isError()) {
+            if (store != null) {
+                store.abort(result.getError());
+            }
+            done();
+            return;
+        }
+        IApiConnectionResponse response = result.getResult();
+        if (cacheable.test(response.getHead())) {
+            try {
+                store = cache.putBinary(cacheId, CachedResponses.stamped(response.getHead(), System.currentTimeMillis()),
+                        timeToLive);
+            } catch (IOException e) {
+                // Not stored; the stale entry stays until it expires
+            }
+        }
+        ISignalWriteStream target = store;
+        // Read the response to the end even when not storing it, so its connection can be reused
+        response.bodyHandler(chunk -> {
+            if (target != null) {
+                target.write(chunk);
+            }
+        });
+        response.endHandler(end -> {
+            if (target != null) {
+                target.end();
+            }
+            done();
+        });
+        response.transmit();
+    }
+
+    private void done() {
+        if (!done) {
+            done = true;
+            revalidating.remove(cacheId);
+        }
+    }
+}
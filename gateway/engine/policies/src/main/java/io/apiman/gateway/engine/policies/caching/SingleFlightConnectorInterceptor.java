@@ -0,0 +1,515 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.components.IPeriodicComponent;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.policies.i18n.Messages;
+import io.apiman.gateway.engine.policy.IConnectorInterceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A connector interceptor coalescing concurrent cache misses for the same cache entry
+ * (single-flight). The first request to connect fetches the response from the back-end
+ * and publishes it as an {@link InFlightResponse}; the requests connecting while it is in
+ * flight join it and stream the same response rather than calling the back-end.
+ * <p>
+ * A joined request goes to the back-end itself after all if the response fails before
+ * its head arrives, turns out not to be cacheable, or takes longer than the timeout
+ * to arrive. The request body is kept for that.
+ * <p>
+ * Any interceptor already set on the context is wrapped in turn rather than replaced.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class SingleFlightConnectorInterceptor implements IConnectorInterceptor {
+
+    private final IConnectorInterceptor previous;
+    private final ConcurrentMap<String, InFlightResponse> inFlight;
+    private final String cacheId;
+    private final Predicate<ApiResponse> shareable;
+    private final IPeriodicComponent timers;
+    private final long timeoutMillis;
+    private final Executor delivery;
+    private volatile boolean shared;
+
+    /**
+     * Constructor.
+     * @param previous the interceptor previously set on the context, or null
+     * @param inFlight the responses in flight, by cache id
+     * @param cacheId the cache id of the request
+     * @param shareable whether a response head may be shared, i.e. would be cached
+     * @param timers used to time out waiting for a shared response, or null for no timeout
+     * @param timeoutMillis how long to wait for a shared response
+     */
+    public SingleFlightConnectorInterceptor(IConnectorInterceptor previous, ConcurrentMap<String, InFlightResponse> inFlight,
+            String cacheId, Predicate<ApiResponse> shareable, IPeriodicComponent timers, long timeoutMillis) {
+        this(previous, inFlight, cacheId, shareable, timers, timeoutMillis, null);
+    }
+
+    /**
+     * Constructor.
+     * @param delivery delivers a shared response to the requests that joined it, or null
+     *        for the shared delivery threads
+     */
+    SingleFlightConnectorInterceptor(IConnectorInterceptor previous, ConcurrentMap<String, InFlightResponse> inFlight,
+            String cacheId, Predicate<ApiResponse> shareable, IPeriodicComponent timers, long timeoutMillis,
+            Executor delivery) {
+        this.previous = previous;
+        this.inFlight = inFlight;
+        this.cacheId = cacheId;
+        this.shareable = shareable;
+        this.timers = timers;
+        this.timeoutMillis = timeoutMillis;
+        this.delivery = delivery;
+    }
+
+    /**
+     * Shares the previous interceptor's connector.  Without one there is nothing to fetch
+     * from: the gateway itself always calls {@link #createConnector(Supplier)}.
+     *
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector()
+     */
+    @Override
+    public IApiConnector createConnector() {
+        if (previous == null) {
+            throw new ConnectorException(Messages.i18n.format("CachingResourcesPolicy.NoConnector")); //$NON-NLS-1$
+        }
+        return share(previous::createConnector);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector(java.util.function.Supplier)
+     */
+    @Override
+    public IApiConnector createConnector(Supplier<IApiConnector> gatewayConnector) {
+        return share(previous == null ? gatewayConnector : () -> previous.createConnector(gatewayConnector));
+    }
+
+    private IApiConnector share(Supplier<IApiConnector> connectors) {
+        Consumer<InFlightResponse> closeHandler = flight -> inFlight.remove(cacheId, flight);
+        InFlightResponse created = delivery == null ? new InFlightResponse(closeHandler)
+                : new InFlightResponse(closeHandler, delivery);
+        InFlightResponse existing = inFlight.putIfAbsent(cacheId, created);
+        if (existing != null) {
+            return (request, handler) -> new Follower(connectors, request, handler, existing).connect();
+        }
+        return (request, handler) -> {
+            IApiConnection connection;
+            try {
+                connection = connectors.get().connect(request, result -> lead(created, result, handler));
+            } catch (RuntimeException e) {
+                created.fail(e);
+                throw e;
+            }
+            return new LeaderConnection(connection, created);
+        };
+    }
+
+    /**
+     * @return true if the request was answered with a response fetched by another request
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    private void lead(InFlightResponse flight, IAsyncResult<IApiConnectionResponse> result,
+            IAsyncResultHandler<IApiConnectionResponse> handler) {
+        if (result.isError()) {
+            flight.fail(result.getError());
+            handler.handle(result);
+        } else if (!shareable.test(result.getResult().getHead())) {
+            flight.fail(null);
+            handler.handle(result);
+        } else {
+            flight.head(result.getResult().getHead());
+            handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(new LeaderResponse(result.getResult(), flight)));
+        }
+    }
+
+    /**
+     * The connection of the request fetching the response; fails the shared response
+     * if aborted.
+     */
+    private static final class LeaderConnection implements IApiConnection {
+
+        private final IApiConnection connection;
+        private final InFlightResponse flight;
+
+        private LeaderConnection(IApiConnection connection, InFlightResponse flight) {
+            this.connection = connection;
+            this.flight = flight;
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            connection.write(chunk);
+        }
+
+        @Override
+        public void end() {
+            connection.end();
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            flight.fail(t);
+            connection.abort(t);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return connection.isFinished();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        @Override
+        public boolean isFull() {
+            return connection.isFull();
+        }
+
+        @Override
+        public void drainHandler(IAsyncHandler<Void> drainHandler) {
+            connection.drainHandler(drainHandler);
+        }
+    }
+
+    /**
+     * The response of the request fetching it, copied into the shared response as it
+     * streams.
+     */
+    private static final class LeaderResponse implements IApiConnectionResponse {
+
+        private final IApiConnectionResponse response;
+        private final InFlightResponse flight;
+
+        private LeaderResponse(IApiConnectionResponse response, InFlightResponse flight) {
+            this.response = response;
+            this.flight = flight;
+        }
+
+        @Override
+        public ApiResponse getHead() {
+            return response.getHead();
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            response.bodyHandler(chunk -> {
+                flight.write(chunk);
+                bodyHandler.handle(chunk);
+            });
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+            response.endHandler(end -> {
+                flight.end();
+                endHandler.handle(end);
+            });
+        }
+
+        @Override
+        public void transmit() {
+            response.transmit();
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            flight.fail(t);
+            response.abort(t);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return response.isFinished();
+        }
+
+        @Override
+        public void pause() {
+            response.pause();
+        }
+
+        @Override
+        public void resume() {
+            response.resume();
+        }
+    }
+
+    /**
+     * A request that joined a response in flight. It answers the gateway once both its
+     * own request has been sent and the shared head has arrived, and falls back to a
+     * connection of its own when the shared response cannot be had.
+     */
+    private final class Follower implements IApiConnection, IApiConnectionResponse, InFlightResponse.Listener {
+
+        private final Supplier<IApiConnector> connectors;
+        private final ApiRequest request;
+        private final IAsyncResultHandler<IApiConnectionResponse> handler;
+        private final InFlightResponse flight;
+
+        private final List<IApimanBuffer> requestBody = new ArrayList<>();
+        private final List<IApimanBuffer> pending = new ArrayList<>();
+        private IApiConnection direct;
+        private ApiResponse head;
+        private Long timerId;
+        private IAsyncHandler<Void> drainHandler;
+        private IAsyncHandler<IApimanBuffer> bodyHandler;
+        private IAsyncHandler<Void> endHandler;
+        private boolean requestEnded;
+        private boolean responded;
+        private boolean transmitting;
+        private boolean responseEnded;
+        private boolean finished;
+        private boolean aborted;
+
+        private Follower(Supplier<IApiConnector> connectors, ApiRequest request,
+                IAsyncResultHandler<IApiConnectionResponse> handler, InFlightResponse flight) {
+            this.connectors = connectors;
+            this.request = request;
+            this.handler = handler;
+            this.flight = flight;
+        }
+
+        private IApiConnection connect() {
+            if (!flight.join(this)) {
+                synchronized (this) {
+                    goDirect();
+                }
+            } else if (timers != null) {
+                long id = timers.setOneshotTimer(timeoutMillis, timer -> timedOut());
+                synchronized (this) {
+                    if (head == null && direct == null) {
+                        timerId = id;
+                    } else {
+                        timers.cancelTimer(id);
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void timedOut() {
+            synchronized (this) {
+                if (head != null || direct != null || aborted) {
+                    return;
+                }
+            }
+            flight.leave(this);
+            synchronized (this) {
+                if (head == null && direct == null && !aborted) {
+                    goDirect();
+                }
+            }
+        }
+
+        private void goDirect() {
+            try {
+                direct = connectors.get().connect(request, handler);
+            } catch (RuntimeException e) {
+                handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(e));
+                return;
+            }
+            if (drainHandler != null) {
+                direct.drainHandler(drainHandler);
+            }
+            for (IApimanBuffer chunk : requestBody) {
+                direct.write(chunk);
+            }
+            requestBody.clear();
+            if (requestEnded) {
+                direct.end();
+            }
+        }
+
+        private void respondIfReady() {
+            if (requestEnded && head != null && !responded) {
+                responded = true;
+                shared = true;
+                handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(this));
+            }
+        }
+
+        private void finishResponse() {
+            finished = true;
+            if (endHandler != null) {
+                endHandler.handle(null);
+            }
+        }
+
+        // Shared response
+
+        @Override
+        public synchronized void responseHead(ApiResponse sharedHead) {
+            if (direct != null || aborted) {
+                return;
+            }
+            head = sharedHead;
+            if (timerId != null) {
+                timers.cancelTimer(timerId);
+                timerId = null;
+            }
+            respondIfReady();
+        }
+
+        @Override
+        public synchronized void responseChunk(IApimanBuffer chunk) {
+            if (direct != null || aborted) {
+                return;
+            }
+            if (transmitting) {
+                bodyHandler.handle(chunk);
+            } else {
+                pending.add(chunk);
+            }
+        }
+
+        @Override
+        public synchronized void responseEnd() {
+            if (direct != null || aborted) {
+                return;
+            }
+            responseEnded = true;
+            if (transmitting) {
+                finishResponse();
+            }
+        }
+
+        @Override
+        public synchronized void responseFailed(Throwable error) {
+            if (direct != null || aborted) {
+                return;
+            }
+            if (head == null) {
+                goDirect();
+            } else {
+                handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(error != null ? error
+                        : new ConnectorException(Messages.i18n.format("CachingResourcesPolicy.SharedResponseFailed")))); //$NON-NLS-1$
+            }
+        }
+
+        // Connection
+
+        @Override
+        public synchronized void write(IApimanBuffer chunk) {
+            if (direct != null) {
+                direct.write(chunk);
+            } else {
+                // The caller may reuse the chunk's buffer for its next chunk
+                requestBody.add(new ByteBuffer(chunk.getBytes(), chunk.length()));
+            }
+        }
+
+        @Override
+        public synchronized void end() {
+            requestEnded = true;
+            if (direct != null) {
+                direct.end();
+            } else {
+                respondIfReady();
+            }
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            IApiConnection connection;
+            synchronized (this) {
+                aborted = true;
+                finished = true;
+                connection = direct;
+            }
+            if (connection != null) {
+                connection.abort(t);
+            } else {
+                flight.leave(this);
+            }
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return direct != null ? direct.isFinished() : finished;
+        }
+
+        @Override
+        public synchronized boolean isConnected() {
+            return direct != null ? direct.isConnected() : !finished;
+        }
+
+        @Override
+        public synchronized boolean isFull() {
+            return direct != null && direct.isFull();
+        }
+
+        @Override
+        public synchronized void drainHandler(IAsyncHandler<Void> drainHandler) {
+            this.drainHandler = drainHandler;
+            if (direct != null) {
+                direct.drainHandler(drainHandler);
+            }
+        }
+
+        // Response
+
+        @Override
+        public synchronized ApiResponse getHead() {
+            return head;
+        }
+
+        @Override
+        public synchronized void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public synchronized void endHandler(IAsyncHandler<Void> endHandler) {
+            this.endHandler = endHandler;
+        }
+
+        @Override
+        public synchronized void transmit() {
+            transmitting = true;
+            for (IApimanBuffer chunk : pending) {
+                bodyHandler.handle(chunk);
+            }
+            pending.clear();
+            if (responseEnded) {
+                finishResponse();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.circuitbreaker;
+
+import io.apiman.gateway.engine.policies.config.CircuitBreakerConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker guarding one back-end endpoint, with a retry budget.
+ * <p>
+ * While closed, calls pass and their outcomes are counted over a sliding window. Once
+ * the window holds enough calls and the failure or slow call rate reaches its threshold,
+ * the circuit opens and rejects everything for the configured time. It then turns
+ * half-open and lets a few probes through: if they all succeed the circuit closes with
+ * an empty window, the first failed or slow one opens it again.
+ * <p>
+ * Retries draw on a budget that grows with the requests let through, so that retries
+ * cannot multiply the load on a back-end that is already struggling.
+ * <p>
+ * All state is held in atomics, so the breaker can be shared by any number of threads
+ * without locking.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class CircuitBreaker {
+
+    /**
+     * The states of a circuit.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final CircuitBreakerConfig config;
+    private final LongSupplier clock;
+    private final SlidingWindow window;
+    private final long openMillis;
+    private final int halfOpenProbes;
+    private final AtomicReference<Phase> phase;
+    private final AtomicInteger probesLeft = new AtomicInteger();
+    private final AtomicInteger probesSucceeded = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param config the configuration
+     */
+    public CircuitBreaker(CircuitBreakerConfig config) {
+        this(config, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor.
+     * @param config the configuration
+     * @param clock the current time in milliseconds
+     */
+    CircuitBreaker(CircuitBreakerConfig config, LongSupplier clock) {
+        this.config = config;
+        this.clock = clock;
+        this.window = new SlidingWindow(Math.max(1, config.getWindowSeconds()), TimeUnit.SECONDS.toMillis(1));
+        this.openMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.getOpenSeconds()));
+        this.halfOpenProbes = Math.max(1, config.getHalfOpenProbes());
+        this.phase = new AtomicReference<>(new Phase(State.CLOSED, clock.getAsLong()));
+    }
+
+    /**
+     * Asks to let a new request through to the back-end.
+     * @return true if the request may proceed, false if the circuit rejects it
+     */
+    public boolean tryAcquire() {
+        long now = clock.getAsLong();
+        if (!permit(now)) {
+            return false;
+        }
+        window.increment(now, SlidingWindow.REQUESTS);
+        return true;
+    }
+
+    /**
+     * Asks to retry a failed request, which takes from the retry budget.
+     * @return true if the request may be retried
+     */
+    public boolean tryRetry() {
+        long now = clock.getAsLong();
+        long[] totals = window.totals(now);
+        long budget = (long) config.getMinRetriesPerSecond() * Math.max(1, config.getWindowSeconds())
+                + totals[SlidingWindow.REQUESTS] * config.getRetryBudgetPercent() / 100;
+        if (totals[SlidingWindow.RETRIES] >= budget || !permit(now)) {
+            return false;
+        }
+        window.increment(now, SlidingWindow.RETRIES);
+        return true;
+    }
+
+    /**
+     * Records a call that got a response from the back-end.
+     * @param latencyMillis the time it took for the response to arrive
+     */
+    public void succeeded(long latencyMillis) {
+        long slowCallMillis = config.getSlowCallMillis();
+        record(false, slowCallMillis > 0 && latencyMillis >= slowCallMillis);
+    }
+
+    /**
+     * Records a call that failed, either with an error or a server error response.
+     */
+    public void failed() {
+        record(true, false);
+    }
+
+    /**
+     * @return the current state
+     */
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * @return the number of seconds after which a rejected client may try again
+     */
+    public long getRetryAfterSeconds() {
+        long remaining = phase.get().since + openMillis - clock.getAsLong();
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remaining + 999));
+    }
+
+    /**
+     * @return the configuration
+     */
+    public CircuitBreakerConfig getConfig() {
+        return config;
+    }
+
+    private boolean permit(long now) {
+        for (;;) {
+            Phase current = phase.get();
+            switch (current.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - current.since < openMillis) {
+                    return false;
+                }
+                halfOpen(current, now);
+                break;
+            default:
+                int left = probesLeft.get();
+                if (left > 0) {
+                    if (probesLeft.compareAndSet(left, left - 1)) {
+                        return true;
+                    }
+                } else if (now - current.since < openMillis) {
+                    return false;
+                } else {
+                    // The probes never reported back, e.g. they were aborted; send new ones
+                    halfOpen(current, now);
+                }
+            }
+        }
+    }
+
+    private void halfOpen(Phase from, long now) {
+        if (phase.compareAndSet(from, new Phase(State.HALF_OPEN, now))) {
+            probesSucceeded.set(0);
+            probesLeft.set(halfOpenProbes);
+        }
+    }
+
+    private void record(boolean failure, boolean slow) {
+        long now = clock.getAsLong();
+        window.increment(now, SlidingWindow.CALLS);
+        if (failure) {
+            window.increment(now, SlidingWindow.FAILURES);
+        }
+        if (slow) {
+            window.increment(now, SlidingWindow.SLOW_CALLS);
+        }
+
+        Phase current = phase.get();
+        if (current.state == State.HALF_OPEN) {
+            // Anything completing while half-open is taken as a probe result
+            if (failure || slow) {
+                phase.compareAndSet(current, new Phase(State.OPEN, now));
+            } else if (probesSucceeded.incrementAndGet() >= halfOpenProbes
+                    && phase.compareAndSet(current, new Phase(State.CLOSED, now))) {
+                window.clear();
+            }
+        } else if (current.state == State.CLOSED && isTripped(window.totals(now))) {
+            phase.compareAndSet(current, new Phase(State.OPEN, now));
+        }
+    }
+
+    private boolean isTripped(long[] totals) {
+        long calls = totals[SlidingWindow.CALLS];
+        if (calls == 0 || calls < config.getMinimumCalls()) {
+            return false;
+        }
+        int failureRate = config.getFailureRateThreshold();
+        if (failureRate > 0 && totals[SlidingWindow.FAILURES] * 100 >= failureRate * calls) {
+            return true;
+        }
+        int slowRate = config.getSlowCallRateThreshold();
+        return config.getSlowCallMillis() > 0 && slowRate > 0
+                && totals[SlidingWindow.SLOW_CALLS] * 100 >= slowRate * calls;
+    }
+
+    /**
+     * A state and when it was entered. Transitions swap the whole phase, so that
+     * concurrent callers agree on which transition won.
+     */
+    private static final class Phase {
+        private final State state;
+        private final long since;
+
+        private Phase(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.circuitbreaker;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.policies.i18n.Messages;
+import io.apiman.gateway.engine.policy.IConnectorInterceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Wraps the connector so that the outcome of each back-end call is reported to a
+ * {@link CircuitBreaker}, and retries failed calls when allowed to.
+ * <p>
+ * A call fails if it ends in an error or a 5xx response. Calls that end in an error or
+ * a 502, 503 or 504 response are retried, on a new connector, up to the given number
+ * of times and as long as the breaker's retry budget allows. The request body is kept
+ * for replaying up to {@link #MAX_RETRY_BODY_SIZE} bytes; larger requests are not retried.
+ * <p>
+ * Any interceptor already set on the context (e.g. serving a cached response) is wrapped
+ * in turn rather than replaced.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class CircuitBreakerConnectorInterceptor implements IConnectorInterceptor {
+
+    static final int MAX_RETRY_BODY_SIZE = 64 * 1024;
+
+    private final IConnectorInterceptor previous;
+    private final CircuitBreaker breaker;
+    private final int maxRetries;
+
+    /**
+     * Constructor.
+     * @param previous the interceptor previously set on the context, or null
+     * @param breaker the breaker to report to
+     * @param maxRetries the number of retries allowed for this request (0 for none)
+     */
+    public CircuitBreakerConnectorInterceptor(IConnectorInterceptor previous, CircuitBreaker breaker, int maxRetries) {
+        this.previous = previous;
+        this.breaker = breaker;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Guards the previous interceptor's connector.  Without one there is no connector to
+     * guard: the gateway itself always calls {@link #createConnector(Supplier)}.
+     *
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector()
+     */
+    @Override
+    public IApiConnector createConnector() {
+        if (previous == null) {
+            throw new ConnectorException(Messages.i18n.format("CircuitBreakerPolicy.NoConnector")); //$NON-NLS-1$
+        }
+        return guard(previous::createConnector);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.policy.IConnectorInterceptor#createConnector(java.util.function.Supplier)
+     */
+    @Override
+    public IApiConnector createConnector(Supplier<IApiConnector> gatewayConnector) {
+        return guard(previous == null ? gatewayConnector : () -> previous.createConnector(gatewayConnector));
+    }
+
+    private IApiConnector guard(Supplier<IApiConnector> connectors) {
+        return (request, handler) -> new GuardedConnection(connectors, request, handler).connect();
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * A connection that forwards to the current attempt's connection, keeping hold of
+     * the request body in case it needs to be replayed.
+     */
+    private final class GuardedConnection implements IApiConnection {
+
+        private final Supplier<IApiConnector> connectors;
+        private final ApiRequest request;
+        private final IAsyncResultHandler<IApiConnectionResponse> handler;
+
+        private IApiConnection connection;
+        private List<IApimanBuffer> body;
+        private long bodySize;
+        private boolean ended;
+        private boolean aborted;
+        private int attempt;
+        private long attemptStarted;
+        private IAsyncHandler<Void> drainHandler;
+
+        private GuardedConnection(Supplier<IApiConnector> connectors, ApiRequest request,
+                IAsyncResultHandler<IApiConnectionResponse> handler) {
+            this.connectors = connectors;
+            this.request = request;
+            this.handler = handler;
+            this.body = maxRetries > 0 ? new ArrayList<>() : null;
+        }
+
+        private synchronized IApiConnection connect() throws ConnectorException {
+            try {
+                open();
+            } catch (RuntimeException e) {
+                breaker.failed();
+                throw e;
+            }
+            return this;
+        }
+
+        /**
+         * Connects the current attempt. A connector may report failure from within
+         * {@link IApiConnector#connect}, in which case a retry may already have
+         * replaced the connection by the time this returns.
+         */
+        private void open() throws ConnectorException {
+            final int thisAttempt = attempt;
+            attemptStarted = System.nanoTime();
+            IApiConnection opened = connectors.get().connect(request, result -> handle(thisAttempt, result));
+            if (thisAttempt == attempt) {
+                connection = opened;
+            }
+        }
+
+        private void handle(int thisAttempt, IAsyncResult<IApiConnectionResponse> result) {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attemptStarted);
+            boolean retryable;
+            if (result.isError()) {
+                breaker.failed();
+                retryable = true;
+            } else {
+                int statusCode = result.getResult().getHead().getCode();
+                if (statusCode >= 500) {
+                    breaker.failed();
+                } else {
+                    breaker.succeeded(latencyMillis);
+                }
+                retryable = isRetryable(statusCode);
+            }
+            if (retryable && retry(thisAttempt)) {
+                if (result.isSuccess()) {
+                    // Let go of the failed response's connection
+                    result.getResult().abort(null);
+                }
+                return;
+            }
+            handler.handle(result);
+        }
+
+        private synchronized boolean retry(int failedAttempt) {
+            if (failedAttempt != attempt || aborted || body == null || attempt >= maxRetries
+                    || !breaker.tryRetry()) {
+                return false;
+            }
+            int thisAttempt = ++attempt;
+            try {
+                open();
+            } catch (RuntimeException e) {
+                breaker.failed();
+                if (!retry(thisAttempt)) {
+                    handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(e));
+                }
+                return true;
+            }
+            if (thisAttempt != attempt) {
+                return true;
+            }
+            if (drainHandler != null) {
+                connection.drainHandler(drainHandler);
+            }
+            for (IApimanBuffer chunk : body) {
+                connection.write(chunk);
+            }
+            if (ended) {
+                connection.end();
+            }
+            return true;
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.IWriteStream#write(io.apiman.gateway.engine.io.IApimanBuffer)
+         */
+        @Override
+        public synchronized void write(IApimanBuffer chunk) {
+            if (body != null) {
+                bodySize += chunk.length();
+                if (bodySize > MAX_RETRY_BODY_SIZE) {
+                    body = null;
+                } else {
+                    // The caller may reuse the chunk's buffer for its next chunk
+                    body.add(new ByteBuffer(chunk.getBytes(), chunk.length()));
+                }
+            }
+            connection.write(chunk);
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.IWriteStream#end()
+         */
+        @Override
+        public synchronized void end() {
+            ended = true;
+            connection.end();
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.IAbortable#abort(java.lang.Throwable)
+         */
+        @Override
+        public synchronized void abort(Throwable t) {
+            aborted = true;
+            connection.abort(t);
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.IStream#isFinished()
+         */
+        @Override
+        public synchronized boolean isFinished() {
+            return connection.isFinished();
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.IApiConnection#isConnected()
+         */
+        @Override
+        public synchronized boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.ISignalWriteStream#isFull()
+         */
+        @Override
+        public synchronized boolean isFull() {
+            return connection.isFull();
+        }
+
+        /**
+         * @see io.apiman.gateway.engine.io.ISignalWriteStream#drainHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+         */
+        @Override
+        public synchronized void drainHandler(IAsyncHandler<Void> drainHandler) {
+            this.drainHandler = drainHandler;
+            connection.drainHandler(drainHandler);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.circuitbreaker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters over a sliding time window, kept as a ring of fixed-length buckets. Updates
+ * and reads are lock-free; a bucket is recycled by the first caller to see it is out of
+ * date. Increments racing with that recycling may be lost, so the counts are approximate,
+ * which is fine for rates.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+final class SlidingWindow {
+
+    static final int CALLS = 0;
+    static final int FAILURES = 1;
+    static final int SLOW_CALLS = 2;
+    static final int REQUESTS = 3;
+    static final int RETRIES = 4;
+    private static final int COUNTERS = 5;
+
+    private final long bucketMillis;
+    private final Bucket[] buckets;
+
+    /**
+     * Constructor.
+     * @param bucketCount the number of buckets in the window
+     * @param bucketMillis the length of a bucket in milliseconds
+     */
+    SlidingWindow(int bucketCount, long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+        this.buckets = new Bucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Increments a counter.
+     * @param now the current time in milliseconds
+     * @param counter the counter, e.g. {@link #CALLS}
+     */
+    void increment(long now, int counter) {
+        long epoch = now / bucketMillis;
+        Bucket bucket = buckets[(int) (epoch % buckets.length)];
+        long seen = bucket.epoch.get();
+        if (seen < epoch && bucket.epoch.compareAndSet(seen, epoch)) {
+            for (int i = 0; i < COUNTERS; i++) {
+                bucket.counts.set(i, 0);
+            }
+        }
+        bucket.counts.incrementAndGet(counter);
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return the sum of each counter over the window, indexed by counter
+     */
+    long[] totals(long now) {
+        long epoch = now / bucketMillis;
+        long[] totals = new long[COUNTERS];
+        for (Bucket bucket : buckets) {
+            long bucketEpoch = bucket.epoch.get();
+            if (bucketEpoch <= epoch && bucketEpoch > epoch - buckets.length) {
+                for (int i = 0; i < COUNTERS; i++) {
+                    totals[i] += bucket.counts.get(i);
+                }
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Forgets everything counted so far.
+     */
+    void clear() {
+        for (Bucket bucket : buckets) {
+            bucket.epoch.set(Long.MIN_VALUE);
+        }
+    }
+
+    private static final class Bucket {
+        private final AtomicLong epoch = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+    }
+}
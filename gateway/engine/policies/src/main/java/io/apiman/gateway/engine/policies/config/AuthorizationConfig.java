@@ -15,9 +15,13 @@
  */
 package io.apiman.gateway.engine.policies.config;
 
+import io.apiman.gateway.engine.policies.util.PatternRuleMatcher;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 
 /**
  * Configuration object for the Authorization policy.
@@ -27,6 +31,7 @@ public class AuthorizationConfig {
     private List<AuthorizationRule> rules = new ArrayList<>();
     private UnmatchedRequestType requestUnmatched;
     private MultipleMatchType multiMatch;
+    private volatile PatternRuleMatcher<AuthorizationRule> ruleMatcher;
 
     /**
      * Constructor.
@@ -46,6 +51,20 @@ public class AuthorizationConfig {
      */
     public void setRules(List<AuthorizationRule> rules) {
         this.rules = rules;
+        this.ruleMatcher = null;
+    }
+
+    /**
+     * @return the rules, compiled for matching against request paths
+     */
+    @JsonIgnore
+    public PatternRuleMatcher<AuthorizationRule> getRuleMatcher() {
+        PatternRuleMatcher<AuthorizationRule> matcher = ruleMatcher;
+        if (matcher == null) {
+            matcher = new PatternRuleMatcher<>(rules, AuthorizationRule::getPathPattern);
+            ruleMatcher = matcher;
+        }
+        return matcher;
     }
 
     /**
@@ -1,8 +1,12 @@
 package io.apiman.gateway.engine.policies.config;
 
+import io.apiman.gateway.engine.policies.util.PatternRuleMatcher;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Configuration object for the Caching policy.
  *
@@ -11,7 +15,12 @@ import java.util.List;
 public class CachingResourcesConfig {
 
     private long ttl; // in seconds
+    private long staleWhileRevalidate; // in seconds
+    private boolean singleFlight;
+    private long singleFlightTimeout = 30; // in seconds
     private List<CachingResourcesSettingsEntry> cachingResourcesSettingsEntries = new ArrayList<>();
+    private volatile PatternRuleMatcher<CachingResourcesSettingsEntry> pathMatcher;
+    private volatile PatternRuleMatcher<CachingResourcesSettingsEntry> statusCodeMatcher;
 
     /**
      * Constructor.
@@ -33,6 +42,54 @@ public class CachingResourcesConfig {
         this.ttl = ttl;
     }
 
+    /**
+     * How long past its ttl a cached response may still be served, while it is refreshed
+     * from the back-end in the background. 0 disables stale serving.
+     * @return staleWhileRevalidate the time in seconds
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @param staleWhileRevalidate the time in seconds to set
+     */
+    public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Whether concurrent cache misses for the same entry are coalesced into a single
+     * back-end request, whose response is streamed to all of them.
+     * @return singleFlight true if enabled
+     */
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * @param singleFlight the singleFlight to set
+     */
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * How long a coalesced request waits for the response to the request it joined before
+     * going to the back-end itself.
+     * @return singleFlightTimeout the time in seconds
+     */
+    public long getSingleFlightTimeout() {
+        return singleFlightTimeout;
+    }
+
+    /**
+     * @param singleFlightTimeout the time in seconds to set
+     */
+    public void setSingleFlightTimeout(long singleFlightTimeout) {
+        this.singleFlightTimeout = singleFlightTimeout;
+    }
+
     /**
      * Contains the caching settings of the policy
      * @return getCachingResourcesSettingsEntries caching settings entries
@@ -47,6 +104,40 @@ public class CachingResourcesConfig {
      */
     public void setCachingResourcesSettingsEntries(List<CachingResourcesSettingsEntry> cachingResourcesSettingsEntries) {
         this.cachingResourcesSettingsEntries = cachingResourcesSettingsEntries;
+        this.pathMatcher = null;
+        this.statusCodeMatcher = null;
+    }
+
+    /**
+     * @return the caching settings entries, compiled for matching against request paths
+     */
+    @JsonIgnore
+    public PatternRuleMatcher<CachingResourcesSettingsEntry> getPathMatcher() {
+        PatternRuleMatcher<CachingResourcesSettingsEntry> matcher = pathMatcher;
+        if (matcher == null) {
+            matcher = new PatternRuleMatcher<>(cachingResourcesSettingsEntries,
+                    entry -> toRegex(entry.getPathPattern()));
+            pathMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * @return the caching settings entries, compiled for matching against response status codes
+     */
+    @JsonIgnore
+    public PatternRuleMatcher<CachingResourcesSettingsEntry> getStatusCodeMatcher() {
+        PatternRuleMatcher<CachingResourcesSettingsEntry> matcher = statusCodeMatcher;
+        if (matcher == null) {
+            matcher = new PatternRuleMatcher<>(cachingResourcesSettingsEntries,
+                    entry -> toRegex(entry.getStatusCode()));
+            statusCodeMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    private static String toRegex(String entry) {
+        return CachingResourcesSettingsEntry.MATCH_ALL.equals(entry) ? ".*" : entry; //$NON-NLS-1$
     }
 
 }
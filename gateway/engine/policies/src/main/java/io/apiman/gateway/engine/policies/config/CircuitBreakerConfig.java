@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.config;
+
+import java.util.Objects;
+
+/**
+ * Configuration object for the circuit breaker policy.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class CircuitBreakerConfig {
+
+    private int windowSeconds = 10;
+    private int minimumCalls = 20;
+    private int failureRateThreshold = 50; // percent
+    private long slowCallMillis; // 0 disables slow call tracking
+    private int slowCallRateThreshold = 100; // percent
+    private int openSeconds = 30;
+    private int halfOpenProbes = 3;
+    private int maxRetries;
+    private int retryBudgetPercent = 20;
+    private int minRetriesPerSecond = 1;
+
+    /**
+     * Constructor.
+     */
+    public CircuitBreakerConfig() {
+    }
+
+    /**
+     * @return the length of the sliding window the rates are calculated over, in seconds
+     */
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * @param windowSeconds the windowSeconds to set
+     */
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    /**
+     * @return the number of calls in the window below which the circuit stays closed
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * @param minimumCalls the minimumCalls to set
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * @return the percentage of failed calls at which the circuit opens
+     */
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * @param failureRateThreshold the failureRateThreshold to set
+     */
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * @return the time to the response after which a call counts as slow, in milliseconds
+     */
+    public long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    /**
+     * @param slowCallMillis the slowCallMillis to set
+     */
+    public void setSlowCallMillis(long slowCallMillis) {
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    /**
+     * @return the percentage of slow calls at which the circuit opens
+     */
+    public int getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * @param slowCallRateThreshold the slowCallRateThreshold to set
+     */
+    public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    /**
+     * @return how long an open circuit rejects requests before letting probes through, in seconds
+     */
+    public int getOpenSeconds() {
+        return openSeconds;
+    }
+
+    /**
+     * @param openSeconds the openSeconds to set
+     */
+    public void setOpenSeconds(int openSeconds) {
+        this.openSeconds = openSeconds;
+    }
+
+    /**
+     * @return the number of probes let through, and required to succeed, while half-open
+     */
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    /**
+     * @param halfOpenProbes the halfOpenProbes to set
+     */
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * @return the maximum number of retries of a single idempotent request (0 disables retries)
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries the maxRetries to set
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return retries allowed within the window, as a percentage of the requests in it
+     */
+    public int getRetryBudgetPercent() {
+        return retryBudgetPercent;
+    }
+
+    /**
+     * @param retryBudgetPercent the retryBudgetPercent to set
+     */
+    public void setRetryBudgetPercent(int retryBudgetPercent) {
+        this.retryBudgetPercent = retryBudgetPercent;
+    }
+
+    /**
+     * @return retries per second allowed regardless of the request volume
+     */
+    public int getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+
+    /**
+     * @param minRetriesPerSecond the minRetriesPerSecond to set
+     */
+    public void setMinRetriesPerSecond(int minRetriesPerSecond) {
+        this.minRetriesPerSecond = minRetriesPerSecond;
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(windowSeconds, minimumCalls, failureRateThreshold, slowCallMillis,
+                slowCallRateThreshold, openSeconds, halfOpenProbes, maxRetries, retryBudgetPercent,
+                minRetriesPerSecond);
+    }
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CircuitBreakerConfig)) {
+            return false;
+        }
+        CircuitBreakerConfig other = (CircuitBreakerConfig) obj;
+        return windowSeconds == other.windowSeconds && minimumCalls == other.minimumCalls
+                && failureRateThreshold == other.failureRateThreshold && slowCallMillis == other.slowCallMillis
+                && slowCallRateThreshold == other.slowCallRateThreshold && openSeconds == other.openSeconds
+                && halfOpenProbes == other.halfOpenProbes && maxRetries == other.maxRetries
+                && retryBudgetPercent == other.retryBudgetPercent
+                && minRetriesPerSecond == other.minRetriesPerSecond;
+    }
+}
@@ -15,9 +15,13 @@
  */
 package io.apiman.gateway.engine.policies.config;
 
+import io.apiman.gateway.engine.policies.util.PatternRuleMatcher;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Configuration object for the Ignored Resources policy.
  *
@@ -26,6 +30,7 @@ import java.util.List;
 public class IgnoredResourcesConfig {
 
     private List<IgnoredResource> rules = new ArrayList<>();
+    private volatile PatternRuleMatcher<IgnoredResource> ruleMatcher;
 
     /**
      * Constructor.
@@ -46,6 +51,20 @@ public class IgnoredResourcesConfig {
      */
     public void setRules(List<IgnoredResource> rules) {
         this.rules = rules;
+        this.ruleMatcher = null;
+    }
+
+    /**
+     * @return the rules, compiled for matching against request paths
+     */
+    @JsonIgnore
+    public PatternRuleMatcher<IgnoredResource> getRuleMatcher() {
+        PatternRuleMatcher<IgnoredResource> matcher = ruleMatcher;
+        if (matcher == null) {
+            matcher = new PatternRuleMatcher<>(rules, IgnoredResource::getPathPattern);
+            ruleMatcher = matcher;
+        }
+        return matcher;
     }
 
 }
@@ -15,9 +15,13 @@
  */
 package io.apiman.gateway.engine.policies.config;
 
+import io.apiman.gateway.engine.policies.util.PatternRuleMatcher;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Configuration object for the TimeRestrictedAccess policy.
  *
@@ -26,6 +30,7 @@ import java.util.List;
 public class TimeRestrictedAccessConfig {
 
     private List<TimeRestrictedAccess> rules = new ArrayList<>();
+    private volatile PatternRuleMatcher<TimeRestrictedAccess> ruleMatcher;
 
     /**
      * Constructor.
@@ -39,5 +44,19 @@ public class TimeRestrictedAccessConfig {
 
     public void setRules(List<TimeRestrictedAccess> rules) {
         this.rules = rules;
+        this.ruleMatcher = null;
+    }
+
+    /**
+     * @return the rules, compiled for matching against request paths
+     */
+    @JsonIgnore
+    public PatternRuleMatcher<TimeRestrictedAccess> getRuleMatcher() {
+        PatternRuleMatcher<TimeRestrictedAccess> matcher = ruleMatcher;
+        if (matcher == null) {
+            matcher = new PatternRuleMatcher<>(rules, TimeRestrictedAccess::getPathPattern);
+            ruleMatcher = matcher;
+        }
+        return matcher;
     }
 }
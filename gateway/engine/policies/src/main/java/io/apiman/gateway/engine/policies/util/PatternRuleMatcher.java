@@ -0,0 +1,224 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.util;
+
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches a value against the regular expressions of a list of policy rules,
+ * with the same semantics as calling {@link String#matches(String)} for each
+ * rule, but with every pattern compiled once up front.
+ * <p>
+ * Rules are indexed in a trie by the literal prefix of their pattern, so
+ * matching walks the value once and only considers rules whose prefix it
+ * shares. Purely literal patterns (e.g. {@code /health}) and literal prefixes
+ * followed by {@code .*} (e.g. {@code /admin/.*}) are matched by the trie walk
+ * alone; any other pattern is only evaluated once its literal prefix matched.
+ *
+ * @param <R> the rule type
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class PatternRuleMatcher<R> {
+
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|"; //$NON-NLS-1$
+    private static final String ANY_SUFFIX = ".*"; //$NON-NLS-1$
+
+    private final Node<R> root = new Node<>();
+
+    /**
+     * Constructor.
+     *
+     * @param rules the rules, in configuration order
+     * @param patternOf extracts a rule's regular expression; rules with a null pattern never match
+     * @throws ConfigurationParseException if a pattern is not a valid regular expression
+     */
+    public PatternRuleMatcher(List<R> rules, Function<R, String> patternOf) throws ConfigurationParseException {
+        if (rules == null) {
+            return;
+        }
+        int order = 0;
+        for (R rule : rules) {
+            String pattern = patternOf.apply(rule);
+            if (pattern != null) {
+                add(new Entry<>(order, rule), pattern);
+            }
+            order++;
+        }
+    }
+
+    private void add(Entry<R> entry, String pattern) {
+        int i = 0;
+        while (i < pattern.length() && METACHARACTERS.indexOf(pattern.charAt(i)) < 0) {
+            i++;
+        }
+        if (i == pattern.length()) {
+            node(pattern).exact.add(entry);
+            return;
+        }
+        String literal = pattern.substring(0, i);
+        if (pattern.length() - i == ANY_SUFFIX.length() && pattern.endsWith(ANY_SUFFIX)) {
+            node(literal).anySuffix.add(entry);
+            return;
+        }
+
+        try {
+            entry.pattern = Pattern.compile(pattern);
+        } catch (PatternSyntaxException e) {
+            throw new ConfigurationParseException(e.getMessage(), e);
+        }
+        char next = pattern.charAt(i);
+        if (next == '*' || next == '?' || next == '{') {
+            // The quantifier applies to the last literal character, so it may be absent
+            literal = literal.substring(0, Math.max(0, literal.length() - 1));
+        }
+        if (pattern.indexOf('|') >= 0) {
+            // An alternation may not share the prefix
+            literal = ""; //$NON-NLS-1$
+        }
+        node(literal).regex.add(entry);
+    }
+
+    private Node<R> node(String literal) {
+        Node<R> node = root;
+        for (int i = 0; i < literal.length(); i++) {
+            node = node.children.computeIfAbsent(literal.charAt(i), c -> new Node<>());
+        }
+        return node;
+    }
+
+    /**
+     * @param value the value to match, a null value is treated as empty
+     * @param filter additional condition a matching rule must satisfy
+     * @return true if any rule satisfying the filter matches the value
+     */
+    public boolean matchesAny(String value, Predicate<? super R> filter) {
+        return collect(value, filter, null);
+    }
+
+    /**
+     * @param value the value to match, a null value is treated as empty
+     * @return the matching rules, in configuration order
+     */
+    public List<R> getMatches(String value) {
+        return getMatches(value, rule -> true);
+    }
+
+    /**
+     * @param value the value to match, a null value is treated as empty
+     * @param filter additional condition a matching rule must satisfy
+     * @return the matching rules satisfying the filter, in configuration order
+     */
+    public List<R> getMatches(String value, Predicate<? super R> filter) {
+        List<Entry<R>> matches = new ArrayList<>();
+        collect(value, filter, matches);
+        if (matches.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (matches.size() > 1) {
+            matches.sort(null);
+        }
+        List<R> rules = new ArrayList<>(matches.size());
+        for (Entry<R> entry : matches) {
+            rules.add(entry.rule);
+        }
+        return rules;
+    }
+
+    /**
+     * Walks the trie along the value. Collects the matching entries if a list is given,
+     * otherwise stops at the first match.
+     */
+    private boolean collect(String value, Predicate<? super R> filter, List<Entry<R>> matches) {
+        if (value == null) {
+            value = ""; //$NON-NLS-1$
+        }
+        int lastLineTerminator = lastLineTerminator(value);
+        Node<R> node = root;
+        for (int i = 0; node != null; i++) {
+            if (!node.anySuffix.isEmpty() && lastLineTerminator < i
+                    && collect(node.anySuffix, value, filter, matches, false)) {
+                return true;
+            }
+            if (collect(node.regex, value, filter, matches, true)) {
+                return true;
+            }
+            if (i == value.length()) {
+                return collect(node.exact, value, filter, matches, false);
+            }
+            node = node.children.get(value.charAt(i));
+        }
+        return false;
+    }
+
+    private boolean collect(List<Entry<R>> entries, String value, Predicate<? super R> filter,
+            List<Entry<R>> matches, boolean evaluate) {
+        for (Entry<R> entry : entries) {
+            if ((!evaluate || entry.pattern.matcher(value).matches()) && filter.test(entry.rule)) {
+                if (matches == null) {
+                    return true;
+                }
+                matches.add(entry);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * '.' does not match line terminators, so a trailing '.*' only matches after the last one.
+     */
+    private static int lastLineTerminator(String value) {
+        for (int i = value.length() - 1; i >= 0; i--) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Node<R> {
+        private final Map<Character, Node<R>> children = new HashMap<>();
+        private final List<Entry<R>> exact = new ArrayList<>(0);
+        private final List<Entry<R>> anySuffix = new ArrayList<>(0);
+        private final List<Entry<R>> regex = new ArrayList<>(0);
+    }
+
+    private static final class Entry<R> implements Comparable<Entry<R>> {
+        private final int order;
+        private final R rule;
+        private Pattern pattern;
+
+        private Entry(int order, R rule) {
+            this.order = order;
+            this.rule = rule;
+        }
+
+        @Override
+        public int compareTo(Entry<R> other) {
+            return Integer.compare(order, other.order);
+        }
+    }
+}
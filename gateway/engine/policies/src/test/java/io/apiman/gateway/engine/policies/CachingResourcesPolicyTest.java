@@ -229,6 +229,53 @@ public class CachingResourcesPolicyTest extends ApimanPolicyTest {
         assertNotEquals(counterValue, shouldNotCachedcounterValue);
     }
 
+    /**
+     * Verify that an expired entry is still served during the stale period, while it
+     * is refreshed in the background.
+     * @throws Throwable
+     */
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 1," +
+            "  \"staleWhileRevalidate\" : 30," +
+            "  \"cachingResourcesSettingsEntries\" : [{\"statusCode\": \"*\", \"pathPattern\": \"*\", \"httpMethod\": \"*\"}]" +
+            "}")
+    public void testStaleWhileRevalidate() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/stale-resource");
+        Long counterValue = doRequest(request);
+        Thread.sleep(1500);
+
+        // Stale, but still served from the cache
+        Long staleValue = doRequest(request);
+        assertEquals(counterValue, staleValue);
+
+        // Meanwhile refreshed
+        Thread.sleep(200);
+        Long refreshedValue = doRequest(request);
+        assertNotEquals(counterValue, refreshedValue);
+        assertEquals(refreshedValue, doRequest(request));
+    }
+
+    /**
+     * Verify that caching works as usual with single-flight enabled.
+     * @throws Throwable
+     */
+    @Test
+    @Configuration("{" +
+            "  \"ttl\" : 5," +
+            "  \"singleFlight\" : true," +
+            "  \"cachingResourcesSettingsEntries\" : [{\"statusCode\": \"200\", \"pathPattern\": \".*\", \"httpMethod\": \"GET\"}]" +
+            "}")
+    public void testCachingSingleFlight() throws Throwable {
+        PolicyTestRequest request = PolicyTestRequest.build(PolicyTestRequestType.GET, "/some/single-flight-resource");
+        assertRequestIsCached(request);
+
+        PolicyTestRequest requestNoCache = PolicyTestRequest.build(PolicyTestRequestType.GET, "/not/found");
+        requestNoCache.headers().put("X-Echo-ErrorCode", "404");
+        requestNoCache.headers().put("X-Echo-ErrorMessage", "Not found.");
+        assertRequestNotCached(requestNoCache);
+    }
+
     /**
      * Ensures that a request is cached.
      * @param request
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.caching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.policy.IConnectorInterceptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SingleFlightConnectorInterceptor}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class SingleFlightConnectorInterceptorTest {
+
+    private final ConcurrentMap<String, InFlightResponse> inFlight = new ConcurrentHashMap<>();
+    private final List<BackEndCall> backEndCalls = new ArrayList<>();
+    private final IApiConnector backEnd = (request, handler) -> {
+        BackEndCall call = new BackEndCall(handler);
+        backEndCalls.add(call);
+        return call;
+    };
+
+    /**
+     * Delivers the shared response to followers right away, on the leader's thread.
+     */
+    private SingleFlightConnectorInterceptor interceptor(boolean shareable) {
+        return new SingleFlightConnectorInterceptor(null, inFlight, "key", head -> shareable, null, 1000, Runnable::run);
+    }
+
+    @Test
+    public void sharesResponseInFlight() throws Exception {
+        SingleFlightConnectorInterceptor first = interceptor(true);
+        SingleFlightConnectorInterceptor second = interceptor(true);
+        Client leader = new Client(first.createConnector(() -> backEnd));
+        Client follower = new Client(second.createConnector(() -> backEnd));
+        assertEquals(1, backEndCalls.size());
+
+        backEndCalls.get(0).respond(200);
+        assertTrue(leader.responded());
+        assertTrue(follower.responded());
+        assertEquals(200, follower.response.getHead().getCode());
+
+        backEndCalls.get(0).chunk("hello ");
+        backEndCalls.get(0).chunk("world");
+        backEndCalls.get(0).finish();
+        assertEquals("hello world", leader.body.toString());
+        assertEquals("hello world", follower.body.toString());
+        assertTrue(leader.ended && follower.ended);
+        assertFalse(first.isShared());
+        assertTrue(second.isShared());
+        assertTrue(inFlight.isEmpty());
+    }
+
+    @Test
+    public void lateJoinerGetsBufferedBody() throws Exception {
+        Client leader = new Client(interceptor(true).createConnector(() -> backEnd));
+        backEndCalls.get(0).respond(200);
+        backEndCalls.get(0).chunk("hello ");
+
+        Client follower = new Client(interceptor(true).createConnector(() -> backEnd));
+        backEndCalls.get(0).chunk("world");
+        backEndCalls.get(0).finish();
+        assertEquals(1, backEndCalls.size());
+        assertEquals("hello world", leader.body.toString());
+        assertEquals("hello world", follower.body.toString());
+        assertTrue(follower.ended);
+    }
+
+    @Test
+    public void followerGoesDirectWhenNotShareable() throws Exception {
+        SingleFlightConnectorInterceptor second = interceptor(false);
+        new Client(interceptor(false).createConnector(() -> backEnd));
+        Client follower = new Client(second.createConnector(() -> backEnd));
+
+        backEndCalls.get(0).respond(500);
+        assertEquals(2, backEndCalls.size());
+        assertTrue(backEndCalls.get(1).ended);
+        assertFalse(follower.responded());
+
+        backEndCalls.get(1).respond(500);
+        assertTrue(follower.responded());
+        assertFalse(second.isShared());
+        assertTrue(inFlight.isEmpty());
+    }
+
+    @Test
+    public void followerGoesDirectWhenLeaderFails() throws Exception {
+        Client leader = new Client(interceptor(true).createConnector(() -> backEnd));
+        Client follower = new Client(interceptor(true).createConnector(() -> backEnd));
+
+        backEndCalls.get(0).handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(new Exception("refused")));
+        assertEquals("refused", leader.error.getMessage());
+        assertEquals(2, backEndCalls.size());
+        backEndCalls.get(1).respond(200);
+        assertTrue(follower.responded());
+    }
+
+    @Test
+    public void retainedChunksSurviveBufferReuse() throws Exception {
+        Client leader = new Client(interceptor(true).createConnector(() -> backEnd));
+        Client deferred = new Client(interceptor(true).createConnector(() -> backEnd), false);
+        backEndCalls.get(0).respond(200);
+        backEndCalls.get(0).reusedChunk("hello ");
+        backEndCalls.get(0).reusedChunk("world");
+
+        Client late = new Client(interceptor(true).createConnector(() -> backEnd));
+        deferred.response.transmit();
+        backEndCalls.get(0).finish();
+        assertEquals("hello world", leader.body.toString());
+        assertEquals("hello world", late.body.toString());
+        assertEquals("hello world", deferred.body.toString());
+    }
+
+    @Test
+    public void followersGetChunksOfTheirOwn() throws Exception {
+        Client leader = new Client(interceptor(true).createConnector(() -> backEnd));
+        StringBuffer changedBody = new StringBuffer();
+        follow(interceptor(true).createConnector(() -> backEnd), chunk -> {
+            chunk.set(0, (byte) 'j');
+            changedBody.append(chunk.toString());
+        });
+        Client follower = new Client(interceptor(true).createConnector(() -> backEnd));
+
+        backEndCalls.get(0).respond(200);
+        backEndCalls.get(0).chunk("hello");
+        backEndCalls.get(0).finish();
+        assertEquals("jello", changedBody.toString());
+        assertEquals("hello", follower.body.toString());
+        assertEquals("hello", leader.body.toString());
+    }
+
+    @Test(timeout = 10000)
+    public void slowFollowerHoldsUpNeitherLeaderNorOtherFollowers() throws Exception {
+        SingleFlightConnectorInterceptor first = new SingleFlightConnectorInterceptor(null, inFlight, "key", head -> true, null, 1000);
+        Client leader = new Client(first.createConnector(() -> backEnd));
+        CountDownLatch release = new CountDownLatch(1);
+        StringBuffer slowBody = new StringBuffer();
+        CountDownLatch slowEnded = follow(new SingleFlightConnectorInterceptor(null, inFlight, "key", head -> true, null, 1000)
+                .createConnector(() -> backEnd), chunk -> {
+                    await(release);
+                    slowBody.append(chunk.toString());
+                });
+        StringBuffer fastBody = new StringBuffer();
+        CountDownLatch fastEnded = follow(new SingleFlightConnectorInterceptor(null, inFlight, "key", head -> true, null, 1000)
+                .createConnector(() -> backEnd), chunk -> fastBody.append(chunk.toString()));
+
+        backEndCalls.get(0).respond(200);
+        backEndCalls.get(0).chunk("hello ");
+        backEndCalls.get(0).chunk("world");
+        backEndCalls.get(0).finish();
+        assertEquals("hello world", leader.body.toString());
+        assertTrue(leader.ended);
+
+        fastEnded.await();
+        assertEquals("hello world", fastBody.toString());
+        assertEquals("", slowBody.toString());
+
+        release.countDown();
+        slowEnded.await();
+        assertEquals("hello world", slowBody.toString());
+    }
+
+    @Test
+    public void directRequestReplaysBodyWrittenThroughReusedBuffer() throws Exception {
+        new Client(interceptor(false).createConnector(() -> backEnd));
+        new Client(interceptor(false).createConnector(() -> backEnd), true, "first chunk|", "second chunk|", "last");
+
+        backEndCalls.get(0).respond(500);
+        assertEquals(2, backEndCalls.size());
+        assertEquals("first chunk|second chunk|last", backEndCalls.get(1).body.toString());
+    }
+
+    @Test
+    public void createConnectorSharesPreviousInterceptor() throws Exception {
+        IConnectorInterceptor previous = () -> backEnd;
+        Client leader = new Client(new SingleFlightConnectorInterceptor(previous, inFlight, "key", head -> true, null, 1000)
+                .createConnector());
+        backEndCalls.get(0).respond(200);
+        assertTrue(leader.responded());
+    }
+
+    @Test(expected = ConnectorException.class)
+    public void createConnectorFailsWithoutPreviousInterceptor() {
+        interceptor(true).createConnector();
+    }
+
+    /**
+     * Sends a request through a connector and reads the response.
+     */
+    private static final class Client {
+        private final StringBuilder body = new StringBuilder();
+        private final boolean transmit;
+        private IApiConnectionResponse response;
+        private Throwable error;
+        private boolean ended;
+
+        private Client(IApiConnector connector) throws Exception {
+            this(connector, true);
+        }
+
+        private Client(IApiConnector connector, boolean transmit, String... requestChunks) throws Exception {
+            this.transmit = transmit;
+            IApiConnection connection = connector.connect(new ApiRequest(), this::handle);
+            // Like the servlet gateway, read every request chunk into the same buffer
+            ByteBuffer buffer = new ByteBuffer(16);
+            for (String chunk : requestChunks) {
+                buffer.readFrom(new ByteArrayInputStream(chunk.getBytes()));
+                connection.write(buffer);
+            }
+            connection.end();
+        }
+
+        private void handle(IAsyncResult<IApiConnectionResponse> result) {
+            if (result.isError()) {
+                error = result.getError();
+                return;
+            }
+            response = result.getResult();
+            response.bodyHandler(chunk -> body.append(chunk.toString()));
+            response.endHandler(end -> ended = true);
+            if (transmit) {
+                response.transmit();
+            }
+        }
+
+        private boolean responded() {
+            return response != null;
+        }
+    }
+
+    /**
+     * Joins with a request that streams the response body into the given handler.
+     * @return counted down once the response has ended
+     */
+    private static CountDownLatch follow(IApiConnector connector, IAsyncHandler<IApimanBuffer> bodyHandler) {
+        CountDownLatch ended = new CountDownLatch(1);
+        IApiConnection connection = connector.connect(new ApiRequest(), result -> {
+            IApiConnectionResponse response = result.getResult();
+            response.bodyHandler(bodyHandler);
+            response.endHandler(end -> ended.countDown());
+            response.transmit();
+        });
+        connection.end();
+        return ended;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A back-end call, answered by the test.
+     */
+    private static final class BackEndCall implements IApiConnection {
+        private final IAsyncResultHandler<IApiConnectionResponse> handler;
+        private final BackEndResponse response = new BackEndResponse();
+        private final StringBuilder body = new StringBuilder();
+        private final ByteBuffer buffer = new ByteBuffer(16);
+        private boolean ended;
+
+        private BackEndCall(IAsyncResultHandler<IApiConnectionResponse> handler) {
+            this.handler = handler;
+        }
+
+        private void respond(int code) {
+            response.head.setCode(code);
+            handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(response));
+        }
+
+        private void chunk(String data) {
+            response.bodyHandler.handle(new ByteBuffer(data));
+        }
+
+        /**
+         * Like the servlet connector, reads every response chunk into the same buffer.
+         */
+        private void reusedChunk(String data) throws IOException {
+            buffer.readFrom(new ByteArrayInputStream(data.getBytes()));
+            response.bodyHandler.handle(buffer);
+        }
+
+        private void finish() {
+            response.endHandler.handle(null);
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            body.append(chunk.toString());
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+        }
+
+        @Override
+        public boolean isFinished() {
+            return ended;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+
+    private static final class BackEndResponse implements IApiConnectionResponse {
+        private final ApiResponse head = new ApiResponse();
+        private IAsyncHandler<IApimanBuffer> bodyHandler;
+        private IAsyncHandler<Void> endHandler;
+
+        @Override
+        public void transmit() {
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+            this.endHandler = endHandler;
+        }
+
+        @Override
+        public ApiResponse getHead() {
+            return head;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+        }
+
+        @Override
+        public boolean isFinished() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.circuitbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.policies.config.CircuitBreakerConfig;
+import io.apiman.gateway.engine.policy.IConnectorInterceptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreakerConnectorInterceptor}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class CircuitBreakerConnectorInterceptorTest {
+
+    private final CircuitBreaker breaker = new CircuitBreaker(new CircuitBreakerConfig(), () -> 1_000_000L);
+    private final List<BackEndCall> backEndCalls = new ArrayList<>();
+    private final IApiConnector backEnd = (request, handler) -> {
+        BackEndCall call = new BackEndCall(handler);
+        backEndCalls.add(call);
+        return call;
+    };
+
+    @Test
+    public void retryReplaysBodyWrittenThroughReusedBuffer() throws Exception {
+        IApiConnector connector = new CircuitBreakerConnectorInterceptor(null, breaker, 1).createConnector(() -> backEnd);
+        List<IApiConnectionResponse> responses = new ArrayList<>();
+        IApiConnection connection = connector.connect(new ApiRequest(), result -> responses.add(result.getResult()));
+
+        // Like the servlet gateway, read every request chunk into the same buffer
+        ByteBuffer buffer = new ByteBuffer(16);
+        for (String chunk : new String[] { "first chunk|", "second chunk|", "last" }) {
+            buffer.readFrom(new ByteArrayInputStream(chunk.getBytes()));
+            connection.write(buffer);
+        }
+        connection.end();
+        assertEquals("first chunk|second chunk|last", backEndCalls.get(0).body.toString());
+
+        backEndCalls.get(0).respond(503);
+        assertEquals(2, backEndCalls.size());
+        assertTrue(responses.isEmpty());
+        assertEquals("first chunk|second chunk|last", backEndCalls.get(1).body.toString());
+        assertTrue(backEndCalls.get(1).ended);
+
+        backEndCalls.get(1).respond(200);
+        assertEquals(200, responses.get(0).getHead().getCode());
+    }
+
+    @Test
+    public void createConnectorGuardsPreviousInterceptor() throws Exception {
+        CircuitBreakerConnectorInterceptor interceptor = new CircuitBreakerConnectorInterceptor(
+                new StaticInterceptor(backEnd), breaker, 0);
+        List<IApiConnectionResponse> responses = new ArrayList<>();
+        interceptor.createConnector().connect(new ApiRequest(), result -> responses.add(result.getResult())).end();
+
+        assertEquals(1, backEndCalls.size());
+        backEndCalls.get(0).respond(200);
+        assertSame(backEndCalls.get(0).response, responses.get(0));
+    }
+
+    @Test
+    public void createConnectorFailsWithoutPreviousInterceptor() {
+        try {
+            new CircuitBreakerConnectorInterceptor(null, breaker, 0).createConnector();
+            fail("Expected a ConnectorException");
+        } catch (ConnectorException e) {
+            assertEquals("There is no connector for the circuit breaker to guard.", e.getMessage());
+        }
+    }
+
+    /**
+     * An interceptor that only supports the no-argument form.
+     */
+    private static final class StaticInterceptor implements IConnectorInterceptor {
+        private final IApiConnector connector;
+
+        private StaticInterceptor(IApiConnector connector) {
+            this.connector = connector;
+        }
+
+        @Override
+        public IApiConnector createConnector() {
+            return connector;
+        }
+    }
+
+    /**
+     * A back-end call, answered by the test.
+     */
+    private static final class BackEndCall implements IApiConnection {
+        private final IAsyncResultHandler<IApiConnectionResponse> handler;
+        private final BackEndResponse response = new BackEndResponse();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private boolean ended;
+
+        private BackEndCall(IAsyncResultHandler<IApiConnectionResponse> handler) {
+            this.handler = handler;
+        }
+
+        private void respond(int code) {
+            response.head.setCode(code);
+            handler.handle(AsyncResultImpl.<IApiConnectionResponse>create(response));
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            byte[] bytes = chunk.getBytes();
+            body.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+        }
+
+        @Override
+        public boolean isFinished() {
+            return ended;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+
+    private static final class BackEndResponse implements IApiConnectionResponse {
+        private final ApiResponse head = new ApiResponse();
+
+        @Override
+        public void transmit() {
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+        }
+
+        @Override
+        public ApiResponse getHead() {
+            return head;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+        }
+
+        @Override
+        public boolean isFinished() {
+            return false;
+        }
+    }
+}
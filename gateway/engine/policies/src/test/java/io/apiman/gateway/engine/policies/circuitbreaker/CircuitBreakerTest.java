@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.circuitbreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.apiman.gateway.engine.policies.circuitbreaker.CircuitBreaker.State;
+import io.apiman.gateway.engine.policies.config.CircuitBreakerConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class CircuitBreakerTest {
+
+    private long now;
+    private CircuitBreakerConfig config;
+
+    @Before
+    public void setUp() {
+        now = 1_000_000L;
+        config = new CircuitBreakerConfig();
+        config.setWindowSeconds(10);
+        config.setMinimumCalls(4);
+        config.setFailureRateThreshold(50);
+        config.setOpenSeconds(5);
+        config.setHalfOpenProbes(2);
+    }
+
+    private CircuitBreaker breaker() {
+        return new CircuitBreaker(config, () -> now);
+    }
+
+    @Test
+    public void staysClosedBelowMinimumCalls() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.failed();
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAtFailureRate() {
+        CircuitBreaker breaker = breaker();
+        breaker.succeeded(10);
+        breaker.succeeded(10);
+        breaker.failed();
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.failed();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(5, breaker.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void opensAtSlowCallRate() {
+        config.setSlowCallMillis(200);
+        config.setSlowCallRateThreshold(75);
+        CircuitBreaker breaker = breaker();
+        breaker.succeeded(10);
+        breaker.succeeded(300);
+        breaker.succeeded(300);
+        breaker.succeeded(300);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void forgetsFailuresOutsideWindow() {
+        CircuitBreaker breaker = breaker();
+        breaker.failed();
+        breaker.failed();
+        breaker.failed();
+        now += 10_000;
+        breaker.succeeded(10);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterSuccessfulProbes() {
+        CircuitBreaker breaker = tripped();
+        now += 5_000;
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.succeeded(10);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.succeeded(10);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        // The failures that tripped it are forgotten
+        breaker.failed();
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensOnFailedProbe() {
+        CircuitBreaker breaker = tripped();
+        now += 5_000;
+        assertTrue(breaker.tryAcquire());
+        breaker.failed();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        now += 5_000;
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void replacesLostProbes() {
+        CircuitBreaker breaker = tripped();
+        now += 5_000;
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        now += 5_000;
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void retriesWithinBudget() {
+        config.setMinimumCalls(1000);
+        config.setRetryBudgetPercent(20);
+        config.setMinRetriesPerSecond(0);
+        CircuitBreaker breaker = breaker();
+        assertFalse(breaker.tryRetry());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.tryAcquire());
+        }
+        assertTrue(breaker.tryRetry());
+        assertTrue(breaker.tryRetry());
+        assertFalse(breaker.tryRetry());
+
+        // The budget is replenished as retries leave the window
+        now += 10_000;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(breaker.tryAcquire());
+        }
+        assertTrue(breaker.tryRetry());
+        assertFalse(breaker.tryRetry());
+    }
+
+    @Test
+    public void noRetriesWhenOpen() {
+        CircuitBreaker breaker = tripped();
+        assertFalse(breaker.tryRetry());
+    }
+
+    private CircuitBreaker tripped() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 4; i++) {
+            breaker.failed();
+        }
+        assertEquals(State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.policies.util;
+
+import io.apiman.gateway.engine.beans.exceptions.ConfigurationParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings("nls")
+public class PatternRuleMatcherTest {
+
+    private static final List<String> PATTERNS = Arrays.asList(
+            "/health",
+            "/admin/.*",
+            "/api/v[0-9]+/users",
+            "/a?b",
+            "/files/.*\\.json",
+            ".*/internal",
+            "/(foo|bar)/x",
+            "/",
+            ".*");
+
+    private static final List<String> VALUES = Arrays.asList(
+            "/", "", "/health", "/healthz", "/admin", "/admin/", "/admin/users/1",
+            "/api/v1/users", "/api/v12/users", "/api/vx/users", "/b", "/ab", "/aab",
+            "/files/a.json", "/files/a.xml", "/x/internal", "/foo/x", "/bar/x", "/baz/x",
+            "/admin/a\nb");
+
+    @Test
+    public void sameResultsAsStringMatches() {
+        PatternRuleMatcher<String> matcher = new PatternRuleMatcher<>(PATTERNS, Function.identity());
+        for (String value : VALUES) {
+            List<String> expected = new ArrayList<>();
+            for (String pattern : PATTERNS) {
+                if (value.matches(pattern)) {
+                    expected.add(pattern);
+                }
+            }
+            Assert.assertEquals(value, expected, matcher.getMatches(value));
+            Assert.assertEquals(value, !expected.isEmpty(), matcher.matchesAny(value, pattern -> true));
+        }
+    }
+
+    @Test
+    public void filterIsApplied() {
+        PatternRuleMatcher<String> matcher = new PatternRuleMatcher<>(PATTERNS, Function.identity());
+        Assert.assertEquals(Collections.singletonList("/admin/.*"),
+                matcher.getMatches("/admin/users", pattern -> !pattern.equals(".*")));
+        Assert.assertFalse(matcher.matchesAny("/nothing", pattern -> !pattern.equals(".*")));
+    }
+
+    @Test
+    public void nullPatternsNeverMatch() {
+        PatternRuleMatcher<String> matcher = new PatternRuleMatcher<>(Arrays.asList((String) null), Function.identity());
+        Assert.assertTrue(matcher.getMatches("/").isEmpty());
+    }
+
+    @Test(expected = ConfigurationParseException.class)
+    public void invalidPattern() {
+        new PatternRuleMatcher<>(Collections.singletonList("/broken(["), Function.identity());
+    }
+}
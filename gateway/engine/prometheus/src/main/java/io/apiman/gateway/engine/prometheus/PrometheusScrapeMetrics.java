@@ -20,19 +20,22 @@ import io.apiman.gateway.engine.IMetrics;
 import io.apiman.gateway.engine.metrics.RequestMetric;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.Summary;
 import io.prometheus.client.exporter.common.TextFormat;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.Json;
 
-import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Prometheus scrape metrics.
@@ -40,8 +43,13 @@ import java.util.Objects;
  * Config:
  * <ul>
  *   <li>port - port for web-server to listen on for scrape requests</li>
+ *   <li>histogram - also record request durations in a histogram (default false)</li>
+ *   <li>histogram.buckets - comma separated histogram bucket upper bounds, in milliseconds</li>
  * </ul>
  *
+ * The label children for each (method, response code, API, API version, client) combination are
+ * resolved once and cached, so recording a metric that has been seen before is a single map lookup.
+ *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
 @SuppressWarnings("nls")
@@ -54,10 +62,19 @@ public class PrometheusScrapeMetrics implements IMetrics {
     private static final String METHOD = "method";
     private static final String RESPONSE_CODE = "responseCode";
     private static final String FAILURE_CODE = "failureCode";
+    private static final double[] DEFAULT_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+    private static final String[] STATUS_CODES = new String[600];
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = Integer.toString(i);
+        }
+    }
+    private static final int SCRAPE_CHUNK_SIZE = 16 * 1024;
 
     private final Map<String, String> componentConfig;
     private final Vertx vertx;
     private final HttpServer webServer;
+    private final Map<LabelKey, LabelChildren> children = new ConcurrentHashMap<>();
 
     final CollectorRegistry collectorRegistry = new CollectorRegistry();
 
@@ -103,17 +120,44 @@ public class PrometheusScrapeMetrics implements IMetrics {
                     CLIENT)
             .register(collectorRegistry);
 
+    // Optional, null unless enabled in config
+    final Histogram requestDurationHistogram;
+
     public PrometheusScrapeMetrics(Map<String, String> componentConfig,
             Handler<AsyncResult<HttpServer>> listenHandler) {
         this.vertx = Vertx.vertx();
         this.componentConfig = componentConfig;
+        this.requestDurationHistogram = setupHistogram();
         this.webServer = setupWebserver(listenHandler);
     }
 
     public PrometheusScrapeMetrics(Map<String, String> componentConfig) {
-        this.vertx = Vertx.vertx();
-        this.componentConfig = componentConfig;
-        this.webServer = setupWebserver(null);
+        this(componentConfig, null);
+    }
+
+    private Histogram setupHistogram() {
+        if (!Boolean.parseBoolean(componentConfig.get("histogram"))) {
+            return null;
+        }
+        double[] buckets = DEFAULT_BUCKETS;
+        String bucketsConfig = componentConfig.get("histogram.buckets");
+        if (bucketsConfig != null && !bucketsConfig.trim().isEmpty()) {
+            buckets = Arrays.stream(bucketsConfig.split(","))
+                    .map(String::trim)
+                    .mapToDouble(Double::parseDouble)
+                    .sorted()
+                    .toArray();
+        }
+        return Histogram.build()
+                .name("request_duration_histogram_milliseconds").help("Request duration in milliseconds.")
+                .namespace(APIMAN)
+                .labelNames(METHOD,
+                        RESPONSE_CODE,
+                        API,
+                        API_VERSION,
+                        CLIENT)
+                .buckets(buckets)
+                .register(collectorRegistry);
     }
 
     private HttpServer setupWebserver(Handler<AsyncResult<HttpServer>> listenHandler) {
@@ -121,14 +165,19 @@ public class PrometheusScrapeMetrics implements IMetrics {
         Objects.requireNonNull(port, "Must specify port for scrape server to listen on");
         return vertx.createHttpServer().requestHandler(request -> {
             HttpServerResponse response = request.response();
-            StringWriter sw = new StringWriter();
+            response.setStatusCode(200)
+                .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
+                .setChunked(true);
             try {
-                TextFormat.write004(sw, collectorRegistry.metricFamilySamples());
-                response.setStatusCode(200)
-                    .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
-                    .setChunked(true)
-                    .write(sw.toString());
+                ResponseWriter writer = new ResponseWriter(response);
+                TextFormat.write004(writer, collectorRegistry.metricFamilySamples());
+                writer.flush();
             } catch (Exception e) {
+                if (response.headWritten()) {
+                    // Too late to report the error, so make sure the scraper doesn't take a partial response
+                    response.close();
+                    return;
+                }
                 response.setStatusCode(500)
                     .write(Json.encode(e));
             }
@@ -154,29 +203,61 @@ public class PrometheusScrapeMetrics implements IMetrics {
         }
     }
 
+    private LabelChildren getLabelChildren(RequestMetric metric) {
+        LabelKey key = new LabelKey(metric.getMethod(),
+                metric.getResponseCode(),
+                metric.getApiId(),
+                metric.getApiVersion(),
+                metric.getClientId());
+        LabelChildren labelChildren = children.get(key);
+        if (labelChildren == null) {
+            labelChildren = children.computeIfAbsent(key, LabelChildren::new);
+        }
+        return labelChildren;
+    }
+
     private void doFailureCtr(RequestMetric metric) {
         failureCtr.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
-                Integer.toString(metric.getFailureCode()),
+                statusCode(metric.getResponseCode()),
+                statusCode(metric.getFailureCode()),
                 metric.getApiId(),
                 metric.getApiVersion(),
                 metric.getClientId())).inc();
     }
 
+    /**
+     * Increments the given counter for the metric's labels.
+     * @param ctr the counter, {@link #requestsCtr} or {@link #errorsCtr}
+     * @param metric the request metric
+     * @deprecated the label children are cached now, override {@link #record(RequestMetric)} instead.
+     */
+    @Deprecated
     protected void doRequestsCtr(Counter ctr, RequestMetric metric) {
-        ctr.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
-                metric.getApiId(),
-                metric.getApiVersion(),
-                metric.getClientId())).inc();
+        if (ctr == requestsCtr) {
+            getLabelChildren(metric).requests.inc();
+        } else if (ctr == errorsCtr) {
+            getLabelChildren(metric).errors.inc();
+        } else {
+            ctr.labels(nullToEmpty(metric.getMethod(),
+                    statusCode(metric.getResponseCode()),
+                    metric.getApiId(),
+                    metric.getApiVersion(),
+                    metric.getClientId())).inc();
+        }
     }
 
+    /**
+     * Observes the metric's request duration, in the histogram too if it is enabled.
+     * @param metric the request metric
+     * @deprecated the label children are cached now, override {@link #record(RequestMetric)} instead.
+     */
+    @Deprecated
     protected void doRequestDuration(RequestMetric metric) {
-        requestDuration.labels(nullToEmpty(metric.getMethod(),
-                Integer.toString(metric.getResponseCode()),
-                metric.getApiId(),
-                metric.getApiVersion(),
-                metric.getClientId())).observe(metric.getRequestDuration());
+        LabelChildren labelChildren = getLabelChildren(metric);
+        labelChildren.requestDuration.observe(metric.getRequestDuration());
+        if (labelChildren.requestDurationHistogram != null) {
+            labelChildren.requestDurationHistogram.observe(metric.getRequestDuration());
+        }
     }
 
     /**
@@ -184,14 +265,131 @@ public class PrometheusScrapeMetrics implements IMetrics {
      * @param labelValues the label values, which may contain {@code null} elements
      * @return the label values with {@code null} elements replaced with empty strings
      */
-    private String[] nullToEmpty(String... labelValues) {
-        return Arrays.stream(labelValues)
-                .map(labelValue -> null == labelValue ? "" : labelValue)
-                .toArray(String[]::new);
+    private static String[] nullToEmpty(String... labelValues) {
+        for (int i = 0; i < labelValues.length; i++) {
+            if (labelValues[i] == null) {
+                labelValues[i] = "";
+            }
+        }
+        return labelValues;
+    }
+
+    private static String statusCode(int code) {
+        return code >= 0 && code < STATUS_CODES.length ? STATUS_CODES[code] : Integer.toString(code);
     }
 
     public void close(Handler<AsyncResult<Void>> completionHandler) {
         webServer.close(completionHandler);
         collectorRegistry.clear();
+        children.clear();
+    }
+
+    /**
+     * The label values shared by the request, error and duration metrics.
+     */
+    private static final class LabelKey {
+        private final String method;
+        private final int responseCode;
+        private final String api;
+        private final String apiVersion;
+        private final String client;
+        private final int hash;
+
+        LabelKey(String method, int responseCode, String api, String apiVersion, String client) {
+            this.method = method;
+            this.responseCode = responseCode;
+            this.api = api;
+            this.apiVersion = apiVersion;
+            this.client = client;
+            int h = Objects.hashCode(method);
+            h = 31 * h + responseCode;
+            h = 31 * h + Objects.hashCode(api);
+            h = 31 * h + Objects.hashCode(apiVersion);
+            h = 31 * h + Objects.hashCode(client);
+            this.hash = h;
+        }
+
+        String[] toLabelValues() {
+            return nullToEmpty(method, statusCode(responseCode), api, apiVersion, client);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LabelKey)) {
+                return false;
+            }
+            LabelKey other = (LabelKey) obj;
+            return hash == other.hash
+                    && responseCode == other.responseCode
+                    && Objects.equals(method, other.method)
+                    && Objects.equals(api, other.api)
+                    && Objects.equals(apiVersion, other.apiVersion)
+                    && Objects.equals(client, other.client);
+        }
+    }
+
+    /**
+     * The resolved label children for one {@link LabelKey}.
+     */
+    private final class LabelChildren {
+        private final Counter.Child requests;
+        private final Counter.Child errors;
+        private final Summary.Child requestDuration;
+        private final Histogram.Child requestDurationHistogram;
+
+        LabelChildren(LabelKey key) {
+            String[] labelValues = key.toLabelValues();
+            this.requests = requestsCtr.labels(labelValues);
+            this.errors = errorsCtr.labels(labelValues);
+            this.requestDuration = PrometheusScrapeMetrics.this.requestDuration.labels(labelValues);
+            Histogram histogram = PrometheusScrapeMetrics.this.requestDurationHistogram;
+            this.requestDurationHistogram = histogram == null ? null : histogram.labels(labelValues);
+        }
+    }
+
+    /**
+     * Writes the scrape output into the response in chunks, rather than rendering it all first.
+     */
+    private static final class ResponseWriter extends Writer {
+        private final HttpServerResponse response;
+        private Buffer buffer = Buffer.buffer(SCRAPE_CHUNK_SIZE);
+
+        ResponseWriter(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(String str) {
+            buffer.appendString(str);
+            if (buffer.length() >= SCRAPE_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            write(new String(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.length() > 0) {
+                response.write(buffer);
+                buffer = Buffer.buffer(SCRAPE_CHUNK_SIZE);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
     }
 }
@@ -129,6 +129,33 @@ public class BasicMetricsTest {
         assertTrue(equals(expected, rString));
     }
 
+    @Test
+    public void histogramMetrics() throws IOException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Map<String, String> promConfig = new HashMap<>();
+        promConfig.put("port", "9877");
+        promConfig.put("histogram", "true");
+        promConfig.put("histogram.buckets", "10000, 500");
+        final PrometheusScrapeMetrics histogramMetrics = new PrometheusScrapeMetrics(promConfig, result -> latch.countDown());
+        latch.await();
+
+        try {
+            histogramMetrics.record(buildRequestMetric("clientId", false, 200, "hamsters are cool"));
+            histogramMetrics.record(buildRequestMetric("clientId", false, 200, "hamsters are cool"));
+
+            final Request request = new Request.Builder().url("http://localhost:9877/").get().build();
+            final Response response = client.newCall(request).execute();
+            final String rString = response.body().string();
+            assertTrue(rString.contains("apiman_request_duration_histogram_milliseconds_bucket{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",le=\"500.0\",} 0.0"));
+            assertTrue(rString.contains("apiman_request_duration_histogram_milliseconds_bucket{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",le=\"10000.0\",} 2.0"));
+            assertTrue(rString.contains("apiman_requests_total{method=\"GET\",responseCode=\"200\",api=\"apiId\",apiVersion=\"apiVersion\",client=\"clientId\",} 2.0"));
+        } finally {
+            final CountDownLatch closeLatch = new CountDownLatch(1);
+            histogramMetrics.close(result -> closeLatch.countDown());
+            closeLatch.await();
+        }
+    }
+
     private RequestMetric buildRequestMetric(String clientId, boolean error, int responseCode, String responseMessage) {
         final RequestMetric requestMetric = new RequestMetric();
         requestMetric.setClientId(clientId);
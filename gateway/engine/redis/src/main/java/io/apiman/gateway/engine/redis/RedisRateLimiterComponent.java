@@ -30,6 +30,6 @@ public class RedisRateLimiterComponent extends AbstractRateLimiterComponent {
      * Constructor.
      */
     public RedisRateLimiterComponent(Map<String, String> componentConfig) {
-        super(new RedisBackingStoreProvider(componentConfig));
+        super(new RedisBackingStoreProvider(componentConfig), componentConfig);
     }
 }
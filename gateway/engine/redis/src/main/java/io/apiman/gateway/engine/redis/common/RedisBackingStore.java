@@ -16,12 +16,18 @@
 package io.apiman.gateway.engine.redis.common;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import io.apiman.gateway.engine.storage.store.IAtomicCounterStore;
 import io.apiman.gateway.engine.storage.store.IBackingStore;
+import io.apiman.gateway.engine.storage.store.IBinaryStore;
 import io.apiman.gateway.engine.storage.util.BackingStoreUtil;
 import org.redisson.api.RMap;
 import org.redisson.api.RMapCache;
+import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.StringCodec;
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -33,8 +39,20 @@ import static java.util.Objects.nonNull;
 /**
  * Provides a Redis backing store, whose keys are namespaced with a prefix.
  * This is implemented using a {@link RedissonClient}.
+ * <p>
+ * Counters are plain Redis keys (outside the map), updated by a Lua script
+ * so that the check, increment and expiry happen atomically in one round trip.
+ * Byte values are also plain Redis keys, holding the bytes as they are and
+ * expiring natively.
  */
-public class RedisBackingStore implements IBackingStore {
+public class RedisBackingStore implements IBackingStore, IAtomicCounterStore, IBinaryStore {
+    private static final String ADD_UNLESS_ABOVE_SCRIPT =
+            "local current = tonumber(redis.call('GET', KEYS[1]) or '0') " +
+            "if current > tonumber(ARGV[2]) then return current end " +
+            "redis.call('INCRBY', KEYS[1], ARGV[1]) " +
+            "redis.call('PEXPIREAT', KEYS[1], ARGV[3]) " +
+            "return current";
+
     private final RedissonClient client;
     private final String prefix;
 
@@ -118,4 +136,23 @@ public class RedisBackingStore implements IBackingStore {
     public boolean containsKey(String key) {
         return onMap(map -> nonNull(map.get(key)));
     }
+
+    @Override
+    public void putBytes(String key, byte[] value, long ttl) {
+        client.<byte[]>getBucket(prefix + ":bytes:" + key, ByteArrayCodec.INSTANCE).set(value, ttl, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        return client.<byte[]>getBucket(prefix + ":bytes:" + key, ByteArrayCodec.INSTANCE).get();
+    }
+
+    @Override
+    public long addUnlessAbove(String key, long increment, long ceiling, long expiresAt) {
+        final RScript script = client.getScript(StringCodec.INSTANCE);
+        final Long previous = script.eval(RScript.Mode.READ_WRITE, ADD_UNLESS_ABOVE_SCRIPT, RScript.ReturnType.INTEGER,
+                Collections.singletonList(prefix + ":counter:" + key),
+                String.valueOf(increment), String.valueOf(ceiling), String.valueOf(expiresAt));
+        return previous == null ? 0 : previous;
+    }
 }
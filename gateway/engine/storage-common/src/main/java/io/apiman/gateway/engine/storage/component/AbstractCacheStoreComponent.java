@@ -23,24 +23,38 @@ import io.apiman.gateway.engine.components.ICacheStoreComponent;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.ISignalReadStream;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.engine.storage.model.BinaryCacheEntry;
 import io.apiman.gateway.engine.storage.model.CacheEntry;
+import io.apiman.gateway.engine.storage.store.IBackingStore;
 import io.apiman.gateway.engine.storage.store.IBackingStoreProvider;
+import io.apiman.gateway.engine.storage.store.IBinaryStore;
 import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static io.apiman.gateway.engine.storage.util.BackingStoreUtil.JSON_MAPPER;
 
 /**
  * Cache component backed by a store.
+ * <p>
+ * If the store implements {@link IBinaryStore}, entries are kept as {@link BinaryCacheEntry}
+ * byte values: bodies are stored as they are, and bodies over {@value #CHUNK_SIZE} bytes
+ * are split into separately stored chunks, written while the body is still arriving.
+ * Other stores get a {@link CacheEntry} with a Base64 encoded body.
  *
  * @author Pete Cornish
  */
 public abstract class AbstractCacheStoreComponent extends AbstractStorageComponent implements ICacheStoreComponent {
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractCacheStoreComponent.class);
     private static final String STORE_NAME = "cache"; //$NON-NLS-1$
+    private static final int CHUNK_SIZE = 256 * 1024;
 
     private IBufferFactoryComponent bufferFactory;
 
@@ -63,6 +77,16 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
      */
     @Override
     public <T> void put(String cacheKey, T jsonObject, long timeToLive) throws IOException {
+        final IBackingStore store = getStore();
+        if (store instanceof IBinaryStore) {
+            final BinaryCacheEntry entry = newBinaryEntry(jsonObject, timeToLive);
+            try {
+                ((IBinaryStore) store).putBytes(cacheKey, entry.toBytes(), timeToLive);
+            } catch (Throwable e) {
+                LOGGER.error("Error writing cache entry with key: {}", cacheKey, e);
+            }
+            return;
+        }
         final CacheEntry entry = new CacheEntry();
         entry.setData(null);
         entry.setExpiresOn(System.currentTimeMillis() + (timeToLive * 1000));
@@ -80,6 +104,11 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
     @Override
     public <T> ISignalWriteStream putBinary(final String cacheKey, final T jsonObject, final long timeToLive)
             throws IOException {
+        final IBackingStore store = getStore();
+        if (store instanceof IBinaryStore) {
+            return new ChunkingWriteStream((IBinaryStore) store, cacheKey, newBinaryEntry(jsonObject, timeToLive),
+                    timeToLive);
+        }
         final CacheEntry entry = new CacheEntry();
         entry.setExpiresOn(System.currentTimeMillis() + (timeToLive * 1000));
         entry.setHead(JSON_MAPPER.writeValueAsString(jsonObject));
@@ -92,7 +121,7 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
             @Override
             public void abort(Throwable t) {
                 finished = true;
-                aborted = false;
+                aborted = true;
             }
 
             @Override
@@ -110,7 +139,7 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
                 if (!aborted) {
                     entry.setData(Base64.encodeBase64String(data.getBytes()));
                     try {
-                        getStore().put(cacheKey, entry, timeToLive);
+                        store.put(cacheKey, entry, timeToLive);
                     } catch (Throwable e) {
                         LOGGER.error("Error writing binary cache entry with key: {}", cacheKey, e);
                     }
@@ -126,6 +155,12 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
     @Override
     public <T> void get(String cacheKey, final Class<T> type, final IAsyncResultHandler<T> handler) {
         try {
+            final IBackingStore store = getStore();
+            if (store instanceof IBinaryStore) {
+                final BinaryCacheEntry entry = getBinaryEntry((IBinaryStore) store, cacheKey);
+                handler.handle(AsyncResultImpl.create(entry == null ? null : readHead(cacheKey, entry, type)));
+                return;
+            }
             final CacheEntry cacheEntry = getStore().get(cacheKey, CacheEntry.class);
             if (null != cacheEntry) {
                 try {
@@ -150,7 +185,12 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
     public <T> void getBinary(final String cacheKey, final Class<T> type,
                               final IAsyncResultHandler<ISignalReadStream<T>> handler) {
         try {
-            final CacheEntry cacheEntry = getStore().get(cacheKey, CacheEntry.class);
+            final IBackingStore store = getStore();
+            if (store instanceof IBinaryStore) {
+                handler.handle(AsyncResultImpl.create(getBinaryStream((IBinaryStore) store, cacheKey, type)));
+                return;
+            }
+            final CacheEntry cacheEntry = store.get(cacheKey, CacheEntry.class);
 
             // Did the fetch succeed? If not, return null.
             if (null == cacheEntry) {
@@ -219,4 +259,236 @@ public abstract class AbstractCacheStoreComponent extends AbstractStorageCompone
             handler.handle(AsyncResultImpl.create((ISignalReadStream<T>) null));
         }
     }
+
+    private <T> BinaryCacheEntry newBinaryEntry(T jsonObject, long timeToLive) throws IOException {
+        final BinaryCacheEntry entry = new BinaryCacheEntry();
+        entry.setExpiresOn(System.currentTimeMillis() + (timeToLive * 1000));
+        entry.setWriteId(ThreadLocalRandom.current().nextLong());
+        entry.setHead(JSON_MAPPER.writeValueAsBytes(jsonObject));
+        return entry;
+    }
+
+    /**
+     * @return the entry, or null if it is missing, expired or unreadable
+     */
+    private BinaryCacheEntry getBinaryEntry(IBinaryStore store, String cacheKey) {
+        final BinaryCacheEntry entry = BinaryCacheEntry.fromBytes(store.getBytes(cacheKey));
+        if (entry == null || System.currentTimeMillis() > entry.getExpiresOn()) {
+            return null;
+        }
+        return entry;
+    }
+
+    private <T> T readHead(String cacheKey, BinaryCacheEntry entry, Class<T> type) {
+        try {
+            return JSON_MAPPER.readValue(entry.getHead(), type);
+        } catch (Exception e) {
+            LOGGER.error("Error reading cache entry with key: {}", cacheKey, e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches all of an entry's chunks up front, so that an entry with an evicted
+     * chunk is a miss rather than a truncated response.
+     */
+    private <T> ISignalReadStream<T> getBinaryStream(IBinaryStore store, String cacheKey, Class<T> type) {
+        final BinaryCacheEntry entry = getBinaryEntry(store, cacheKey);
+        if (entry == null || entry.getBodyLength() < 0) {
+            return null;
+        }
+        final T head = readHead(cacheKey, entry, type);
+        if (head == null) {
+            return null;
+        }
+        final List<byte[]> chunks = new ArrayList<>(Math.max(1, entry.getChunkCount()));
+        if (entry.getChunkCount() == 0) {
+            chunks.add(entry.getBody());
+        } else {
+            for (int i = 0; i < entry.getChunkCount(); i++) {
+                final byte[] chunk = store.getBytes(entry.chunkKey(cacheKey, i));
+                if (chunk == null) {
+                    return null;
+                }
+                chunks.add(chunk);
+            }
+        }
+        return new ChunkReadStream<>(head, chunks);
+    }
+
+    /**
+     * Stores the body in chunks as it arrives, and the entry itself last, so that
+     * readers never find an entry whose chunks are not all written yet.
+     */
+    private final class ChunkingWriteStream implements ISignalWriteStream {
+        private final IBinaryStore store;
+        private final String cacheKey;
+        private final BinaryCacheEntry entry;
+        private final long timeToLive;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private long length = 0;
+        private int chunks = 0;
+        private boolean finished = false;
+        private boolean aborted = false;
+
+        private ChunkingWriteStream(IBinaryStore store, String cacheKey, BinaryCacheEntry entry, long timeToLive) {
+            this.store = store;
+            this.cacheKey = cacheKey;
+            this.entry = entry;
+            this.timeToLive = timeToLive;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            finished = true;
+            aborted = true;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public void write(IApimanBuffer chunk) {
+            if (aborted) {
+                return;
+            }
+            final byte[] bytes = chunk.getBytes();
+            pending.write(bytes, 0, bytes.length);
+            length += bytes.length;
+            if (length > Integer.MAX_VALUE) {
+                LOGGER.error("Not caching binary cache entry with key: {}, its body is too large", cacheKey);
+                aborted = true;
+            } else if (pending.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void end() {
+            finished = true;
+            if (aborted) {
+                return;
+            }
+            if (chunks == 0) {
+                entry.setBody(pending.toByteArray());
+            } else if (pending.size() > 0) {
+                flush();
+            }
+            if (aborted) {
+                return;
+            }
+            entry.setChunkCount(chunks);
+            entry.setBodyLength((int) length);
+            try {
+                store.putBytes(cacheKey, entry.toBytes(), timeToLive);
+            } catch (Throwable e) {
+                LOGGER.error("Error writing binary cache entry with key: {}", cacheKey, e);
+            }
+        }
+
+        private void flush() {
+            try {
+                store.putBytes(entry.chunkKey(cacheKey, chunks), pending.toByteArray(), timeToLive);
+                chunks++;
+            } catch (Throwable e) {
+                LOGGER.error("Error writing binary cache entry with key: {}", cacheKey, e);
+                aborted = true;
+            }
+            pending.reset();
+        }
+    }
+
+    /**
+     * Streams an entry's body one stored chunk at a time, honouring {@link #pause()}
+     * and {@link #resume()}.
+     */
+    private final class ChunkReadStream<T> implements ISignalReadStream<T> {
+        private final T head;
+        private final List<byte[]> chunks;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private IAsyncHandler<IApimanBuffer> bodyHandler;
+        private IAsyncHandler<Void> endHandler;
+        private int next = 0;
+        private volatile boolean transmitting = false;
+        private volatile boolean paused = false;
+        private volatile boolean finished = false;
+
+        private ChunkReadStream(T head, List<byte[]> chunks) {
+            this.head = head;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public void endHandler(IAsyncHandler<Void> endHandler) {
+            this.endHandler = endHandler;
+        }
+
+        @Override
+        public T getHead() {
+            return head;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public void abort(Throwable t) {
+            finished = true;
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            if (transmitting) {
+                send();
+            }
+        }
+
+        @Override
+        public void transmit() {
+            transmitting = true;
+            send();
+        }
+
+        /**
+         * Only one thread sends at a time; a resume racing with the sender is picked
+         * up by the sender before it lets go.
+         */
+        private void send() {
+            do {
+                if (!sending.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    while (!paused && !finished && next < chunks.size()) {
+                        final byte[] chunk = chunks.get(next);
+                        chunks.set(next++, null);
+                        if (chunk.length > 0) {
+                            bodyHandler.handle(bufferFactory.createBuffer(chunk));
+                        }
+                    }
+                    if (!paused && !finished) {
+                        finished = true;
+                        endHandler.handle(null);
+                    }
+                } finally {
+                    sending.set(false);
+                }
+            } while (!paused && !finished);
+        }
+    }
 }
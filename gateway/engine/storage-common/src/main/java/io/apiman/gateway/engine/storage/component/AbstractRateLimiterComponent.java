@@ -15,29 +15,73 @@
  */
 package io.apiman.gateway.engine.storage.component;
 
+import io.apiman.common.config.options.GenericOptionsParser;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.components.IRateLimiterComponent;
 import io.apiman.gateway.engine.components.rate.RateLimitResponse;
 import io.apiman.gateway.engine.rates.RateBucketPeriod;
 import io.apiman.gateway.engine.rates.RateLimiterBucket;
+import io.apiman.gateway.engine.rates.RatePeriodBoundaries;
+import io.apiman.gateway.engine.storage.store.IAtomicCounterStore;
+import io.apiman.gateway.engine.storage.store.IBackingStore;
 import io.apiman.gateway.engine.storage.store.IBackingStoreProvider;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
 /**
  * Rate limiter component backed by a store.
+ * <p>
+ * By default each request is a locked read-modify-write of a {@link RateLimiterBucket}.
+ * <p>
+ * Setting <tt>atomic=true</tt> opts in to atomic counting, if the store implements
+ * {@link IAtomicCounterStore}: each request is then a single atomic increment-and-check
+ * on the store, keyed by bucket and period window, so no lock is held and the limit
+ * holds across nodes. The counters are kept under different keys than the buckets, so
+ * counts made before switching are not carried over, and all nodes sharing a store must
+ * be switched together. With atomic counting, setting <tt>batch.interval</tt> (millis)
+ * instead counts locally and reconciles with the store in the background, trading some
+ * accuracy for latency.
  *
  * @author Pete Cornish
  */
 public abstract class AbstractRateLimiterComponent extends AbstractStorageComponent implements IRateLimiterComponent {
     protected static final String STORE_NAME = "rate-limiter"; //$NON-NLS-1$
 
-    private final Object mutex = new Object();
+    public static final String CONFIG_ATOMIC = "atomic"; //$NON-NLS-1$
+    public static final String CONFIG_BATCH_INTERVAL = "batch.interval"; //$NON-NLS-1$
+
+    // Counters outlive their window a little, to tolerate clock skew between nodes
+    private static final long COUNTER_EXPIRY_SLACK_MILLIS = 60_000L;
+
+    private final Lock lock = new ReentrantLock();
+    private final boolean atomic;
+    private final BatchedRateCounters batchedCounters;
 
     /**
      * Constructor.
      */
     public AbstractRateLimiterComponent(IBackingStoreProvider storeProvider) {
+        this(storeProvider, Collections.emptyMap());
+    }
+
+    /**
+     * Constructor.
+     */
+    public AbstractRateLimiterComponent(IBackingStoreProvider storeProvider, Map<String, String> componentConfig) {
         super(storeProvider, STORE_NAME);
+        GenericOptionsParser optParser = new GenericOptionsParser(componentConfig);
+        this.atomic = optParser.getBool(keys(CONFIG_ATOMIC), false);
+        long batchInterval = optParser.getLong(keys(CONFIG_BATCH_INTERVAL), 0L,
+                interval -> interval >= 0, "must be zero (disabled) or greater"); //$NON-NLS-1$
+        this.batchedCounters = atomic && batchInterval > 0
+                ? new BatchedRateCounters(() -> (IAtomicCounterStore) getStore(), batchInterval)
+                : null;
     }
 
     /**
@@ -46,16 +90,23 @@ public abstract class AbstractRateLimiterComponent extends AbstractStorageCompon
     @Override
     public void accept(final String bucketId, final RateBucketPeriod period, final long limit,
                        final long increment, final IAsyncResultHandler<RateLimitResponse> handler) {
-        RateLimiterBucket bucket;
-        synchronized (mutex) {
-            bucket = getStore().get(bucketId, RateLimiterBucket.class);
+        IBackingStore store = getStore();
+        if (atomic && store instanceof IAtomicCounterStore) {
+            acceptAtomically((IAtomicCounterStore) store, bucketId, period, limit, increment, handler);
+            return;
+        }
+
+        // A Lock rather than a monitor: the store may block, which must not pin a virtual thread's carrier
+        RateLimitResponse response = new RateLimitResponse();
+        lock.lock();
+        try {
+            RateLimiterBucket bucket = store.get(bucketId, RateLimiterBucket.class);
             if (bucket == null) {
                 bucket = new RateLimiterBucket();
-                getStore().put(bucketId, bucket);
+                store.put(bucketId, bucket);
             }
             bucket.resetIfNecessary(period);
 
-            RateLimitResponse response = new RateLimitResponse();
             if (bucket.getCount() > limit) {
                 response.setAccepted(false);
             } else {
@@ -66,8 +117,43 @@ public abstract class AbstractRateLimiterComponent extends AbstractStorageCompon
             int reset = (int) (bucket.getResetMillis(period) / 1000L);
             response.setReset(reset);
             response.setRemaining(limit - bucket.getCount());
-            handler.handle(AsyncResultImpl.create(response));
-            getStore().put(bucketId, bucket);
+            store.put(bucketId, bucket);
+        } finally {
+            lock.unlock();
+        }
+        handler.handle(AsyncResultImpl.create(response));
+    }
+
+    /**
+     * Each period window gets its own counter, so there is never anything to reset.
+     */
+    private void acceptAtomically(IAtomicCounterStore store, String bucketId, RateBucketPeriod period,
+                                  long limit, long increment, IAsyncResultHandler<RateLimitResponse> handler) {
+        long now = System.currentTimeMillis();
+        long windowEnd = RatePeriodBoundaries.getPeriodEnd(now, period);
+        String counterKey = bucketId + "@" + windowEnd; //$NON-NLS-1$
+        long expiresAt = windowEnd + COUNTER_EXPIRY_SLACK_MILLIS;
+
+        long previous;
+        try {
+            previous = batchedCounters != null
+                    ? batchedCounters.addUnlessAbove(counterKey, increment, limit, expiresAt)
+                    : store.addUnlessAbove(counterKey, increment, limit, expiresAt);
+        } catch (RuntimeException e) {
+            handler.handle(AsyncResultImpl.create(e, RateLimitResponse.class));
+            return;
+        }
+
+        RateLimitResponse response = new RateLimitResponse();
+        long count = previous;
+        if (previous > limit) {
+            response.setAccepted(false);
+        } else {
+            response.setAccepted(previous < limit);
+            count += increment;
         }
+        response.setReset((int) ((windowEnd - now) / 1000L));
+        response.setRemaining(limit - count);
+        handler.handle(AsyncResultImpl.create(response));
     }
 }
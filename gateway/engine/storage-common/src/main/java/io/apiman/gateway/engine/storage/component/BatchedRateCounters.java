@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.storage.component;
+
+import io.apiman.gateway.engine.storage.store.IAtomicCounterStore;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts rate limit increments locally and pushes them to an
+ * {@link IAtomicCounterStore} in the background.
+ * <p>
+ * Decisions use the last known cluster-wide count plus this node's pending
+ * increments, so nodes may briefly over-admit by up to one flush interval's
+ * worth of traffic from the other nodes. In exchange, requests no longer
+ * wait on a store round trip.
+ * <p>
+ * All instances flush on one shared daemon thread, which stops flushing an
+ * instance once it has been garbage collected.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+class BatchedRateCounters {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedRateCounters.class);
+
+    private static final ScheduledExecutorService flushThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "apiman-rate-limiter-flush"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Supplier<IAtomicCounterStore> storeSupplier;
+
+    /**
+     * Constructor.
+     *
+     * @param storeSupplier  supplies the store to reconcile with
+     * @param flushInterval  how often to push pending increments, in millis
+     */
+    BatchedRateCounters(Supplier<IAtomicCounterStore> storeSupplier, long flushInterval) {
+        this.storeSupplier = storeSupplier;
+        Flush.schedule(this, flushInterval);
+    }
+
+    /**
+     * Adds to the counter unless it is already above the ceiling.
+     *
+     * @return the (approximate) count before the add
+     */
+    long addUnlessAbove(String key, long increment, long ceiling, long expiresAt) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> {
+                // Seed from the store once per window, so a node joining mid-window starts from the real count
+                long global = storeSupplier.get().addUnlessAbove(k, 0, Long.MAX_VALUE, expiresAt);
+                return new Counter(global, expiresAt);
+            });
+        }
+        for (;;) {
+            long pending = counter.pending.get();
+            long count = counter.global + pending;
+            if (count > ceiling) {
+                return count;
+            }
+            if (counter.pending.compareAndSet(pending, pending + increment)) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Pushes pending increments to the store and refreshes the known global counts.
+     */
+    void flush() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Counter>> iterator = counters.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Counter> entry = iterator.next();
+            Counter counter = entry.getValue();
+            try {
+                long delta = counter.pending.get();
+                long previous = storeSupplier.get().addUnlessAbove(entry.getKey(), delta, Long.MAX_VALUE,
+                        counter.expiresAt);
+                // Publish the new global count before dropping the flushed delta, so the sum
+                // momentarily over-counts (rejecting early) rather than under-counts.
+                counter.global = previous + delta;
+                counter.pending.addAndGet(-delta);
+                if (now >= counter.expiresAt) {
+                    iterator.remove();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to reconcile rate limit counter {}", entry.getKey(), e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Periodically flushes the counters. Holds them weakly, and stops once they have
+     * been garbage collected.
+     */
+    private static final class Flush implements Runnable {
+        private final WeakReference<BatchedRateCounters> counters;
+        private volatile ScheduledFuture<?> future;
+
+        private Flush(BatchedRateCounters counters) {
+            this.counters = new WeakReference<>(counters);
+        }
+
+        private static void schedule(BatchedRateCounters counters, long interval) {
+            Flush flush = new Flush(counters);
+            flush.future = flushThread.scheduleWithFixedDelay(flush, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            BatchedRateCounters target = counters.get();
+            if (target == null) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            target.flush();
+        }
+    }
+
+    private static final class Counter {
+        private final AtomicLong pending = new AtomicLong();
+        private final long expiresAt;
+        private volatile long global;
+
+        private Counter(long global, long expiresAt) {
+            this.global = global;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
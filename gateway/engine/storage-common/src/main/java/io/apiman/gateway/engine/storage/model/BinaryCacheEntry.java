@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.storage.model;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cache entry in a compact binary format, for stores that implement
+ * {@link io.apiman.gateway.engine.storage.store.IBinaryStore}.
+ * <p>
+ * The stored value is a fixed header followed by the (JSON) head and, for small
+ * bodies, the body itself:
+ * <pre>
+ * int    magic and version ("AC" 0x00 0x01)
+ * long   expiresOn
+ * long   writeId (identifies the chunks of a chunked body)
+ * int    chunkCount (0 if the body is inline or absent)
+ * int    headLength, then the head
+ * int    bodyLength (-1 if there is no body), then the body if inline
+ * </pre>
+ * Large bodies are stored as {@code chunkCount} separate values, see {@link #chunkKey(String, int)}.
+ */
+public class BinaryCacheEntry {
+    private static final int MAGIC = 0x41430001;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4;
+
+    private long expiresOn;
+    private long writeId;
+    private int chunkCount;
+    private byte[] head;
+    private int bodyLength = -1;
+    private byte[] body;
+
+    /**
+     * Constructor.
+     */
+    public BinaryCacheEntry() {
+    }
+
+    /**
+     * @return the entry in its stored form
+     */
+    public byte[] toBytes() {
+        int inline = body == null ? 0 : body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + head.length + inline);
+        buffer.putInt(MAGIC)
+                .putLong(expiresOn)
+                .putLong(writeId)
+                .putInt(chunkCount)
+                .putInt(head.length)
+                .put(head)
+                .putInt(bodyLength);
+        if (body != null) {
+            buffer.put(body);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param bytes the entry in its stored form
+     * @return the entry, or null if the bytes are not a (supported) binary cache entry
+     */
+    public static BinaryCacheEntry fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        try {
+            BinaryCacheEntry entry = new BinaryCacheEntry();
+            entry.expiresOn = buffer.getLong();
+            entry.writeId = buffer.getLong();
+            entry.chunkCount = buffer.getInt();
+            entry.head = new byte[buffer.getInt()];
+            buffer.get(entry.head);
+            entry.bodyLength = buffer.getInt();
+            if (entry.chunkCount == 0 && entry.bodyLength >= 0) {
+                entry.body = new byte[entry.bodyLength];
+                buffer.get(entry.body);
+            }
+            return entry;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param cacheKey the entry's key
+     * @param index the chunk's index
+     * @return the key of one chunk of this entry's body
+     */
+    public String chunkKey(String cacheKey, int index) {
+        return cacheKey + "#" + Long.toHexString(writeId) + "." + index; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @return the expiresOn
+     */
+    public long getExpiresOn() {
+        return expiresOn;
+    }
+
+    /**
+     * @param expiresOn the expiresOn to set
+     */
+    public void setExpiresOn(long expiresOn) {
+        this.expiresOn = expiresOn;
+    }
+
+    /**
+     * @return the writeId
+     */
+    public long getWriteId() {
+        return writeId;
+    }
+
+    /**
+     * @param writeId the writeId to set
+     */
+    public void setWriteId(long writeId) {
+        this.writeId = writeId;
+    }
+
+    /**
+     * @return the number of chunks the body is stored in, 0 if it is inline
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @param chunkCount the chunkCount to set
+     */
+    public void setChunkCount(int chunkCount) {
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * @return the serialized head
+     */
+    public byte[] getHead() {
+        return head;
+    }
+
+    /**
+     * @param head the head to set
+     */
+    public void setHead(byte[] head) {
+        this.head = head;
+    }
+
+    /**
+     * @return the total length of the body, -1 if there is none
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @param bodyLength the bodyLength to set
+     */
+    public void setBodyLength(int bodyLength) {
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * @return the inline body, or null if the body is chunked or absent
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @param body the inline body to set
+     */
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.storage.store;
+
+/**
+ * Implemented by backing stores that can update a counter atomically on the
+ * server side, in a single round trip.
+ */
+public interface IAtomicCounterStore {
+
+    /**
+     * Atomically adds to the counter stored under the given key, unless the
+     * counter is already above the ceiling. A missing counter counts as zero.
+     * The counter expires at the given time.
+     *
+     * @param key       the counter's key
+     * @param increment the amount to add
+     * @param ceiling   the value above which nothing is added
+     * @param expiresAt when the counter expires, in epoch millis
+     * @return the counter's value before the add
+     */
+    long addUnlessAbove(String key, long increment, long ceiling, long expiresAt);
+}
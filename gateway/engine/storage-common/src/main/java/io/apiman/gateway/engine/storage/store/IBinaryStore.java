@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.storage.store;
+
+/**
+ * Implemented by backing stores that can hold raw byte values natively, without
+ * wrapping them in JSON or encoding them as text.
+ */
+public interface IBinaryStore {
+
+    /**
+     * Insert a byte value into the store, with a given TTL.
+     *
+     * @param key   the value's key
+     * @param value the value
+     * @param ttl   the TTL in seconds
+     */
+    void putBytes(String key, byte[] value, long ttl);
+
+    /**
+     * Fetch a byte value from the store.
+     *
+     * @param key the value's key
+     * @return the value, or {@code null} if there is none (or it is not a byte value)
+     */
+    byte[] getBytes(String key);
+}
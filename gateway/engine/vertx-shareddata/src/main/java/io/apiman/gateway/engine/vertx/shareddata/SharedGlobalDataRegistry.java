@@ -16,6 +16,8 @@
 
 package io.apiman.gateway.engine.vertx.shareddata;
 
+import io.apiman.common.config.options.GenericOptionsParser;
+import io.apiman.common.config.options.Predicates;
 import io.apiman.gateway.engine.IEngineConfig;
 import io.apiman.gateway.engine.IRegistry;
 import io.apiman.gateway.engine.async.AsyncResultImpl;
@@ -29,33 +31,74 @@ import io.apiman.gateway.engine.beans.exceptions.ApiRetiredException;
 import io.apiman.gateway.engine.beans.exceptions.ClientNotFoundException;
 import io.apiman.gateway.engine.beans.exceptions.NoContractFoundException;
 import io.apiman.gateway.engine.i18n.Messages;
+import io.apiman.gateway.engine.impl.ApiContractIndex;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import io.vertx.core.AsyncResult;
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.core.shareddata.AsyncMap;
 
+import static io.apiman.common.config.options.GenericOptionsParser.keys;
+
 /**
+* A registry that keeps APIs and clients in a cluster-wide Vert.x map.
+* <p>
+* Lookups go through a local near-cache, so steady-state requests don't leave the node.
+* Every publish, retire, register and unregister broadcasts the changed keys on the event
+* bus, and each node drops them from its near-cache. A lookup stamps its key before reading
+* the cluster map and only caches the result if no invalidation removed the stamp in the
+* meantime, so a read racing with a change never caches the old value. Entries are also
+* reloaded after {@code nearCacheTtl} milliseconds (default 60000), in case an invalidation
+* was lost. Misses are not cached. Set {@code nearCache=false} to always read the cluster map.
+*
 * @author Marc Savy {@literal <marc@rhymewithgravy.com>}
 */
 @SuppressWarnings("nls")
 public class SharedGlobalDataRegistry implements IRegistry {
     private static final Logger LOGGER = LoggerFactory.getLogger(SharedGlobalDataRegistry.class);
+    private static final String INVALIDATION_ADDRESS = "SharedGlobalDataRegistry-Invalidate";
+
+    private final Vertx vertx;
+    private final boolean nearCacheEnabled;
+    private final long nearCacheTtl;
+    private final ConcurrentMap<String, NearCacheEntry> nearCache = new ConcurrentHashMap<>();
+    private final ApiContractIndex contractIndex;
     private AsyncMap<String, Object> objectMap;
 
     public SharedGlobalDataRegistry(Vertx vertx, IEngineConfig vxConfig, Map<String, String> options) {
+        this(vertx, vxConfig, options, new ApiContractIndex());
+    }
+
+    SharedGlobalDataRegistry(Vertx vertx, IEngineConfig vxConfig, Map<String, String> options, ApiContractIndex contractIndex) {
         if (!vertx.isClustered()) {
             throw new IllegalStateException(SharedGlobalDataRegistry.class.getCanonicalName() + " only works when operating in clustered mode!");
         }
+        this.vertx = vertx;
+        this.contractIndex = contractIndex;
+        GenericOptionsParser parser = new GenericOptionsParser(options == null ? Collections.emptyMap() : options);
+        this.nearCacheEnabled = parser.getBool(keys("nearCache"), true);
+        this.nearCacheTtl = parser.getLong(keys("nearCacheTtl"), 60000L,
+                Predicates.greaterThanZeroLong(), Predicates.greaterThanZeroMsg());
+
+        if (nearCacheEnabled) {
+            vertx.eventBus().<JsonArray>consumer(INVALIDATION_ADDRESS, message -> {
+                for (Object key : message.body()) {
+                    invalidateLocally((String) key);
+                }
+            });
+        }
 
         vertx.sharedData().<String, Object> getClusterWideMap("SharedGlobalDataRegistry-Shared",  async -> {
             if (async.succeeded()) {
@@ -71,19 +114,21 @@ public class SharedGlobalDataRegistry implements IRegistry {
 
     @Override
     public void publishApi(Api api, IAsyncResultHandler<Void> handler) {
-        objectMap.put(getApiIndex(api), api, handleResultVoid(handler));
+        String apiIndex = getApiIndex(api);
+        objectMap.put(apiIndex, api, invalidating(handleResultVoid(handler), apiIndex));
     }
 
     @Override
     public void retireApi(Api api, IAsyncResultHandler<Void> handler) {
-        objectMap.remove(getApiIndex(api), handleSuccessfulResult(handler, deletedApi -> {
+        String apiIndex = getApiIndex(api);
+        objectMap.remove(apiIndex, invalidating(handleSuccessfulResult(handler, deletedApi -> {
             if (deletedApi == null) {
                 Exception ex = new ApiNotFoundException(Messages.i18n.format("InMemoryRegistry.ApiNotFound"));
                 handler.handle(AsyncResultImpl.create(ex));
             } else {
                 handler.handle(AsyncResultImpl.create((Void) null));
             }
-        }));
+        }), apiIndex));
     }
 
     private <T> Handler<AsyncResult<T>> handleSuccessfulResult(IAsyncResultHandler<Void> failureHandler, Handler<T> successHandler) {
@@ -108,7 +153,7 @@ public class SharedGlobalDataRegistry implements IRegistry {
             Future future = Future.future();
             futures.add(future);
             String apiIndex = getApiIndex(contract.getApiOrgId(), contract.getApiId(), contract.getApiVersion());
-            objectMap.get(apiIndex, future.completer());
+            lookup(apiIndex, future.completer());
         }
 
         CompositeFuture.all(futures).setHandler(compositeResult -> {
@@ -150,13 +195,13 @@ public class SharedGlobalDataRegistry implements IRegistry {
                     }).compose(oldClientRaw -> {
                         Client oldClient = (Client) oldClientRaw;
                         if (oldClientRaw != null && !oldClient.getApiKey().equals(client.getApiKey())) {
-                            objectMap.remove(oldClient.getApiKey(), endFuture.completer());
+                            objectMap.remove(oldClient.getApiKey(), invalidating(endFuture.completer(), oldClient.getApiKey()));
                         } else {
                             endFuture.complete();
                         }
                     }, endFuture)
                     // When finished, call this handler and then resultHandler
-                    .setHandler(handleResult(resultHandler));
+                    .setHandler(invalidating(handleResult(resultHandler), client.getApiKey(), clientIndex));
                 }
             } else {
                 resultHandler.handle(AsyncResultImpl.create(compositeResult.cause()));
@@ -179,25 +224,26 @@ public class SharedGlobalDataRegistry implements IRegistry {
                 objectMap.remove(clientIndex, future1.completer());
                 objectMap.remove(oldClient.getApiKey(), future2.completer());
 
-                CompositeFuture.all(future1, future2).setHandler(handleCompositeResult(resultHandler));
+                CompositeFuture.all(future1, future2).setHandler(invalidating(handleCompositeResult(resultHandler),
+                        clientIndex, oldClient.getApiKey()));
             }
         }));
     }
 
     @Override
     public void getApi(String organizationId, String apiId, String apiVersion, IAsyncResultHandler<Api> handler) {
-        objectMap.get(getApiIndex(organizationId, apiId, apiVersion), handleResult(handler));
+        lookup(getApiIndex(organizationId, apiId, apiVersion), handleResult(handler));
     }
 
     @Override
     public void getClient(String apiKey, IAsyncResultHandler<Client> handler) {
-        objectMap.get(apiKey, handleResult(handler));
+        lookup(apiKey, handleResult(handler));
     }
 
     @Override
     public void getClient(String organizationId, String clientId, String clientVersion, IAsyncResultHandler<Client> handler) {
         String idx = getClientIndex(organizationId, clientId, clientVersion);
-        objectMap.get(idx, handleResult(handler));
+        lookup(idx, handleResult(handler));
     }
 
     @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -208,8 +254,8 @@ public class SharedGlobalDataRegistry implements IRegistry {
         Future apiFuture = Future.future();
         Future clientFuture = Future.future();
 
-        objectMap.get(apiIndex, apiFuture.completer());
-        objectMap.get(apiKey, clientFuture.completer());
+        lookup(apiIndex, apiFuture.completer());
+        lookup(apiKey, clientFuture.completer());
 
         CompositeFuture.all(apiFuture, clientFuture).setHandler(compositeResult -> {
             if (compositeResult.succeeded()) {
@@ -224,13 +270,10 @@ public class SharedGlobalDataRegistry implements IRegistry {
                             apiId, apiOrganizationId));
                     handler.handle(AsyncResultImpl.create(error, ApiContract.class));
                 } else {
-                    Optional<Contract> matchedOpt = client.getContracts().stream()
-                            .filter(contract -> contract.matches(apiOrganizationId, apiId, apiVersion))
-                            .findFirst();
+                    // Near-cached instances stay the same until invalidated, so the index can hold on to them
+                    ApiContract apiContract = contractIndex.resolve(client, api);
 
-                    if (matchedOpt.isPresent()) {
-                        Contract contract = matchedOpt.get();
-                        ApiContract apiContract = new ApiContract(api, client, contract.getPlan(), contract.getPolicies());
+                    if (apiContract != null) {
                         handler.handle(AsyncResultImpl.create(apiContract));
                     } else {
                         Exception error = new NoContractFoundException(Messages.i18n.format("InMemoryRegistry.NoContractFound", //$NON-NLS-1$
@@ -269,6 +312,73 @@ public class SharedGlobalDataRegistry implements IRegistry {
         throw new UnsupportedOperationException("Vert.x AsyncMap does not yet support iteration"); // TODO 1.5.x supports iteration.
     }
 
+    /**
+     * Gets a value through the near-cache.
+     */
+    private void lookup(String key, Handler<AsyncResult<Object>> handler) {
+        if (!nearCacheEnabled) {
+            objectMap.get(key, handler);
+            return;
+        }
+        NearCacheEntry cached = nearCache.get(key);
+        if (cached != null && cached.isLoaded() && System.currentTimeMillis() - cached.loadedOn < nearCacheTtl) {
+            handler.handle(Future.succeededFuture(cached.value));
+            return;
+        }
+        // Stamp the key; an invalidation while reading removes the stamp, and the result isn't cached.
+        // The stamp keeps the expired value, so that whoever removes the stamp can release it.
+        NearCacheEntry stamp = new NearCacheEntry(null, 0, cached == null ? null : cached.latestValue());
+        nearCache.put(key, stamp);
+        objectMap.get(key, result -> {
+            if (result.succeeded() && result.result() != null) {
+                nearCache.replace(key, stamp, new NearCacheEntry(result.result(), System.currentTimeMillis(), null));
+            } else if (nearCache.remove(key, stamp)) {
+                release(stamp);
+            }
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * Wraps a handler of a cluster map change, to invalidate the changed keys on every node
+     * (whether or not the change succeeded) before calling it.
+     */
+    private <T> Handler<AsyncResult<T>> invalidating(Handler<AsyncResult<T>> handler, String... keys) {
+        return result -> {
+            invalidate(keys);
+            handler.handle(result);
+        };
+    }
+
+    private void invalidate(String... keys) {
+        if (!nearCacheEnabled) {
+            return;
+        }
+        JsonArray broadcast = new JsonArray();
+        for (String key : keys) {
+            invalidateLocally(key);
+            broadcast.add(key);
+        }
+        vertx.eventBus().publish(INVALIDATION_ADDRESS, broadcast);
+    }
+
+    private void invalidateLocally(String key) {
+        NearCacheEntry removed = nearCache.remove(key);
+        if (removed != null) {
+            release(removed);
+        }
+    }
+
+    /**
+     * Drops the contracts indexed for a client that is no longer near-cached.
+     */
+    private void release(NearCacheEntry removed) {
+        Object value = removed.latestValue();
+        if (value instanceof Client) {
+            contractIndex.remove((Client) value);
+        }
+    }
+
     private String getApiIndex(Api api) {
         return getApiIndex(api.getOrganizationId(), api.getApiId(), api.getVersion());
     }
@@ -316,4 +426,31 @@ public class SharedGlobalDataRegistry implements IRegistry {
             }
         };
     }
+
+    /**
+     * A near-cached value, or a stamp (not yet loaded) for a lookup in progress.  A stamp
+     * that replaced an expired value holds on to it as the previous value.
+     */
+    private static final class NearCacheEntry {
+        private final Object value;
+        private final long loadedOn;
+        private final Object previous;
+
+        private NearCacheEntry(Object value, long loadedOn, Object previous) {
+            this.value = value;
+            this.loadedOn = loadedOn;
+            this.previous = previous;
+        }
+
+        private boolean isLoaded() {
+            return value != null;
+        }
+
+        /**
+         * @return the value, or for a stamp the value it replaced
+         */
+        private Object latestValue() {
+            return isLoaded() ? value : previous;
+        }
+    }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.engine.vertx.shareddata;
+
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.Client;
+import io.apiman.gateway.engine.beans.Contract;
+import io.apiman.gateway.engine.impl.ApiContractIndex;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.shareddata.AsyncMap;
+import io.vertx.core.shareddata.SharedData;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the near-cache of the {@link SharedGlobalDataRegistry} against a mocked cluster map.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+@SuppressWarnings({ "nls", "unchecked" })
+public class SharedGlobalDataRegistryTest {
+
+    private static final String API_KEY = "12345";
+
+    private final Map<String, Object> clusterMap = new HashMap<>();
+    private final Map<String, Handler<AsyncResult<Object>>> pendingGets = new HashMap<>();
+    private final ApiContractIndex contractIndex = spy(new ApiContractIndex());
+    private boolean deferGets;
+    private Handler<Message<JsonArray>> invalidationConsumer;
+    private SharedGlobalDataRegistry registry;
+    private Client client;
+
+    @Before
+    public void setup() throws Exception {
+        Vertx vertx = mock(Vertx.class);
+        EventBus eventBus = mock(EventBus.class);
+        SharedData sharedData = mock(SharedData.class);
+        AsyncMap<String, Object> objectMap = mock(AsyncMap.class);
+        when(vertx.isClustered()).thenReturn(true);
+        when(vertx.eventBus()).thenReturn(eventBus);
+        when(vertx.sharedData()).thenReturn(sharedData);
+        doAnswer(invocation -> {
+            invalidationConsumer = invocation.getArgument(1);
+            return null;
+        }).when(eventBus).consumer(anyString(), any(Handler.class));
+        doAnswer(invocation -> {
+            Handler<AsyncResult<AsyncMap<String, Object>>> handler = invocation.getArgument(1);
+            handler.handle(Future.succeededFuture(objectMap));
+            return null;
+        }).when(sharedData).getClusterWideMap(anyString(), any(Handler.class));
+        doAnswer(invocation -> {
+            String key = invocation.getArgument(0);
+            Handler<AsyncResult<Object>> handler = invocation.getArgument(1);
+            if (deferGets) {
+                pendingGets.put(key, handler);
+            } else {
+                handler.handle(Future.succeededFuture(clusterMap.get(key)));
+            }
+            return null;
+        }).when(objectMap).get(anyString(), any(Handler.class));
+
+        registry = new SharedGlobalDataRegistry(vertx, null, Collections.singletonMap("nearCacheTtl", "1"), contractIndex);
+
+        Api api = new Api();
+        api.setOrganizationId("TestOrg");
+        api.setApiId("TestApi");
+        api.setVersion("1.0");
+        Contract contract = new Contract();
+        contract.setApiOrgId("TestOrg");
+        contract.setApiId("TestApi");
+        contract.setApiVersion("1.0");
+        contract.setPlan("Gold");
+        client = new Client();
+        client.setOrganizationId("TestOrg");
+        client.setClientId("TestClient");
+        client.setVersion("1.0");
+        client.setApiKey(API_KEY);
+        client.getContracts().add(contract);
+        clusterMap.put("API::TestOrg|TestApi|1.0", api);
+        clusterMap.put(API_KEY, client);
+
+        // Near-cache the client and index its contract, then let the entry expire
+        registry.getContract("TestOrg", "TestApi", "1.0", API_KEY, result -> Assert.assertTrue(result.isSuccess()));
+        Thread.sleep(5);
+        deferGets = true;
+        registry.getClient(API_KEY, result -> {});
+        Assert.assertTrue(pendingGets.containsKey(API_KEY));
+    }
+
+    @Test
+    public void invalidatingReloadReleasesExpiredClient() {
+        Message<JsonArray> message = mock(Message.class);
+        when(message.body()).thenReturn(new JsonArray().add(API_KEY));
+        invalidationConsumer.handle(message);
+
+        verify(contractIndex).remove(client);
+    }
+
+    @Test
+    public void reloadFindingNoClientReleasesExpiredClient() {
+        pendingGets.get(API_KEY).handle(Future.succeededFuture(null));
+
+        verify(contractIndex).remove(client);
+    }
+
+    @Test
+    public void reloadedClientKeepsIndex() {
+        pendingGets.get(API_KEY).handle(Future.succeededFuture(client));
+
+        verify(contractIndex, never()).remove(any(Client.class));
+    }
+}
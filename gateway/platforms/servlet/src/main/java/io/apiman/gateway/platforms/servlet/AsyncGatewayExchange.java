@@ -0,0 +1,319 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet;
+
+import io.apiman.gateway.engine.IApiRequestExecutor;
+import io.apiman.gateway.engine.IEngineResult;
+import io.apiman.gateway.engine.async.IAsyncResult;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.platforms.servlet.i18n.Messages;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Drives a single request through the engine using Servlet 3.1 non-blocking I/O,
+ * so no container thread waits on the back-end.
+ * <p>
+ * The request body is read in {@link ReadListener} callbacks for as long as the
+ * input is ready and the connector is not {@link ISignalWriteStream#isFull() full};
+ * the connector's drain handler resumes reading. Response chunks are written while
+ * the output is ready, and are otherwise queued (and the engine result paused) until
+ * the container calls {@link WriteListener#onWritePossible()}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+class AsyncGatewayExchange implements ReadListener, WriteListener, AsyncListener {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final GatewayServlet servlet;
+    private final HttpServletResponse resp;
+    private final AsyncContext asyncContext;
+    private final ApiRequest request;
+
+    private final Object readLock = new Object();
+    private ServletInputStream input;
+    private ISignalWriteStream connectorStream;
+
+    private final Object writeLock = new Object();
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private ServletOutputStream output;
+    private IEngineResult engineResult;
+    private boolean ended = false;
+    private boolean completed = false;
+    private boolean paused = false;
+
+    /**
+     * Constructor.
+     * @param servlet the gateway servlet
+     * @param req the servlet request, already put into async mode
+     * @param resp the servlet response
+     * @param request the api request read from the servlet request
+     */
+    AsyncGatewayExchange(GatewayServlet servlet, HttpServletRequest req, HttpServletResponse resp, ApiRequest request) {
+        this.servlet = servlet;
+        this.resp = resp;
+        this.asyncContext = req.getAsyncContext();
+        this.request = request;
+        asyncContext.addListener(this);
+    }
+
+    /**
+     * Executes the request.
+     */
+    void execute() {
+        IApiRequestExecutor executor = servlet.getEngine().executor(request, this::handleResult);
+        executor.streamHandler(stream -> {
+            connectorStream = stream;
+            // Resume reading once the connector has caught up
+            stream.drainHandler(drain -> {
+                try {
+                    readAvailable();
+                } catch (IOException e) {
+                    onError(e);
+                }
+            });
+            try {
+                input = asyncContext.getRequest().getInputStream();
+                input.setReadListener(this);
+            } catch (IOException | IllegalStateException e) {
+                stream.abort(e);
+            }
+        });
+        executor.execute();
+    }
+
+    private void handleResult(IAsyncResult<IEngineResult> asyncResult) {
+        synchronized (writeLock) {
+            if (completed) { // Timed out or failed while waiting for the engine
+                if (asyncResult.isSuccess() && asyncResult.getResult().isResponse()) {
+                    asyncResult.getResult().abort();
+                }
+                return;
+            }
+        }
+        if (!asyncResult.isSuccess()) {
+            servlet.writeError(request, resp, asyncResult.getError());
+            complete();
+            return;
+        }
+        IEngineResult result = asyncResult.getResult();
+        if (!result.isResponse()) {
+            servlet.writeFailure(request, resp, result.getPolicyFailure());
+            complete();
+            return;
+        }
+
+        servlet.writeResponse(resp, result.getApiResponse());
+        synchronized (writeLock) {
+            engineResult = result;
+            try {
+                output = resp.getOutputStream();
+                output.setWriteListener(this);
+            } catch (IOException | IllegalStateException e) {
+                // Lets the connector close down the back-end connection
+                result.abort(e);
+                completeLocked();
+                return;
+            }
+        }
+        result.bodyHandler(this::writeChunk);
+        result.endHandler(end -> endResponse());
+    }
+
+    /**
+     * @see javax.servlet.ReadListener#onDataAvailable()
+     */
+    @Override
+    public void onDataAvailable() throws IOException {
+        readAvailable();
+    }
+
+    /**
+     * Reads while there is data and the connector can take it. Stopping because
+     * the input is not ready makes the container call {@link #onDataAvailable()}
+     * later; stopping because the connector is full leaves it to the drain handler.
+     */
+    private void readAvailable() throws IOException {
+        synchronized (readLock) {
+            if (input == null) {
+                return;
+            }
+            while (!connectorStream.isFull() && !input.isFinished() && input.isReady()) {
+                ByteBuffer buffer = new ByteBuffer(READ_BUFFER_SIZE);
+                if (buffer.readFrom(input) > 0) {
+                    connectorStream.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @see javax.servlet.ReadListener#onAllDataRead()
+     */
+    @Override
+    public void onAllDataRead() throws IOException {
+        connectorStream.end();
+    }
+
+    private void writeChunk(IApimanBuffer chunk) {
+        synchronized (writeLock) {
+            if (completed) {
+                return;
+            }
+            try {
+                if (pending.isEmpty() && output.isReady()) {
+                    write(chunk);
+                } else {
+                    // The connector may reuse the chunk's buffer, so keep a copy
+                    pending.add(chunk.getBytes());
+                    if (!paused) {
+                        // Hold back the back-end until the client has caught up
+                        paused = true;
+                        engineResult.pause();
+                    }
+                }
+            } catch (IOException e) {
+                abortResponse(e);
+            }
+        }
+    }
+
+    private void write(IApimanBuffer chunk) throws IOException {
+        if (chunk instanceof ByteBuffer) {
+            output.write((byte[]) chunk.getNativeBuffer(), 0, chunk.length());
+        } else {
+            output.write(chunk.getBytes());
+        }
+    }
+
+    private void endResponse() {
+        synchronized (writeLock) {
+            ended = true;
+            if (pending.isEmpty() && output.isReady()) {
+                completeLocked();
+            }
+        }
+    }
+
+    /**
+     * @see javax.servlet.WriteListener#onWritePossible()
+     */
+    @Override
+    public void onWritePossible() throws IOException {
+        synchronized (writeLock) {
+            while (!pending.isEmpty() && output.isReady()) {
+                output.write(pending.poll());
+            }
+            if (paused && pending.isEmpty()) {
+                paused = false;
+                engineResult.resume();
+            }
+            if (ended && pending.isEmpty() && output.isReady()) {
+                completeLocked();
+            }
+        }
+    }
+
+    /**
+     * Called by the container for failures of both the read and write side.
+     * @see javax.servlet.ReadListener#onError(java.lang.Throwable)
+     */
+    @Override
+    public void onError(Throwable t) {
+        if (connectorStream != null) {
+            connectorStream.abort(t);
+        }
+        synchronized (writeLock) {
+            abortResponse(t);
+        }
+    }
+
+    private void abortResponse(Throwable t) {
+        if (engineResult != null) {
+            engineResult.abort(t);
+        }
+        pending.clear();
+        completeLocked();
+    }
+
+    /**
+     * @see javax.servlet.AsyncListener#onTimeout(javax.servlet.AsyncEvent)
+     */
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        IOException timeout = new IOException(Messages.i18n.format("GatewayServlet.AsyncTimeout")); //$NON-NLS-1$
+        if (connectorStream != null) {
+            connectorStream.abort(timeout);
+        }
+        synchronized (writeLock) {
+            if (engineResult == null && !resp.isCommitted()) {
+                servlet.writeError(request, resp, timeout);
+            }
+            abortResponse(timeout);
+        }
+    }
+
+    /**
+     * @see javax.servlet.AsyncListener#onError(javax.servlet.AsyncEvent)
+     */
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        onError(event.getThrowable());
+    }
+
+    /**
+     * @see javax.servlet.AsyncListener#onComplete(javax.servlet.AsyncEvent)
+     */
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    /**
+     * @see javax.servlet.AsyncListener#onStartAsync(javax.servlet.AsyncEvent)
+     */
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    private void complete() {
+        synchronized (writeLock) {
+            completeLocked();
+        }
+    }
+
+    private void completeLocked() {
+        if (!completed) {
+            completed = true;
+            asyncContext.complete();
+        }
+    }
+}
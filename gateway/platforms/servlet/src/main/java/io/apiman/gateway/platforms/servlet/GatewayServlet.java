@@ -15,8 +15,11 @@
  */
 package io.apiman.gateway.platforms.servlet;
 
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
 import io.apiman.common.util.ApimanPathUtils;
 import io.apiman.common.util.ApimanPathUtils.ApiRequestPathInfo;
+import io.apiman.common.util.VirtualThreads;
 import io.apiman.gateway.engine.IApiClientResponse;
 import io.apiman.gateway.engine.IApiRequestExecutor;
 import io.apiman.gateway.engine.IEngine;
@@ -34,6 +37,7 @@ import io.apiman.gateway.engine.beans.util.QueryMap;
 import io.apiman.gateway.engine.io.ByteBuffer;
 import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.engine.io.ISignalWriteStream;
+import io.apiman.gateway.engine.io.SegmentedByteBuffer;
 import io.apiman.gateway.platforms.servlet.i18n.Messages;
 
 import java.io.IOException;
@@ -43,7 +47,10 @@ import java.net.URLDecoder;
 import java.util.Enumeration;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -56,6 +63,13 @@ import javax.servlet.http.HttpServletResponse;
  * API Management machinery.  It also is responsible for converting the resulting
  * {@link ApiResponse} into an HTTP Servlet Response that is suitable for returning
  * to the caller.
+ * <p>
+ * By default each request holds its container thread until the back-end has
+ * responded. Setting the {@value #ASYNC_MODE_PARAM} init-param to true (and marking
+ * the servlet as async-supported) processes requests with Servlet 3.1 non-blocking
+ * I/O instead, see {@link AsyncGatewayExchange}. Alternatively, setting the
+ * {@value #VIRTUAL_THREADS_PARAM} init-param to true keeps the blocking model but runs
+ * each request on its own virtual thread (Java 21+), releasing the container thread.
  *
  * @author eric.wittmann@redhat.com
  */
@@ -63,12 +77,62 @@ public abstract class GatewayServlet extends HttpServlet {
 
     private static final long serialVersionUID = 958726685958622333L;
 
+    /**
+     * Init-param enabling the non-blocking async mode.
+     */
+    public static final String ASYNC_MODE_PARAM = "async-mode"; //$NON-NLS-1$
+    /**
+     * Init-param with the async mode request timeout in millis; 0 (the default) leaves
+     * timing out to the connector.
+     */
+    public static final String ASYNC_TIMEOUT_PARAM = "async-timeout"; //$NON-NLS-1$
+
+    /**
+     * Init-param running each request on a virtual thread; ignored if the JVM has none.
+     */
+    public static final String VIRTUAL_THREADS_PARAM = "virtual-threads"; //$NON-NLS-1$
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(GatewayServlet.class);
+
+    private boolean asyncMode = false;
+    private long asyncTimeout = 0;
+    private transient ExecutorService virtualThreadExecutor;
+
     /**
      * Constructor.
      */
     public GatewayServlet() {
     }
 
+    /**
+     * @see javax.servlet.GenericServlet#init()
+     */
+    @Override
+    public void init() throws ServletException {
+        asyncMode = Boolean.parseBoolean(getInitParameter(ASYNC_MODE_PARAM));
+        String timeout = getInitParameter(ASYNC_TIMEOUT_PARAM);
+        if (timeout != null) {
+            asyncTimeout = Long.parseLong(timeout.trim());
+        }
+        if (!asyncMode && Boolean.parseBoolean(getInitParameter(VIRTUAL_THREADS_PARAM))) {
+            virtualThreadExecutor = VirtualThreads.newThreadPerTaskExecutor("apiman-gateway-"); //$NON-NLS-1$
+            if (virtualThreadExecutor == null) {
+                LOGGER.warn("Virtual threads are not supported by this JVM, requests will run on container threads"); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    @Override
+    public void destroy() {
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
     /**
      * @see javax.servlet.http.HttpServlet#service(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -86,6 +150,25 @@ public abstract class GatewayServlet extends HttpServlet {
      * @param action
      */
     protected void doAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        if (asyncMode && req.isAsyncSupported()) {
+            doAsyncAction(req, resp, action);
+            return;
+        }
+        if (virtualThreadExecutor != null && req.isAsyncSupported()) {
+            doVirtualThreadAction(req, resp, action);
+            return;
+        }
+        doBlockingAction(req, resp, action);
+    }
+
+    /**
+     * Handler for all types of http actions/verbs that holds the calling thread until
+     * the response has been written.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doBlockingAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
         // Read the request.
         ApiRequest srequest;
         try {
@@ -116,6 +199,11 @@ public abstract class GatewayServlet extends HttpServlet {
                                         if (chunk instanceof ByteBuffer) {
                                             byte [] buffer = (byte []) chunk.getNativeBuffer();
                                             outputStream.write(buffer, 0, chunk.length());
+                                        } else if (chunk instanceof SegmentedByteBuffer) {
+                                            SegmentedByteBuffer segmented = (SegmentedByteBuffer) chunk;
+                                            segmented.writeTo(outputStream);
+                                            // Nothing reads the chunk once it is written, so return its pooled segments
+                                            segmented.release();
                                         } else {
                                             outputStream.write(chunk.getBytes());
                                         }
@@ -179,6 +267,54 @@ public abstract class GatewayServlet extends HttpServlet {
         try { latch.await(); } catch (InterruptedException e) { }
     }
 
+    /**
+     * Handler for all types of http actions/verbs in async mode.  Returns as soon as the
+     * request has been handed to the engine; the rest happens in container callbacks.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doAsyncAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        // The request outlives this thread, so it can't be the thread-local one.
+        ApiRequest srequest;
+        try {
+            srequest = readRequest(req, new ApiRequest());
+            srequest.setType(action);
+        } catch (Exception e) {
+            writeError(null, resp, e);
+            return;
+        }
+
+        AsyncContext asyncContext = req.startAsync(req, resp);
+        asyncContext.setTimeout(asyncTimeout);
+        new AsyncGatewayExchange(this, req, resp, srequest).execute();
+    }
+
+    /**
+     * Handler for all types of http actions/verbs in virtual thread mode.  Hands the
+     * (blocking) request processing to a new virtual thread and returns.
+     * @param req
+     * @param resp
+     * @param action
+     */
+    protected void doVirtualThreadAction(final HttpServletRequest req, final HttpServletResponse resp, String action) {
+        AsyncContext asyncContext = req.startAsync(req, resp);
+        // The virtual thread owns the request until it completes, timeouts are left to the connector.
+        asyncContext.setTimeout(0);
+        try {
+            virtualThreadExecutor.execute(() -> {
+                try {
+                    doBlockingAction(req, resp, action);
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            writeError(null, resp, e);
+            asyncContext.complete();
+        }
+    }
+
     /**
      * Gets the engine - subclasses must implement this.
      * @return gets the engine
@@ -205,6 +341,18 @@ public abstract class GatewayServlet extends HttpServlet {
      * @throws IOException
      */
     protected ApiRequest readRequest(HttpServletRequest request) throws Exception {
+        return readRequest(request, GatewayThreadContext.getApiRequest());
+    }
+
+    /**
+     * Reads a {@link ApiRequest} from information found in the inbound
+     * portion of the http request into the given (empty) api request.
+     * @param request the undertow http server request
+     * @param srequest the api request to populate
+     * @return the populated {@link ApiRequest}
+     * @throws IOException
+     */
+    protected ApiRequest readRequest(HttpServletRequest request, ApiRequest srequest) throws Exception {
         ApiRequestPathInfo pathInfo = getEngine().getApiRequestPathParser().parseEndpoint(request.getPathInfo(), wrapMultiMap(request));//parseApiRequestPath(request);
         if (pathInfo.orgId == null) {
             throw new Exception(Messages.i18n.format("GatewayServlet.InvalidApiEndpoint")); //$NON-NLS-1$
@@ -213,7 +361,6 @@ public abstract class GatewayServlet extends HttpServlet {
 
         String apiKey = getApiKey(request, queryParams);
 
-        ApiRequest srequest = GatewayThreadContext.getApiRequest();
         srequest.setApiKey(apiKey);
         srequest.setApiOrgId(pathInfo.orgId);
         srequest.setApiId(pathInfo.apiId);
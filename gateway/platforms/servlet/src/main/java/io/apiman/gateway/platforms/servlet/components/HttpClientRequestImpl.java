@@ -94,7 +94,8 @@ public class HttpClientRequestImpl implements IHttpClientRequest {
 
 	@Override
 	public void write(IApimanBuffer buffer) {
-		write((byte[]) buffer.getNativeBuffer());
+		// The native buffer may be larger than the content, or not a byte array at all
+		write(buffer.getBytes());
 	}
 
     /**
@@ -0,0 +1,674 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.common.config.options.BasicAuthOptions;
+import io.apiman.common.config.options.HttpConnectorOptions;
+import io.apiman.common.logging.ApimanLoggerFactory;
+import io.apiman.common.logging.IApimanLogger;
+import io.apiman.common.util.ApimanPathUtils;
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.async.AsyncResultImpl;
+import io.apiman.gateway.engine.async.IAsyncHandler;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.UpstreamCall;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.ApiResponse;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.engine.handler.ErrorHandler;
+import io.apiman.gateway.engine.io.ByteBuffer;
+import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.platforms.servlet.connectors.AsyncHttpConnectorFactory.AsyncClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Models a live, non-blocking connection to a back end API.
+ * <p>
+ * Request chunks are queued and sent whenever the connection can take them. The
+ * connection reports itself {@link #isFull() full} while more than
+ * {@value #HIGH_WATER_MARK} bytes are queued, and calls the drain handler once
+ * the queue has gone below {@value #LOW_WATER_MARK}. Callers ignoring this (e.g.
+ * a blocking servlet) are made to wait once the queue reaches
+ * {@value #HARD_LIMIT} bytes. The response body is only read once it has been
+ * {@link #transmit() transmitted}, and not while {@link #pause() paused}.
+ * <p>
+ * All response handlers are called on the client's I/O dispatcher threads.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class AsyncHttpApiConnection implements IApiConnection, IApiConnectionResponse {
+
+    private static final IApimanLogger LOGGER = ApimanLoggerFactory.getLogger(AsyncHttpApiConnection.class);
+
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+    private static final int LOW_WATER_MARK = 16 * 1024;
+    private static final int HARD_LIMIT = 4 * HIGH_WATER_MARK;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ApiRequest request;
+    private final Api api;
+    private final UpstreamCall upstreamCall;
+    private final RequiredAuthType requiredAuthType;
+    private final boolean hasDataPolicy;
+    private final IConnectorConfig connectorConfig;
+    private final IAsyncResultHandler<IApiConnectionResponse> responseHandler;
+    private final long writeTimeout;
+
+    // Request side, guarded by the lock
+    private final Object lock = new Object();
+    private final Deque<java.nio.ByteBuffer> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private boolean requestEnded = false;
+    private boolean full = false;
+    private IOControl outputControl;
+    private IAsyncHandler<Void> drainHandler;
+
+    // Response side, also guarded by the lock
+    private IOControl inputControl;
+    private boolean transmitting = false;
+    private boolean paused = false;
+    private boolean responseEnded = false;
+    private boolean headDelivered = false;
+
+    private IAsyncHandler<IApimanBuffer> bodyHandler;
+    private IAsyncHandler<Void> endHandler;
+
+    private ApiResponse response;
+    private Future<Void> exchange;
+    private volatile boolean connected = false;
+    private volatile boolean isError = false;
+
+    /**
+     * Constructor.
+     *
+     * @param client the started http client
+     * @param request the request
+     * @param api the API
+     * @param requiredAuthType the authorization type
+     * @param hasDataPolicy if policy chain contains data policies
+     * @param connectorOptions the connector options
+     * @param connectorConfig the dynamic connector configuration as possibly modified by policies
+     * @param upstreamCall the load-balanced call this request is, or null to use the API's endpoint
+     * @param handler the result handler
+     */
+    AsyncHttpApiConnection(AsyncClient client, ApiRequest request, Api api,
+            RequiredAuthType requiredAuthType, boolean hasDataPolicy, HttpConnectorOptions connectorOptions,
+            IConnectorConfig connectorConfig, UpstreamCall upstreamCall,
+            IAsyncResultHandler<IApiConnectionResponse> handler) {
+        this.request = request;
+        this.api = api;
+        this.upstreamCall = upstreamCall;
+        this.requiredAuthType = requiredAuthType;
+        this.hasDataPolicy = hasDataPolicy;
+        this.connectorConfig = connectorConfig;
+        this.responseHandler = handler;
+        this.writeTimeout = connectorOptions.getWriteTimeout() * 1000L;
+
+        try {
+            connect(client);
+        } catch (Exception e) {
+            upstreamFinished();
+            handleConnectionError(e);
+        }
+    }
+
+    /**
+     * Starts the exchange with the back end system.
+     */
+    private void connect(AsyncClient client) throws IOException {
+        String endpoint = ApimanPathUtils.join(upstreamCall != null ? upstreamCall.getEndpoint() : api.getEndpoint(),
+                request.getDestination());
+
+        if (request.getQueryParams() != null && !request.getQueryParams().isEmpty()) {
+            StringBuilder sb = new StringBuilder(endpoint);
+            String delim = "?"; //$NON-NLS-1$
+            for (Entry<String, String> entry : request.getQueryParams()) {
+                sb.append(delim).append(entry.getKey());
+                if (entry.getValue() != null) {
+                    sb.append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8")); //$NON-NLS-1$
+                }
+                delim = "&"; //$NON-NLS-1$
+            }
+            endpoint = sb.toString();
+        }
+        URL url = new URL(endpoint);
+        boolean isSsl = "https".equalsIgnoreCase(url.getProtocol()); //$NON-NLS-1$
+        HttpHost target = new HttpHost(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort(),
+                url.getProtocol());
+
+        if (requiredAuthType == RequiredAuthType.MTLS && !isSsl) {
+            throw new ConnectorException("Mutually authenticating TLS requested, but insecure endpoint protocol was indicated."); //$NON-NLS-1$
+        }
+
+        HttpRequest httpRequest;
+        if (hasBody()) {
+            BasicHttpEntityEnclosingRequest entityRequest = new BasicHttpEntityEnclosingRequest(request.getType(), url.getFile());
+            BasicHttpEntity entity = new BasicHttpEntity();
+            String contentLength = request.getHeaders().get("Content-Length"); //$NON-NLS-1$
+            if (contentLength != null && !hasDataPolicy) {
+                entity.setContentLength(Long.parseLong(contentLength.trim()));
+            } else {
+                entity.setContentLength(-1);
+                entity.setChunked(true);
+            }
+            entityRequest.setEntity(entity);
+            httpRequest = entityRequest;
+        } else {
+            httpRequest = new BasicHttpRequest(request.getType(), url.getFile());
+            synchronized (lock) {
+                requestEnded = true;
+            }
+        }
+
+        if (requiredAuthType == RequiredAuthType.BASIC) {
+            BasicAuthOptions options = new BasicAuthOptions(api.getEndpointProperties());
+            if (options.getUsername() != null && options.getPassword() != null) {
+                if (options.isRequireSSL() && !isSsl) {
+                    throw new ConnectorException("Endpoint security requested (BASIC auth) but endpoint is not secure (SSL)."); //$NON-NLS-1$
+                }
+
+                String up = options.getUsername() + ':' + options.getPassword();
+                httpRequest.setHeader("Authorization", "Basic " + Base64.encodeBase64String(up.getBytes())); //$NON-NLS-1$ //$NON-NLS-2$
+                connectorConfig.suppressRequestHeader("Authorization"); //$NON-NLS-1$
+            }
+        }
+
+        // Set the request headers; the client sets Host and the framing headers itself
+        for (Entry<String, String> entry : request.getHeaders()) {
+            String hkey = entry.getKey();
+            if (!connectorConfig.getSuppressedRequestHeaders().contains(hkey)
+                    && !"Content-Length".equalsIgnoreCase(hkey)) { //$NON-NLS-1$
+                httpRequest.addHeader(hkey, entry.getValue());
+            }
+        }
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(getRequestConfig(client.getRequestConfig()));
+        client.applyRouteLimit(target, api.getEndpointProperties());
+        connected = true;
+        exchange = client.getHttpClient().execute(new RequestProducer(target, httpRequest), new ResponseConsumer(),
+                context, new ExchangeCallback());
+    }
+
+    /**
+     * Whether the request has a body to stream (mirroring when the client would send one).
+     */
+    private boolean hasBody() {
+        String method = request.getType();
+        if ("POST".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method) || "PATCH".equalsIgnoreCase(method)) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            return true;
+        }
+        String contentLength = request.getHeaders().get("Content-Length"); //$NON-NLS-1$
+        return request.getHeaders().containsKey("Transfer-Encoding") //$NON-NLS-1$
+                || (contentLength != null && !"0".equals(contentLength.trim())); //$NON-NLS-1$
+    }
+
+    /**
+     * Applies the endpoint's connect/read timeout overrides, if any.
+     */
+    private RequestConfig getRequestConfig(RequestConfig defaults) {
+        Map<String, String> endpointProperties = api.getEndpointProperties();
+        if (endpointProperties == null
+                || !endpointProperties.containsKey("timeouts.connect") && !endpointProperties.containsKey("timeouts.read")) { //$NON-NLS-1$ //$NON-NLS-2$
+            return defaults;
+        }
+        RequestConfig.Builder builder = RequestConfig.copy(defaults);
+        try {
+            if (endpointProperties.containsKey("timeouts.connect")) { //$NON-NLS-1$
+                builder.setConnectTimeout(Integer.parseInt(endpointProperties.get("timeouts.connect"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("timeouts.read")) { //$NON-NLS-1$
+                builder.setSocketTimeout(Integer.parseInt(endpointProperties.get("timeouts.read"))); //$NON-NLS-1$
+            }
+        } catch (NumberFormatException e) {
+        }
+        return builder.build();
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#write(io.apiman.gateway.engine.io.IApimanBuffer)
+     */
+    @Override
+    public void write(IApimanBuffer chunk) {
+        synchronized (lock) {
+            if (isError || requestEnded) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + writeTimeout;
+            while (queuedBytes >= HARD_LIMIT && !isError) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    abort(new InterruptedIOException("Timed out writing to back end API.")); //$NON-NLS-1$
+                    return;
+                }
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abort(e);
+                    return;
+                }
+            }
+            // Chunks may be reused by the caller once written, so always queue a copy
+            byte[] bytes = chunk.getBytes();
+            queue.add(java.nio.ByteBuffer.wrap(bytes));
+            queuedBytes += bytes.length;
+            if (queuedBytes > HIGH_WATER_MARK) {
+                full = true;
+            }
+            if (outputControl != null) {
+                outputControl.requestOutput();
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IWriteStream#end()
+     */
+    @Override
+    public void end() {
+        synchronized (lock) {
+            requestEnded = true;
+            if (outputControl != null) {
+                outputControl.requestOutput();
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalWriteStream#isFull()
+     */
+    @Override
+    public boolean isFull() {
+        synchronized (lock) {
+            return full;
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalWriteStream#drainHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void drainHandler(IAsyncHandler<Void> drainHandler) {
+        synchronized (lock) {
+            this.drainHandler = drainHandler;
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.ISignalReadStream#transmit()
+     */
+    @Override
+    public void transmit() {
+        boolean endNow;
+        synchronized (lock) {
+            transmitting = true;
+            endNow = responseEnded;
+            if (!endNow && inputControl != null) {
+                inputControl.requestInput();
+            }
+        }
+        if (endNow) { // The response had no body, or it completed before being transmitted
+            finish();
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#pause()
+     */
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            paused = true;
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#resume()
+     */
+    @Override
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            if (transmitting && !responseEnded && inputControl != null) {
+                inputControl.requestInput();
+            }
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IAbortable#abort(java.lang.Throwable)
+     */
+    @Override
+    public void abort(Throwable t) {
+        synchronized (lock) {
+            isError = true;
+            connected = false;
+            queue.clear();
+            queuedBytes = 0;
+            lock.notifyAll();
+        }
+        if (exchange != null) {
+            exchange.cancel(true);
+        }
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#bodyHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void bodyHandler(IAsyncHandler<IApimanBuffer> bodyHandler) {
+        this.bodyHandler = bodyHandler;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#endHandler(io.apiman.gateway.engine.async.IAsyncHandler)
+     */
+    @Override
+    public void endHandler(IAsyncHandler<Void> endHandler) {
+        this.endHandler = endHandler;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IReadStream#getHead()
+     */
+    @Override
+    public ApiResponse getHead() {
+        return response;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.io.IStream#isFinished()
+     */
+    @Override
+    public boolean isFinished() {
+        return !connected;
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IApiConnection#isConnected()
+     */
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private void finish() {
+        connected = false;
+        if (endHandler != null) {
+            endHandler.handle(null);
+        }
+    }
+
+    private void upstreamFinished() {
+        if (upstreamCall != null) {
+            upstreamCall.finished();
+        }
+    }
+
+    private void handleConnectionError(Exception error) {
+        // Sometimes it's possible that multiple exceptions end up coming through. Ignore secondary ones.
+        boolean midResponse;
+        synchronized (lock) {
+            if (isError) {
+                return;
+            }
+            isError = true;
+            connected = false;
+            midResponse = headDelivered;
+            queue.clear();
+            queuedBytes = 0;
+            lock.notifyAll();
+        }
+        if (midResponse) {
+            // The engine already has this connection as its result, so there is no second result to
+            // report. The body stream is left unended, which makes the caller cut the client's
+            // connection rather than pass the truncated body off as complete.
+            LOGGER.error(error, "Back end failed after sending the response head: {0}", error.getMessage()); //$NON-NLS-1$
+            return;
+        }
+        ConnectorException ce = ErrorHandler.handleConnectionError(error);
+        LOGGER.error(error.getMessage(), error);
+        responseHandler.handle(AsyncResultImpl.<IApiConnectionResponse> create(ce));
+    }
+
+    /**
+     * Sends the request head, then the queued body chunks as the connection allows.
+     */
+    private final class RequestProducer implements HttpAsyncRequestProducer {
+        private final HttpHost target;
+        private final HttpRequest httpRequest;
+
+        private RequestProducer(HttpHost target, HttpRequest httpRequest) {
+            this.target = target;
+            this.httpRequest = httpRequest;
+        }
+
+        @Override
+        public HttpHost getTarget() {
+            return target;
+        }
+
+        @Override
+        public HttpRequest generateRequest() {
+            return httpRequest;
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+            IAsyncHandler<Void> drained = null;
+            synchronized (lock) {
+                outputControl = ioctrl;
+                while (!queue.isEmpty()) {
+                    java.nio.ByteBuffer head = queue.peek();
+                    queuedBytes -= encoder.write(head);
+                    if (head.hasRemaining()) {
+                        break; // Channel is full, we'll be called again
+                    }
+                    queue.poll();
+                }
+                if (full && queuedBytes < LOW_WATER_MARK) {
+                    full = false;
+                    drained = drainHandler;
+                }
+                lock.notifyAll();
+                if (queue.isEmpty()) {
+                    if (requestEnded) {
+                        encoder.complete();
+                    } else {
+                        ioctrl.suspendOutput(); // Until the next write
+                    }
+                }
+            }
+            if (drained != null) {
+                drained.handle(null);
+            }
+        }
+
+        @Override
+        public void requestCompleted(HttpContext context) {
+        }
+
+        @Override
+        public void failed(Exception ex) {
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public void resetRequest() throws IOException {
+            throw new IOException("Request body cannot be replayed."); //$NON-NLS-1$
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Hands the response head to the engine straight away, and streams the body once transmitted.
+     */
+    private final class ResponseConsumer implements HttpAsyncResponseConsumer<Void> {
+        private final java.nio.ByteBuffer readBuffer = java.nio.ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean done = false;
+
+        @Override
+        public void responseReceived(HttpResponse httpResponse) {
+            ApiResponse apiResponse = new ApiResponse();
+            for (Header header : httpResponse.getAllHeaders()) {
+                if (!connectorConfig.getSuppressedResponseHeaders().contains(header.getName())) {
+                    apiResponse.getHeaders().add(header.getName(), header.getValue());
+                }
+            }
+            apiResponse.setCode(httpResponse.getStatusLine().getStatusCode());
+            apiResponse.setMessage(httpResponse.getStatusLine().getReasonPhrase());
+            synchronized (lock) {
+                response = apiResponse;
+                headDelivered = true;
+            }
+            if (upstreamCall != null) {
+                upstreamCall.responded(apiResponse.getCode());
+            }
+            responseHandler.handle(AsyncResultImpl.<IApiConnectionResponse> create(AsyncHttpApiConnection.this));
+        }
+
+        @Override
+        public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            synchronized (lock) {
+                inputControl = ioctrl;
+                if (!transmitting || paused) {
+                    ioctrl.suspendInput(); // Until transmit() or resume()
+                    return;
+                }
+            }
+            int read;
+            while ((read = decoder.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                byte[] bytes = new byte[read];
+                readBuffer.get(bytes);
+                readBuffer.clear();
+                bodyHandler.handle(new ByteBuffer(bytes, read));
+                synchronized (lock) {
+                    if (paused) { // By the handler we just called
+                        ioctrl.suspendInput();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void responseCompleted(HttpContext context) {
+            done = true;
+            boolean endNow;
+            synchronized (lock) {
+                responseEnded = true;
+                endNow = transmitting;
+            }
+            if (endNow) {
+                finish();
+            }
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            done = true;
+        }
+
+        @Override
+        public Exception getException() {
+            return null;
+        }
+
+        @Override
+        public Void getResult() {
+            return null;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public boolean cancel() {
+            done = true;
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Reports failures of the exchange to the engine.
+     */
+    private final class ExchangeCallback implements FutureCallback<Void> {
+        @Override
+        public void completed(Void result) {
+            upstreamFinished();
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            if (upstreamCall != null) {
+                upstreamCall.failed();
+            }
+            upstreamFinished();
+            handleConnectionError(ex);
+        }
+
+        @Override
+        public void cancelled() {
+            upstreamFinished();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.servlet.connectors;
+
+import io.apiman.common.config.options.HttpConnectorOptions;
+import io.apiman.common.config.options.TLSOptions;
+import io.apiman.gateway.engine.IApiConnection;
+import io.apiman.gateway.engine.IApiConnectionResponse;
+import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IComponentRegistry;
+import io.apiman.gateway.engine.IConnectorConfig;
+import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
+import io.apiman.gateway.engine.async.IAsyncResultHandler;
+import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.LoadBalancerOptions;
+import io.apiman.gateway.engine.balancer.LoadBalancers;
+import io.apiman.gateway.engine.balancer.UpstreamGroup;
+import io.apiman.gateway.engine.beans.Api;
+import io.apiman.gateway.engine.beans.ApiRequest;
+import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
+import io.apiman.gateway.platforms.servlet.connectors.ssl.SSLSessionStrategy;
+import io.apiman.gateway.platforms.servlet.connectors.ssl.SSLSessionStrategyFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+
+/**
+ * Connector factory that uses a non-blocking HTTP client (Apache HttpAsyncClient) to
+ * invoke back end systems. Request and response bodies are streamed without tying up
+ * a thread per request, and connections are pooled across all APIs.
+ * <p>
+ * Best combined with the servlet async mode, so that no container thread waits on the
+ * back-end either. Select it with:
+ * <pre>
+ * apiman-gateway.connector-factory=io.apiman.gateway.platforms.servlet.connectors.AsyncHttpConnectorFactory
+ * </pre>
+ * In addition to the {@link HttpConnectorOptions} and {@link TLSOptions}, supports:
+ * <ul>
+ *   <li>http.pool.maxTotal - max connections overall (default 1000)</li>
+ *   <li>http.pool.maxPerRoute - max connections per back-end host (default 100)</li>
+ *   <li>http.ioThreads - I/O dispatcher threads (default number of processors)</li>
+ * </ul>
+ * An API can override its own host's limit with the <tt>pool.maxConnections</tt>
+ * endpoint property. APIs with the <tt>lb.targets</tt> endpoint property are balanced
+ * over those targets, see {@link LoadBalancerOptions}.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public class AsyncHttpConnectorFactory implements IConnectorFactory, IRequiresComponentRegistry {
+
+    private static final int DEFAULT_MAX_TOTAL = 1000;
+    private static final int DEFAULT_MAX_PER_ROUTE = 100;
+    private static final String MAX_CONNECTIONS_PROPERTY = "pool.maxConnections"; //$NON-NLS-1$
+
+    private final TLSOptions tlsOptions;
+    private final HttpConnectorOptions connectorOptions;
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final int ioThreads;
+    private final LoadBalancers loadBalancers = new LoadBalancers();
+
+    // Standard auth
+    private volatile AsyncClient standardClient;
+    // 2WAY auth (i.e. mutual auth)
+    private volatile AsyncClient mutualAuthClient;
+
+    /**
+     * Constructor.
+     *
+     * @param config map of configuration options
+     */
+    public AsyncHttpConnectorFactory(Map<String, String> config) {
+        this.tlsOptions = new TLSOptions(config);
+        this.connectorOptions = new HttpConnectorOptions(config);
+        this.maxTotal = parseInt(config.get("http.pool.maxTotal"), DEFAULT_MAX_TOTAL); //$NON-NLS-1$
+        this.maxPerRoute = parseInt(config.get("http.pool.maxPerRoute"), DEFAULT_MAX_PER_ROUTE); //$NON-NLS-1$
+        this.ioThreads = parseInt(config.get("http.ioThreads"), Runtime.getRuntime().availableProcessors()); //$NON-NLS-1$
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IConnectorFactory#createConnector(ApiRequest, Api, RequiredAuthType,
+     * boolean, IConnectorConfig)
+     */
+    @Override
+    public IApiConnector createConnector(ApiRequest request, final Api api,
+        final RequiredAuthType requiredAuthType, boolean hasDataPolicy,
+        final IConnectorConfig connectorConfig) {
+        return new IApiConnector() {
+            /**
+             * @see io.apiman.gateway.engine.IApiConnector#connect(io.apiman.gateway.engine.beans.ApiRequest, io.apiman.gateway.engine.async.IAsyncResultHandler)
+             */
+            @Override
+            public IApiConnection connect(ApiRequest request,
+                IAsyncResultHandler<IApiConnectionResponse> handler) throws ConnectorException {
+                UpstreamGroup upstreamGroup = loadBalancers.get(api);
+                return new AsyncHttpApiConnection(getClient(requiredAuthType), request, api, requiredAuthType,
+                        hasDataPolicy, connectorOptions, connectorConfig,
+                        upstreamGroup == null ? null : upstreamGroup.begin(), handler);
+            }
+        };
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IRequiresComponentRegistry#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
+     */
+    @Override
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        loadBalancers.setComponentRegistry(componentRegistry);
+    }
+
+    /**
+     * @see io.apiman.gateway.engine.IConnectorFactory#createConnectorConfig(ApiRequest, Api)
+     */
+    @Override
+    public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
+        return new ConnectorConfigImpl();
+    }
+
+    /**
+     * Gets (creating and starting on first use) the client for the auth type. Mutual
+     * auth uses a separate client, as its connections carry the gateway's client certificate.
+     */
+    private AsyncClient getClient(RequiredAuthType authType) {
+        try {
+            return getOrCreateClient(authType);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private AsyncClient getOrCreateClient(RequiredAuthType authType) throws Exception {
+        if (authType == RequiredAuthType.MTLS) {
+            AsyncClient client = mutualAuthClient;
+            if (client == null) {
+                synchronized (this) {
+                    if (mutualAuthClient == null) {
+                        mutualAuthClient = createClient(SSLSessionStrategyFactory.buildMutual(tlsOptions));
+                    }
+                    client = mutualAuthClient;
+                }
+            }
+            return client;
+        } else {
+            AsyncClient client = standardClient;
+            if (client == null) {
+                synchronized (this) {
+                    if (standardClient == null) {
+                        standardClient = createClient(tlsOptions.isDevMode()
+                                ? SSLSessionStrategyFactory.buildUnsafe()
+                                : SSLSessionStrategyFactory.buildStandard(tlsOptions));
+                    }
+                    client = standardClient;
+                }
+            }
+            return client;
+        }
+    }
+
+    private AsyncClient createClient(SSLSessionStrategy sslStrategy) throws IOException {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectorOptions.getConnectTimeout() * 1000)
+                .setSoTimeout(connectorOptions.getReadTimeout() * 1000)
+                .build();
+        SSLIOSessionStrategy sslIOSessionStrategy = new SSLIOSessionStrategy(sslStrategy.getSslContext(),
+                sslStrategy.getProtocols(), sslStrategy.getCipherSuites(), sslStrategy.getHostnameVerifier());
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(reactorConfig),
+                RegistryBuilder.<SchemeIOSessionStrategy> create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE) //$NON-NLS-1$
+                    .register("https", sslIOSessionStrategy) //$NON-NLS-1$
+                    .build());
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectorOptions.getConnectTimeout() * 1000)
+                .setSocketTimeout(connectorOptions.getReadTimeout() * 1000)
+                .setConnectionRequestTimeout(connectorOptions.getConnectTimeout() * 1000)
+                .setRedirectsEnabled(connectorOptions.isFollowRedirects())
+                .build();
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        httpClient.start();
+        return new AsyncClient(httpClient, connectionManager, requestConfig);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * A started client, with its pool.
+     */
+    static final class AsyncClient {
+        private final CloseableHttpAsyncClient httpClient;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+        private final RequestConfig requestConfig;
+        private final Map<HttpRoute, Integer> routeLimits = new ConcurrentHashMap<>();
+
+        private AsyncClient(CloseableHttpAsyncClient httpClient,
+                PoolingNHttpClientConnectionManager connectionManager, RequestConfig requestConfig) {
+            this.httpClient = httpClient;
+            this.connectionManager = connectionManager;
+            this.requestConfig = requestConfig;
+        }
+
+        CloseableHttpAsyncClient getHttpClient() {
+            return httpClient;
+        }
+
+        RequestConfig getRequestConfig() {
+            return requestConfig;
+        }
+
+        /**
+         * Applies an API's own connection limit for its host, if it has one.
+         */
+        void applyRouteLimit(HttpHost target, Map<String, String> endpointProperties) {
+            String limit = endpointProperties == null ? null : endpointProperties.get(MAX_CONNECTIONS_PROPERTY);
+            if (limit == null) {
+                return;
+            }
+            // Same route as the client's route planner derives for a direct connection
+            HttpRoute route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName())); //$NON-NLS-1$
+            Integer max = Integer.valueOf(limit.trim());
+            if (!max.equals(routeLimits.put(route, max))) {
+                connectionManager.setMaxPerRoute(route, max);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.UpstreamCall;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
@@ -34,6 +35,7 @@ import io.apiman.gateway.engine.handler.ErrorHandler;
 import io.apiman.gateway.engine.impl.DefaultPolicyErrorWriter;
 import io.apiman.gateway.engine.io.ByteBuffer;
 import io.apiman.gateway.engine.io.IApimanBuffer;
+import io.apiman.gateway.engine.io.SegmentedByteBuffer;
 import io.apiman.gateway.platforms.servlet.GatewayThreadContext;
 import io.apiman.gateway.platforms.servlet.connectors.ok.OkUrlFactory;
 import io.apiman.gateway.platforms.servlet.connectors.ssl.SSLSessionStrategy;
@@ -65,6 +67,7 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
 
     private final ApiRequest request;
     private final Api api;
+    private final UpstreamCall upstreamCall;
     private final RequiredAuthType requiredAuthType;
     private final SSLSessionStrategy sslStrategy;
     private final IAsyncResultHandler<IApiConnectionResponse> responseHandler;
@@ -101,9 +104,31 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
             RequiredAuthType requiredAuthType, SSLSessionStrategy sslStrategy,
             boolean hasDataPolicy, IConnectorConfig connectorConfig,
             IAsyncResultHandler<IApiConnectionResponse> handler) throws ConnectorException {
+        this(client, request, api, requiredAuthType, sslStrategy, hasDataPolicy, connectorConfig, null, handler);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client the http client to use
+     * @param sslStrategy the SSL strategy
+     * @param request the request
+     * @param api the API
+     * @param requiredAuthType the authorization type
+     * @param hasDataPolicy if policy chain contains data policies
+     * @param connectorConfig the dynamic connector configuration as possibly modified by policies
+     * @param upstreamCall the load-balanced call this request is, or null to use the API's endpoint
+     * @param handler the result handler
+     * @throws ConnectorException when unable to connect
+     */
+    public HttpApiConnection(OkHttpClient client, ApiRequest request, Api api,
+            RequiredAuthType requiredAuthType, SSLSessionStrategy sslStrategy,
+            boolean hasDataPolicy, IConnectorConfig connectorConfig, UpstreamCall upstreamCall,
+            IAsyncResultHandler<IApiConnectionResponse> handler) throws ConnectorException {
         this.client = client;
         this.request = request;
         this.api = api;
+        this.upstreamCall = upstreamCall;
         this.requiredAuthType = requiredAuthType;
         this.sslStrategy = sslStrategy;
         this.hasDataPolicy = hasDataPolicy;
@@ -113,6 +138,7 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
         try {
             connect();
         } catch (Exception e) {
+            upstreamFinished();
             // Sometimes it's possible that multiple exceptions end up coming through. Ignore secondary ones.
             if (!isError) {
                 handler.handle(AsyncResultImpl.<IApiConnectionResponse> create(e));
@@ -126,7 +152,8 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
      */
     private void connect() throws ConnectorException {
         try {
-            String endpoint = ApimanPathUtils.join(api.getEndpoint(), request.getDestination());
+            String endpoint = ApimanPathUtils.join(upstreamCall != null ? upstreamCall.getEndpoint() : api.getEndpoint(),
+                    request.getDestination());
 
             if (request.getQueryParams() != null && !request.getQueryParams().isEmpty()) {
                 String delim = "?"; //$NON-NLS-1$
@@ -290,6 +317,7 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
      */
     @Override
     public void abort(Throwable t) {
+        upstreamFinished();
         try {
             if (!connected) {
                 throw new IOException("Not connected."); //$NON-NLS-1$
@@ -324,6 +352,11 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
             if (chunk instanceof ByteBuffer) {
                 byte[] buffer = (byte[]) chunk.getNativeBuffer();
                 outputStream.write(buffer, 0, chunk.length());
+            } else if (chunk instanceof SegmentedByteBuffer) {
+                SegmentedByteBuffer segmented = (SegmentedByteBuffer) chunk;
+                segmented.writeTo(outputStream);
+                // Nothing reads the chunk once it is written, so return its pooled segments
+                segmented.release();
             } else {
                 outputStream.write(chunk.getBytes());
             }
@@ -360,6 +393,9 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
 
             response.setCode(connection.getResponseCode());
             response.setMessage(connection.getResponseMessage());
+            if (upstreamCall != null) {
+                upstreamCall.responded(response.getCode());
+            }
             responseHandler.handle(AsyncResultImpl.<IApiConnectionResponse> create(this));
         } catch (Exception e) {
             handleConnectionError(e);
@@ -385,6 +421,7 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
             IOUtils.closeQuietly(is);
             connection.disconnect();
             connected = false;
+            upstreamFinished();
             endHandler.handle(null);
         } catch (Throwable e) {
             // At this point we're sort of screwed, because we've already sent the response to
@@ -397,7 +434,17 @@ public class HttpApiConnection implements IApiConnection, IApiConnectionResponse
         }
     }
 
+    private void upstreamFinished() {
+        if (upstreamCall != null) {
+            upstreamCall.finished();
+        }
+    }
+
     private void handleConnectionError(Exception error) {
+        if (upstreamCall != null) {
+            upstreamCall.failed();
+            upstreamCall.finished();
+        }
         ConnectorException ce = ErrorHandler.handleConnectionError(error);
         LOGGER.error(error.getMessage(), error);
         throw ce;
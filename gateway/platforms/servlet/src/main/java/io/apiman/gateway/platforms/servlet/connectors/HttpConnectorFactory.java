@@ -20,10 +20,15 @@ import io.apiman.common.config.options.TLSOptions;
 import io.apiman.gateway.engine.IApiConnection;
 import io.apiman.gateway.engine.IApiConnectionResponse;
 import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IConnectorConfig;
 import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.LoadBalancerOptions;
+import io.apiman.gateway.engine.balancer.LoadBalancers;
+import io.apiman.gateway.engine.balancer.UpstreamGroup;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.exceptions.ConnectorException;
@@ -47,11 +52,13 @@ import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.AuthenticatorAdapter;
 
 /**
- * Connector factory that uses HTTP to invoke back end systems.
+ * Connector factory that uses HTTP to invoke back end systems. APIs with the
+ * <tt>lb.targets</tt> endpoint property are balanced over those targets, see
+ * {@link LoadBalancerOptions}.
  *
  * @author eric.wittmann@redhat.com
  */
-public class HttpConnectorFactory implements IConnectorFactory {
+public class HttpConnectorFactory implements IConnectorFactory, IRequiresComponentRegistry {
 
     private static final List<ConnectionSpec> DEFAULT_CONNECTION_SPECS = Util.immutableList(
         ConnectionSpec.MODERN_TLS, ConnectionSpec.COMPATIBLE_TLS, ConnectionSpec.CLEARTEXT);
@@ -64,6 +71,7 @@ public class HttpConnectorFactory implements IConnectorFactory {
     private SSLSessionStrategy mutualAuthSslStrategy;
     private final TLSOptions tlsOptions;
     private final HttpConnectorOptions connectorOptions;
+    private final LoadBalancers loadBalancers = new LoadBalancers();
 
     /**
      * Constructor.
@@ -115,9 +123,10 @@ public class HttpConnectorFactory implements IConnectorFactory {
             public IApiConnection connect(ApiRequest request,
                 IAsyncResultHandler<IApiConnectionResponse> handler) throws ConnectorException {
 
+                UpstreamGroup upstreamGroup = loadBalancers.get(api);
                 HttpApiConnection connection = new HttpApiConnection(okClient, request, api,
                     requiredAuthType, getSslStrategy(requiredAuthType), hasDataPolicy,
-                    connectorConfig, handler);
+                    connectorConfig, upstreamGroup == null ? null : upstreamGroup.begin(), handler);
                 return connection;
             }
         };
@@ -151,6 +160,14 @@ public class HttpConnectorFactory implements IConnectorFactory {
         }
     }
 
+    /**
+     * @see io.apiman.gateway.engine.IRequiresComponentRegistry#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
+     */
+    @Override
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        loadBalancers.setComponentRegistry(componentRegistry);
+    }
+
     @Override
     public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
         return new ConnectorConfigImpl();
@@ -16,6 +16,7 @@
 package io.apiman.gateway.platforms.servlet.connectors.ssl;
 
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -27,6 +28,9 @@ public class SSLSessionStrategy {
 
     private HostnameVerifier hostnameVerifier;
     private SSLSocketFactory socketFactory;
+    private SSLContext sslContext;
+    private String[] protocols;
+    private String[] cipherSuites;
 
     /**
      * Construct an {@link SSLSessionStrategy}
@@ -40,6 +44,25 @@ public class SSLSessionStrategy {
         this.socketFactory = socketFactory;
     }
 
+    /**
+     * Construct an {@link SSLSessionStrategy} that also exposes its context,
+     * for clients that do not work with sockets (e.g. NIO clients).
+     *
+     * @param hostnameVerifier the hostname verifier
+     * @param socketFactory the socket factory
+     * @param sslContext the context the socket factory was created from
+     * @param protocols the allowed protocols, <tt>null</tt> for the context's defaults
+     * @param cipherSuites the allowed cipher suites, <tt>null</tt> for the context's defaults
+     */
+    public SSLSessionStrategy(HostnameVerifier hostnameVerifier,
+            SSLSocketFactory socketFactory, SSLContext sslContext, String[] protocols,
+            String[] cipherSuites) {
+        this(hostnameVerifier, socketFactory);
+        this.sslContext = sslContext;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
     /**
      * @return the hostnameVerifier
      */
@@ -54,4 +77,25 @@ public class SSLSessionStrategy {
         return socketFactory;
     }
 
+    /**
+     * @return the SSL context, or null if not known
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * @return the allowed protocols, or null for the defaults
+     */
+    public String[] getProtocols() {
+        return protocols;
+    }
+
+    /**
+     * @return the allowed cipher suites, or null for the defaults
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites;
+    }
+
 }
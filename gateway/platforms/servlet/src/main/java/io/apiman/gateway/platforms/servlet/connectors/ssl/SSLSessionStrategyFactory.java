@@ -232,7 +232,8 @@ public class SSLSessionStrategyFactory {
 
         SSLContext sslContext = builder.build();
         return new SSLSessionStrategy(hostnameVerifier, new CipherSelectingSSLSocketFactory(
-                sslContext.getSocketFactory(), allowedCiphers, allowedProtocols, clientAuth));
+                sslContext.getSocketFactory(), allowedCiphers, allowedProtocols, clientAuth),
+                sslContext, allowedProtocols, allowedCiphers);
     }
 
     /**
@@ -270,7 +271,7 @@ public class SSLSessionStrategyFactory {
                 }
             } }, new SecureRandom());
 
-            return new SSLSessionStrategy(ALLOW_ANY, sslContext.getSocketFactory());
+            return new SSLSessionStrategy(ALLOW_ANY, sslContext.getSocketFactory(), sslContext, null, null);
 
         } catch (Exception e) {
             throw new RuntimeException(e);
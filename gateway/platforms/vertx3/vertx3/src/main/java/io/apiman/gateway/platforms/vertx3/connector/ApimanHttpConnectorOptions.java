@@ -20,6 +20,7 @@ import io.apiman.common.config.options.AbstractOptions;
 import io.apiman.common.config.options.TLSOptions;
 import io.apiman.gateway.engine.auth.RequiredAuthType;
 import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
 
 import java.net.URI;
 import java.util.Map;
@@ -39,6 +40,14 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
     private int requestTimeout = HttpClientOptions.DEFAULT_CONNECT_TIMEOUT * 2;
     private boolean keepAlive = HttpClientOptions.DEFAULT_KEEP_ALIVE;
     private boolean tryUseCompression = HttpClientOptions.DEFAULT_TRY_USE_COMPRESSION;
+    private int maxPoolSize = HttpClientOptions.DEFAULT_MAX_POOL_SIZE;
+    private boolean pipelining = HttpClientOptions.DEFAULT_PIPELINING;
+    private int pipeliningLimit = HttpClientOptions.DEFAULT_PIPELINING_LIMIT;
+    private int maxWaitQueueSize = HttpClientOptions.DEFAULT_MAX_WAIT_QUEUE_SIZE;
+    private HttpVersion protocolVersion = HttpClientOptions.DEFAULT_PROTOCOL_VERSION;
+    private boolean h2ClearTextUpgrade = HttpClientOptions.DEFAULT_HTTP2_CLEAR_TEXT_UPGRADE;
+    private int h2MultiplexingLimit = HttpClientOptions.DEFAULT_HTTP2_MULTIPLEXING_LIMIT;
+    private int h2MaxPoolSize = HttpClientOptions.DEFAULT_HTTP2_MAX_POOL_SIZE;
     private TLSOptions tlsOptions;
     private URI endpoint;
     private boolean isSsl;
@@ -56,6 +65,37 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
     protected void parse(Map<String, String> options) {
         connectionTimeout = parseInt(options, "http.timeouts.connect", HttpClientOptions.DEFAULT_CONNECT_TIMEOUT);
         requestTimeout = parseInt(options, "http.timeouts.read", HttpClientOptions.DEFAULT_CONNECT_TIMEOUT * 2);
+        maxPoolSize = parseInt(options, "http.pool.maxPerRoute", HttpClientOptions.DEFAULT_MAX_POOL_SIZE);
+        pipelining = parseBool(options, "http.pool.pipelining", HttpClientOptions.DEFAULT_PIPELINING);
+        pipeliningLimit = parseInt(options, "http.pool.pipeliningLimit", HttpClientOptions.DEFAULT_PIPELINING_LIMIT);
+        maxWaitQueueSize = parseInt(options, "http.pool.maxWaitQueueSize", HttpClientOptions.DEFAULT_MAX_WAIT_QUEUE_SIZE);
+        protocolVersion = parseVersion(options.get("http.protocolVersion"), HttpClientOptions.DEFAULT_PROTOCOL_VERSION);
+        h2ClearTextUpgrade = parseBool(options, "http.h2.clearTextUpgrade", HttpClientOptions.DEFAULT_HTTP2_CLEAR_TEXT_UPGRADE);
+        h2MultiplexingLimit = parseInt(options, "http.h2.multiplexingLimit", HttpClientOptions.DEFAULT_HTTP2_MULTIPLEXING_LIMIT);
+        h2MaxPoolSize = parseInt(options, "http.h2.maxPoolSize", HttpClientOptions.DEFAULT_HTTP2_MAX_POOL_SIZE);
+    }
+
+    /**
+     * Parses a protocol version, either a {@link HttpVersion} name (e.g. HTTP_2) or
+     * its number (e.g. 2 or 1.1).
+     *
+     * @param value the value, may be null
+     * @param defaultValue returned for a null value
+     * @return the version
+     */
+    public static HttpVersion parseVersion(String value, HttpVersion defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        String version = value.trim().toUpperCase();
+        if (!version.startsWith("HTTP_")) {
+            version = "HTTP_" + version.replace('.', '_');
+        }
+        try {
+            return HttpVersion.valueOf(version);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown HTTP protocol version: " + value, e);
+        }
     }
 
     /**
@@ -151,6 +191,121 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
         return this;
     }
 
+    /**
+     * @return the max number of connections per back-end host, for each event loop
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+    /**
+     * @param maxPoolSize the maxPoolSize to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+        return this;
+    }
+    /**
+     * @return whether HTTP/1.1 pipelining is used
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+    /**
+     * @param pipelining the pipelining to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+        return this;
+    }
+    /**
+     * @return the max number of requests pipelined on a connection
+     */
+    public int getPipeliningLimit() {
+        return pipeliningLimit;
+    }
+    /**
+     * @param pipeliningLimit the pipeliningLimit to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setPipeliningLimit(int pipeliningLimit) {
+        this.pipeliningLimit = pipeliningLimit;
+        return this;
+    }
+    /**
+     * @return the max number of requests waiting for a connection, -1 for unbounded
+     */
+    public int getMaxWaitQueueSize() {
+        return maxWaitQueueSize;
+    }
+    /**
+     * @param maxWaitQueueSize the maxWaitQueueSize to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setMaxWaitQueueSize(int maxWaitQueueSize) {
+        this.maxWaitQueueSize = maxWaitQueueSize;
+        return this;
+    }
+
+    /**
+     * @return the preferred protocol version towards the back-end
+     */
+    public HttpVersion getProtocolVersion() {
+        return protocolVersion;
+    }
+    /**
+     * @param protocolVersion the protocolVersion to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setProtocolVersion(HttpVersion protocolVersion) {
+        this.protocolVersion = protocolVersion;
+        return this;
+    }
+    /**
+     * @return whether cleartext HTTP/2 starts with an HTTP/1.1 upgrade request (which
+     * falls back to HTTP/1.1), rather than with prior knowledge
+     */
+    public boolean isH2ClearTextUpgrade() {
+        return h2ClearTextUpgrade;
+    }
+    /**
+     * @param h2ClearTextUpgrade the h2ClearTextUpgrade to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setH2ClearTextUpgrade(boolean h2ClearTextUpgrade) {
+        this.h2ClearTextUpgrade = h2ClearTextUpgrade;
+        return this;
+    }
+    /**
+     * @return the max number of concurrent streams on an HTTP/2 connection, -1 for the server's limit
+     */
+    public int getH2MultiplexingLimit() {
+        return h2MultiplexingLimit;
+    }
+    /**
+     * @param h2MultiplexingLimit the h2MultiplexingLimit to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setH2MultiplexingLimit(int h2MultiplexingLimit) {
+        this.h2MultiplexingLimit = h2MultiplexingLimit;
+        return this;
+    }
+    /**
+     * @return the max number of HTTP/2 connections per back-end host, for each event loop
+     */
+    public int getH2MaxPoolSize() {
+        return h2MaxPoolSize;
+    }
+    /**
+     * @param h2MaxPoolSize the h2MaxPoolSize to set
+     * @return this
+     */
+    public ApimanHttpConnectorOptions setH2MaxPoolSize(int h2MaxPoolSize) {
+        this.h2MaxPoolSize = h2MaxPoolSize;
+        return this;
+    }
+
     public TLSOptions getTlsOptions() {
         return tlsOptions;
     }
@@ -191,6 +346,14 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
         result = prime * result + ((tlsOptions == null) ? 0 : tlsOptions.hashCode());
         result = prime * result + (tryUseCompression ? 1231 : 1237);
         result = prime * result + (isSsl ? 0 : 1);
+        result = prime * result + maxPoolSize;
+        result = prime * result + (pipelining ? 1231 : 1237);
+        result = prime * result + pipeliningLimit;
+        result = prime * result + maxWaitQueueSize;
+        result = prime * result + ((protocolVersion == null) ? 0 : protocolVersion.hashCode());
+        result = prime * result + (h2ClearTextUpgrade ? 1231 : 1237);
+        result = prime * result + h2MultiplexingLimit;
+        result = prime * result + h2MaxPoolSize;
         return result;
     }
     /* (non-Javadoc)
@@ -218,6 +381,24 @@ public class ApimanHttpConnectorOptions extends AbstractOptions {
             return false;
         if (tryUseCompression != other.tryUseCompression)
             return false;
+        if (isSsl != other.isSsl)
+            return false;
+        if (maxPoolSize != other.maxPoolSize)
+            return false;
+        if (pipelining != other.pipelining)
+            return false;
+        if (pipeliningLimit != other.pipeliningLimit)
+            return false;
+        if (maxWaitQueueSize != other.maxWaitQueueSize)
+            return false;
+        if (protocolVersion != other.protocolVersion)
+            return false;
+        if (h2ClearTextUpgrade != other.h2ClearTextUpgrade)
+            return false;
+        if (h2MultiplexingLimit != other.h2MultiplexingLimit)
+            return false;
+        if (h2MaxPoolSize != other.h2MaxPoolSize)
+            return false;
         return true;
     }
 
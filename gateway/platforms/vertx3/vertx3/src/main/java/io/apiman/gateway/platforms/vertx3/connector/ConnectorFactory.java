@@ -15,35 +15,86 @@
  */
 package io.apiman.gateway.platforms.vertx3.connector;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import io.apiman.common.config.options.TLSOptions;
 import io.apiman.gateway.engine.IApiConnector;
+import io.apiman.gateway.engine.IComponentRegistry;
 import io.apiman.gateway.engine.IConnectorConfig;
 import io.apiman.gateway.engine.IConnectorFactory;
+import io.apiman.gateway.engine.IRequiresComponentRegistry;
 import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.LoadBalancerOptions;
+import io.apiman.gateway.engine.balancer.LoadBalancers;
+import io.apiman.gateway.engine.balancer.UpstreamCall;
+import io.apiman.gateway.engine.balancer.UpstreamGroup;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.platforms.vertx3.http.HttpClientOptionsFactory;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.core.net.JdkSSLEngineOptions;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 /**
  * Create Vert.x connectors to the enable apiman to connect to a backend API.
+ * <p>
+ * Each event loop (Vert.x context) gets its own HTTP clients, so a request's connection
+ * belongs to the event loop that handles the request and no callback has to hop between
+ * threads. As a consequence, the connection limits below apply per event loop. The parsed
+ * options of each API are cached until the API's endpoint or endpoint properties change.
+ * <p>
+ * In addition to the {@link TLSOptions}, supports:
+ * <ul>
+ *   <li>http.timeouts.connect - connect timeout in ms</li>
+ *   <li>http.timeouts.read - request timeout in ms</li>
+ *   <li>http.pool.maxPerRoute - max connections per back-end host (default 5)</li>
+ *   <li>http.pool.pipelining - whether to use HTTP/1.1 pipelining (default false)</li>
+ *   <li>http.pool.pipeliningLimit - max requests pipelined on a connection (default 10)</li>
+ *   <li>http.pool.maxWaitQueueSize - max requests waiting for a connection (default unbounded)</li>
+ *   <li>http.pool.metricsInterval - if set, how often (in ms) to log the {@link ConnectorPoolMetrics}</li>
+ *   <li>http.protocolVersion - HTTP_1_1 (default) or HTTP_2</li>
+ *   <li>http.h2.clearTextUpgrade - for cleartext HTTP/2 (h2c), whether to start with an HTTP/1.1
+ *   upgrade request (default true) or with prior knowledge</li>
+ *   <li>http.h2.multiplexingLimit - max concurrent streams per HTTP/2 connection (default: the server's limit)</li>
+ *   <li>http.h2.maxPoolSize - max HTTP/2 connections per back-end host (default 1)</li>
+ * </ul>
+ * An API can override the pool settings with the <tt>pool.maxConnections</tt>, <tt>pool.pipelining</tt>,
+ * <tt>pool.pipeliningLimit</tt> and <tt>pool.maxWaitQueueSize</tt> endpoint properties, and the
+ * protocol settings with the <tt>protocolVersion</tt>, <tt>h2.clearTextUpgrade</tt>,
+ * <tt>h2.multiplexingLimit</tt> and <tt>h2.maxPoolSize</tt> endpoint properties.
+ * <p>
+ * HTTP/2 falls back to HTTP/1.1 when the back-end does not support it: over TLS through ALPN,
+ * and in cleartext through the upgrade request. Only h2c with prior knowledge has no fallback.
+ * <p>
+ * APIs with the <tt>lb.targets</tt> endpoint property are balanced over those targets, see
+ * {@link LoadBalancerOptions}.
  *
  * @author Marc Savy {@literal <msavy@redhat.com>}
  */
-public class ConnectorFactory implements IConnectorFactory {
+public class ConnectorFactory implements IConnectorFactory, IRequiresComponentRegistry {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectorFactory.class);
     private static final Set<String> SUPPRESSED_HEADERS = new HashSet<>();
     static {
         SUPPRESSED_HEADERS.add("Transfer-Encoding"); //$NON-NLS-1$
@@ -53,24 +104,16 @@ public class ConnectorFactory implements IConnectorFactory {
     private Vertx vertx;
     private TLSOptions tlsOptions;
     private Map<String, String> config;
-    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> clientCache = CacheBuilder.newBuilder()
-                // TODO make this tuneable.
+    // Parsed connector options of each API
+    private Cache<String, ApiConnectorOptions> apiOptionsCache = CacheBuilder.newBuilder()
                 .maximumSize(2000)
-                // Close any evicted connections.
-                .<ApimanHttpConnectorOptions, HttpClient>removalListener(eviction -> eviction.getValue().close())
-                // Either grab from cache or build new (which will be cached automatically).
-                .build(new CacheLoader<ApimanHttpConnectorOptions, HttpClient>() {
-
-                    @Override
-                    public HttpClient load(ApimanHttpConnectorOptions opts) throws Exception {
-                        HttpClientOptions vxClientOptions = HttpClientOptionsFactory.parseTlsOptions(opts.getTlsOptions(), opts.getUri())
-                                .setConnectTimeout(opts.getConnectionTimeout())
-                                .setIdleTimeout(opts.getIdleTimeout())
-                                .setKeepAlive(opts.isKeepAlive())
-                                .setTryUseCompression(opts.isTryUseCompression());
-                        return vertx.createHttpClient(vxClientOptions);
-                    }
-                });
+                .build();
+    // HTTP clients of each event loop
+    private ConcurrentMap<Context, LoadingCache<ApimanHttpConnectorOptions, HttpClient>> contextClientCaches = new ConcurrentHashMap<>();
+    // HTTP clients for requests made outside of any Vert.x context
+    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> sharedClientCache = createClientCache();
+    private ConcurrentMap<String, ConnectorPoolMetrics> poolMetrics = new ConcurrentHashMap<>();
+    private LoadBalancers loadBalancers = new LoadBalancers();
 
     /**
      * Constructor
@@ -81,46 +124,176 @@ public class ConnectorFactory implements IConnectorFactory {
         this.vertx = vertx;
         this.config = config;
         this.tlsOptions = new TLSOptions(config);
+
+        String metricsInterval = config.get("http.pool.metricsInterval"); //$NON-NLS-1$
+        if (metricsInterval != null && Long.parseLong(metricsInterval) > 0) {
+            vertx.setPeriodic(Long.parseLong(metricsInterval), id -> logPoolMetrics());
+        }
     }
 
     // In the future we can switch to different back-end implementations here!
     @Override
     public IApiConnector createConnector(ApiRequest req, Api api, RequiredAuthType authType, boolean hasDataPolicy, IConnectorConfig connectorConfig) {
         return (request, resultHandler) -> {
-            // Apply options from config as our base case
-            ApimanHttpConnectorOptions httpOptions = new ApimanHttpConnectorOptions(config)
-                    .setHasDataPolicy(hasDataPolicy)
-                    .setRequiredAuthType(authType)
-                    .setTlsOptions(tlsOptions)
-                    .setUri(parseApiEndpoint(api))
-                    .setSsl(api.getEndpoint().toLowerCase().startsWith("https")); //$NON-NLS-1$
-            // If API has endpoint properties indicating timeouts, then override config.
-            setAttributesFromApiEndpointProperties(api, httpOptions);
-            // Get from cache
-            HttpClient client = clientFromCache(httpOptions);
-            return new HttpConnector(vertx, client, request, api, httpOptions, connectorConfig, resultHandler).connect();
+            UpstreamGroup upstreamGroup = loadBalancers.get(api);
+            UpstreamCall upstreamCall = upstreamGroup == null ? null : upstreamGroup.begin();
+            try {
+                ApimanHttpConnectorOptions httpOptions = getOptions(api, authType, hasDataPolicy,
+                        upstreamCall == null ? null : upstreamCall.getEndpoint());
+                // Get from cache
+                HttpClient client = clientFromCache(httpOptions);
+                ConnectorPoolMetrics metrics = poolMetrics.computeIfAbsent(endpointKey(httpOptions), ConnectorPoolMetrics::new);
+                return new HttpConnector(vertx, client, request, api, httpOptions, connectorConfig, metrics, resultHandler)
+                        .setUpstreamCall(upstreamCall)
+                        .connect();
+            } catch (RuntimeException e) {
+                if (upstreamCall != null) {
+                    upstreamCall.finished();
+                }
+                throw e;
+            }
          };
     }
 
+    /**
+     * @see io.apiman.gateway.engine.IRequiresComponentRegistry#setComponentRegistry(io.apiman.gateway.engine.IComponentRegistry)
+     */
+    @Override
+    public void setComponentRegistry(IComponentRegistry componentRegistry) {
+        loadBalancers.setComponentRegistry(componentRegistry);
+    }
+
+    /**
+     * @return the connection pool metrics of each back-end endpoint connected to so far
+     */
+    public Collection<ConnectorPoolMetrics> getPoolMetrics() {
+        return Collections.unmodifiableCollection(poolMetrics.values());
+    }
+
+    private void logPoolMetrics() {
+        for (ConnectorPoolMetrics metrics : poolMetrics.values()) {
+            LOGGER.info("Connection pool: " + metrics); //$NON-NLS-1$
+        }
+    }
+
+    private ApimanHttpConnectorOptions getOptions(Api api, RequiredAuthType authType, boolean hasDataPolicy, String target) {
+        String apiKey = api.getOrganizationId() + ":" + api.getApiId() + ":" + api.getVersion(); //$NON-NLS-1$ //$NON-NLS-2$
+        ApiConnectorOptions cached = apiOptionsCache.getIfPresent(apiKey);
+        if (cached == null || !cached.isFor(api)) {
+            cached = new ApiConnectorOptions(api);
+            apiOptionsCache.put(apiKey, cached);
+        }
+        return cached.get(api, authType, hasDataPolicy, target);
+    }
+
+    private ApimanHttpConnectorOptions createOptions(Api api, String endpoint, RequiredAuthType authType,
+            boolean hasDataPolicy) {
+        // Apply options from config as our base case
+        ApimanHttpConnectorOptions httpOptions = new ApimanHttpConnectorOptions(config)
+                .setHasDataPolicy(hasDataPolicy)
+                .setRequiredAuthType(authType)
+                .setTlsOptions(tlsOptions)
+                .setUri(parseEndpoint(endpoint))
+                .setSsl(endpoint.toLowerCase().startsWith("https")); //$NON-NLS-1$
+        // If API has endpoint properties indicating timeouts, then override config.
+        setAttributesFromApiEndpointProperties(api, httpOptions);
+        return httpOptions;
+    }
+
     private HttpClient clientFromCache(ApimanHttpConnectorOptions key) {
         try {
-            return clientCache.get(key);
+            return getClientCache().get(key);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private URI parseApiEndpoint(Api api) {
+    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> getClientCache() {
+        Context context = Vertx.currentContext();
+        if (context == null) {
+            return sharedClientCache;
+        }
+        LoadingCache<ApimanHttpConnectorOptions, HttpClient> clientCache = contextClientCaches.get(context);
+        if (clientCache != null) {
+            return clientCache;
+        }
+        LoadingCache<ApimanHttpConnectorOptions, HttpClient> newCache = createClientCache();
+        clientCache = contextClientCaches.putIfAbsent(context, newCache);
+        if (clientCache != null) {
+            return clientCache;
+        }
+        // Drop the clients with the context (e.g. when its verticle is undeployed)
+        context.addCloseHook(completionHandler -> {
+            contextClientCaches.remove(context);
+            newCache.invalidateAll();
+            completionHandler.handle(Future.succeededFuture());
+        });
+        return newCache;
+    }
+
+    private LoadingCache<ApimanHttpConnectorOptions, HttpClient> createClientCache() {
+        return CacheBuilder.newBuilder()
+                // TODO make this tuneable.
+                .maximumSize(2000)
+                // Close any evicted connections.
+                .<ApimanHttpConnectorOptions, HttpClient>removalListener(eviction -> eviction.getValue().close())
+                // Either grab from cache or build new (which will be cached automatically).
+                .build(new CacheLoader<ApimanHttpConnectorOptions, HttpClient>() {
+
+                    @Override
+                    public HttpClient load(ApimanHttpConnectorOptions opts) throws Exception {
+                        HttpClientOptions vxClientOptions = HttpClientOptionsFactory.parseTlsOptions(opts.getTlsOptions(), opts.getUri())
+                                .setConnectTimeout(opts.getConnectionTimeout())
+                                .setIdleTimeout(opts.getIdleTimeout())
+                                .setKeepAlive(opts.isKeepAlive())
+                                .setTryUseCompression(opts.isTryUseCompression())
+                                .setMaxPoolSize(opts.getMaxPoolSize())
+                                .setPipelining(opts.isPipelining())
+                                .setPipeliningLimit(opts.getPipeliningLimit())
+                                .setMaxWaitQueueSize(opts.getMaxWaitQueueSize());
+                        setProtocolOptions(vxClientOptions, opts);
+                        return vertx.createHttpClient(vxClientOptions);
+                    }
+                });
+    }
+
+    private static void setProtocolOptions(HttpClientOptions vxClientOptions, ApimanHttpConnectorOptions opts) {
+        if (opts.getProtocolVersion() != HttpVersion.HTTP_2) {
+            vxClientOptions.setProtocolVersion(opts.getProtocolVersion());
+            return;
+        }
+        if (opts.isSsl()) {
+            // HTTP/2 over TLS is negotiated with ALPN, offering HTTP/1.1 too
+            if (!JdkSSLEngineOptions.isAlpnAvailable()) {
+                LOGGER.warn("ALPN is not available, using HTTP/1.1 for " + opts.getUri()); //$NON-NLS-1$
+                vxClientOptions.setProtocolVersion(HttpVersion.HTTP_1_1);
+                return;
+            }
+            vxClientOptions.setUseAlpn(true);
+        }
+        vxClientOptions.setProtocolVersion(HttpVersion.HTTP_2)
+                .setHttp2ClearTextUpgrade(opts.isH2ClearTextUpgrade())
+                .setHttp2MultiplexingLimit(opts.getH2MultiplexingLimit())
+                .setHttp2MaxPoolSize(opts.getH2MaxPoolSize());
+    }
+
+    private static String endpointKey(ApimanHttpConnectorOptions options) {
+        URI uri = options.getUri();
+        int port = uri.getPort() != -1 ? uri.getPort() : (options.isSsl() ? 443 : 80);
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private URI parseEndpoint(String endpoint) {
         try {
-            return new URI(api.getEndpoint());
+            return new URI(endpoint);
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * If the endpoint properties includes a read timeout override, then
-     * set it here.
+     * If the endpoint properties includes timeout or pool overrides, then
+     * set them here.
      * @param connection
      */
     private void setAttributesFromApiEndpointProperties(Api api, ApimanHttpConnectorOptions options) {
@@ -134,6 +307,31 @@ public class ConnectorFactory implements IConnectorFactory {
                 int connectTimeoutMs = Integer.parseInt(endpointProperties.get("timeouts.connect")); //$NON-NLS-1$
                 options.setConnectionTimeout(connectTimeoutMs);
             }
+            if (endpointProperties.containsKey("pool.maxConnections")) { //$NON-NLS-1$
+                options.setMaxPoolSize(Integer.parseInt(endpointProperties.get("pool.maxConnections"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("pool.pipelining")) { //$NON-NLS-1$
+                options.setPipelining(Boolean.parseBoolean(endpointProperties.get("pool.pipelining"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("pool.pipeliningLimit")) { //$NON-NLS-1$
+                options.setPipeliningLimit(Integer.parseInt(endpointProperties.get("pool.pipeliningLimit"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("pool.maxWaitQueueSize")) { //$NON-NLS-1$
+                options.setMaxWaitQueueSize(Integer.parseInt(endpointProperties.get("pool.maxWaitQueueSize"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("protocolVersion")) { //$NON-NLS-1$
+                options.setProtocolVersion(ApimanHttpConnectorOptions.parseVersion(
+                        endpointProperties.get("protocolVersion"), options.getProtocolVersion())); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("h2.clearTextUpgrade")) { //$NON-NLS-1$
+                options.setH2ClearTextUpgrade(Boolean.parseBoolean(endpointProperties.get("h2.clearTextUpgrade"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("h2.multiplexingLimit")) { //$NON-NLS-1$
+                options.setH2MultiplexingLimit(Integer.parseInt(endpointProperties.get("h2.multiplexingLimit"))); //$NON-NLS-1$
+            }
+            if (endpointProperties.containsKey("h2.maxPoolSize")) { //$NON-NLS-1$
+                options.setH2MaxPoolSize(Integer.parseInt(endpointProperties.get("h2.maxPoolSize"))); //$NON-NLS-1$
+            }
         } catch (NumberFormatException e) {
             throw new RuntimeException(e);
         }
@@ -143,4 +341,38 @@ public class ConnectorFactory implements IConnectorFactory {
     public IConnectorConfig createConnectorConfig(ApiRequest request, Api api) {
         return new VertxConnectorConfig();
     }
+
+    /**
+     * The connector options of one API, created on first use for each combination of
+     * required auth type and data policy (and load balancing target).
+     */
+    private final class ApiConnectorOptions {
+        private final String endpoint;
+        private final Map<String, String> endpointProperties;
+        private final ConcurrentMap<RequiredAuthType, ApimanHttpConnectorOptions> withoutDataPolicy = new ConcurrentHashMap<>();
+        private final ConcurrentMap<RequiredAuthType, ApimanHttpConnectorOptions> withDataPolicy = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, ApimanHttpConnectorOptions> byTarget = new ConcurrentHashMap<>();
+
+        private ApiConnectorOptions(Api api) {
+            this.endpoint = api.getEndpoint();
+            this.endpointProperties = new HashMap<>(api.getEndpointProperties());
+        }
+
+        /**
+         * @return true if the options are still valid for the (possibly re-published) API
+         */
+        private boolean isFor(Api other) {
+            return Objects.equals(endpoint, other.getEndpoint())
+                    && Objects.equals(endpointProperties, other.getEndpointProperties());
+        }
+
+        private ApimanHttpConnectorOptions get(Api api, RequiredAuthType authType, boolean hasDataPolicy, String target) {
+            if (target != null) {
+                return byTarget.computeIfAbsent(authType + "|" + hasDataPolicy + "|" + target, //$NON-NLS-1$ //$NON-NLS-2$
+                        key -> createOptions(api, target, authType, hasDataPolicy));
+            }
+            return (hasDataPolicy ? withDataPolicy : withoutDataPolicy)
+                    .computeIfAbsent(authType, type -> createOptions(api, api.getEndpoint(), type, hasDataPolicy));
+        }
+    }
 }
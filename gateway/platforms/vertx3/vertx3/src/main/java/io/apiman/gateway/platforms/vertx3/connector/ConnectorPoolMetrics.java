@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Scheer PAS Schweiz AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apiman.gateway.platforms.vertx3.connector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool usage towards one back-end endpoint (scheme, host and port), summed
+ * over the pools of all event loops. Intended for sizing the pools: a steadily non-zero
+ * {@link #getPending() pending} count or a growing wait time means requests queue for
+ * a connection.
+ *
+ * @author Marc Savy {@literal <marc@blackparrotlabs.io>}
+ */
+public final class ConnectorPoolMetrics {
+
+    private final String endpoint;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param endpoint the endpoint, e.g. https://example.org:443
+     */
+    public ConnectorPoolMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * A request started waiting for a connection.
+     * @return the start of the wait, to pass to {@link #acquired(long)}
+     */
+    long waiting() {
+        pending.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * A waiting request was given a connection.
+     * @param waitingSince as returned by {@link #waiting()}
+     */
+    void acquired(long waitingSince) {
+        long waitNanos = System.nanoTime() - waitingSince;
+        pending.decrementAndGet();
+        inUse.incrementAndGet();
+        acquired.increment();
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    /**
+     * A waiting request failed or was aborted before it was given a connection.
+     */
+    void abandoned() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * A request is done with its connection.
+     */
+    void released() {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * @return the endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of requests holding a connection
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return the number of connections handed out to requests so far
+     */
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return the mean time requests waited for a connection, in milliseconds
+     */
+    public double getMeanWaitTimeMillis() {
+        long count = acquired.sum();
+        return count == 0 ? 0 : (double) totalWaitNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time a request waited for a connection, in milliseconds
+     */
+    public long getMaxWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+        return String.format("%s pending=%d inUse=%d acquired=%d meanWaitMs=%.2f maxWaitMs=%d",
+                endpoint, getPending(), getInUse(), getAcquired(), getMeanWaitTimeMillis(), getMaxWaitTimeMillis());
+    }
+}
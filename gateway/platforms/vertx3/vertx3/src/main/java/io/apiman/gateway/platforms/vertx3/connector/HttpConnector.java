@@ -25,6 +25,7 @@ import io.apiman.gateway.engine.async.AsyncResultImpl;
 import io.apiman.gateway.engine.async.IAsyncHandler;
 import io.apiman.gateway.engine.async.IAsyncResultHandler;
 import io.apiman.gateway.engine.auth.RequiredAuthType;
+import io.apiman.gateway.engine.balancer.UpstreamCall;
 import io.apiman.gateway.engine.beans.Api;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
@@ -51,6 +52,7 @@ import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
@@ -94,6 +96,12 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
     private final ApimanHttpConnectorOptions options;
     private final IConnectorConfig connectorConfig;
 
+    private final ConnectorPoolMetrics poolMetrics;
+    private long waitingSince;
+    private boolean waitingForConnection = false;
+    private boolean holdingConnection = false;
+    private UpstreamCall upstreamCall;
+
 
     /**
      * Construct an {@link HttpConnector} instance. The {@link #resultHandler} must remain exclusive to a
@@ -109,7 +117,27 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
      */
     public HttpConnector(Vertx vertx, HttpClient client, ApiRequest request, Api api, ApimanHttpConnectorOptions options,
             IConnectorConfig connectorConfig, IAsyncResultHandler<IApiConnectionResponse> resultHandler) {
+        this(vertx, client, request, api, options, connectorConfig, null, resultHandler);
+    }
+
+    /**
+     * Construct an {@link HttpConnector} instance that records its use of the client's
+     * connection pool.
+     *
+     * @param vertx a vertx
+     * @param client the vertx http client
+     * @param api an API
+     * @param request a request with fields filled
+     * @param options the connector options
+     * @param connectorConfig the dynamic connector configuration as possibly modified by policies
+     * @param poolMetrics the pool metrics of the endpoint, or null
+     * @param resultHandler a handler, called when reading is permitted
+     */
+    public HttpConnector(Vertx vertx, HttpClient client, ApiRequest request, Api api, ApimanHttpConnectorOptions options,
+            IConnectorConfig connectorConfig, ConnectorPoolMetrics poolMetrics,
+            IAsyncResultHandler<IApiConnectionResponse> resultHandler) {
        this.client = client;
+       this.poolMetrics = poolMetrics;
        this.api = api;
        this.apiRequest = request;
        this.connectorConfig = connectorConfig;
@@ -154,6 +182,15 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
         }
     }
 
+    /**
+     * @param upstreamCall the load-balanced call this request is, to report its outcome to
+     * @return this
+     */
+    public HttpConnector setUpstreamCall(UpstreamCall upstreamCall) {
+        this.upstreamCall = upstreamCall;
+        return this;
+    }
+
     public HttpConnector connect() {
         String endpoint = ApimanPathUtils.join(apiPath, destination + queryParams(apiRequest.getQueryParams()));
         logger.debug("Connecting to {0} | ssl?: {1} port: {2} verb: {3} path: {4}",
@@ -165,6 +202,9 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
                 endpoint,
                 (HttpClientResponse vxClientResponse) -> {
                     clientResponse = vxClientResponse;
+                    if (upstreamCall != null) {
+                        upstreamCall.responded(vxClientResponse.statusCode());
+                    }
 
                     // Pause until we're given permission to xfer the response.
                     vxClientResponse.pause();
@@ -176,6 +216,7 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
                     });
 
                     vxClientResponse.endHandler((Handler<Void>) v -> {
+                        requestFinished();
                         endHandler.handle((Void) null);
                     });
 
@@ -195,9 +236,11 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
             clientRequest.setChunked(true);
         }
 
+        boolean http2 = options.getProtocolVersion() == HttpVersion.HTTP_2;
         apiRequest.getHeaders()
             .forEach(e -> {
-                if (!connectorConfig.getSuppressedRequestHeaders().contains(e.getKey())) {
+                if (!connectorConfig.getSuppressedRequestHeaders().contains(e.getKey())
+                        && !(http2 && isConnectionSpecific(e.getKey(), e.getValue()))) {
                     clientRequest.headers().add(e.getKey(), e.getValue());
                 }
             });
@@ -208,9 +251,59 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
             clientRequest.putHeader("Authorization", Basic.encode(basicOptions.getUsername(), basicOptions.getPassword()));
         }
 
+        if (poolMetrics != null) {
+            // The head is sent as soon as the pool hands out a connection
+            waitingSince = poolMetrics.waiting();
+            waitingForConnection = true;
+            clientRequest.sendHead(version -> connectionAcquired());
+        }
+
         return this;
     }
 
+    private void connectionAcquired() {
+        if (waitingForConnection) {
+            waitingForConnection = false;
+            holdingConnection = true;
+            poolMetrics.acquired(waitingSince);
+        }
+    }
+
+    private void requestFinished() {
+        releaseConnection();
+        if (upstreamCall != null) {
+            upstreamCall.finished();
+        }
+    }
+
+    /**
+     * Records that this request no longer waits for, or holds, a pooled connection.
+     */
+    private void releaseConnection() {
+        if (waitingForConnection) {
+            waitingForConnection = false;
+            poolMetrics.abandoned();
+        } else if (holdingConnection) {
+            holdingConnection = false;
+            poolMetrics.released();
+        }
+    }
+
+    /**
+     * HTTP/2 does not allow connection-specific headers (RFC 7540, 8.1.2.2); being
+     * hop-by-hop, they need not be forwarded if the connection falls back to HTTP/1.1.
+     */
+    private static boolean isConnectionSpecific(String name, String value) {
+        if ("TE".equalsIgnoreCase(name)) {
+            return !"trailers".equalsIgnoreCase(value); // e.g. gRPC
+        }
+        return "Connection".equalsIgnoreCase(name)
+                || "Keep-Alive".equalsIgnoreCase(name)
+                || "Proxy-Connection".equalsIgnoreCase(name)
+                || "Transfer-Encoding".equalsIgnoreCase(name)
+                || "Upgrade".equalsIgnoreCase(name);
+    }
+
     private void addMandatoryRequestHeaders(MultiMap headers) {
         String port = apiEndpoint.getPort() == -1 ? "" : ":" + apiEndpoint.getPort();
         headers.add("Host", apiEndpoint.getHost() + port);
@@ -227,9 +320,35 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
         clientResponse.resume();
     }
 
+    /**
+     * Stops reading the back-end response (e.g. while the client's write queue is full);
+     * TCP flow control then holds back the back-end itself.
+     */
+    @Override
+    public void pause() {
+        if (clientResponse != null) {
+            clientResponse.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        if (clientResponse != null) {
+            clientResponse.resume();
+        }
+    }
+
     @Override
     public void abort(Throwable t) {
         bodyHandler(null);
+        requestFinished();
+
+        if (clientRequest != null && options.getProtocolVersion() == HttpVersion.HTTP_2) {
+            // Cancels just this stream, other requests keep using the HTTP/2 connection
+            // (closes the connection if it fell back to HTTP/1.x)
+            clientRequest.reset();
+            return;
+        }
 
         if(clientRequest != null) {
            clientRequest.end();
@@ -322,6 +441,10 @@ class HttpConnector implements IApiConnectionResponse, IApiConnection {
     private class ExceptionHandler implements Handler<Throwable> {
         @Override
         public void handle(Throwable error) {
+            if (upstreamCall != null) {
+                upstreamCall.failed();
+            }
+            requestFinished();
             ConnectorException ce = ErrorHandler.handleConnectionError(error);
             logger.error("Connection Error: " + error.getMessage(), error);
 
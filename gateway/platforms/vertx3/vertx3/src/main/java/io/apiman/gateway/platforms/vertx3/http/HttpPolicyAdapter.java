@@ -19,6 +19,7 @@ import io.apiman.gateway.engine.*;
 import io.apiman.gateway.engine.beans.ApiRequest;
 import io.apiman.gateway.engine.beans.ApiResponse;
 import io.apiman.gateway.engine.beans.PolicyFailure;
+import io.apiman.gateway.engine.io.IApimanBuffer;
 import io.apiman.gateway.platforms.vertx3.io.VertxApimanBuffer;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
@@ -26,6 +27,7 @@ import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -126,16 +128,38 @@ public class HttpPolicyAdapter {
             }
 
             engineResult.bodyHandler(buffer -> {
-                vertxResponse.write((Buffer) buffer.getNativeBuffer());
+                vertxResponse.write(toBuffer(buffer));
+                // Apply back-pressure: stop reading from the back-end until the client has caught up.
+                if (vertxResponse.writeQueueFull()) {
+                    engineResult.pause();
+                    vertxResponse.drainHandler(drain -> engineResult.resume());
+                }
             });
 
             engineResult.endHandler(end -> vertxResponse.end());
+
+            // A client that goes away (possibly while paused) must not leave the back-end connection hanging.
+            vertxResponse.closeHandler(closed -> {
+                if (!vertxResponse.ended()) {
+                    engineResult.abort(new IOException("Client connection closed before the response was sent")); //$NON-NLS-1$
+                }
+            });
         } else { // Policy failure (i.e. denial - it's not an exception).
             log.debug(String.format("Failed with policy failure (denial): %s", engineResult.getPolicyFailure())); //$NON-NLS-1$
             handlePolicyFailure(request, engineResult.getPolicyFailure(), vertxResponse);
         }
     }
 
+    /**
+     * Data policies may replace the connector's Vert.x buffers with their own.
+     */
+    private Buffer toBuffer(IApimanBuffer buffer) {
+        if (buffer.getNativeBuffer() instanceof Buffer) {
+            return (Buffer) buffer.getNativeBuffer();
+        }
+        return Buffer.buffer(buffer.getBytes());
+    }
+
     /**
      * Set correct CORS headers in the response for SwaggerUis
      * @param request the ApiRequest
@@ -689,6 +689,10 @@ module Apiman {
                 let validate = function(config) {
                     let valid = false;
 
+                    if (config.staleWhileRevalidate) {
+                        config.staleWhileRevalidate = Number(config.staleWhileRevalidate);
+                    }
+
                     if (config.ttl) {
                         config.ttl = Number(config.ttl);
 